@@ -0,0 +1,225 @@
+package com.agi;
+
+import java.awt.Point;
+import java.awt.color.ColorSpace;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferFloat;
+import java.awt.image.PixelInterleavedSampleModel;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.spi.IIORegistry;
+import javax.imageio.stream.ImageOutputStream;
+
+import com.sun.media.imageioimpl.plugins.tiff.TIFFImageReaderSpi;
+import com.sun.media.imageioimpl.plugins.tiff.TIFFImageWriterSpi;
+
+/**
+ * Compares the ImageIO and the float TIFF paths of the terrain transcoder, in
+ * the manner of a JMH average time benchmark: warmup iterations, then timed
+ * iterations of a fixed duration, reporting the mean time per operation, its
+ * standard deviation over the iterations, and the bytes allocated per
+ * operation. "decode" is the conversion of a TIFF to the height image,
+ * "transcode" includes the PNG encoding.
+ * <p>
+ * Run with <code>ant benchmark</code>, optionally with
+ * <code>-Dbenchmark.args="tile.tif ..."</code> to use real tiles instead of
+ * the generated ones.
+ */
+public final class TerrainTranscodingBenchmark {
+	private static final int WARMUP_ITERATIONS = 5;
+	private static final int MEASUREMENT_ITERATIONS = 5;
+	private static final long ITERATION_NANOS = 1000 * 1000 * 1000L;
+
+	// consumes the results, so the operations can't be optimized away
+	private static volatile int blackhole;
+
+	private interface Operation {
+		BufferedImage run(byte[] tiff) throws IOException;
+	}
+
+	private static final Operation IMAGEIO = new Operation() {
+		public BufferedImage run(byte[] tiff) throws IOException {
+			return TerrainTranscodingHandler.encodeHeightFloatsAsIntegers(new ByteArrayInputStream(tiff));
+		}
+	};
+
+	private static final Operation FAST = new Operation() {
+		public BufferedImage run(byte[] tiff) throws IOException {
+			return TerrainTranscodingHandler.encodeHeights(tiff, tiff.length);
+		}
+	};
+
+	public static void main(String[] args) throws IOException {
+		IIORegistry registry = IIORegistry.getDefaultInstance();
+		registry.registerServiceProvider(new TIFFImageWriterSpi());
+		registry.registerServiceProvider(new TIFFImageReaderSpi());
+
+		List<String> names = new ArrayList<String>();
+		List<byte[]> tiffs = new ArrayList<byte[]>();
+		if (args.length == 0) {
+			names.add("65x65-strips");
+			tiffs.add(createTiff(65, 0));
+			names.add("256x256-strips");
+			tiffs.add(createTiff(256, 0));
+			names.add("256x256-tiles64");
+			tiffs.add(createTiff(256, 64));
+		} else {
+			for (String arg : args) {
+				names.add(new File(arg).getName());
+				tiffs.add(read(new File(arg)));
+			}
+		}
+
+		System.out.println(String.format("%-32s %-16s %10s %10s %7s %12s", "Benchmark", "Input", "Score", "Error", "Units", "Alloc/op"));
+		for (int i = 0; i < tiffs.size(); i++) {
+			byte[] tiff = tiffs.get(i);
+			if (FloatTiff.parse(tiff, tiff.length) == null)
+				System.out.println(names.get(i) + " is not a float TIFF the fast path reads; both paths use ImageIO");
+			else if (!Arrays.equals(pixels(IMAGEIO.run(tiff)), pixels(FAST.run(tiff))))
+				throw new IllegalStateException("The paths encode " + names.get(i) + " differently");
+
+			run("decode.imageio", names.get(i), tiff, IMAGEIO, false);
+			run("decode.fast", names.get(i), tiff, FAST, false);
+			run("transcode.imageio", names.get(i), tiff, IMAGEIO, true);
+			run("transcode.fast", names.get(i), tiff, FAST, true);
+		}
+	}
+
+	private static void run(String benchmark, String input, byte[] tiff, Operation operation, boolean png) throws IOException {
+		for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+			iteration(tiff, operation, png);
+		}
+		double[] micros = new double[MEASUREMENT_ITERATIONS];
+		double allocated = 0;
+		for (int i = 0; i < MEASUREMENT_ITERATIONS; i++) {
+			double[] result = iteration(tiff, operation, png);
+			micros[i] = result[0];
+			allocated += result[1] / MEASUREMENT_ITERATIONS;
+		}
+
+		double mean = 0;
+		for (double value : micros) {
+			mean += value / micros.length;
+		}
+		double variance = 0;
+		for (double value : micros) {
+			variance += (value - mean) * (value - mean) / (micros.length - 1);
+		}
+		System.out.println(String.format("%-32s %-16s %10.1f %10.1f %7s %12s", benchmark, input, mean, Math.sqrt(variance), "us/op",
+				allocated < 0 ? "n/a" : String.format("%,.0f B", allocated)));
+	}
+
+	/**
+	 * @return the mean time per operation in microseconds, and the mean
+	 *         bytes allocated per operation (negative if not available)
+	 */
+	private static double[] iteration(byte[] tiff, Operation operation, boolean png) throws IOException {
+		long operations = 0;
+		long allocatedBefore = allocatedBytes();
+		long start = System.nanoTime();
+		long elapsed;
+		int result = 0;
+		do {
+			BufferedImage image = operation.run(tiff);
+			if (png) {
+				ByteArrayOutputStream output = new ByteArrayOutputStream(tiff.length / 2 + 1024);
+				ImageIO.write(image, "PNG", output);
+				result += output.size();
+			} else {
+				result += image.getRaster().getDataBuffer().getElem(image.getWidth() / 2);
+			}
+			operations++;
+			elapsed = System.nanoTime() - start;
+		} while (elapsed < ITERATION_NANOS);
+		long allocatedAfter = allocatedBytes();
+		blackhole += result;
+		return new double[] {
+				elapsed / 1000.0 / operations,
+				allocatedBefore < 0 ? -1 : (double) (allocatedAfter - allocatedBefore) / operations
+		};
+	}
+
+	private static long allocatedBytes() {
+		try {
+			java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+			if (bean instanceof com.sun.management.ThreadMXBean)
+				return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+		} catch (Throwable e) {
+		}
+		return -1;
+	}
+
+	private static int[] pixels(BufferedImage image) {
+		return image.getRGB(0, 0, image.getWidth(), image.getHeight(), null, 0, image.getWidth());
+	}
+
+	/**
+	 * A float TIFF of terrain-like heights, in strips, or in tiles of the
+	 * given size.
+	 */
+	private static byte[] createTiff(int size, int tileSize) throws IOException {
+		DataBufferFloat buffer = new DataBufferFloat(size * size);
+		for (int y = 0; y < size; y++) {
+			for (int x = 0; x < size; x++) {
+				buffer.setElemFloat(y * size + x, (float) (300 + 250 * Math.sin(x * 0.05) * Math.cos(y * 0.07) + x * 0.37 - y * 0.11));
+			}
+		}
+		WritableRaster raster = Raster.createWritableRaster(new PixelInterleavedSampleModel(DataBuffer.TYPE_FLOAT, size, size, 1, size, new int[] {
+			0
+		}), buffer, new Point());
+		ColorModel colorModel = new ComponentColorModel(ColorSpace.getInstance(ColorSpace.CS_GRAY), false, false, ColorModel.OPAQUE, DataBuffer.TYPE_FLOAT);
+		BufferedImage image = new BufferedImage(colorModel, raster, false, null);
+
+		Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName("TIFF");
+		ImageWriter writer = writers.next();
+		ImageWriteParam param = writer.getDefaultWriteParam();
+		if (tileSize > 0) {
+			param.setTilingMode(ImageWriteParam.MODE_EXPLICIT);
+			param.setTiling(tileSize, tileSize, 0, 0);
+		}
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		ImageOutputStream imageOutput = ImageIO.createImageOutputStream(output);
+		try {
+			writer.setOutput(imageOutput);
+			writer.write(null, new IIOImage(image, null, null), param);
+		} finally {
+			imageOutput.close();
+			writer.dispose();
+		}
+		return output.toByteArray();
+	}
+
+	private static byte[] read(File file) throws IOException {
+		InputStream input = new FileInputStream(file);
+		try {
+			ByteArrayOutputStream output = new ByteArrayOutputStream((int) file.length());
+			byte[] buffer = new byte[8192];
+			int read;
+			while ((read = input.read(buffer)) > 0) {
+				output.write(buffer, 0, read);
+			}
+			return output.toByteArray();
+		} finally {
+			input.close();
+		}
+	}
+}
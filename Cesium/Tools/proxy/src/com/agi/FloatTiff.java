@@ -0,0 +1,215 @@
+package com.agi;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+/**
+ * Reads the samples of single band, 32-bit floating point, uncompressed TIFF
+ * images (the float GeoTIFF height tiles of terrain servers), in strips or
+ * tiles, directly into a float array. {@link #parse(byte[], int)} returns
+ * null for any other layout, which has to be read with ImageIO instead.
+ */
+public final class FloatTiff {
+	private static final int TAG_IMAGE_WIDTH = 256;
+	private static final int TAG_IMAGE_LENGTH = 257;
+	private static final int TAG_BITS_PER_SAMPLE = 258;
+	private static final int TAG_COMPRESSION = 259;
+	private static final int TAG_STRIP_OFFSETS = 273;
+	private static final int TAG_SAMPLES_PER_PIXEL = 277;
+	private static final int TAG_ROWS_PER_STRIP = 278;
+	private static final int TAG_STRIP_BYTE_COUNTS = 279;
+	private static final int TAG_PLANAR_CONFIGURATION = 284;
+	private static final int TAG_PREDICTOR = 317;
+	private static final int TAG_TILE_WIDTH = 322;
+	private static final int TAG_TILE_LENGTH = 323;
+	private static final int TAG_TILE_OFFSETS = 324;
+	private static final int TAG_TILE_BYTE_COUNTS = 325;
+	private static final int TAG_SAMPLE_FORMAT = 339;
+
+	private static final int TYPE_SHORT = 3;
+	private static final int TYPE_LONG = 4;
+	private static final int SAMPLE_FORMAT_FLOAT = 3;
+
+	public final int width;
+	public final int height;
+	private final ByteOrder order;
+	// the size of the strips or tiles; strips are as wide as the image
+	private final int blockWidth;
+	private final int blockHeight;
+	private final long[] offsets;
+
+	private FloatTiff(int width, int height, ByteOrder order, int blockWidth, int blockHeight, long[] offsets) {
+		this.width = width;
+		this.height = height;
+		this.order = order;
+		this.blockWidth = blockWidth;
+		this.blockHeight = blockHeight;
+		this.offsets = offsets;
+	}
+
+	/**
+	 * The layout of the first image of a TIFF, or null if it is not a
+	 * supported float image.
+	 */
+	public static FloatTiff parse(byte[] data, int length) {
+		if (length < 8)
+			return null;
+		ByteOrder order;
+		if (data[0] == 'I' && data[1] == 'I')
+			order = ByteOrder.LITTLE_ENDIAN;
+		else if (data[0] == 'M' && data[1] == 'M')
+			order = ByteOrder.BIG_ENDIAN;
+		else
+			return null;
+		ByteBuffer buffer = ByteBuffer.wrap(data, 0, length).order(order);
+		if (buffer.getShort(2) != 42)
+			return null;
+
+		long ifd = buffer.getInt(4) & 0xFFFFFFFFL;
+		if (ifd < 8 || ifd + 2 > length)
+			return null;
+		int entries = buffer.getShort((int) ifd) & 0xFFFF;
+		if (ifd + 2 + entries * 12L > length)
+			return null;
+
+		int width = 0, height = 0, rowsPerStrip = Integer.MAX_VALUE;
+		int tileWidth = 0, tileHeight = 0;
+		// the sample format defaults to unsigned integers, and the bits per sample to 1
+		boolean floatSamples = false, bitsPerSample = false;
+		long[] stripOffsets = null, stripByteCounts = null, tileOffsets = null, tileByteCounts = null;
+		for (int i = 0; i < entries; i++) {
+			int entry = (int) ifd + 2 + i * 12;
+			int tag = buffer.getShort(entry) & 0xFFFF;
+			int type = buffer.getShort(entry + 2) & 0xFFFF;
+			long count = buffer.getInt(entry + 4) & 0xFFFFFFFFL;
+			long[] values;
+			switch (tag) {
+			case TAG_IMAGE_WIDTH:
+			case TAG_IMAGE_LENGTH:
+			case TAG_BITS_PER_SAMPLE:
+			case TAG_COMPRESSION:
+			case TAG_SAMPLES_PER_PIXEL:
+			case TAG_ROWS_PER_STRIP:
+			case TAG_PLANAR_CONFIGURATION:
+			case TAG_PREDICTOR:
+			case TAG_TILE_WIDTH:
+			case TAG_TILE_LENGTH:
+			case TAG_SAMPLE_FORMAT:
+				values = values(buffer, entry, type, count);
+				if (values == null || values.length != 1)
+					return null;
+				long value = values[0];
+				if (tag == TAG_IMAGE_WIDTH)
+					width = (int) Math.min(value, Integer.MAX_VALUE);
+				else if (tag == TAG_IMAGE_LENGTH)
+					height = (int) Math.min(value, Integer.MAX_VALUE);
+				else if (tag == TAG_ROWS_PER_STRIP)
+					rowsPerStrip = (int) Math.min(value, Integer.MAX_VALUE);
+				else if (tag == TAG_TILE_WIDTH)
+					tileWidth = (int) Math.min(value, Integer.MAX_VALUE);
+				else if (tag == TAG_TILE_LENGTH)
+					tileHeight = (int) Math.min(value, Integer.MAX_VALUE);
+				else if (value != (tag == TAG_BITS_PER_SAMPLE ? 32 : tag == TAG_SAMPLE_FORMAT ? SAMPLE_FORMAT_FLOAT : 1))
+					// compression, predictor, planar configuration and samples per pixel must all be 1
+					return null;
+				floatSamples |= tag == TAG_SAMPLE_FORMAT;
+				bitsPerSample |= tag == TAG_BITS_PER_SAMPLE;
+				break;
+			case TAG_STRIP_OFFSETS:
+				stripOffsets = values(buffer, entry, type, count);
+				break;
+			case TAG_STRIP_BYTE_COUNTS:
+				stripByteCounts = values(buffer, entry, type, count);
+				break;
+			case TAG_TILE_OFFSETS:
+				tileOffsets = values(buffer, entry, type, count);
+				break;
+			case TAG_TILE_BYTE_COUNTS:
+				tileByteCounts = values(buffer, entry, type, count);
+				break;
+			}
+		}
+
+		if (!floatSamples || !bitsPerSample || width <= 0 || height <= 0 || (long) width * height > Integer.MAX_VALUE)
+			return null;
+
+		FloatTiff tiff;
+		if (tileOffsets != null) {
+			if (tileWidth <= 0 || tileHeight <= 0 || tileByteCounts == null)
+				return null;
+			long tiles = (long) ((width + tileWidth - 1) / tileWidth) * ((height + tileHeight - 1) / tileHeight);
+			if (tileOffsets.length != tiles || tileByteCounts.length != tiles)
+				return null;
+			tiff = new FloatTiff(width, height, order, tileWidth, tileHeight, tileOffsets);
+			if (!tiff.fits(tileByteCounts, (long) tileWidth * tileHeight * 4, length))
+				return null;
+		} else if (stripOffsets != null) {
+			rowsPerStrip = Math.min(rowsPerStrip, height);
+			long strips = (height + (long) rowsPerStrip - 1) / rowsPerStrip;
+			if (stripOffsets.length != strips || stripByteCounts == null || stripByteCounts.length != strips)
+				return null;
+			tiff = new FloatTiff(width, height, order, width, rowsPerStrip, stripOffsets);
+			if (!tiff.fits(stripByteCounts, (long) width * rowsPerStrip * 4, length))
+				return null;
+		} else {
+			return null;
+		}
+		return tiff;
+	}
+
+	/**
+	 * Whether every block is in the data, and has all the bytes it needs. The
+	 * last strip may be shorter than the others.
+	 */
+	private boolean fits(long[] byteCounts, long blockBytes, int length) {
+		for (int i = 0; i < offsets.length; i++) {
+			long needed = blockBytes;
+			if (blockWidth == width && i == offsets.length - 1)
+				needed = (long) width * (height - (long) i * blockHeight) * 4;
+			if (byteCounts[i] < needed || offsets[i] + needed > length)
+				return false;
+		}
+		return true;
+	}
+
+	private static long[] values(ByteBuffer buffer, int entry, int type, long count) {
+		int size = type == TYPE_SHORT ? 2 : type == TYPE_LONG ? 4 : 0;
+		if (size == 0 || count <= 0 || count > Integer.MAX_VALUE / 4)
+			return null;
+		long offset = count * size <= 4 ? entry + 8 : buffer.getInt(entry + 8) & 0xFFFFFFFFL;
+		if (offset + count * size > buffer.limit())
+			return null;
+		long[] values = new long[(int) count];
+		for (int i = 0; i < values.length; i++) {
+			int position = (int) offset + i * size;
+			values[i] = size == 2 ? buffer.getShort(position) & 0xFFFF : buffer.getInt(position) & 0xFFFFFFFFL;
+		}
+		return values;
+	}
+
+	/**
+	 * Read the samples, row by row, into the first width * height elements of
+	 * samples.
+	 */
+	public void read(byte[] data, float[] samples) {
+		int blocksAcross = (width + blockWidth - 1) / blockWidth;
+		for (int block = 0; block < offsets.length; block++) {
+			int x = (block % blocksAcross) * blockWidth;
+			int y = (block / blocksAcross) * blockHeight;
+			int columns = Math.min(blockWidth, width - x);
+			int rows = Math.min(blockHeight, height - y);
+			int offset = (int) offsets[block];
+			if (columns == width) {
+				// a strip's rows are contiguous in the image too
+				ByteBuffer.wrap(data, offset, columns * rows * 4).order(order).asFloatBuffer().get(samples, y * width, columns * rows);
+			} else {
+				FloatBuffer tile = ByteBuffer.wrap(data, offset, blockWidth * rows * 4).order(order).asFloatBuffer();
+				for (int row = 0; row < rows; row++) {
+					tile.position(row * blockWidth);
+					tile.get(samples, (y + row) * width + x, columns);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,122 @@
+package com.agi;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.jetty.http.HttpHeaders;
+import org.eclipse.jetty.http.HttpMethods;
+import org.eclipse.jetty.io.Buffer;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.handler.ResourceHandler;
+import org.eclipse.jetty.util.IO;
+import org.eclipse.jetty.util.resource.Resource;
+
+/**
+ * A ResourceHandler that serves the precompressed copy of a file (file.gz,
+ * eg as written next to the data files by the harvester and the boundary
+ * pipeline) with Content-Encoding: gzip to clients that accept gzip, instead
+ * of the file itself. A copy older than its file is stale and ignored.
+ * Everything else (no copy, directories, ranges) is left to ResourceHandler.
+ */
+public class PrecompressedResourceHandler extends ResourceHandler {
+	private static final String SUFFIX = ".gz";
+
+	public void handle(String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response) throws IOException, ServletException {
+		if (baseRequest.isHandled()) {
+			return;
+		}
+
+		String method = request.getMethod();
+		if (!HttpMethods.GET.equals(method) && !HttpMethods.HEAD.equals(method) || request.getHeader(HttpHeaders.RANGE) != null) {
+			super.handle(target, baseRequest, request, response);
+			return;
+		}
+
+		File file = null;
+		Resource resource = getResource(request);
+		if (resource != null && resource.exists() && !resource.isDirectory()) {
+			file = resource.getFile();
+		}
+		File gzipFile = file == null ? null : new File(file.getPath() + SUFFIX);
+		if (gzipFile == null || !gzipFile.isFile() || gzipFile.lastModified() < file.lastModified()) {
+			super.handle(target, baseRequest, request, response);
+			return;
+		}
+
+		// the response depends on Accept-Encoding whichever version is sent
+		response.setHeader(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+		if (!acceptsGzip(request.getHeader(HttpHeaders.ACCEPT_ENCODING))) {
+			super.handle(target, baseRequest, request, response);
+			return;
+		}
+
+		baseRequest.setHandled(true);
+
+		long lastModified = file.lastModified();
+		long ifModifiedSince = request.getDateHeader(HttpHeaders.IF_MODIFIED_SINCE);
+		if (ifModifiedSince > 0 && lastModified / 1000 <= ifModifiedSince / 1000) {
+			response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+			return;
+		}
+
+		Buffer mimeType = getMimeTypes().getMimeByExtension(file.getName());
+		if (mimeType != null) {
+			response.setContentType(mimeType.toString());
+		}
+		response.setHeader(HttpHeaders.CONTENT_ENCODING, "gzip");
+		response.setDateHeader(HttpHeaders.LAST_MODIFIED, lastModified);
+		response.setHeader(HttpHeaders.CONTENT_LENGTH, Long.toString(gzipFile.length()));
+		if (getCacheControl() != null) {
+			response.setHeader(HttpHeaders.CACHE_CONTROL, getCacheControl());
+		}
+
+		if (HttpMethods.HEAD.equals(method)) {
+			return;
+		}
+
+		InputStream in = new FileInputStream(gzipFile);
+		try {
+			IO.copy(in, response.getOutputStream());
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Whether an Accept-Encoding header allows gzip, ie lists gzip (or *)
+	 * without q=0.
+	 */
+	static boolean acceptsGzip(String acceptEncoding) {
+		if (acceptEncoding == null) {
+			return false;
+		}
+		for (String coding : acceptEncoding.split(",")) {
+			String[] parts = coding.split(";");
+			String name = parts[0].trim().toLowerCase();
+			if (!"gzip".equals(name) && !"x-gzip".equals(name) && !"*".equals(name)) {
+				continue;
+			}
+			double quality = 1;
+			for (int i = 1; i < parts.length; i++) {
+				String parameter = parts[i].trim();
+				if (parameter.startsWith("q=")) {
+					try {
+						quality = Double.parseDouble(parameter.substring(2).trim());
+					} catch (NumberFormatException e) {
+						quality = 0;
+					}
+				}
+			}
+			if (quality > 0) {
+				return true;
+			}
+		}
+		return false;
+	}
+}
@@ -0,0 +1,674 @@
+package com.agi;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.eclipse.jetty.http.HttpFields;
+import org.eclipse.jetty.http.HttpHeaders;
+import org.eclipse.jetty.http.HttpMethods;
+
+/**
+ * A shared HTTP cache of upstream responses, with a bounded in-memory LRU tier
+ * and an optional bounded disk tier. Freshness follows the upstream
+ * Cache-Control (s-maxage, max-age, no-cache, no-store, private), Expires and
+ * Last-Modified headers; stale entries with an ETag or Last-Modified are
+ * revalidated with a conditional request. Concurrent requests for the same
+ * key are coalesced into a single upstream fetch (a flight), whose response
+ * is delivered to all of them.
+ */
+public class ProxyCache {
+	// heuristic freshness of responses with only a Last-Modified, as a fraction of their age, and its maximum
+	private static final double HEURISTIC_FRACTION = 0.1;
+	private static final long MAX_HEURISTIC_FRESHNESS = 24 * 60 * 60 * 1000L;
+	private static final int DISK_FORMAT_VERSION = 1;
+
+	private static final String[] NO_HEADERS = new String[0];
+
+	private final long maxMemoryBytes;
+	private final long maxEntryBytes;
+	private final File diskDirectory;
+	private final long maxDiskBytes;
+
+	private final LinkedHashMap<String, Entry> memory = new LinkedHashMap<String, Entry>(256, 0.75f, true);
+	private long memoryBytes;
+	private final LinkedHashMap<String, Long> diskFiles = new LinkedHashMap<String, Long>(256, 0.75f, true);
+	private long diskBytes;
+	private final ExecutorService diskWriter;
+	private final Map<String, List<Listener>> flights = new HashMap<String, List<Listener>>();
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong diskHits = new AtomicLong();
+	private final AtomicLong staleDiskReads = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong revalidations = new AtomicLong();
+	private final AtomicLong notModified = new AtomicLong();
+	private final AtomicLong coalesced = new AtomicLong();
+	private final AtomicLong stores = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+
+	/**
+	 * A cached response. Header names and values alternate in headers.
+	 */
+	public static final class Entry {
+		public final int status;
+		public final String[] headers;
+		public final byte[] body;
+		public final long storedAt;
+		public final long expiresAt;
+
+		public Entry(int status, String[] headers, byte[] body, long storedAt, long expiresAt) {
+			this.status = status;
+			this.headers = headers;
+			this.body = body;
+			this.storedAt = storedAt;
+			this.expiresAt = expiresAt;
+		}
+
+		public boolean isFresh(long now) {
+			return now < expiresAt;
+		}
+
+		public String getHeader(String name) {
+			for (int i = 0; i < headers.length; i += 2) {
+				if (headers[i].equalsIgnoreCase(name))
+					return headers[i + 1];
+			}
+			return null;
+		}
+
+		public boolean hasValidator() {
+			return getHeader(HttpHeaders.ETAG) != null || getHeader(HttpHeaders.LAST_MODIFIED) != null;
+		}
+
+		/**
+		 * The entry updated with the headers of a 304 Not Modified response to
+		 * its revalidation, which replace the stored headers of the same name.
+		 */
+		public Entry revalidated(String[] notModifiedHeaders, long now) {
+			List<String> merged = new ArrayList<String>();
+			for (int i = 0; i < headers.length; i += 2) {
+				if (!contains(notModifiedHeaders, headers[i])) {
+					merged.add(headers[i]);
+					merged.add(headers[i + 1]);
+				}
+			}
+			for (int i = 0; i < notModifiedHeaders.length; i += 2) {
+				if (!HttpHeaders.CONTENT_LENGTH.equalsIgnoreCase(notModifiedHeaders[i])) {
+					merged.add(notModifiedHeaders[i]);
+					merged.add(notModifiedHeaders[i + 1]);
+				}
+			}
+			String[] mergedHeaders = merged.toArray(NO_HEADERS);
+			return new Entry(status, mergedHeaders, body, now, expiresAt(status, mergedHeaders, now));
+		}
+
+		long size() {
+			long size = body.length + 64;
+			for (String header : headers) {
+				size += header.length() * 2;
+			}
+			return size;
+		}
+
+		private static boolean contains(String[] headers, String name) {
+			for (int i = 0; i < headers.length; i += 2) {
+				if (headers[i].equalsIgnoreCase(name))
+					return true;
+			}
+			return false;
+		}
+	}
+
+	/**
+	 * Receives the response of a flight.
+	 */
+	public interface Listener {
+		void onResponse(Entry entry);
+
+		void onFailure(Throwable cause);
+
+		/**
+		 * The response of the flight may not be shared, so the request has to
+		 * be sent upstream by itself.
+		 */
+		void onUnshared();
+	}
+
+	/**
+	 * @param maxMemoryBytes
+	 *            size of the memory tier
+	 * @param diskDirectory
+	 *            directory of the disk tier, or null for none
+	 * @param maxDiskBytes
+	 *            size of the disk tier
+	 */
+	public ProxyCache(long maxMemoryBytes, File diskDirectory, long maxDiskBytes) {
+		this.maxMemoryBytes = maxMemoryBytes;
+		this.maxEntryBytes = maxMemoryBytes / 16;
+		this.diskDirectory = diskDirectory;
+		this.maxDiskBytes = maxDiskBytes;
+
+		if (diskDirectory != null) {
+			diskDirectory.mkdirs();
+			loadDiskIndex();
+			diskWriter = Executors.newSingleThreadExecutor(new ThreadFactory() {
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "proxy-cache-writer");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		} else {
+			diskWriter = null;
+		}
+	}
+
+	/**
+	 * Whether the response to a request may come from the cache: GET requests
+	 * without credentials (Authorization or Cookie), ranges or no-store.
+	 */
+	public static boolean isCacheable(HttpServletRequest request) {
+		if (!HttpMethods.GET.equals(request.getMethod()))
+			return false;
+		if (hasCredentials(request) || request.getHeader(HttpHeaders.RANGE) != null)
+			return false;
+		String cacheControl = request.getHeader(HttpHeaders.CACHE_CONTROL);
+		return cacheControl == null || !hasDirective(cacheControl, "no-store");
+	}
+
+	/**
+	 * Whether a request carries credentials, which are proxied upstream, so
+	 * its response may be specific to the user.
+	 */
+	public static boolean hasCredentials(HttpServletRequest request) {
+		return request.getHeader(HttpHeaders.AUTHORIZATION) != null || request.getHeader(HttpHeaders.COOKIE) != null;
+	}
+
+	/**
+	 * Whether a request asks for the cached response to be revalidated, eg on
+	 * a reload.
+	 */
+	public static boolean requiresRevalidation(HttpServletRequest request) {
+		String cacheControl = request.getHeader(HttpHeaders.CACHE_CONTROL);
+		if (cacheControl != null)
+			return hasDirective(cacheControl, "no-cache") || "0".equals(directive(cacheControl, "max-age"));
+		String pragma = request.getHeader(HttpHeaders.PRAGMA);
+		return pragma != null && hasDirective(pragma, "no-cache");
+	}
+
+	/**
+	 * The key of the response to a request for a URI. Upstream responses
+	 * may vary by Accept-Encoding, so it is part of the key.
+	 */
+	public static String key(String uri, HttpServletRequest request) {
+		String acceptEncoding = request.getHeader(HttpHeaders.ACCEPT_ENCODING);
+		return uri + "\n" + (acceptEncoding == null ? "" : acceptEncoding.trim());
+	}
+
+	/**
+	 * Whether a response may be specific to the request that got it: it sets
+	 * a cookie, is marked private, or varies by request headers other than
+	 * Accept-Encoding.
+	 */
+	public static boolean isPrivate(String[] headers) {
+		for (int i = 0; i < headers.length; i += 2) {
+			String name = headers[i];
+			String value = headers[i + 1];
+			if (HttpHeaders.SET_COOKIE.equalsIgnoreCase(name)) {
+				return true;
+			} else if (HttpHeaders.CACHE_CONTROL.equalsIgnoreCase(name)) {
+				if (hasDirective(value, "private"))
+					return true;
+			} else if (HttpHeaders.VARY.equalsIgnoreCase(name)) {
+				for (String field : value.split(",")) {
+					if (!field.trim().equalsIgnoreCase(HttpHeaders.ACCEPT_ENCODING))
+						return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * The time until which a response is fresh, or -1 if it may not be
+	 * stored.
+	 */
+	public static long expiresAt(int status, String[] headers, long now) {
+		if (status != 200 && status != 203)
+			return -1;
+
+		String cacheControl = null;
+		String expires = null;
+		String date = null;
+		String lastModified = null;
+		boolean validator = false;
+		for (int i = 0; i < headers.length; i += 2) {
+			String name = headers[i];
+			String value = headers[i + 1];
+			if (HttpHeaders.CACHE_CONTROL.equalsIgnoreCase(name)) {
+				cacheControl = cacheControl == null ? value : cacheControl + "," + value;
+			} else if (HttpHeaders.EXPIRES.equalsIgnoreCase(name)) {
+				expires = value;
+			} else if (HttpHeaders.DATE.equalsIgnoreCase(name)) {
+				date = value;
+			} else if (HttpHeaders.LAST_MODIFIED.equalsIgnoreCase(name)) {
+				lastModified = value;
+				validator = true;
+			} else if (HttpHeaders.ETAG.equalsIgnoreCase(name)) {
+				validator = true;
+			} else if (HttpHeaders.SET_COOKIE.equalsIgnoreCase(name)) {
+				return -1;
+			} else if (HttpHeaders.VARY.equalsIgnoreCase(name)) {
+				for (String field : value.split(",")) {
+					if (!field.trim().equalsIgnoreCase(HttpHeaders.ACCEPT_ENCODING))
+						return -1;
+				}
+			}
+		}
+
+		if (cacheControl != null) {
+			if (hasDirective(cacheControl, "no-store") || hasDirective(cacheControl, "private"))
+				return -1;
+			if (hasDirective(cacheControl, "no-cache"))
+				return validator ? now : -1;
+			String maxAge = directive(cacheControl, "s-maxage");
+			if (maxAge == null)
+				maxAge = directive(cacheControl, "max-age");
+			if (maxAge != null) {
+				try {
+					return now + Long.parseLong(maxAge) * 1000;
+				} catch (NumberFormatException e) {
+					return validator ? now : -1;
+				}
+			}
+		}
+
+		long dateValue = parseDate(date);
+		if (expires != null) {
+			// an invalid Expires (eg 0) means already expired
+			long expiresValue = parseDate(expires);
+			long freshness = expiresValue < 0 ? 0 : expiresValue - (dateValue < 0 ? now : dateValue);
+			return now + Math.max(0, freshness);
+		}
+
+		long lastModifiedValue = parseDate(lastModified);
+		if (lastModifiedValue >= 0) {
+			long age = (dateValue < 0 ? now : dateValue) - lastModifiedValue;
+			return now + Math.min(MAX_HEURISTIC_FRESHNESS, Math.max(0, (long) (age * HEURISTIC_FRACTION)));
+		}
+		return validator ? now : -1;
+	}
+
+	/**
+	 * The cached entry of a key, fresh or stale, or null.
+	 */
+	public Entry get(String key) {
+		synchronized (memory) {
+			Entry entry = memory.get(key);
+			if (entry != null)
+				return entry;
+		}
+
+		Entry entry = readDisk(key);
+		if (entry != null) {
+			// a stale entry is counted as a miss or revalidation when it is used
+			if (entry.isFresh(System.currentTimeMillis()))
+				diskHits.incrementAndGet();
+			else
+				staleDiskReads.incrementAndGet();
+			putMemory(key, entry);
+		}
+		return entry;
+	}
+
+	/**
+	 * Count a request answered by a fresh entry.
+	 */
+	public void hit() {
+		hits.incrementAndGet();
+	}
+
+	/**
+	 * Store an entry if it may be stored, or remove a previous one.
+	 */
+	public void put(String key, Entry entry) {
+		if (entry.expiresAt < 0 || entry.size() > maxEntryBytes) {
+			remove(key);
+			return;
+		}
+		stores.incrementAndGet();
+		putMemory(key, entry);
+		writeDisk(key, entry);
+	}
+
+	/**
+	 * Whether a response body is too large to be stored, so it need not be
+	 * buffered.
+	 */
+	public boolean isTooLarge(long bodyBytes) {
+		return bodyBytes > maxEntryBytes;
+	}
+
+	public void remove(String key) {
+		synchronized (memory) {
+			Entry entry = memory.remove(key);
+			if (entry != null)
+				memoryBytes -= entry.size();
+		}
+		if (diskDirectory != null) {
+			String name = fileName(key);
+			synchronized (diskFiles) {
+				Long size = diskFiles.remove(name);
+				if (size != null) {
+					diskBytes -= size;
+					new File(diskDirectory, name).delete();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Join the flight of a key, or start one. Returns true if the listener
+	 * started the flight, in which case the caller must fetch the response
+	 * and {@link #land(String, Entry)} the flight.
+	 */
+	public boolean join(String key, Listener listener) {
+		synchronized (flights) {
+			List<Listener> listeners = flights.get(key);
+			if (listeners != null) {
+				listeners.add(listener);
+				coalesced.incrementAndGet();
+				return false;
+			}
+			listeners = new ArrayList<Listener>();
+			listeners.add(listener);
+			flights.put(key, listeners);
+		}
+		misses.incrementAndGet();
+		return true;
+	}
+
+	/**
+	 * Count a flight started to revalidate a stale entry, and whether it was
+	 * still valid.
+	 */
+	public void revalidated(boolean wasNotModified) {
+		revalidations.incrementAndGet();
+		if (wasNotModified)
+			notModified.incrementAndGet();
+	}
+
+	/**
+	 * Deliver the response of a flight to all its listeners, including
+	 * responses that may not be stored, such as upstream errors. Only a
+	 * private response is delivered just to the listener that started the
+	 * flight, and the others are unshared.
+	 */
+	public void land(String key, Entry entry) {
+		List<Listener> listeners = endFlight(key);
+		boolean shared = !isPrivate(entry.headers);
+		for (int i = 0; i < listeners.size(); i++) {
+			try {
+				if (i == 0 || shared)
+					listeners.get(i).onResponse(entry);
+				else
+					listeners.get(i).onUnshared();
+			} catch (RuntimeException e) {
+				// one failed client mustn't keep the others waiting
+			}
+		}
+	}
+
+	/**
+	 * End a flight whose response will not be stored, eg as it is too large,
+	 * without a response for the listener that started it. The others are
+	 * unshared.
+	 */
+	public void abandon(String key) {
+		List<Listener> listeners = endFlight(key);
+		for (int i = 1; i < listeners.size(); i++) {
+			try {
+				listeners.get(i).onUnshared();
+			} catch (RuntimeException e) {
+			}
+		}
+	}
+
+	/**
+	 * Fail a flight, delivering the stale entry instead if there is one.
+	 */
+	public void fail(String key, Entry stale, Throwable cause) {
+		for (Listener listener : endFlight(key)) {
+			try {
+				if (stale != null)
+					listener.onResponse(stale);
+				else
+					listener.onFailure(cause);
+			} catch (RuntimeException e) {
+			}
+		}
+	}
+
+	private List<Listener> endFlight(String key) {
+		synchronized (flights) {
+			List<Listener> listeners = flights.remove(key);
+			return listeners == null ? new ArrayList<Listener>() : listeners;
+		}
+	}
+
+	/**
+	 * The counters, as a JSON object.
+	 */
+	public String statistics() {
+		long memoryEntries, memorySize;
+		synchronized (memory) {
+			memoryEntries = memory.size();
+			memorySize = memoryBytes;
+		}
+		long diskEntries, diskSize;
+		synchronized (diskFiles) {
+			diskEntries = diskFiles.size();
+			diskSize = diskBytes;
+		}
+		return "{\"hits\":" + hits.get() + ",\"diskHits\":" + diskHits.get() + ",\"staleDiskReads\":" + staleDiskReads.get() + ",\"misses\":" + misses.get()
+				+ ",\"revalidations\":" + revalidations.get() + ",\"notModified\":" + notModified.get()
+				+ ",\"coalesced\":" + coalesced.get() + ",\"stores\":" + stores.get() + ",\"evictions\":"
+				+ evictions.get() + ",\"memoryEntries\":" + memoryEntries + ",\"memoryBytes\":" + memorySize
+				+ ",\"diskEntries\":" + diskEntries + ",\"diskBytes\":" + diskSize + "}";
+	}
+
+	private void putMemory(String key, Entry entry) {
+		synchronized (memory) {
+			Entry previous = memory.put(key, entry);
+			if (previous != null)
+				memoryBytes -= previous.size();
+			memoryBytes += entry.size();
+			Iterator<Entry> eldest = memory.values().iterator();
+			while (memoryBytes > maxMemoryBytes && eldest.hasNext()) {
+				memoryBytes -= eldest.next().size();
+				eldest.remove();
+				evictions.incrementAndGet();
+			}
+		}
+	}
+
+	private void loadDiskIndex() {
+		File[] files = diskDirectory.listFiles();
+		if (files == null)
+			return;
+		// oldest first, so the least recently written are evicted first
+		Arrays.sort(files, new Comparator<File>() {
+			public int compare(File o1, File o2) {
+				long difference = o1.lastModified() - o2.lastModified();
+				return difference < 0 ? -1 : difference > 0 ? 1 : 0;
+			}
+		});
+		synchronized (diskFiles) {
+			for (File file : files) {
+				if (file.getName().endsWith(".tmp")) {
+					file.delete();
+				} else if (file.isFile()) {
+					diskFiles.put(file.getName(), file.length());
+					diskBytes += file.length();
+				}
+			}
+		}
+	}
+
+	private Entry readDisk(String key) {
+		if (diskDirectory == null)
+			return null;
+		String name = fileName(key);
+		synchronized (diskFiles) {
+			if (diskFiles.get(name) == null)
+				return null;
+		}
+		File file = new File(diskDirectory, name);
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			if (in.readInt() != DISK_FORMAT_VERSION || !key.equals(in.readUTF()))
+				return null;
+			int status = in.readInt();
+			long storedAt = in.readLong();
+			long expiresAt = in.readLong();
+			String[] headers = new String[in.readInt() * 2];
+			for (int i = 0; i < headers.length; i++) {
+				headers[i] = in.readUTF();
+			}
+			byte[] body = new byte[in.readInt()];
+			in.readFully(body);
+			return new Entry(status, headers, body, storedAt, expiresAt);
+		} catch (IOException e) {
+			return null;
+		} finally {
+			if (in != null) {
+				try {
+					in.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+	}
+
+	private void writeDisk(final String key, final Entry entry) {
+		if (diskDirectory == null)
+			return;
+		diskWriter.execute(new Runnable() {
+			public void run() {
+				String name = fileName(key);
+				File file = new File(diskDirectory, name);
+				File tempFile = new File(diskDirectory, name + ".tmp");
+				DataOutputStream out = null;
+				try {
+					out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+					out.writeInt(DISK_FORMAT_VERSION);
+					out.writeUTF(key);
+					out.writeInt(entry.status);
+					out.writeLong(entry.storedAt);
+					out.writeLong(entry.expiresAt);
+					out.writeInt(entry.headers.length / 2);
+					for (String header : entry.headers) {
+						out.writeUTF(header);
+					}
+					out.writeInt(entry.body.length);
+					out.write(entry.body);
+					out.close();
+					out = null;
+
+					synchronized (diskFiles) {
+						file.delete();
+						if (!tempFile.renameTo(file))
+							throw new IOException("Could not rename " + tempFile);
+						Long previous = diskFiles.put(name, file.length());
+						diskBytes += file.length() - (previous == null ? 0 : previous);
+						Iterator<Map.Entry<String, Long>> eldest = diskFiles.entrySet().iterator();
+						while (diskBytes > maxDiskBytes && eldest.hasNext()) {
+							Map.Entry<String, Long> evicted = eldest.next();
+							diskBytes -= evicted.getValue();
+							new File(diskDirectory, evicted.getKey()).delete();
+							eldest.remove();
+						}
+					}
+				} catch (IOException e) {
+					tempFile.delete();
+				} finally {
+					if (out != null) {
+						try {
+							out.close();
+						} catch (IOException e) {
+						}
+						tempFile.delete();
+					}
+				}
+			}
+		});
+	}
+
+	private static String fileName(String key) {
+		try {
+			byte[] digest = MessageDigest.getInstance("SHA-1").digest(key.getBytes("UTF-8"));
+			StringBuilder name = new StringBuilder(digest.length * 2);
+			for (byte b : digest) {
+				name.append(Character.forDigit((b >> 4) & 0xF, 16));
+				name.append(Character.forDigit(b & 0xF, 16));
+			}
+			return name.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private static long parseDate(String value) {
+		if (value == null)
+			return -1;
+		try {
+			return HttpFields.parseDate(value);
+		} catch (IllegalArgumentException e) {
+			return -1;
+		}
+	}
+
+	static boolean hasDirective(String header, String name) {
+		for (String directive : header.split(",")) {
+			String directiveName = directive.split("=")[0].trim();
+			if (directiveName.equalsIgnoreCase(name))
+				return true;
+		}
+		return false;
+	}
+
+	private static String directive(String header, String name) {
+		for (String directive : header.split(",")) {
+			String[] parts = directive.split("=", 2);
+			if (parts.length == 2 && parts[0].trim().equalsIgnoreCase(name))
+				return parts[1].trim().replace("\"", "");
+		}
+		return null;
+	}
+}
@@ -15,13 +15,16 @@
 
 package com.agi;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.URI;
 import java.net.URLEncoder;
+import java.util.ArrayList;
 import java.util.Enumeration;
 import java.util.HashSet;
+import java.util.List;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
@@ -31,6 +34,7 @@ import org.eclipse.jetty.client.HttpClient;
 import org.eclipse.jetty.client.HttpExchange;
 import org.eclipse.jetty.continuation.Continuation;
 import org.eclipse.jetty.continuation.ContinuationSupport;
+import org.eclipse.jetty.http.HttpFields;
 import org.eclipse.jetty.http.HttpHeaders;
 import org.eclipse.jetty.io.Buffer;
 import org.eclipse.jetty.io.EofException;
@@ -40,6 +44,7 @@ import org.eclipse.jetty.server.handler.AbstractHandler;
 public final class ProxyHandler extends AbstractHandler {
 	private final HostChecker hostChecker;
 	private final HttpClient client;
+	private final ProxyCache cache;
 
 	private static final HashSet<String> dontProxyHeaders = new HashSet<String>();
 	static {
@@ -54,12 +59,38 @@ public final class ProxyHandler extends AbstractHandler {
 		dontProxyHeaders.add(HttpHeaders.UPGRADE.toLowerCase());
 	}
 
+	private static final String[] conditionalHeaders = {
+		HttpHeaders.IF_NONE_MATCH,
+		HttpHeaders.IF_MODIFIED_SINCE,
+		HttpHeaders.IF_MATCH,
+		HttpHeaders.IF_UNMODIFIED_SINCE,
+		HttpHeaders.IF_RANGE
+	};
+
 	public ProxyHandler(HostChecker hostChecker, HttpClient client) {
+		this(hostChecker, client, null);
+	}
+
+	/**
+	 * @param cache
+	 *            cache of the upstream responses, or null to proxy every
+	 *            request upstream
+	 */
+	public ProxyHandler(HostChecker hostChecker, HttpClient client, ProxyCache cache) {
 		this.hostChecker = hostChecker;
 		this.client = client;
+		this.cache = cache;
 	}
 
 	public void handle(String target, Request baseRequest, final HttpServletRequest request, final HttpServletResponse response) throws IOException, ServletException {
+		if (cache != null && "/stats".equals(target)) {
+			baseRequest.setHandled(true);
+			response.setContentType("application/json");
+			response.setHeader(HttpHeaders.CACHE_CONTROL, "no-cache");
+			response.getWriter().write(cache.statistics());
+			return;
+		}
+
 		Enumeration<?> parameterNames = request.getParameterNames();
 		if (!parameterNames.hasMoreElements()) {
 			response.sendError(400, "No url specified.");
@@ -84,13 +115,24 @@ public final class ProxyHandler extends AbstractHandler {
 
 		baseRequest.setHandled(true);
 
-		final OutputStream out = response.getOutputStream();
 		final Continuation continuation = ContinuationSupport.getContinuation(request);
 		if (continuation.isExpired()) {
 			response.sendError(HttpServletResponse.SC_GATEWAY_TIMEOUT);
 			return;
 		}
 
+		if (cache != null && ProxyCache.isCacheable(request)) {
+			handleCached(request, response, uri, continuation);
+			return;
+		}
+
+		continuation.suspend(response);
+		proxy(request, response, uri, continuation);
+	}
+
+	private void proxy(final HttpServletRequest request, final HttpServletResponse response, URI uri, final Continuation continuation) throws IOException {
+		final OutputStream out = response.getOutputStream();
+
 		HttpExchange exchange = new HttpExchange() {
 			protected void onResponseComplete() throws IOException {
 				continuation.complete();
@@ -132,10 +174,224 @@ public final class ProxyHandler extends AbstractHandler {
 
 		configureExchangeForProxying(request, uri, exchange);
 
+		client.send(exchange);
+	}
+
+	private void handleCached(final HttpServletRequest request, final HttpServletResponse response, final URI uri, final Continuation continuation) throws IOException {
+		final String key = ProxyCache.key(uri.toString(), request);
+		final ProxyCache.Entry cached = cache.get(key);
+		if (cached != null && cached.isFresh(System.currentTimeMillis()) && !ProxyCache.requiresRevalidation(request)) {
+			cache.hit();
+			writeCachedResponse(request, response, cached);
+			return;
+		}
+
+		// identical requests wait for the response of the first one
 		continuation.suspend(response);
+		boolean first = cache.join(key, new ProxyCache.Listener() {
+			public void onResponse(ProxyCache.Entry entry) {
+				if (continuation.isExpired())
+					return;
+				try {
+					writeCachedResponse(request, response, entry);
+				} catch (IOException e) {
+				}
+				continuation.complete();
+			}
+
+			public void onFailure(Throwable cause) {
+				if (continuation.isExpired())
+					return;
+				if (!response.isCommitted())
+					response.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+				continuation.complete();
+			}
+
+			public void onUnshared() {
+				if (continuation.isExpired())
+					return;
+				try {
+					proxy(request, response, uri, continuation);
+				} catch (IOException e) {
+					if (!response.isCommitted())
+						response.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+					continuation.complete();
+				}
+			}
+		});
+		if (!first) {
+			return;
+		}
+
+		final ProxyCache.Entry stale = cached != null && cached.hasValidator() ? cached : null;
+		HttpExchange exchange = new HttpExchange() {
+			int status;
+			final List<String> headers = new ArrayList<String>();
+			ByteArrayOutputStream content = new ByteArrayOutputStream();
+			// set when the response turns out too large to store, after which it is streamed to this client only
+			boolean streaming;
+
+			protected void onResponseComplete() throws IOException {
+				if (streaming) {
+					continuation.complete();
+					return;
+				}
+
+				long now = System.currentTimeMillis();
+				String[] responseHeaders = headers.toArray(new String[headers.size()]);
+				ProxyCache.Entry entry;
+				if (stale != null)
+					cache.revalidated(status == HttpServletResponse.SC_NOT_MODIFIED);
+				if (stale != null && status == HttpServletResponse.SC_NOT_MODIFIED) {
+					entry = stale.revalidated(responseHeaders, now);
+				} else {
+					entry = new ProxyCache.Entry(status, responseHeaders, content.toByteArray(), now, ProxyCache.expiresAt(status, responseHeaders, now));
+				}
+
+				if (entry.expiresAt >= 0)
+					cache.put(key, entry);
+				else if (status == HttpServletResponse.SC_OK)
+					cache.remove(key);
+				cache.land(key, entry);
+			}
+
+			protected void onResponseHeaderComplete() throws IOException {
+				for (int i = 0; i < headers.size(); i += 2) {
+					if (HttpHeaders.CONTENT_LENGTH.equalsIgnoreCase(headers.get(i))) {
+						try {
+							if (cache.isTooLarge(Long.parseLong(headers.get(i + 1).trim())))
+								stream();
+						} catch (NumberFormatException e) {
+						}
+					}
+				}
+			}
+
+			protected void onResponseContent(Buffer buffer) throws IOException {
+				if (streaming) {
+					buffer.writeTo(response.getOutputStream());
+					return;
+				}
+				buffer.writeTo(content);
+				if (cache.isTooLarge(content.size()))
+					stream();
+			}
+
+			/**
+			 * Drop out of caching: the response is written to the client of
+			 * this request as it arrives, like an uncached one, and the
+			 * requests waiting for it are sent upstream by themselves.
+			 */
+			private void stream() throws IOException {
+				streaming = true;
+				if (stale != null)
+					cache.revalidated(false);
+				if (status == HttpServletResponse.SC_OK)
+					cache.remove(key);
+				cache.abandon(key);
+
+				response.setStatus(status);
+				for (int i = 0; i < headers.size(); i += 2) {
+					writeProxiedHeader(request, response, headers.get(i), headers.get(i + 1));
+				}
+				content.writeTo(response.getOutputStream());
+				content = null;
+			}
+
+			protected void onResponseStatus(Buffer version, int status, Buffer reason) throws IOException {
+				this.status = status;
+			}
+
+			protected void onResponseHeader(Buffer name, Buffer value) throws IOException {
+				String headerName = name.toString();
+				if (!dontProxyHeaders.contains(headerName.toLowerCase()) && !HttpHeaders.AGE.equalsIgnoreCase(headerName)) {
+					headers.add(headerName);
+					headers.add(value.toString());
+				}
+			}
+
+			protected void onConnectionFailed(Throwable ex) {
+				onException(ex);
+			}
+
+			protected void onException(Throwable ex) {
+				if (streaming) {
+					if (!response.isCommitted())
+						response.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+					continuation.complete();
+					return;
+				}
+				// serve the stale response, if any, rather than an error
+				cache.fail(key, cached, ex);
+			}
+
+			protected void onExpire() {
+				if (streaming) {
+					onException(null);
+					return;
+				}
+				cache.fail(key, cached, null);
+			}
+		};
+
+		configureExchangeForProxying(request, uri, exchange);
+
+		// the response is shared, so it must not depend on the conditions of this request
+		HttpFields requestFields = exchange.getRequestFields();
+		for (String header : conditionalHeaders) {
+			requestFields.remove(header);
+		}
+		if (stale != null) {
+			String etag = stale.getHeader(HttpHeaders.ETAG);
+			if (etag != null)
+				exchange.setRequestHeader(HttpHeaders.IF_NONE_MATCH, etag);
+			String lastModified = stale.getHeader(HttpHeaders.LAST_MODIFIED);
+			if (lastModified != null)
+				exchange.setRequestHeader(HttpHeaders.IF_MODIFIED_SINCE, lastModified);
+		}
+
 		client.send(exchange);
 	}
 
+	static void writeCachedResponse(HttpServletRequest request, HttpServletResponse response, ProxyCache.Entry entry) throws IOException {
+		boolean notModified = entry.status == HttpServletResponse.SC_OK && isNotModified(request, entry);
+		response.setStatus(notModified ? HttpServletResponse.SC_NOT_MODIFIED : entry.status);
+		for (int i = 0; i < entry.headers.length; i += 2) {
+			if (!notModified || !HttpHeaders.CONTENT_LENGTH.equalsIgnoreCase(entry.headers[i]))
+				writeProxiedHeader(request, response, entry.headers[i], entry.headers[i + 1]);
+		}
+		response.setHeader(HttpHeaders.AGE, Long.toString(Math.max(0, System.currentTimeMillis() - entry.storedAt) / 1000));
+		if (!notModified)
+			response.getOutputStream().write(entry.body);
+	}
+
+	private static boolean isNotModified(HttpServletRequest request, ProxyCache.Entry entry) {
+		String ifNoneMatch = request.getHeader(HttpHeaders.IF_NONE_MATCH);
+		if (ifNoneMatch != null) {
+			String etag = entry.getHeader(HttpHeaders.ETAG);
+			if (etag == null)
+				return false;
+			etag = etag.startsWith("W/") ? etag.substring(2) : etag;
+			for (String tag : ifNoneMatch.split(",")) {
+				tag = tag.trim();
+				tag = tag.startsWith("W/") ? tag.substring(2) : tag;
+				if (tag.equals("*") || tag.equals(etag))
+					return true;
+			}
+			return false;
+		}
+
+		String lastModified = entry.getHeader(HttpHeaders.LAST_MODIFIED);
+		if (lastModified == null)
+			return false;
+		try {
+			long ifModifiedSince = request.getDateHeader(HttpHeaders.IF_MODIFIED_SINCE);
+			return ifModifiedSince >= 0 && HttpFields.parseDate(lastModified) <= ifModifiedSince;
+		} catch (IllegalArgumentException e) {
+			return false;
+		}
+	}
+
 	public static void writeProxiedHeader(HttpServletRequest request, HttpServletResponse response, String name, String value) {
 		if (HttpHeaders.LOCATION.equalsIgnoreCase(name)) {
 			StringBuffer url = request.getRequestURL();
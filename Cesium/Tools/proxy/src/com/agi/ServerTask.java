@@ -15,7 +15,6 @@ import org.eclipse.jetty.server.Handler;
 import org.eclipse.jetty.server.Server;
 import org.eclipse.jetty.server.handler.ContextHandler;
 import org.eclipse.jetty.server.handler.ContextHandlerCollection;
-import org.eclipse.jetty.server.handler.ResourceHandler;
 import org.eclipse.jetty.server.nio.SelectChannelConnector;
 
 public class ServerTask extends Task {
@@ -29,6 +28,14 @@ public class ServerTask extends Task {
 	private String noUpstreamProxyHostList;
 	private boolean listenOnAllAddresses;
 	private String mimeTypesPath;
+	private int proxyCacheMemorySize = 64;
+	private File proxyCacheDir;
+	private int proxyCacheDiskSize = 1024;
+	private int terrainTranscodingThreads = Runtime.getRuntime().availableProcessors();
+	private int terrainTranscodingQueueSize = 4 * Runtime.getRuntime().availableProcessors();
+	private int terrainTileCacheMemorySize = 64;
+	private File terrainTileCacheDir;
+	private int terrainTileCacheDiskSize = 1024;
 
 	public void execute() throws BuildException {
 		try {
@@ -62,15 +69,26 @@ public class ServerTask extends Task {
 			client.setConnectorType(HttpClient.CONNECTOR_SELECT_CHANNEL);
 			client.start();
 
-			ProxyHandler proxyHandler = new ProxyHandler(hostChecker, client);
+			// sizes are in megabytes; a memory size of 0 disables the cache
+			ProxyCache proxyCache = null;
+			if (proxyCacheMemorySize > 0) {
+				proxyCache = new ProxyCache(proxyCacheMemorySize * 1024L * 1024L, proxyCacheDir, proxyCacheDiskSize * 1024L * 1024L);
+			}
+
+			ProxyHandler proxyHandler = new ProxyHandler(hostChecker, client, proxyCache);
 			ContextHandler proxyContextHandler = new ContextHandler(this.proxyContextPath);
 			proxyContextHandler.setHandler(proxyHandler);
 
-			TerrainTranscodingHandler terrainTranscodingHandler = new TerrainTranscodingHandler(hostChecker, client);
+			ProxyCache terrainTileCache = null;
+			if (terrainTileCacheMemorySize > 0) {
+				terrainTileCache = new ProxyCache(terrainTileCacheMemorySize * 1024L * 1024L, terrainTileCacheDir, terrainTileCacheDiskSize * 1024L * 1024L);
+			}
+
+			TerrainTranscodingHandler terrainTranscodingHandler = new TerrainTranscodingHandler(hostChecker, client, terrainTranscodingThreads, terrainTranscodingQueueSize, terrainTileCache);
 			ContextHandler terrainTranscodingContextHandler = new ContextHandler(this.terrainTranscodingContextPath);
 			terrainTranscodingContextHandler.setHandler(terrainTranscodingHandler);
 
-			ResourceHandler resourceHandler = new ResourceHandler();
+			PrecompressedResourceHandler resourceHandler = new PrecompressedResourceHandler();
 			resourceHandler.setDirectoriesListed(true);
 			resourceHandler.setWelcomeFiles(new String[] {
 				"index.html"
@@ -151,4 +169,36 @@ public class ServerTask extends Task {
 	public void setMimeTypesPath(String mimeTypesPath) {
 		this.mimeTypesPath = mimeTypesPath;
 	}
+
+	public void setProxyCacheMemorySize(int value) {
+		this.proxyCacheMemorySize = value;
+	}
+
+	public void setProxyCacheDir(File value) {
+		this.proxyCacheDir = value;
+	}
+
+	public void setProxyCacheDiskSize(int value) {
+		this.proxyCacheDiskSize = value;
+	}
+
+	public void setTerrainTranscodingThreads(int value) {
+		this.terrainTranscodingThreads = value;
+	}
+
+	public void setTerrainTranscodingQueueSize(int value) {
+		this.terrainTranscodingQueueSize = value;
+	}
+
+	public void setTerrainTileCacheMemorySize(int value) {
+		this.terrainTileCacheMemorySize = value;
+	}
+
+	public void setTerrainTileCacheDir(File value) {
+		this.terrainTileCacheDir = value;
+	}
+
+	public void setTerrainTileCacheDiskSize(int value) {
+		this.terrainTileCacheDiskSize = value;
+	}
 }
@@ -17,12 +17,26 @@ package com.agi;
 
 import java.awt.image.BufferedImage;
 import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DirectColorModel;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URI;
+import java.util.ArrayList;
 import java.util.Enumeration;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
 
 import javax.imageio.ImageIO;
 import javax.imageio.spi.IIORegistry;
@@ -37,7 +51,6 @@ import org.eclipse.jetty.continuation.ContinuationSupport;
 import org.eclipse.jetty.http.HttpHeaders;
 import org.eclipse.jetty.io.Buffer;
 import org.eclipse.jetty.io.BufferUtil;
-import org.eclipse.jetty.io.EofException;
 import org.eclipse.jetty.server.Request;
 import org.eclipse.jetty.server.handler.AbstractHandler;
 
@@ -45,19 +58,83 @@ import com.sun.media.imageioimpl.plugins.tiff.TIFFImageReaderSpi;
 import com.sun.media.imageioimpl.plugins.tiff.TIFFImageWriterSpi;
 
 public final class TerrainTranscodingHandler extends AbstractHandler {
+	// seconds a client is asked to wait before retrying a tile rejected when the transcoders are saturated
+	private static final String RETRY_AFTER_SECONDS = "1";
+	private static final float HEIGHT_BIAS = 1000.0f;
+	private static final double HEIGHT_SCALE = 1000.0;
+	// the encoder settings, which are part of the key of a cached tile
+	private static final String ENCODING = "png;bias=" + HEIGHT_BIAS + ";scale=" + HEIGHT_SCALE;
+	// the transcoded tile of an upstream URI never changes
+	private static final String TILE_CACHE_CONTROL = "public, max-age=86400";
+	private static final RejectedExecutionException SATURATED = new RejectedExecutionException("Terrain transcoding is saturated.");
+	private static final DirectColorModel RGB = new DirectColorModel(24, 0xFF0000, 0x00FF00, 0x0000FF);
+
+	// buffers of each transcoding thread, reused for every tile it transcodes
+	private static final ThreadLocal<float[]> sampleBuffers = new ThreadLocal<float[]>();
+	private static final ThreadLocal<int[]> heightBuffers = new ThreadLocal<int[]>();
+
 	private final HttpClient client;
 	private final HostChecker hostChecker;
+	private final ThreadPoolExecutor executor;
+	private final Semaphore admitted;
+	private final ProxyCache tileCache;
+	private final TranscodingStatistics statistics = new TranscodingStatistics();
 
 	public TerrainTranscodingHandler(HostChecker hostChecker, HttpClient client) {
+		this(hostChecker, client, Runtime.getRuntime().availableProcessors(), 4 * Runtime.getRuntime().availableProcessors(), null);
+	}
+
+	/**
+	 * Transcoding runs on its own threads rather than on the HttpClient's,
+	 * which would stall all proxying. Fetched tiles are admitted for
+	 * transcoding up to the number of threads plus the queue size; beyond
+	 * that, requests are rejected with 503 Service Unavailable. Requests
+	 * waiting for their upstream response don't count, so a slow upstream
+	 * doesn't cause rejections.
+	 * <p>
+	 * The transcoded tile of an upstream URI never changes, so tiles are
+	 * cached without expiry, and concurrent requests for the same tile share
+	 * one fetch and transcode. Tiles are sent with their own headers rather
+	 * than the upstream ones. Tiles fetched with the credentials of a request,
+	 * or whose upstream response is private, are neither cached nor shared.
+	 *
+	 * @param threads
+	 *            number of transcoding threads
+	 * @param queueSize
+	 *            maximum number of fetched tiles waiting for a thread
+	 * @param tileCache
+	 *            cache of the transcoded tiles, or null to not cache them
+	 */
+	public TerrainTranscodingHandler(HostChecker hostChecker, HttpClient client, int threads, int queueSize, ProxyCache tileCache) {
 		IIORegistry registry = IIORegistry.getDefaultInstance();
 		registry.registerServiceProvider(new TIFFImageWriterSpi());
 		registry.registerServiceProvider(new TIFFImageReaderSpi());
 
 		this.hostChecker = hostChecker;
 		this.client = client;
+		// without a cache, an empty one still coalesces concurrent requests
+		this.tileCache = tileCache != null ? tileCache : new ProxyCache(0, null, 0);
+		this.admitted = new Semaphore(threads + queueSize);
+		this.executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(threads + queueSize), new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "terrain-transcoder-" + count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
 	}
 
 	public void handle(String target, Request baseRequest, final HttpServletRequest request, final HttpServletResponse response) throws IOException, ServletException {
+		if ("/stats".equals(target)) {
+			baseRequest.setHandled(true);
+			response.setContentType("application/json");
+			response.setHeader(HttpHeaders.CACHE_CONTROL, "no-cache");
+			response.getWriter().write("{\"transcoding\":" + statistics.toJson(executor.getQueue().size(), executor.getActiveCount()) + ",\"cache\":" + tileCache.statistics() + "}");
+			return;
+		}
+
 		Enumeration<?> parameterNames = request.getParameterNames();
 		if (!parameterNames.hasMoreElements()) {
 			response.sendError(400, "No url specified.");
@@ -84,35 +161,120 @@ public final class TerrainTranscodingHandler extends AbstractHandler {
 			return;
 		}
 
-		HttpExchange exchange = new HttpExchange() {
-			int bufferSize = 4096;
-			ByteArrayOutputStream responseContent;
+		final String key = uri + "\n" + ENCODING;
+		ProxyCache.Entry cached = tileCache.get(key);
+		if (cached != null) {
+			tileCache.hit();
+			response.setHeader("Server-Timing", "cache;desc=hit");
+			ProxyHandler.writeCachedResponse(request, response, cached);
+			return;
+		}
 
-			protected void onResponseComplete() throws IOException {
-				ByteArrayInputStream tiffInputStream = new ByteArrayInputStream(responseContent.toByteArray());
-				BufferedImage resultImage = encodeHeightFloatsAsIntegers(tiffInputStream);
+		continuation.suspend(response);
+		fetch(request, response, uri, key, continuation);
+	}
 
-				response.setContentType("image/png");
-				ImageIO.write(resultImage, "PNG", response.getOutputStream());
+	/**
+	 * Fetch and transcode the tile of a suspended request, or wait for the
+	 * tile of an identical request.
+	 */
+	private void fetch(final HttpServletRequest request, final HttpServletResponse response, final URI uri, final String key, final Continuation continuation) throws IOException {
+		// identical requests wait for the tile of the first one
+		boolean first = tileCache.join(key, new ProxyCache.Listener() {
+			public void onResponse(ProxyCache.Entry entry) {
+				if (continuation.isExpired())
+					return;
+				try {
+					ProxyHandler.writeCachedResponse(request, response, entry);
+				} catch (IOException e) {
+				}
+				continuation.complete();
+			}
 
+			public void onFailure(Throwable cause) {
+				if (continuation.isExpired())
+					return;
+				if (!response.isCommitted()) {
+					if (cause == SATURATED) {
+						try {
+							reject(response);
+						} catch (IOException e) {
+						}
+					} else {
+						response.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+					}
+				}
 				continuation.complete();
 			}
 
+			public void onUnshared() {
+				// a response private to the request that got it; fetch one for this request
+				if (continuation.isExpired())
+					return;
+				try {
+					fetch(request, response, uri, key, continuation);
+				} catch (IOException e) {
+					if (!response.isCommitted())
+						response.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+					continuation.complete();
+				}
+			}
+		});
+		if (!first) {
+			return;
+		}
+
+		// the upstream request carries the credentials of this request, so its tile is only for this request
+		final boolean credentialed = ProxyCache.hasCredentials(request);
+
+		HttpExchange exchange = new HttpExchange() {
+			int bufferSize = 4096;
+			int status;
+			final List<String> headers = new ArrayList<String>();
+			ResponseBuffer responseContent;
+
+			protected void onResponseComplete() throws IOException {
+				final int responseStatus = status;
+				final String[] responseHeaders = headers.toArray(new String[headers.size()]);
+				final ResponseBuffer content = responseContent == null ? new ResponseBuffer(0) : responseContent;
+				final long queuedAt = System.nanoTime();
+				// shed load once a tile has arrived that there is no capacity to transcode
+				if (!admitted.tryAcquire()) {
+					tileCache.fail(key, null, SATURATED);
+					return;
+				}
+				try {
+					executor.execute(new Runnable() {
+						public void run() {
+							try {
+								transcode(key, responseStatus, responseHeaders, content, queuedAt, credentialed);
+							} finally {
+								admitted.release();
+							}
+						}
+					});
+				} catch (RejectedExecutionException e) {
+					admitted.release();
+					tileCache.fail(key, null, SATURATED);
+				}
+			}
+
 			protected void onResponseContent(Buffer content) throws IOException {
 				if (responseContent == null)
-					responseContent = new ByteArrayOutputStream(bufferSize);
+					responseContent = new ResponseBuffer(bufferSize);
 				content.writeTo(responseContent);
 			}
 
 			protected void onResponseStatus(Buffer version, int status, Buffer reason) throws IOException {
-				response.setStatus(status);
+				this.status = status;
 			}
 
 			protected void onResponseHeader(Buffer name, Buffer value) throws IOException {
 				if (HttpHeaders.CONTENT_LENGTH_BUFFER.equalsIgnoreCase(name)) {
 					bufferSize = BufferUtil.toInt(value);
-				} else if (!HttpHeaders.CONTENT_TYPE_BUFFER.equalsIgnoreCase(name)) {
-					ProxyHandler.writeProxiedHeader(request, response, name.toString(), value.toString());
+				} else {
+					headers.add(name.toString());
+					headers.add(value.toString());
 				}
 			}
 
@@ -121,42 +283,152 @@ public final class TerrainTranscodingHandler extends AbstractHandler {
 			}
 
 			protected void onException(Throwable ex) {
-				if (ex instanceof EofException) {
-					return;
-				}
-				if (!response.isCommitted())
-					response.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
-				continuation.complete();
+				tileCache.fail(key, null, ex);
 			}
 
 			protected void onExpire() {
-				if (!response.isCommitted())
-					response.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
-				continuation.complete();
+				tileCache.fail(key, null, null);
 			}
 		};
 
 		ProxyHandler.configureExchangeForProxying(request, uri, exchange);
 
-		continuation.suspend(response);
 		client.send(exchange);
 	}
 
-	private static BufferedImage encodeHeightFloatsAsIntegers(InputStream input) throws IOException {
+	private void transcode(String key, int status, String[] headers, ResponseBuffer content, long queuedAt, boolean credentialed) {
+		long start = System.nanoTime();
+		long queueMillis = TimeUnit.NANOSECONDS.toMillis(start - queuedAt);
+		boolean shared = !credentialed && isShared(headers);
+		if (status != HttpServletResponse.SC_OK) {
+			// not a tile; passed on as is, and not cached
+			if (!shared && !ProxyCache.isPrivate(headers))
+				headers = withHeader(headers, HttpHeaders.CACHE_CONTROL, "private");
+			tileCache.land(key, new ProxyCache.Entry(status, headers, content.toByteArray(), System.currentTimeMillis(), -1));
+			return;
+		}
+
+		try {
+			BufferedImage resultImage = encodeHeights(content.buffer(), content.size());
+			ByteArrayOutputStream png = new ByteArrayOutputStream(content.size() / 2 + 1024);
+			ImageIO.write(resultImage, "PNG", png);
+			long transcodeMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+			statistics.completed(queueMillis, transcodeMillis);
+
+			// none of the upstream headers are passed on, as they could be replayed to every later client
+			byte[] tile = png.toByteArray();
+			CRC32 crc = new CRC32();
+			crc.update(tile);
+			String[] tileHeaders = {
+				HttpHeaders.CONTENT_TYPE, "image/png",
+				HttpHeaders.CONTENT_LENGTH, Integer.toString(tile.length),
+				HttpHeaders.ETAG, "\"" + Long.toHexString(crc.getValue()) + "-" + Integer.toHexString(tile.length) + "\"",
+				HttpHeaders.CACHE_CONTROL, shared ? TILE_CACHE_CONTROL : "private"
+			};
+
+			long now = System.currentTimeMillis();
+			if (shared)
+				tileCache.put(key, new ProxyCache.Entry(status, tileHeaders, tile, now, Long.MAX_VALUE));
+
+			// only the requests that waited for the transcode get its timing
+			tileHeaders = withHeader(tileHeaders, "Server-Timing", "queue;dur=" + queueMillis + ", transcode;dur=" + transcodeMillis);
+			tileCache.land(key, new ProxyCache.Entry(status, tileHeaders, tile, now, shared ? Long.MAX_VALUE : -1));
+		} catch (Exception e) {
+			statistics.failed();
+			tileCache.fail(key, null, e);
+		}
+	}
+
+	/**
+	 * Whether an upstream response may be shared with other clients: it
+	 * doesn't set a cookie, and isn't marked private or no-store.
+	 */
+	private static boolean isShared(String[] headers) {
+		for (int i = 0; i < headers.length; i += 2) {
+			if (HttpHeaders.SET_COOKIE.equalsIgnoreCase(headers[i]))
+				return false;
+			if (HttpHeaders.CACHE_CONTROL.equalsIgnoreCase(headers[i])
+					&& (ProxyCache.hasDirective(headers[i + 1], "private") || ProxyCache.hasDirective(headers[i + 1], "no-store")))
+				return false;
+		}
+		return true;
+	}
+
+	private static String[] withHeader(String[] headers, String name, String value) {
+		String[] result = new String[headers.length + 2];
+		System.arraycopy(headers, 0, result, 0, headers.length);
+		result[headers.length] = name;
+		result[headers.length + 1] = value;
+		return result;
+	}
+
+	private void reject(HttpServletResponse response) throws IOException {
+		statistics.rejected();
+		response.setHeader("Retry-After", RETRY_AFTER_SECONDS);
+		response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, SATURATED.getMessage());
+	}
+
+	/**
+	 * Encodes the heights of a TIFF in an RGB image. Float TIFFs are read
+	 * directly into the buffers of the calling thread, so the image must be
+	 * written before the thread encodes another one; anything else is read
+	 * with ImageIO.
+	 */
+	static BufferedImage encodeHeights(byte[] tiff, int length) throws IOException {
+		FloatTiff floatTiff = FloatTiff.parse(tiff, length);
+		if (floatTiff == null)
+			return encodeHeightFloatsAsIntegers(new ByteArrayInputStream(tiff, 0, length));
+
+		int size = floatTiff.width * floatTiff.height;
+		float[] samples = sampleBuffers.get();
+		if (samples == null || samples.length < size) {
+			samples = new float[size];
+			sampleBuffers.set(samples);
+		}
+		int[] heights = heightBuffers.get();
+		if (heights == null || heights.length < size) {
+			heights = new int[size];
+			heightBuffers.set(heights);
+		}
+
+		floatTiff.read(tiff, samples);
+		encodeHeights(samples, heights, size);
+
+		WritableRaster raster = Raster.createPackedRaster(new DataBufferInt(heights, size), floatTiff.width, floatTiff.height, floatTiff.width, RGB.getMasks(), null);
+		return new BufferedImage(RGB, raster, false, null);
+	}
+
+	/**
+	 * The same conversion as {@link #encodeHeightFloatsAsIntegers(InputStream)},
+	 * on arrays. The heights are validated together after the loop, which
+	 * keeps it free of branches.
+	 */
+	static void encodeHeights(float[] samples, int[] heights, int count) {
+		int bits = 0;
+		for (int i = 0; i < count; ++i) {
+			int height = (int) ((samples[i] + HEIGHT_BIAS) * HEIGHT_SCALE);
+			heights[i] = height;
+			bits |= height;
+		}
+
+		// any height that is negative or doesn't fit in 24 bits sets a higher bit
+		if ((bits & ~0xFFFFFF) != 0)
+			throw new RuntimeException("Invalid height.");
+	}
+
+	static BufferedImage encodeHeightFloatsAsIntegers(InputStream input) throws IOException {
 		BufferedImage sourceImage = ImageIO.read(input);
 		DataBuffer sourceBuffer = sourceImage.getRaster().getDataBuffer();
 
 		BufferedImage resultImage = new BufferedImage(sourceImage.getWidth(), sourceImage.getHeight(), BufferedImage.TYPE_INT_RGB);
 		DataBuffer resultBuffer = resultImage.getRaster().getDataBuffer();
 
-		final float bias = 1000.0f;
-
 		for (int i = 0; i < sourceBuffer.getSize(); ++i) {
 			// Offset the height by 1000.0 meters to avoid negative heights.
-			float heightFloat = sourceBuffer.getElemFloat(i) + bias;
+			float heightFloat = sourceBuffer.getElemFloat(i) + HEIGHT_BIAS;
 
 			// Convert the height to integer millimeters.
-			int height = (int) (heightFloat * 1000.0);
+			int height = (int) (heightFloat * HEIGHT_SCALE);
 
 			if (height < 0 || height >= (1 << 24))
 				throw new RuntimeException("Invalid height.");
@@ -167,4 +439,15 @@ public final class TerrainTranscodingHandler extends AbstractHandler {
 
 		return resultImage;
 	}
+
+	// a response body that can be read without copying it
+	private static final class ResponseBuffer extends ByteArrayOutputStream {
+		ResponseBuffer(int size) {
+			super(size);
+		}
+
+		byte[] buffer() {
+			return buf;
+		}
+	}
 }
\ No newline at end of file
@@ -0,0 +1,74 @@
+package com.agi;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters and latencies of transcoded tiles. Latencies are kept in a
+ * histogram of power of two millisecond buckets, so percentiles are
+ * reported as the upper bound of their bucket.
+ */
+public class TranscodingStatistics {
+	private static final int BUCKETS = 20;
+
+	private final AtomicLong completed = new AtomicLong();
+	private final AtomicLong failed = new AtomicLong();
+	private final AtomicLong rejected = new AtomicLong();
+	private final AtomicLong totalQueueMillis = new AtomicLong();
+	private final AtomicLong totalTranscodeMillis = new AtomicLong();
+	private final AtomicLong maxTranscodeMillis = new AtomicLong();
+	private final AtomicLongArray histogram = new AtomicLongArray(BUCKETS);
+
+	public void completed(long queueMillis, long transcodeMillis) {
+		completed.incrementAndGet();
+		totalQueueMillis.addAndGet(queueMillis);
+		totalTranscodeMillis.addAndGet(transcodeMillis);
+		long max;
+		do {
+			max = maxTranscodeMillis.get();
+		} while (transcodeMillis > max && !maxTranscodeMillis.compareAndSet(max, transcodeMillis));
+		histogram.incrementAndGet(bucket(transcodeMillis));
+	}
+
+	public void failed() {
+		failed.incrementAndGet();
+	}
+
+	public void rejected() {
+		rejected.incrementAndGet();
+	}
+
+	private static int bucket(long millis) {
+		int bucket = 0;
+		while (bucket < BUCKETS - 1 && millis >= (1L << bucket)) {
+			bucket++;
+		}
+		return bucket;
+	}
+
+	private long percentile(double fraction, long count) {
+		long rank = (long) Math.ceil(fraction * count);
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += histogram.get(i);
+			if (seen >= rank && seen > 0)
+				return 1L << i;
+		}
+		return 0;
+	}
+
+	/**
+	 * The counters and latencies (in milliseconds), as a JSON object.
+	 */
+	public String toJson(int queued, int active) {
+		long count = completed.get();
+		return "{\"completed\":" + count + ",\"failed\":" + failed.get() + ",\"rejected\":" + rejected.get()
+				+ ",\"queued\":" + queued + ",\"active\":" + active
+				+ ",\"meanQueueMillis\":" + (count == 0 ? 0 : totalQueueMillis.get() / count)
+				+ ",\"meanTranscodeMillis\":" + (count == 0 ? 0 : totalTranscodeMillis.get() / count)
+				+ ",\"maxTranscodeMillis\":" + maxTranscodeMillis.get()
+				+ ",\"p50TranscodeMillis\":" + percentile(0.5, count)
+				+ ",\"p95TranscodeMillis\":" + percentile(0.95, count)
+				+ ",\"p99TranscodeMillis\":" + percentile(0.99, count) + "}";
+	}
+}
@@ -0,0 +1,249 @@
+/*global define*/
+define([
+    'Core/defined',
+    'Core/DeveloperError',
+    'Core/Cartesian3',
+    'Core/Cartographic',
+    'Core/Ellipsoid',
+    'Core/BoundingSphere',
+    'Core/ComponentDatatype',
+    'Core/Geometry',
+    'Core/GeometryAttribute',
+    'Core/GeometryAttributes',
+    'Core/PrimitiveType'
+], function(
+    defined,
+    DeveloperError,
+    Cartesian3,
+    Cartographic,
+    Ellipsoid,
+    BoundingSphere,
+    ComponentDatatype,
+    Geometry,
+    GeometryAttribute,
+    GeometryAttributes,
+    PrimitiveType) {
+    "use strict";
+
+    /**
+     * Decodes the pre-triangulated boundary meshes (.mesh) written by the
+     * boundary pipeline's MeshWriter. Each region becomes a geometry like the
+     * one BoundaryGeometry creates with PolygonGeometry: extruded from 0 to
+     * BAKED_EXTRUSION metres, with the triangulated rings as top and bottom,
+     * and a wall along every ring edge. Nothing is triangulated here; the caps
+     * reuse the triangles of the file and the walls are quads.
+     */
+    var BoundaryMesh = {};
+
+    //height of the top vertices, which the boundary appearance shader raises
+    var BAKED_EXTRUSION = 1.0;
+    var INDEX_UINT32 = 1;
+    var NULL_STRING = 0xFFFF;
+
+    var utf8Decoder = typeof TextDecoder !== 'undefined' ? new TextDecoder('utf-8') : undefined;
+
+    function pad(offset) {
+        return (offset + 3) & ~3;
+    }
+
+    var scratchCartographic = new Cartographic();
+    var scratchBottom = new Cartesian3();
+    var scratchEdge = new Cartesian3();
+    var scratchNormal = new Cartesian3();
+
+    /**
+     * Returns an array of { id, name, geometry }, one per region that has
+     * triangles, in the order of the file.
+     */
+    BoundaryMesh.fromArrayBuffer = function(buffer, ellipsoid) {
+        ellipsoid = defined(ellipsoid) ? ellipsoid : Ellipsoid.WGS84;
+        var view = new DataView(buffer);
+        var offset = 0;
+
+        function readString() {
+            var length = view.getUint16(offset, true);
+            offset += 2;
+            if (length === NULL_STRING) {
+                return null;
+            }
+            var bytes = new Uint8Array(buffer, offset, length);
+            offset += length;
+            if (defined(utf8Decoder)) {
+                return utf8Decoder.decode(bytes);
+            }
+            return decodeURIComponent(escape(String.fromCharCode.apply(null, bytes)));
+        }
+
+        function readUint32Array(length) {
+            var array = new Uint32Array(buffer, offset, length);
+            offset += length * 4;
+            return array;
+        }
+
+        if (view.getUint8(0) !== 0x42 || view.getUint8(1) !== 0x4D || view.getUint8(2) !== 0x42 || view.getUint8(3) !== 0x31) {
+            throw new DeveloperError('Invalid boundary mesh file.');
+        }
+        var indexType = view.getUint8(5);
+        var translateX = view.getFloat64(8, true);
+        var translateY = view.getFloat64(16, true);
+        var stepX = view.getFloat64(24, true);
+        var stepY = view.getFloat64(32, true);
+        offset = 40;
+
+        var count = view.getUint32(offset, true);
+        offset += 4;
+        var ids = new Array(count);
+        var names = new Array(count);
+        for (var i = 0; i < count; i++) {
+            //ids are numbers in the TopoJSON, so look them up the same way
+            var id = readString();
+            var number = Number(id);
+            ids[i] = id === null || id === '' || isNaN(number) ? id : number;
+            names[i] = readString();
+        }
+        offset = pad(offset);
+
+        var origins = readUint32Array(count * 2);
+        var vertexStarts = readUint32Array(count + 1);
+        var indexStarts = readUint32Array(count + 1);
+        var ringStarts = readUint32Array(count + 1);
+        var ringEnds = readUint32Array(ringStarts[count]);
+        var positions = new Uint16Array(buffer, offset, vertexStarts[count] * 2);
+        offset += vertexStarts[count] * 4;
+        var indices = indexType === INDEX_UINT32 ? new Uint32Array(buffer, offset, indexStarts[count]) : new Uint16Array(buffer, offset, indexStarts[count]);
+
+        var regions = [];
+        for (var r = 0; r < count; r++) {
+            if (indexStarts[r + 1] === indexStarts[r]) {
+                continue;
+            }
+            regions.push({
+                id : ids[r],
+                name : names[r],
+                geometry : createGeometry(r)
+            });
+        }
+        return regions;
+
+        function createGeometry(r) {
+            var vertexStart = vertexStarts[r];
+            var vertexCount = vertexStarts[r + 1] - vertexStart;
+            var ringStart = ringStarts[r];
+            var ringCount = ringStarts[r + 1] - ringStart;
+            var ringPoints = ringCount > 0 ? ringEnds[ringStart + ringCount - 1] : 0;
+            var originX = origins[r * 2];
+            var originY = origins[r * 2 + 1];
+
+            //bottom vertices, then top vertices, then 4 per wall edge
+            var totalVertices = vertexCount * 2 + ringPoints * 4;
+            var position = new Float64Array(totalVertices * 3);
+            var normal = new Float32Array(totalVertices * 3);
+            var i, j, k;
+            for (i = 0; i < vertexCount; i++) {
+                var v = (vertexStart + i) * 2;
+                scratchCartographic.longitude = (translateX + (originX + positions[v]) * stepX) * Math.PI / 180;
+                scratchCartographic.latitude = (translateY + (originY + positions[v + 1]) * stepY) * Math.PI / 180;
+                scratchCartographic.height = 0;
+                ellipsoid.geodeticSurfaceNormalCartographic(scratchCartographic, scratchNormal);
+                var bottom = ellipsoid.cartographicToCartesian(scratchCartographic, scratchBottom);
+                var top = (vertexCount + i) * 3;
+                position[top] = bottom.x + scratchNormal.x * BAKED_EXTRUSION;
+                position[top + 1] = bottom.y + scratchNormal.y * BAKED_EXTRUSION;
+                position[top + 2] = bottom.z + scratchNormal.z * BAKED_EXTRUSION;
+                normal[top] = scratchNormal.x;
+                normal[top + 1] = scratchNormal.y;
+                normal[top + 2] = scratchNormal.z;
+                //the first copy is the bottom, facing down
+                position[i * 3] = bottom.x;
+                position[i * 3 + 1] = bottom.y;
+                position[i * 3 + 2] = bottom.z;
+                normal[i * 3] = -scratchNormal.x;
+                normal[i * 3 + 1] = -scratchNormal.y;
+                normal[i * 3 + 2] = -scratchNormal.z;
+            }
+
+            var indexStart = indexStarts[r];
+            var capIndices = indexStarts[r + 1] - indexStart;
+            var geometryIndices = totalVertices > 0xFFFF ? new Uint32Array(capIndices * 2 + ringPoints * 6) : new Uint16Array(capIndices * 2 + ringPoints * 6);
+            var n = 0;
+            for (i = 0; i < capIndices; i += 3) {
+                var a = indices[indexStart + i];
+                var b = indices[indexStart + i + 1];
+                var c = indices[indexStart + i + 2];
+                geometryIndices[n++] = vertexCount + a;
+                geometryIndices[n++] = vertexCount + b;
+                geometryIndices[n++] = vertexCount + c;
+                geometryIndices[capIndices + i] = c;
+                geometryIndices[capIndices + i + 1] = b;
+                geometryIndices[capIndices + i + 2] = a;
+            }
+            n = capIndices * 2;
+
+            //walls, facing to the right of the ring edges (outwards, as the exteriors are counter-clockwise)
+            var w = vertexCount * 2;
+            var corners = new Array(4);
+            var from = 0;
+            for (k = 0; k < ringCount; k++) {
+                var to = ringEnds[ringStart + k];
+                for (i = from; i < to; i++) {
+                    j = i + 1 < to ? i + 1 : from;
+                    var a0 = i * 3;
+                    var b0 = j * 3;
+                    var a1 = (vertexCount + i) * 3;
+                    var b1 = (vertexCount + j) * 3;
+                    scratchEdge.x = position[b0] - position[a0];
+                    scratchEdge.y = position[b0 + 1] - position[a0 + 1];
+                    scratchEdge.z = position[b0 + 2] - position[a0 + 2];
+                    scratchNormal.x = -normal[a0];
+                    scratchNormal.y = -normal[a0 + 1];
+                    scratchNormal.z = -normal[a0 + 2];
+                    Cartesian3.cross(scratchEdge, scratchNormal, scratchNormal);
+                    if (Cartesian3.magnitudeSquared(scratchNormal) > 0) {
+                        Cartesian3.normalize(scratchNormal, scratchNormal);
+                    }
+                    corners[0] = a0;
+                    corners[1] = b0;
+                    corners[2] = b1;
+                    corners[3] = a1;
+                    for (var corner = 0; corner < 4; corner++) {
+                        var p = (w + corner) * 3;
+                        position[p] = position[corners[corner]];
+                        position[p + 1] = position[corners[corner] + 1];
+                        position[p + 2] = position[corners[corner] + 2];
+                        normal[p] = scratchNormal.x;
+                        normal[p + 1] = scratchNormal.y;
+                        normal[p + 2] = scratchNormal.z;
+                    }
+                    geometryIndices[n++] = w;
+                    geometryIndices[n++] = w + 1;
+                    geometryIndices[n++] = w + 2;
+                    geometryIndices[n++] = w;
+                    geometryIndices[n++] = w + 2;
+                    geometryIndices[n++] = w + 3;
+                    w += 4;
+                }
+                from = to;
+            }
+
+            return new Geometry({
+                attributes : new GeometryAttributes({
+                    position : new GeometryAttribute({
+                        componentDatatype : ComponentDatatype.DOUBLE,
+                        componentsPerAttribute : 3,
+                        values : position
+                    }),
+                    normal : new GeometryAttribute({
+                        componentDatatype : ComponentDatatype.FLOAT,
+                        componentsPerAttribute : 3,
+                        values : normal
+                    })
+                }),
+                indices : geometryIndices,
+                primitiveType : PrimitiveType.TRIANGLES,
+                boundingSphere : BoundingSphere.fromVertices(position)
+            });
+        }
+    };
+
+    return BoundaryMesh;
+});
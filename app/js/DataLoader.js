@@ -15,12 +15,15 @@ define([
     'Core/PolygonPipeline',
     'Core/GeometryPipeline',
     'Core/loadJson',
+    'Core/loadArrayBuffer',
     'Core/Event',
     'ThirdParty/when',
     'StatMap/GeoJsonDataSourceWithHoles',
     'StatMap/BoundaryGeometry',
+    'StatMap/BoundaryMesh',
     'StatMap/BoundaryAppearance',
-    'StatMap/UniformMaterial'
+    'StatMap/UniformMaterial',
+    'StatMap/Statistics'
 ], function(
     GeometryInstance,
     Matrix4,
@@ -37,12 +40,15 @@ define([
     PolygonPipeline,
     GeometryPipeline,
     loadJson,
+    loadArrayBuffer,
     Event,
     when,
     GeoJsonDataSourceWithHoles,
     BoundaryGeometry,
+    BoundaryMesh,
     BoundaryAppearance,
-    UniformMaterial) {
+    UniformMaterial,
+    Statistics) {
     "use strict";
 
     var DataLoader = function(scene) {
@@ -58,6 +64,12 @@ define([
         this._switchTime = 1.0;
         this._switchStart = JulianDate.fromDate(new Date());
         this._regionNames = {};
+        this._statisticsRequest = 0;
+        this._shards = undefined;
+        this._timeSlices = undefined;
+        this._time = undefined;
+        this._timesChanged = new Event();
+        this._regionIndex = undefined;
     };
 
     defineProperties(DataLoader.prototype, {
@@ -80,10 +92,28 @@ define([
             get : function() {
                 return this._error;
             }
+        },
+        /**
+         * Raised with the times of the statistics and the index of the time shown
+         * when statistics are loaded.
+         */
+        timesChangedEvent : {
+            get : function() {
+                return this._timesChanged;
+            }
         }
     });
 
+    /**
+     * Loads the boundaries of a level. A pre-triangulated mesh file (.mesh)
+     * written by the boundary pipeline is used as is; the polygons of a
+     * GeoJSON/TopoJSON file are triangulated by the geometry workers.
+     */
     DataLoader.prototype.loadBoundaries = function(url, level, completedCallback) {
+        if(/\.mesh$/.test(url)) {
+            this.loadBoundaryMesh(url, level, completedCallback);
+            return;
+        }
         var dataSource = new GeoJsonDataSourceWithHoles();
         var loadPromise = dataSource.loadUrl(url);
         var that = this;
@@ -161,6 +191,27 @@ define([
         });
     };
 
+    DataLoader.prototype.loadBoundaryMesh = function(url, level, completedCallback) {
+        var that = this;
+        when(loadArrayBuffer(url), function(buffer) {
+            var regions = BoundaryMesh.fromArrayBuffer(buffer);
+            var geometries = new Array(regions.length);
+            for(var i = 0; i < regions.length; i++) {
+                var region = regions[i];
+                geometries[i] = {
+                    id : region.id,
+                    geometry : region.geometry
+                };
+                that._regionNames[region.id] = region.name;
+            }
+            that.geometries[level] = geometries;
+            completedCallback();
+        }).otherwise(function(error) {
+            completedCallback();
+            that._error.raiseEvent(that, error);
+        });
+    };
+
     DataLoader.prototype.loadBoundariesAtLevel = function(level) {
         this._desiredBoundaryLevel = level;
     }
@@ -233,23 +284,135 @@ define([
         this._boundaryLevel = level;
     }
 
-    DataLoader.prototype.loadStatistics = function(url, completedCallback) {
+    /**
+     * Loads the statistics of a measure. If the url is the index of statistics
+     * that the harvester has partitioned by time (.times.json), only the slice
+     * of the time that is shown is loaded, and other slices as the time changes,
+     * calling the optional startedCallback when such a slice starts loading.
+     */
+    DataLoader.prototype.loadStatistics = function(url, completedCallback, startedCallback) {
+        this._shards = undefined;
+        return this._loadStatistics(url, completedCallback, startedCallback);
+    };
+
+    /**
+     * Loads statistics that the harvester has sharded by region level. Only the
+     * shard for the boundary level that is shown is loaded, and the shard for
+     * another level once the boundary level changes.
+     *
+     * @param {String[]} urls The url of the shard for each boundary level.
+     */
+    DataLoader.prototype.loadStatisticsShards = function(urls, startedCallback, completedCallback) {
+        this._shards = {
+            urls : urls,
+            level : undefined,
+            startedCallback : startedCallback,
+            completedCallback : completedCallback
+        };
+        this.refreshShard();
+    };
+
+    DataLoader.prototype.refreshShard = function() {
+        var shards = this._shards;
+        var level = this._desiredBoundaryLevel;
+        if(!defined(shards) || shards.level == level) {
+            return;
+        }
+        shards.level = level;
+        var url = shards.urls[level];
+        if(!defined(url)) {
+            return;
+        }
+        shards.startedCallback();
+        this._loadStatistics(url, shards.completedCallback, shards.startedCallback);
+    };
+
+    DataLoader.prototype._loadStatistics = function(url, completedCallback, startedCallback) {
         var that = this;
-        return when(loadJson(url), function(json) {
+        var request = ++this._statisticsRequest;
+        var binary = /\.bin$/.test(url);
+        var timeIndex = /\.times\.json$/.test(url);
+        var promise = binary ? loadArrayBuffer(url) : loadJson(url);
+        return when(promise, function(result) {
             completedCallback();
-            return that.loadStatisticsJson(json);
+            if(request !== that._statisticsRequest) {
+                //a different dataset or shard has been requested since
+                return undefined;
+            }
+            if(timeIndex) {
+                var statistics = Statistics.fromTimeIndex(result);
+                that._timeSlices = {
+                    statistics : statistics,
+                    url : url,
+                    extension : result['format'] === 'binary' ? '.bin' : '.json',
+                    requested : [],
+                    startedCallback : defined(startedCallback) ? startedCallback : function() {},
+                    completedCallback : completedCallback
+                };
+                return that.loadStatisticsData(statistics);
+            }
+            return that.loadStatisticsData(binary ? Statistics.fromArrayBuffer(result) : Statistics.fromJson(result));
         }).otherwise(function(error) {
-            that._error.raiseEvent(dataSource, error);
+            that._error.raiseEvent(that, error);
             return when.reject(error);
         });
     };
 
     DataLoader.prototype.loadStatisticsJson = function(json) {
-        this._statisticsJson = json;
+        this.loadStatisticsData(Statistics.fromJson(json));
+    };
+
+    DataLoader.prototype.loadStatisticsData = function(statistics) {
+        this._statisticsData = statistics;
         this._statisticsDirty = true;
+        this._timesChanged.raiseEvent(this, statistics.times, this.getTimeIndex());
+        this.refreshTimeSlice();
         this.refreshStatistics();
     };
 
+    /**
+     * Returns the index of the time shown: the time set with setTime if the
+     * statistics have it, otherwise the latest time.
+     */
+    DataLoader.prototype.getTimeIndex = function() {
+        var times = this._statisticsData.times;
+        var index = times.indexOf(this._time);
+        return index >= 0 ? index : times.length - 1; //use latest figures by default
+    };
+
+    DataLoader.prototype.setTime = function(time) {
+        this._time = time;
+        this._statisticsDirty = true;
+    };
+
+    DataLoader.prototype.refreshTimeSlice = function() {
+        var slices = this._timeSlices;
+        if(!defined(slices) || slices.statistics !== this._statisticsData) {
+            return;
+        }
+        var statistics = slices.statistics;
+        var slice = statistics.sliceOf(this.getTimeIndex());
+        if(slices.requested[slice]) {
+            return;
+        }
+        slices.requested[slice] = true;
+
+        var that = this;
+        var url = slices.url.replace(/\.times\.json$/, '.T' + slice + slices.extension);
+        var binary = slices.extension === '.bin';
+        slices.startedCallback();
+        when(binary ? loadArrayBuffer(url) : loadJson(url), function(result) {
+            slices.completedCallback();
+            statistics.setSlice(slice, binary ? Statistics.fromArrayBuffer(result) : Statistics.fromJson(result));
+            if(statistics === that._statisticsData) {
+                that._statisticsDirty = true;
+            }
+        }).otherwise(function(error) {
+            slices.completedCallback();
+            that._error.raiseEvent(that, error);
+        });
+    };
+
     DataLoader.prototype.refreshStatistics = function() {
         if(!this._statisticsDirty) {
             return;
@@ -258,22 +421,26 @@ define([
         if(!(defined(primitive) && defined(primitive._perInstanceAttributeLocations))) {
             return;
         }
+        var statistics = this._statisticsData;
+        if(!defined(statistics)) {
+            return;
+        }
+        var dataIndex = this.getTimeIndex();
+        if(!statistics.isLoaded(dataIndex)) {
+            //wait for the time slice to load
+            return;
+        }
         this._statisticsDirty = false;
-        var json = this._statisticsJson;
-        var data = json['data'];
-        var times = json['times'];
 
-        var dataIndex = times.length - 1; //use latest figures by default
         var min = Number.MAX_VALUE;
         var max = -Number.MAX_VALUE;
         var values = [];
 
         var primitiveIds = primitive._instanceIds;
+        var statisticsIds = this._regionRows(statistics, primitiveIds);
         for(var i = 0; i < primitiveIds.length; i++) {
-            var primitiveId = primitiveIds[i];
-            var dataValues = data[primitiveId];
-            if(defined(dataValues)) {
-                var value = dataValues[dataIndex];
+            var value = statistics.getValue(statisticsIds[i], dataIndex);
+            if(defined(value)) {
                 if(value != null) {
                     min = Math.min(min, value);
                     max = Math.max(max, value);
@@ -306,30 +473,111 @@ define([
     };
 
     DataLoader.prototype.getUnits = function(id) {
-        if(!defined(this._statisticsJson)) {
+        if(!defined(this._statisticsData)) {
             return undefined;
         }
-        return this._statisticsJson['units'];
+        return this._statisticsData.units;
     }
 
     DataLoader.prototype.getValue = function(id) {
-        if(!defined(this._statisticsJson)) {
+        if(!defined(this._statisticsData)) {
             return undefined;
         }
 
-        var json = this._statisticsJson;
-        var data = json['data'];
-        var times = json['times'];
+        var statistics = this._statisticsData;
+        if(defined(statistics.levels)) {
+            id = this._regionRow(statistics, id);
+        }
+        return statistics.getValue(id, this.getTimeIndex());
+    }
 
-        var dataIndex = times.length - 1; //use latest figures by default
-        var dataValues = data[id];
-        if(!defined(dataValues)) {
-            return undefined;
+    /**
+     * Loads the harvester's region dictionary (regions.json), which is needed to
+     * look up the values of statistics that are indexed by it.
+     *
+     * @param {String[]} boundaryRegionLevels The region level of each boundary level.
+     */
+    DataLoader.prototype.loadRegionIndex = function(url, boundaryRegionLevels) {
+        var that = this;
+        return when(loadJson(url), function(json) {
+            var levels = {};
+            var levelsJson = json['levels'];
+            for(var i = 0; i < levelsJson.length; i++) {
+                var codes = levelsJson[i]['codes'];
+                var indices = {};
+                for(var j = 0; j < codes.length; j++) {
+                    indices[codes[j]] = j;
+                }
+                levels[levelsJson[i]['level']] = {
+                    count : codes.length,
+                    indices : indices
+                };
+            }
+            that._regionIndex = {
+                levels : levels,
+                boundaryRegionLevels : boundaryRegionLevels,
+                //dictionary index of each boundary of a boundary level, looked up once per level
+                boundaryIndices : {}
+            };
+            that._statisticsDirty = true;
+        }).otherwise(function(error) {
+            that._error.raiseEvent(that, error);
+            return when.reject(error);
+        });
+    };
+
+    //row of the first region of the given level in statistics indexed by the region dictionary
+    DataLoader.prototype._regionRowOffset = function(statistics, level) {
+        var offset = 0;
+        for(var i = 0; i < statistics.levels.length; i++) {
+            if(statistics.levels[i] === level) {
+                return offset;
+            }
+            offset += this._regionIndex.levels[statistics.levels[i]].count;
         }
+        return undefined;
+    };
 
-        var value = dataValues[dataIndex];
-        return value;
-    }
+    //id to look up a region of the boundary level shown by in the statistics (-1 if the statistics don't have it)
+    DataLoader.prototype._regionRow = function(statistics, id) {
+        var regionIndex = this._regionIndex;
+        if(!defined(regionIndex)) {
+            return -1;
+        }
+        var level = regionIndex.boundaryRegionLevels[this._boundaryLevel];
+        var offset = this._regionRowOffset(statistics, level);
+        var index = regionIndex.levels[level].indices[id];
+        return defined(offset) && defined(index) ? offset + index : -1;
+    };
+
+    //ids to look up the regions of the boundary level shown by in the statistics, in the same order
+    DataLoader.prototype._regionRows = function(statistics, ids) {
+        if(!defined(statistics.levels)) {
+            return ids;
+        }
+        var regionIndex = this._regionIndex;
+        if(!defined(regionIndex)) {
+            return [];
+        }
+        var boundaryLevel = this._boundaryLevel;
+        var level = regionIndex.boundaryRegionLevels[boundaryLevel];
+        var indices = regionIndex.boundaryIndices[boundaryLevel];
+        if(!defined(indices)) {
+            var levelIndices = regionIndex.levels[level].indices;
+            indices = new Array(ids.length);
+            for(var i = 0; i < ids.length; i++) {
+                var index = levelIndices[ids[i]];
+                indices[i] = defined(index) ? index : -1;
+            }
+            regionIndex.boundaryIndices[boundaryLevel] = indices;
+        }
+        var offset = this._regionRowOffset(statistics, level);
+        var rows = new Array(indices.length);
+        for(var j = 0; j < indices.length; j++) {
+            rows[j] = defined(offset) && indices[j] >= 0 ? offset + indices[j] : -1;
+        }
+        return rows;
+    };
 
     DataLoader.prototype.setSelected = function(id) {
         var primitive = this._primitive;
@@ -357,6 +605,8 @@ define([
 
     DataLoader.prototype.update = function(clock) {
         this.refreshBoundaries();
+        this.refreshShard();
+        this.refreshTimeSlice();
         this.refreshStatistics();
 
         if(this._switch) {
@@ -231,21 +231,38 @@ define([
 	scene.frameState.creditDisplay.addDefaultCredit(new Credit('GitHub repo', 'img/github_credit.png', 'https://github.com/mdehoog/Stat.Map'));
 
 
-    //load region topojson files
-    showLoadingIndicator(); dataLoader.loadBoundaries('data/ASGS/ste_q1e6_s0.00001.json', 0, hideLoadingIndicator);
-    showLoadingIndicator(); dataLoader.loadBoundaries('data/ASGS/sa4_q1e6_s0.000001.json', 1, hideLoadingIndicator);
-    showLoadingIndicator(); dataLoader.loadBoundaries('data/ASGS/sa3_q1e6_s0.0000001.json', 2, hideLoadingIndicator);
-    showLoadingIndicator(); dataLoader.loadBoundaries('data/ASGS/sa2_q1e6_s0.00000001.json', 3, hideLoadingIndicator);
+    //load region boundaries, pre-triangulated from the topojson files by the boundary pipeline
+    showLoadingIndicator(); dataLoader.loadBoundaries('data/ASGS/ste_q1e6_s0.00001.mesh', 0, hideLoadingIndicator);
+    showLoadingIndicator(); dataLoader.loadBoundaries('data/ASGS/sa4_q1e6_s0.000001.mesh', 1, hideLoadingIndicator);
+    showLoadingIndicator(); dataLoader.loadBoundaries('data/ASGS/sa3_q1e6_s0.0000001.mesh', 2, hideLoadingIndicator);
+    showLoadingIndicator(); dataLoader.loadBoundaries('data/ASGS/sa2_q1e6_s0.00000001.mesh', 3, hideLoadingIndicator);
 
 
     var loadDataset = function(url) {
-        showLoadingIndicator(); dataLoader.loadStatistics(url, hideLoadingIndicator);
+        showLoadingIndicator(); dataLoader.loadStatistics(url, hideLoadingIndicator, showLoadingIndicator);
+    }
+    //region level of the statistics shard for each of the boundary levels above
+    var boundaryRegionLevels = ['STE', 'SA4', 'SA3', 'SA2'];
+    var loadShardedDataset = function(url, extension, levels) {
+        var urls = [];
+        for(var i = 0; i < boundaryRegionLevels.length; i++) {
+            var level = boundaryRegionLevels[i];
+            urls.push(levels.indexOf(level) >= 0 ? url + '.' + level + extension : undefined);
+        }
+        dataLoader.loadStatisticsShards(urls, showLoadingIndicator, hideLoadingIndicator);
     }
     var datasetUrl = 'data/stats/ABS_NRP9_ASGS/summary.json';
     var datasetSelection = document.getElementById('datasetSelect');
     when(loadJson(datasetUrl), function(json) {
         datasetSelection.remove(0);
         var concepts = json['concepts'];
+        var extension = json['format'] === 'binary' ? '.bin' : '.json';
+        if(defined(json['timeSlice'])) {
+            //measures partitioned by time are loaded from their index of times, which loads the slices
+            extension = '.times.json';
+        }
+        //measures sharded by region level are listed without extension, as each level is a separate file
+        var levels = json['levels'];
         var lastIndexOfSlash = datasetUrl.lastIndexOf('/');
         var pathUrl = datasetUrl.substring(0, lastIndexOfSlash);
         for(var i = 0; i < concepts.length; i++) {
@@ -258,16 +275,29 @@ define([
                 var key = code['k'];
                 var option = document.createElement('option');
                 option.text = value;
-                option.value = pathUrl + "/" + name + "." + key + ".json";
+                option.value = pathUrl + "/" + name + "." + key + (defined(levels) ? '' : extension);
                 datasetSelection.add(option);
             }
         }
         datasetSelection.onchange = function() {
             var url = datasetSelection.options[datasetSelection.selectedIndex].value;
-            loadDataset(url);
+            if(defined(levels)) {
+                loadShardedDataset(url, extension, levels);
+            } else {
+                loadDataset(url);
+            }
         };
-        datasetSelection.selectedIndex = 0;
-        datasetSelection.onchange();
+        //measures indexed by the region dictionary can only be looked up once it is loaded
+        var regionIndexLoaded;
+        if(defined(json['regionIndex'])) {
+            showLoadingIndicator();
+            regionIndexLoaded = dataLoader.loadRegionIndex(pathUrl + '/' + json['regionIndex'], boundaryRegionLevels);
+            when(regionIndexLoaded, hideLoadingIndicator, hideLoadingIndicator);
+        }
+        return when(regionIndexLoaded, function() {
+            datasetSelection.selectedIndex = 0;
+            datasetSelection.onchange();
+        });
     }).otherwise(function(error) {
         var errorOption = document.createElement('option');
         errorOption.text = 'Error loading data: ' + error;
@@ -277,6 +307,24 @@ define([
     });
 
 
+    var timeControl = document.getElementById('timeControl');
+    var timeSlider = document.getElementById('timeSlider');
+    var timeLabel = document.getElementById('timeLabel');
+    var sliderTimes = [];
+    dataLoader.timesChangedEvent.addEventListener(function(loader, times, timeIndex) {
+        sliderTimes = times;
+        timeSlider.max = Math.max(0, times.length - 1);
+        timeSlider.value = timeIndex;
+        timeLabel.innerHTML = times.length > 0 ? times[timeIndex] : '';
+        timeControl.style.display = times.length > 1 ? 'block' : 'none';
+    });
+    timeSlider.oninput = timeSlider.onchange = function() {
+        var time = sliderTimes[timeSlider.value];
+        timeLabel.innerHTML = time;
+        dataLoader.setTime(time);
+    };
+
+
     var regionTypeSelection = document.getElementById('regionTypeSelect');
     regionTypeSelection.remove(0);
     var regionTypes = [
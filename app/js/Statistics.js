@@ -0,0 +1,247 @@
+/*global define*/
+define([
+    'Core/defined',
+    'Core/DeveloperError'
+], function(
+    defined,
+    DeveloperError) {
+    "use strict";
+
+    /**
+     * Statistics for a single measure, loaded either from the harvester's JSON
+     * output or from its binary columnar output. Values are looked up by region
+     * id and time index. For statistics indexed by the harvester's region
+     * dictionary (regions.json), levels lists the region levels of the rows,
+     * and the id is the row: the dictionary index of the region, offset by the
+     * number of regions in the preceding levels.
+     */
+    var Statistics = function(options) {
+        this.concept = options.concept;
+        this.units = options.units;
+        this.min = options.min;
+        this.max = options.max;
+        this.times = options.times;
+        this.slices = options.slices;
+        this.levels = options.levels;
+        this._getValue = options.getValue;
+        this._isLoaded = options.isLoaded;
+    };
+
+    /**
+     * Returns the value for the given region at the given time index, or null
+     * if there is no value, or undefined if the region has no values at all.
+     */
+    Statistics.prototype.getValue = function(id, timeIndex) {
+        return this._getValue(id, timeIndex);
+    };
+
+    /**
+     * Returns whether the values for the given time index are loaded. Always
+     * true, except for statistics that are partitioned by time.
+     */
+    Statistics.prototype.isLoaded = function(timeIndex) {
+        return !defined(this._isLoaded) || this._isLoaded(timeIndex);
+    };
+
+    /**
+     * Returns the index of the slice that contains the given time index, for
+     * statistics that are partitioned by time.
+     */
+    Statistics.prototype.sliceOf = function(timeIndex) {
+        var slices = this.slices;
+        for (var i = 0; i < slices.length; i++) {
+            if (timeIndex < slices[i]['start'] + slices[i]['count']) {
+                return i;
+            }
+        }
+        return slices.length - 1;
+    };
+
+    /**
+     * Sets the statistics of a slice, for statistics that are partitioned by
+     * time.
+     */
+    Statistics.prototype.setSlice = function(slice, statistics) {
+        this._slices[slice] = statistics;
+    };
+
+    Statistics.fromJson = function(json) {
+        var data = json['data'];
+        return new Statistics({
+            concept : json['concept'],
+            units : json['units'],
+            min : json['min'],
+            max : json['max'],
+            times : json['times'],
+            levels : json['levels'],
+            getValue : function(id, timeIndex) {
+                var values = data[id];
+                if (!defined(values)) {
+                    return undefined;
+                }
+                return values[timeIndex];
+            }
+        });
+    };
+
+    /**
+     * Creates statistics that the harvester has partitioned by time, from the
+     * index of the slices. The values of a slice are only available once it
+     * has been loaded and set with setSlice.
+     */
+    Statistics.fromTimeIndex = function(index) {
+        var slices = index['slices'];
+        var statistics = new Statistics({
+            concept : index['concept'],
+            units : index['units'],
+            min : index['min'],
+            max : index['max'],
+            times : index['times'],
+            slices : slices,
+            levels : index['levels'],
+            getValue : function(id, timeIndex) {
+                var slice = statistics.sliceOf(timeIndex);
+                var sliceStatistics = statistics._slices[slice];
+                if (!defined(sliceStatistics)) {
+                    return undefined;
+                }
+                return sliceStatistics.getValue(id, timeIndex - slices[slice]['start']);
+            },
+            isLoaded : function(timeIndex) {
+                return defined(statistics._slices[statistics.sliceOf(timeIndex)]);
+            }
+        });
+        statistics._slices = new Array(slices.length);
+        return statistics;
+    };
+
+    var TYPE_UINT16 = 1;
+    var FLAG_INDEXED = 1;
+    var NULL_STRING = 0xFFFF;
+    var QUANTIZED_MAX = 65534;
+
+    var utf8Decoder = typeof TextDecoder !== 'undefined' ? new TextDecoder('utf-8') : undefined;
+
+    function pad(offset) {
+        return (offset + 3) & ~3;
+    }
+
+    /**
+     * Decodes the binary columnar format written by the harvester's
+     * BinaryStatisticsWriter. The value columns are typed array views on the
+     * buffer, so nothing is copied or parsed per value.
+     */
+    Statistics.fromArrayBuffer = function(buffer) {
+        var view = new DataView(buffer);
+        var offset = 0;
+
+        function readString() {
+            var length = view.getUint16(offset, true);
+            offset += 2;
+            if (length === NULL_STRING) {
+                return null;
+            }
+            var bytes = new Uint8Array(buffer, offset, length);
+            offset += length;
+            if (defined(utf8Decoder)) {
+                return utf8Decoder.decode(bytes);
+            }
+            return decodeURIComponent(escape(String.fromCharCode.apply(null, bytes)));
+        }
+
+        if (view.getUint8(0) !== 0x53 || view.getUint8(1) !== 0x4D || view.getUint8(2) !== 0x42 || view.getUint8(3) !== 0x31) {
+            throw new DeveloperError('Invalid binary statistics file.');
+        }
+        var type = view.getUint8(5);
+        var indexed = (view.getUint16(6, true) & FLAG_INDEXED) !== 0;
+        offset = 8;
+        var concept = readString();
+        var units = readString();
+        offset = pad(offset);
+        var min = view.getFloat64(offset, true);
+        var max = view.getFloat64(offset + 8, true);
+        offset += 16;
+
+        var timeCount = view.getUint32(offset, true);
+        offset += 4;
+        var times = new Array(timeCount);
+        for (var i = 0; i < timeCount; i++) {
+            var time = readString();
+            var number = Number(time);
+            times[i] = isNaN(number) ? time : number;
+        }
+        offset = pad(offset);
+
+        var rowCount = view.getUint32(offset, true);
+        offset += 4;
+        var rows = {};
+        var levels;
+        if (indexed) {
+            var levelCount = view.getUint32(offset, true);
+            offset += 4;
+            levels = new Array(levelCount);
+            for (var k = 0; k < levelCount; k++) {
+                levels[k] = readString();
+            }
+        } else {
+            for (var j = 0; j < rowCount; j++) {
+                rows[readString()] = j;
+            }
+        }
+        offset = pad(offset);
+
+        var maskSize = pad((rowCount + 7) >> 3);
+        var masks = new Array(timeCount);
+        var columns = new Array(timeCount);
+        for (var t = 0; t < timeCount; t++) {
+            masks[t] = new Uint8Array(buffer, offset, maskSize);
+            offset += maskSize;
+            if (type === TYPE_UINT16) {
+                columns[t] = new Uint16Array(buffer, offset, rowCount);
+                offset += pad(rowCount * 2);
+            } else {
+                columns[t] = new Float32Array(buffer, offset, rowCount);
+                offset += rowCount * 4;
+            }
+        }
+
+        // every region of the dictionary has a row in indexed statistics, so
+        // a row without values is a region that isn't in the data at all
+        var present;
+        if (indexed) {
+            present = new Uint8Array(maskSize);
+            for (var m = 0; m < timeCount; m++) {
+                for (var b = 0; b < maskSize; b++) {
+                    present[b] |= ~masks[m][b];
+                }
+            }
+        }
+
+        var scale = (max - min) / QUANTIZED_MAX;
+        return new Statistics({
+            concept : concept,
+            units : units,
+            min : min,
+            max : max,
+            times : times,
+            levels : levels,
+            getValue : function(id, timeIndex) {
+                var row = indexed ? (id >= 0 && id < rowCount && (present[id >> 3] & (1 << (id & 7))) ? id : undefined) : rows[id];
+                if (!defined(row)) {
+                    return undefined;
+                }
+                if (masks[timeIndex][row >> 3] & (1 << (row & 7))) {
+                    return null;
+                }
+                var value = columns[timeIndex][row];
+                if (type === TYPE_UINT16) {
+                    return min + value * scale;
+                }
+                //trim float32 noise (0.699999988 -> 0.7)
+                return parseFloat(value.toPrecision(7));
+            }
+        });
+    };
+
+    return Statistics;
+});
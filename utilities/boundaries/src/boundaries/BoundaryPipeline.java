@@ -0,0 +1,150 @@
+package boundaries;
+
+import harvester.GzipSidecar;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Builds the multi-LOD boundary files of the viewer
+ * (<code>app/data/ASGS/&lt;level&gt;_q&lt;quantization&gt;_s&lt;threshold&gt;.json</code>)
+ * from the ASGS source boundaries. For each region level, the source
+ * boundaries are read (shapefile or GeoJSON), quantized and converted to a
+ * topology with shared arcs, the simplification weights of the arcs are
+ * computed once in parallel, and then the TopoJSON of every threshold of the
+ * level is written in parallel. Optionally, each level of detail is also
+ * triangulated and written as a binary mesh by the {@link MeshWriter}. Each
+ * file can also be written with a gzip compressed copy ({@link GzipSidecar}).
+ * <p/>
+ * Configured by a properties file (by default
+ * <code>boundaries.properties</code>), given as the first argument; see the
+ * included one for the properties. Paths are relative to the properties file.
+ *
+ * @author Michael de Hoog
+ */
+public class BoundaryPipeline
+{
+	public static void main(String[] args) throws Exception
+	{
+		File configFile = new File(args.length > 0 ? args[0] : "boundaries.properties").getAbsoluteFile();
+		Properties config = new Properties();
+		try (InputStream input = new FileInputStream(configFile))
+		{
+			config.load(input);
+		}
+		File baseDir = configFile.getParentFile();
+		File outputDir = new File(baseDir, config.getProperty("output", "."));
+		String quantization = config.getProperty("quantization", "1e6").trim();
+		Simplifier.Method method = Simplifier.Method.parse(config.getProperty("method", "visvalingam"));
+		boolean meshes = Boolean.parseBoolean(config.getProperty("meshes", "false").trim());
+		double granularity = Double.parseDouble(config.getProperty("granularity",
+				Double.toString(MeshWriter.DEFAULT_GRANULARITY)).trim());
+		boolean gzip = Boolean.parseBoolean(config.getProperty("gzip", "false").trim());
+		int threads = Integer.parseInt(config.getProperty("threads",
+				Integer.toString(Runtime.getRuntime().availableProcessors())).trim());
+
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try
+		{
+			System.out.println(String.format("%-6s %-12s %8s %10s %7s %8s %12s %12s %8s", "Level", "Threshold",
+					"Arcs", "Points", "Kept", "Dropped", "Bytes", "Mesh bytes", "Time"));
+			long totalBytes = 0;
+			for (String level : config.getProperty("levels").split(","))
+			{
+				totalBytes += processLevel(level.trim(), config, baseDir, outputDir, quantization, method, meshes,
+						granularity, gzip, executor);
+			}
+			System.out.println(String.format("Wrote %,d bytes to %s", totalBytes, outputDir));
+		}
+		finally
+		{
+			executor.shutdown();
+		}
+	}
+
+	/**
+	 * @return The number of bytes written
+	 */
+	private static long processLevel(final String level, Properties config, File baseDir, final File outputDir,
+			final String quantization, Simplifier.Method method, final boolean meshes, final double granularity,
+			final boolean gzip, ExecutorService executor) throws Exception
+	{
+		long start = System.currentTimeMillis();
+		File input = new File(baseDir, property(config, level + ".input"));
+		String idField = property(config, level + ".id");
+		String nameField = property(config, level + ".name");
+		String objectName = config.getProperty(level + ".object", input.getName().replaceFirst("\\.[^.]*$", ""));
+		List<Feature> features = input.getName().toLowerCase().endsWith(".shp") ? ShapefileReader.read(input,
+				idField, nameField) : GeoJsonReader.read(input, idField, nameField);
+
+		final Topology topology = new Topology(features, (int) Double.parseDouble(quantization));
+		final List<double[]> weights = Simplifier.weights(topology, method, executor);
+		final int totalPoints = topology.arcPoints();
+		System.out.println(String.format(
+				"%-6s %,d regions, %,d source points; topology of %,d arcs, %,d points (%dms)", level, features.size(), topology.sourcePoints, topology.arcs.size(), totalPoints,
+				System.currentTimeMillis() - start));
+
+		List<String> thresholds = new ArrayList<>();
+		List<Future<String>> futures = new ArrayList<>();
+		for (String value : property(config, level + ".thresholds").split(","))
+		{
+			final String threshold = value.trim();
+			final String object = objectName;
+			thresholds.add(threshold);
+			futures.add(executor.submit(new Callable<String>()
+			{
+				@Override
+				public String call() throws IOException
+				{
+					long start = System.currentTimeMillis();
+					TopoJsonWriter.Result result = TopoJsonWriter.write(topology, weights,
+							Double.parseDouble(threshold), object);
+					File file = new File(outputDir, level + "_q" + quantization + "_s" + threshold + ".json");
+					GzipSidecar.write(file, result.content, gzip);
+					int meshBytes = 0;
+					if (meshes)
+					{
+						byte[] mesh = MeshWriter.toBytes(TopoJsonReader.read(new InputStreamReader(
+								new ByteArrayInputStream(result.content), StandardCharsets.UTF_8)), granularity);
+						GzipSidecar.write(MeshWriter.meshFile(file), mesh, gzip);
+						meshBytes = mesh.length;
+					}
+					return String.format("%-6s %-12s %8d %10d %6.1f%% %8d %,12d %,12d %7dms", level, threshold,
+							result.arcs, result.points, result.points * 100.0 / totalPoints, result.droppedRings,
+							result.content.length, meshBytes, System.currentTimeMillis() - start);
+				}
+			}));
+		}
+		long bytes = 0;
+		for (int i = 0; i < futures.size(); i++)
+		{
+			String report = futures.get(i).get();
+			System.out.println(report);
+			File file = new File(outputDir, level + "_q" + quantization + "_s" + thresholds.get(i) + ".json");
+			bytes += file.length() + (meshes ? MeshWriter.meshFile(file).length() : 0);
+		}
+		return bytes;
+	}
+
+	private static String property(Properties config, String name)
+	{
+		String value = config.getProperty(name);
+		if (value == null)
+		{
+			throw new IllegalArgumentException("Missing property '" + name + "'");
+		}
+		return value.trim();
+	}
+}
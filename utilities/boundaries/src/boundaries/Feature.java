@@ -0,0 +1,103 @@
+package boundaries;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A region read from the source boundaries: its id and name, and its polygons.
+ * Each polygon is a list of rings, the exterior ring first and then its holes;
+ * each ring is a closed sequence of lon/lat coordinates, stored interleaved as
+ * <code>x0, y0, x1, y1, ...</code>.
+ *
+ * @author Michael de Hoog
+ */
+public class Feature
+{
+	public final String id;
+	public final String name;
+	public final List<List<double[]>> polygons;
+
+	public Feature(String id, String name, List<List<double[]>> polygons)
+	{
+		this.id = id;
+		this.name = name;
+		this.polygons = polygons;
+	}
+
+	/**
+	 * Group rings without any structure (as in a shapefile) into polygons:
+	 * clockwise rings are exteriors, and counter-clockwise rings are holes of
+	 * the exterior that contains them.
+	 */
+	public static List<List<double[]>> polygons(List<double[]> rings)
+	{
+		List<double[]> exteriors = new ArrayList<>();
+		List<double[]> holes = new ArrayList<>();
+		for (double[] ring : rings)
+		{
+			if (signedArea(ring) <= 0)
+			{
+				exteriors.add(ring);
+			}
+			else
+			{
+				holes.add(ring);
+			}
+		}
+		if (exteriors.isEmpty())
+		{
+			//wrongly oriented; treat every ring as an exterior
+			exteriors = holes;
+			holes = new ArrayList<>();
+		}
+
+		List<List<double[]>> polygons = new ArrayList<>();
+		for (double[] exterior : exteriors)
+		{
+			List<double[]> polygon = new ArrayList<>();
+			polygon.add(exterior);
+			polygons.add(polygon);
+		}
+		for (double[] hole : holes)
+		{
+			List<double[]> container = polygons.get(polygons.size() - 1);
+			for (List<double[]> polygon : polygons)
+			{
+				if (contains(polygon.get(0), hole[0], hole[1]))
+				{
+					container = polygon;
+					break;
+				}
+			}
+			container.add(hole);
+		}
+		return polygons;
+	}
+
+	/**
+	 * @return Twice the signed area of the ring; positive if counter-clockwise
+	 */
+	public static double signedArea(double[] ring)
+	{
+		double area = 0;
+		for (int i = 0; i + 3 < ring.length; i += 2)
+		{
+			area += ring[i] * ring[i + 3] - ring[i + 2] * ring[i + 1];
+		}
+		return area;
+	}
+
+	private static boolean contains(double[] ring, double x, double y)
+	{
+		boolean inside = false;
+		for (int i = 0; i + 3 < ring.length; i += 2)
+		{
+			double x0 = ring[i], y0 = ring[i + 1], x1 = ring[i + 2], y1 = ring[i + 3];
+			if ((y0 > y) != (y1 > y) && x < (x1 - x0) * (y - y0) / (y1 - y0) + x0)
+			{
+				inside = !inside;
+			}
+		}
+		return inside;
+	}
+}
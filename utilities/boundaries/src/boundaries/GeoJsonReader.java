@@ -0,0 +1,101 @@
+package boundaries;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+/**
+ * Reads the Polygon and MultiPolygon features of a GeoJSON FeatureCollection.
+ *
+ * @author Michael de Hoog
+ */
+public class GeoJsonReader
+{
+	public static List<Feature> read(File file, String idProperty, String nameProperty) throws IOException
+	{
+		JSONObject json;
+		try (Reader reader = new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))
+		{
+			json = (JSONObject) new JSONParser().parse(reader);
+		}
+		catch (ParseException e)
+		{
+			throw new IOException("Error parsing " + file, e);
+		}
+
+		List<Feature> features = new ArrayList<>();
+		for (Object object : (JSONArray) json.get("features"))
+		{
+			JSONObject feature = (JSONObject) object;
+			JSONObject geometry = (JSONObject) feature.get("geometry");
+			if (geometry == null)
+			{
+				continue;
+			}
+			JSONObject properties = (JSONObject) feature.get("properties");
+			String type = (String) geometry.get("type");
+			JSONArray coordinates = (JSONArray) geometry.get("coordinates");
+			List<List<double[]>> polygons = new ArrayList<>();
+			if ("Polygon".equals(type))
+			{
+				polygons.add(polygon(coordinates));
+			}
+			else if ("MultiPolygon".equals(type))
+			{
+				for (Object polygon : coordinates)
+				{
+					polygons.add(polygon((JSONArray) polygon));
+				}
+			}
+			else
+			{
+				throw new IOException("Unsupported geometry type " + type + " in " + file);
+			}
+			features.add(new Feature(property(properties, idProperty, file), property(properties, nameProperty,
+					file), polygons));
+		}
+		return features;
+	}
+
+	private static String property(JSONObject properties, String property, File file) throws IOException
+	{
+		Object value = properties == null ? null : properties.get(property);
+		if (value == null)
+		{
+			throw new IOException("Property '" + property + "' not found in " + file);
+		}
+		if (value instanceof Double && (Double) value == Math.rint((Double) value))
+		{
+			return Long.toString(((Double) value).longValue());
+		}
+		return value.toString();
+	}
+
+	private static List<double[]> polygon(JSONArray coordinates)
+	{
+		List<double[]> rings = new ArrayList<>();
+		for (Object object : coordinates)
+		{
+			JSONArray positions = (JSONArray) object;
+			double[] ring = new double[positions.size() * 2];
+			for (int i = 0; i < positions.size(); i++)
+			{
+				JSONArray position = (JSONArray) positions.get(i);
+				ring[i * 2] = ((Number) position.get(0)).doubleValue();
+				ring[i * 2 + 1] = ((Number) position.get(1)).doubleValue();
+			}
+			rings.add(ring);
+		}
+		return rings;
+	}
+}
@@ -0,0 +1,334 @@
+package boundaries;
+
+import harvester.GzipSidecar;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Writes the regions of a boundary level of detail as pre-triangulated meshes,
+ * in the binary format read by <code>app/js/BoundaryMesh.js</code>, so the
+ * viewer doesn't have to triangulate the polygons when it switches levels.
+ * All numbers are little-endian.
+ *
+ * <pre>
+ * header:    'BMB1', uint8 version, uint8 index type (0 = uint16, 1 = uint32),
+ *            uint16 flags (reserved), float64 translate[2], float64 step[2]
+ * regions:   uint32 count, then for each region string id, string name
+ * ranges:    uint32 origin[count * 2], uint32 vertexStart[count + 1],
+ *            uint32 indexStart[count + 1], uint32 ringStart[count + 1]
+ * rings:     uint32 ringEnd[ringStart[count]]
+ * positions: uint16 position[vertexStart[count] * 2]
+ * indices:   index[indexStart[count]]
+ * </pre>
+ *
+ * Strings are a uint16 byte length (0xFFFF for null) followed by UTF-8 bytes.
+ * Sections are padded to 4 bytes.
+ * <p/>
+ * The vertices of a region are the points of its rings (exteriors
+ * counter-clockwise and holes clockwise, without closing points), followed by
+ * the points added inside the rings by subdivision. Ring k of region r spans
+ * the region's vertices from <code>ringEnd[k - 1]</code> (0 for the first
+ * ring, <code>ringStart[r]</code>) to <code>ringEnd[k]</code>. A vertex is
+ * quantized on a grid shared by all regions:
+ * <code>lon = translate[0] + (origin[2r] + position[2v]) * step[0]</code>,
+ * and likewise for the latitude; the step is the smallest with which the
+ * largest region fits in 16 bits. Indices are relative to the region's
+ * first vertex, and the triangles are counter-clockwise.
+ *
+ * @author Michael de Hoog
+ */
+public class MeshWriter
+{
+	public final static int VERSION = 1;
+	public final static int INDEX_UINT16 = 0;
+	public final static int INDEX_UINT32 = 1;
+	//maximum length of triangle edges, in degrees, as the default granularity of Cesium polygons
+	public final static double DEFAULT_GRANULARITY = 1.0;
+	private final static byte[] MAGIC = { 'B', 'M', 'B', '1' };
+	private final static int NULL_STRING = 0xFFFF;
+	private final static int QUANTIZED_MAX = 65534;
+
+	/**
+	 * Triangulate the TopoJSON files given as arguments, writing each to a
+	 * .mesh file next to it. The granularity is the
+	 * <code>boundaries.granularity</code> system property, and the
+	 * <code>boundaries.gzip</code> system property enables the gzip sidecars.
+	 */
+	public static void main(String[] args) throws IOException
+	{
+		double granularity = Double.parseDouble(System.getProperty("boundaries.granularity",
+				Double.toString(DEFAULT_GRANULARITY)));
+		boolean gzip = Boolean.getBoolean("boundaries.gzip");
+		for (String arg : args)
+		{
+			long start = System.currentTimeMillis();
+			File file = new File(arg);
+			List<Feature> features;
+			try (Reader reader = new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))
+			{
+				features = TopoJsonReader.read(reader);
+			}
+			byte[] content = toBytes(features, granularity);
+			File meshFile = meshFile(file);
+			GzipSidecar.write(meshFile, content, gzip);
+			System.out.println(String.format("Wrote %s (%,d bytes) in %dms", meshFile, content.length,
+					System.currentTimeMillis() - start));
+		}
+	}
+
+	/**
+	 * @return The mesh file written for a TopoJSON file
+	 */
+	public static File meshFile(File topoJsonFile)
+	{
+		return new File(topoJsonFile.getParentFile(), topoJsonFile.getName().replaceFirst("\\.json$", "")
+				+ ".mesh");
+	}
+
+	/**
+	 * A triangulated region, in lon/lat.
+	 */
+	private static class Region
+	{
+		private final Feature feature;
+		private final List<Integer> ringEnds = new ArrayList<>();
+		private double[] vertices = new double[0];
+		private int vertexCount;
+		private int[] indices = new int[0];
+		private double minX = Double.MAX_VALUE, minY = Double.MAX_VALUE;
+		private double maxX = -Double.MAX_VALUE, maxY = -Double.MAX_VALUE;
+
+		private Region(Feature feature, double granularity)
+		{
+			this.feature = feature;
+			List<List<double[]>> polygons = new ArrayList<>();
+			for (List<double[]> polygon : feature.polygons)
+			{
+				List<double[]> rings = new ArrayList<>();
+				for (double[] ring : polygon)
+				{
+					double[] open = Triangulator.open(ring);
+					if (open.length >= 6)
+					{
+						open = Triangulator.orient(open, rings.isEmpty());
+						rings.add(granularity > 0 ? Triangulator.densify(open, granularity) : open);
+					}
+					else if (rings.isEmpty())
+					{
+						break;
+					}
+				}
+				if (!rings.isEmpty())
+				{
+					polygons.add(rings);
+				}
+			}
+
+			List<Triangulator.Mesh> meshes = new ArrayList<>();
+			int ringPoints = 0;
+			int steinerPoints = 0;
+			int indexCount = 0;
+			for (List<double[]> rings : polygons)
+			{
+				Triangulator.Mesh mesh = Triangulator.triangulate(rings, granularity);
+				meshes.add(mesh);
+				for (double[] ring : rings)
+				{
+					ringPoints += ring.length / 2;
+					ringEnds.add(ringPoints);
+				}
+				steinerPoints += mesh.points.length / 2 - mesh.ringPoints;
+				indexCount += mesh.triangles.length;
+			}
+
+			vertexCount = ringPoints + steinerPoints;
+			vertices = new double[vertexCount * 2];
+			indices = new int[indexCount];
+			int ringBase = 0;
+			int steinerBase = ringPoints;
+			int index = 0;
+			for (Triangulator.Mesh mesh : meshes)
+			{
+				int meshPoints = mesh.points.length / 2;
+				System.arraycopy(mesh.points, 0, vertices, ringBase * 2, mesh.ringPoints * 2);
+				System.arraycopy(mesh.points, mesh.ringPoints * 2, vertices, steinerBase * 2,
+						(meshPoints - mesh.ringPoints) * 2);
+				for (int vertex : mesh.triangles)
+				{
+					indices[index++] = vertex < mesh.ringPoints ? ringBase + vertex : steinerBase + vertex
+							- mesh.ringPoints;
+				}
+				ringBase += mesh.ringPoints;
+				steinerBase += meshPoints - mesh.ringPoints;
+			}
+			for (int i = 0; i < vertices.length; i += 2)
+			{
+				minX = Math.min(minX, vertices[i]);
+				minY = Math.min(minY, vertices[i + 1]);
+				maxX = Math.max(maxX, vertices[i]);
+				maxY = Math.max(maxY, vertices[i + 1]);
+			}
+		}
+	}
+
+	public static byte[] toBytes(List<Feature> features, double granularity)
+	{
+		List<Region> regions = new ArrayList<>(features.size());
+		double minX = Double.MAX_VALUE, minY = Double.MAX_VALUE;
+		double extentX = 0, extentY = 0;
+		int vertexCount = 0, indexCount = 0, ringCount = 0;
+		boolean uint32 = false;
+		for (Feature feature : features)
+		{
+			Region region = new Region(feature, granularity);
+			regions.add(region);
+			if (region.vertexCount > 0)
+			{
+				minX = Math.min(minX, region.minX);
+				minY = Math.min(minY, region.minY);
+				extentX = Math.max(extentX, region.maxX - region.minX);
+				extentY = Math.max(extentY, region.maxY - region.minY);
+			}
+			vertexCount += region.vertexCount;
+			indexCount += region.indices.length;
+			ringCount += region.ringEnds.size();
+			uint32 |= region.vertexCount > 0x10000;
+		}
+		if (vertexCount == 0)
+		{
+			minX = minY = 0;
+		}
+		double stepX = extentX > 0 ? extentX / QUANTIZED_MAX : 1;
+		double stepY = extentY > 0 ? extentY / QUANTIZED_MAX : 1;
+
+		int count = regions.size();
+		int size = 4 + 4 + 32 + 4;
+		for (Region region : regions)
+		{
+			size += stringSize(region.feature.id) + stringSize(region.feature.name);
+		}
+		size = pad(size) + 4 * (count * 2 + (count + 1) * 3) + 4 * ringCount + 4 * vertexCount
+				+ (uint32 ? 4 : 2) * indexCount;
+
+		ByteBuffer buffer = ByteBuffer.allocate(pad(size)).order(ByteOrder.LITTLE_ENDIAN);
+		buffer.put(MAGIC);
+		buffer.put((byte) VERSION);
+		buffer.put((byte) (uint32 ? INDEX_UINT32 : INDEX_UINT16));
+		buffer.putShort((short) 0);
+		buffer.putDouble(minX).putDouble(minY).putDouble(stepX).putDouble(stepY);
+
+		buffer.putInt(count);
+		for (Region region : regions)
+		{
+			putString(buffer, region.feature.id);
+			putString(buffer, region.feature.name);
+		}
+		align(buffer);
+
+		int[] origins = new int[count * 2];
+		for (int r = 0; r < count; r++)
+		{
+			Region region = regions.get(r);
+			if (region.vertexCount > 0)
+			{
+				origins[r * 2] = (int) Math.floor((region.minX - minX) / stepX);
+				origins[r * 2 + 1] = (int) Math.floor((region.minY - minY) / stepY);
+			}
+			buffer.putInt(origins[r * 2]).putInt(origins[r * 2 + 1]);
+		}
+		int start = 0;
+		for (Region region : regions)
+		{
+			buffer.putInt(start);
+			start += region.vertexCount;
+		}
+		buffer.putInt(start);
+		start = 0;
+		for (Region region : regions)
+		{
+			buffer.putInt(start);
+			start += region.indices.length;
+		}
+		buffer.putInt(start);
+		start = 0;
+		for (Region region : regions)
+		{
+			buffer.putInt(start);
+			start += region.ringEnds.size();
+		}
+		buffer.putInt(start);
+		for (Region region : regions)
+		{
+			for (int ringEnd : region.ringEnds)
+			{
+				buffer.putInt(ringEnd);
+			}
+		}
+
+		for (int r = 0; r < count; r++)
+		{
+			double[] vertices = regions.get(r).vertices;
+			for (int i = 0; i < vertices.length; i += 2)
+			{
+				long x = Math.round((vertices[i] - minX) / stepX) - origins[r * 2];
+				long y = Math.round((vertices[i + 1] - minY) / stepY) - origins[r * 2 + 1];
+				buffer.putShort((short) Math.max(0, Math.min(0xFFFF, x)));
+				buffer.putShort((short) Math.max(0, Math.min(0xFFFF, y)));
+			}
+		}
+		for (Region region : regions)
+		{
+			for (int index : region.indices)
+			{
+				if (uint32)
+				{
+					buffer.putInt(index);
+				}
+				else
+				{
+					buffer.putShort((short) index);
+				}
+			}
+		}
+		return buffer.array();
+	}
+
+	private static int pad(int size)
+	{
+		return (size + 3) & ~3;
+	}
+
+	private static void align(ByteBuffer buffer)
+	{
+		while ((buffer.position() & 3) != 0)
+		{
+			buffer.put((byte) 0);
+		}
+	}
+
+	private static int stringSize(String s)
+	{
+		return 2 + (s == null ? 0 : s.getBytes(StandardCharsets.UTF_8).length);
+	}
+
+	private static void putString(ByteBuffer buffer, String s)
+	{
+		if (s == null)
+		{
+			buffer.putShort((short) NULL_STRING);
+			return;
+		}
+		byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+		buffer.putShort((short) bytes.length);
+		buffer.put(bytes);
+	}
+}
@@ -0,0 +1,140 @@
+package boundaries;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads the polygons of an ESRI shapefile (as the ABS publishes the ASGS
+ * boundaries), with the attributes of each from the .dbf file next to it. The
+ * .dbf text is decoded with the charset named in the .cpg file if there is
+ * one, otherwise as ISO-8859-1.
+ *
+ * @author Michael de Hoog
+ */
+public class ShapefileReader
+{
+	private final static int NULL_SHAPE = 0;
+	private final static int POLYGON = 5;
+	private final static int POLYGON_Z = 15;
+	private final static int POLYGON_M = 25;
+
+	public static List<Feature> read(File shpFile, String idField, String nameField) throws IOException
+	{
+		String baseName = shpFile.getName().replaceFirst("\\.[^.]*$", "");
+		File dbfFile = new File(shpFile.getParentFile(), baseName + ".dbf");
+		File cpgFile = new File(shpFile.getParentFile(), baseName + ".cpg");
+		Charset charset = StandardCharsets.ISO_8859_1;
+		if (cpgFile.exists())
+		{
+			charset = Charset.forName(new String(Files.readAllBytes(cpgFile.toPath()), StandardCharsets.US_ASCII)
+					.trim());
+		}
+		List<Map<String, String>> records = readDbf(dbfFile, charset);
+
+		ByteBuffer shp = ByteBuffer.wrap(Files.readAllBytes(shpFile.toPath()));
+		int fileLength = shp.order(ByteOrder.BIG_ENDIAN).getInt(24) * 2;
+		List<Feature> features = new ArrayList<>();
+		shp.position(100);
+		for (int index = 0; shp.position() < fileLength; index++)
+		{
+			shp.order(ByteOrder.BIG_ENDIAN);
+			shp.getInt(); //record number
+			int contentLength = shp.getInt() * 2;
+			int start = shp.position();
+			shp.order(ByteOrder.LITTLE_ENDIAN);
+			int shapeType = shp.getInt();
+			if (shapeType == POLYGON || shapeType == POLYGON_Z || shapeType == POLYGON_M)
+			{
+				shp.position(start + 4 + 32); //skip the bounding box
+				int partCount = shp.getInt();
+				int pointCount = shp.getInt();
+				int[] parts = new int[partCount + 1];
+				for (int part = 0; part < partCount; part++)
+				{
+					parts[part] = shp.getInt();
+				}
+				parts[partCount] = pointCount;
+				double[] points = new double[pointCount * 2];
+				for (int i = 0; i < points.length; i++)
+				{
+					points[i] = shp.getDouble();
+				}
+				List<double[]> rings = new ArrayList<>();
+				for (int part = 0; part < partCount; part++)
+				{
+					rings.add(Arrays.copyOfRange(points, parts[part] * 2, parts[part + 1] * 2));
+				}
+				Map<String, String> record = records.get(index);
+				features.add(new Feature(field(record, idField, dbfFile), field(record, nameField, dbfFile), Feature
+						.polygons(rings)));
+			}
+			else if (shapeType != NULL_SHAPE)
+			{
+				throw new IOException("Unsupported shape type " + shapeType + " in " + shpFile);
+			}
+			shp.position(start + contentLength);
+		}
+		return features;
+	}
+
+	private static String field(Map<String, String> record, String field, File dbfFile) throws IOException
+	{
+		String value = record.get(field);
+		if (value == null)
+		{
+			throw new IOException("Field '" + field + "' not found in " + dbfFile + ", fields are "
+					+ record.keySet());
+		}
+		return value;
+	}
+
+	private static List<Map<String, String>> readDbf(File file, Charset charset) throws IOException
+	{
+		ByteBuffer dbf = ByteBuffer.wrap(Files.readAllBytes(file.toPath())).order(ByteOrder.LITTLE_ENDIAN);
+		int recordCount = dbf.getInt(4);
+		int headerLength = dbf.getShort(8) & 0xFFFF;
+		int recordLength = dbf.getShort(10) & 0xFFFF;
+
+		List<String> names = new ArrayList<>();
+		List<Integer> lengths = new ArrayList<>();
+		for (int position = 32; dbf.get(position) != 0x0D; position += 32)
+		{
+			byte[] name = new byte[11];
+			dbf.position(position);
+			dbf.get(name);
+			int nameLength = 0;
+			while (nameLength < name.length && name[nameLength] != 0)
+			{
+				nameLength++;
+			}
+			names.add(new String(name, 0, nameLength, StandardCharsets.US_ASCII).trim());
+			lengths.add(dbf.get(position + 16) & 0xFF);
+		}
+
+		byte[] bytes = dbf.array();
+		List<Map<String, String>> records = new ArrayList<>(recordCount);
+		for (int record = 0; record < recordCount; record++)
+		{
+			//first byte of each record is the deletion flag
+			int offset = headerLength + record * recordLength + 1;
+			Map<String, String> values = new HashMap<>();
+			for (int field = 0; field < names.size(); field++)
+			{
+				values.put(names.get(field), new String(bytes, offset, lengths.get(field), charset).trim());
+				offset += lengths.get(field);
+			}
+			records.add(values);
+		}
+		return records;
+	}
+}
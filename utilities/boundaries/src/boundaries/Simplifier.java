@@ -0,0 +1,320 @@
+package boundaries;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Computes the weight of each point of the arcs of a topology: the largest
+ * simplification threshold at which the point is kept. The weights are
+ * computed once, after which the arcs can be simplified for any threshold by
+ * keeping the points whose weight is at least the threshold. The end points
+ * of each arc have an infinite weight, so neighbouring regions always still
+ * meet at their junctions.
+ *
+ * @author Michael de Hoog
+ */
+public class Simplifier
+{
+	//number of arcs each task computes the weights of
+	private final static int ARCS_PER_TASK = 256;
+
+	public static enum Method
+	{
+		/**
+		 * Visvalingam-Whyatt: a point's weight is the effective area of the
+		 * spherical triangle it forms with its neighbours, in steradians (as
+		 * the thresholds of <code>topojson -s</code>)
+		 */
+		VISVALINGAM,
+		/**
+		 * Douglas-Peucker: a point's weight is its distance from the
+		 * simplified line, in degrees
+		 */
+		DOUGLAS_PEUCKER;
+
+		public static Method parse(String value)
+		{
+			return valueOf(value.trim().toUpperCase().replace('-', '_'));
+		}
+	}
+
+	/**
+	 * Compute the weights of all the topology's arcs, in parallel across arcs.
+	 *
+	 * @return The weights of the points of each arc
+	 */
+	public static List<double[]> weights(final Topology topology, final Method method, ExecutorService executor)
+			throws ExecutionException, InterruptedException
+	{
+		List<Future<List<double[]>>> futures = new ArrayList<>();
+		for (int start = 0; start < topology.arcs.size(); start += ARCS_PER_TASK)
+		{
+			final int from = start;
+			final int to = Math.min(start + ARCS_PER_TASK, topology.arcs.size());
+			futures.add(executor.submit(new Callable<List<double[]>>()
+			{
+				@Override
+				public List<double[]> call()
+				{
+					List<double[]> weights = new ArrayList<>(to - from);
+					for (int arc = from; arc < to; arc++)
+					{
+						weights.add(weights(topology, topology.arcs.get(arc), method));
+					}
+					return weights;
+				}
+			}));
+		}
+		List<double[]> weights = new ArrayList<>(topology.arcs.size());
+		for (Future<List<double[]>> future : futures)
+		{
+			weights.addAll(future.get());
+		}
+		return weights;
+	}
+
+	private static double[] weights(Topology topology, int[] arc, Method method)
+	{
+		int n = arc.length / 2;
+		double[] lonLat = new double[arc.length];
+		for (int i = 0; i < n; i++)
+		{
+			lonLat[i * 2] = topology.x(arc[i * 2]);
+			lonLat[i * 2 + 1] = topology.y(arc[i * 2 + 1]);
+		}
+		double[] weights = new double[n];
+		weights[0] = weights[n - 1] = Double.POSITIVE_INFINITY;
+		if (method == Method.VISVALINGAM)
+		{
+			visvalingam(lonLat, weights);
+		}
+		else
+		{
+			douglasPeucker(lonLat, weights);
+		}
+		return weights;
+	}
+
+	private static void visvalingam(double[] lonLat, double[] weights)
+	{
+		int n = weights.length;
+		double[] unit = new double[n * 3];
+		for (int i = 0; i < n; i++)
+		{
+			double lambda = Math.toRadians(lonLat[i * 2]);
+			double phi = Math.toRadians(lonLat[i * 2 + 1]);
+			unit[i * 3] = Math.cos(phi) * Math.cos(lambda);
+			unit[i * 3 + 1] = Math.cos(phi) * Math.sin(lambda);
+			unit[i * 3 + 2] = Math.sin(phi);
+		}
+
+		int[] previous = new int[n];
+		int[] next = new int[n];
+		double[] areas = new double[n];
+		AreaHeap heap = new AreaHeap(areas);
+		for (int i = 1; i < n - 1; i++)
+		{
+			previous[i] = i - 1;
+			next[i] = i + 1;
+			areas[i] = sphericalArea(unit, i - 1, i, i + 1);
+			heap.add(i);
+		}
+
+		//a point's effective area is never less than that of a point removed before it
+		double maxArea = 0;
+		while (!heap.isEmpty())
+		{
+			int i = heap.poll();
+			maxArea = Math.max(maxArea, areas[i]);
+			weights[i] = maxArea;
+			int p = previous[i];
+			int q = next[i];
+			next[p] = q;
+			previous[q] = p;
+			if (p > 0)
+			{
+				areas[p] = sphericalArea(unit, previous[p], p, q);
+				heap.update(p);
+			}
+			if (q < n - 1)
+			{
+				areas[q] = sphericalArea(unit, p, q, next[q]);
+				heap.update(q);
+			}
+		}
+	}
+
+	/**
+	 * @return The area of the spherical triangle between the unit vectors, in
+	 *         steradians (Van Oosterom and Strackee)
+	 */
+	private static double sphericalArea(double[] unit, int a, int b, int c)
+	{
+		double ax = unit[a * 3], ay = unit[a * 3 + 1], az = unit[a * 3 + 2];
+		double bx = unit[b * 3], by = unit[b * 3 + 1], bz = unit[b * 3 + 2];
+		double cx = unit[c * 3], cy = unit[c * 3 + 1], cz = unit[c * 3 + 2];
+		double triple = ax * (by * cz - bz * cy) + ay * (bz * cx - bx * cz) + az * (bx * cy - by * cx);
+		double denominator = 1 + (ax * bx + ay * by + az * bz) + (bx * cx + by * cy + bz * cz)
+				+ (cx * ax + cy * ay + cz * az);
+		return 2 * Math.atan2(Math.abs(triple), denominator);
+	}
+
+	private static void douglasPeucker(double[] lonLat, double[] weights)
+	{
+		//stack of (from, to) ranges, with the weight of the point that split them
+		int[] ranges = new int[weights.length * 2];
+		double[] rangeWeights = new double[weights.length];
+		int size = 0;
+		ranges[0] = 0;
+		ranges[1] = weights.length - 1;
+		rangeWeights[0] = Double.POSITIVE_INFINITY;
+		size++;
+		while (size > 0)
+		{
+			size--;
+			int from = ranges[size * 2];
+			int to = ranges[size * 2 + 1];
+			double parentWeight = rangeWeights[size];
+			int farthest = -1;
+			double maxDistance = -1;
+			for (int i = from + 1; i < to; i++)
+			{
+				double distance = segmentDistance(lonLat, i, from, to);
+				if (distance > maxDistance)
+				{
+					maxDistance = distance;
+					farthest = i;
+				}
+			}
+			if (farthest < 0)
+			{
+				continue;
+			}
+			double weight = Math.min(parentWeight, maxDistance);
+			weights[farthest] = weight;
+			ranges[size * 2] = from;
+			ranges[size * 2 + 1] = farthest;
+			rangeWeights[size++] = weight;
+			ranges[size * 2] = farthest;
+			ranges[size * 2 + 1] = to;
+			rangeWeights[size++] = weight;
+		}
+	}
+
+	private static double segmentDistance(double[] points, int p, int a, int b)
+	{
+		double px = points[p * 2], py = points[p * 2 + 1];
+		double ax = points[a * 2], ay = points[a * 2 + 1];
+		double dx = points[b * 2] - ax, dy = points[b * 2 + 1] - ay;
+		double lengthSquared = dx * dx + dy * dy;
+		double t = lengthSquared == 0 ? 0 : Math.max(0, Math.min(1, ((px - ax) * dx + (py - ay) * dy)
+				/ lengthSquared));
+		return Math.hypot(px - (ax + t * dx), py - (ay + t * dy));
+	}
+
+	/**
+	 * Binary min-heap of point indices ordered by their area, which supports
+	 * updating the area of a point in the heap.
+	 */
+	private static class AreaHeap
+	{
+		private final double[] areas;
+		private final int[] heap;
+		private final int[] positions;
+		private int size = 0;
+
+		private AreaHeap(double[] areas)
+		{
+			this.areas = areas;
+			this.heap = new int[areas.length];
+			this.positions = new int[areas.length];
+			Arrays.fill(positions, -1);
+		}
+
+		private boolean isEmpty()
+		{
+			return size == 0;
+		}
+
+		private void add(int index)
+		{
+			heap[size] = index;
+			positions[index] = size;
+			up(size++);
+		}
+
+		private int poll()
+		{
+			int top = heap[0];
+			positions[top] = -1;
+			if (--size > 0)
+			{
+				heap[0] = heap[size];
+				positions[heap[0]] = 0;
+				down(0);
+			}
+			return top;
+		}
+
+		private void update(int index)
+		{
+			int position = positions[index];
+			if (position >= 0)
+			{
+				up(position);
+				down(positions[index]);
+			}
+		}
+
+		private void up(int position)
+		{
+			int index = heap[position];
+			while (position > 0)
+			{
+				int parent = (position - 1) / 2;
+				if (areas[heap[parent]] <= areas[index])
+				{
+					break;
+				}
+				move(heap[parent], position);
+				position = parent;
+			}
+			move(index, position);
+		}
+
+		private void down(int position)
+		{
+			int index = heap[position];
+			while (true)
+			{
+				int child = position * 2 + 1;
+				if (child >= size)
+				{
+					break;
+				}
+				if (child + 1 < size && areas[heap[child + 1]] < areas[heap[child]])
+				{
+					child++;
+				}
+				if (areas[index] <= areas[heap[child]])
+				{
+					break;
+				}
+				move(heap[child], position);
+				position = child;
+			}
+			move(index, position);
+		}
+
+		private void move(int index, int position)
+		{
+			heap[position] = index;
+			positions[index] = position;
+		}
+	}
+}
@@ -0,0 +1,143 @@
+package boundaries;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+/**
+ * Reads the Polygon and MultiPolygon geometries of the first object of a
+ * quantized TopoJSON file (as written by {@link TopoJsonWriter}) as features,
+ * with the <code>id</code> and <code>name</code> properties.
+ *
+ * @author Michael de Hoog
+ */
+public class TopoJsonReader
+{
+	public static List<Feature> read(Reader reader) throws IOException
+	{
+		JSONObject topology;
+		try
+		{
+			topology = (JSONObject) new JSONParser().parse(reader);
+		}
+		catch (ParseException e)
+		{
+			throw new IOException("Error parsing TopoJSON", e);
+		}
+		JSONObject transform = (JSONObject) topology.get("transform");
+		double[] scale = { 1, 1 };
+		double[] translate = { 0, 0 };
+		if (transform != null)
+		{
+			scale = doubles((JSONArray) transform.get("scale"));
+			translate = doubles((JSONArray) transform.get("translate"));
+		}
+
+		List<double[]> arcs = new ArrayList<>();
+		for (Object object : (JSONArray) topology.get("arcs"))
+		{
+			JSONArray positions = (JSONArray) object;
+			double[] arc = new double[positions.size() * 2];
+			double x = 0, y = 0;
+			for (int i = 0; i < positions.size(); i++)
+			{
+				double[] position = doubles((JSONArray) positions.get(i));
+				if (transform != null)
+				{
+					//delta-encoded
+					x += position[0];
+					y += position[1];
+				}
+				else
+				{
+					x = position[0];
+					y = position[1];
+				}
+				arc[i * 2] = x * scale[0] + translate[0];
+				arc[i * 2 + 1] = y * scale[1] + translate[1];
+			}
+			arcs.add(arc);
+		}
+
+		JSONObject objects = (JSONObject) topology.get("objects");
+		if (objects.isEmpty())
+		{
+			throw new IOException("TopoJSON has no objects");
+		}
+		JSONObject collection = (JSONObject) objects.values().iterator().next();
+		List<Feature> features = new ArrayList<>();
+		for (Object object : (JSONArray) collection.get("geometries"))
+		{
+			JSONObject geometry = (JSONObject) object;
+			String type = (String) geometry.get("type");
+			List<List<double[]>> polygons = new ArrayList<>();
+			if ("Polygon".equals(type))
+			{
+				polygons.add(polygon((JSONArray) geometry.get("arcs"), arcs));
+			}
+			else if ("MultiPolygon".equals(type))
+			{
+				for (Object polygon : (JSONArray) geometry.get("arcs"))
+				{
+					polygons.add(polygon((JSONArray) polygon, arcs));
+				}
+			}
+			else if (type != null)
+			{
+				throw new IOException("Unsupported geometry type " + type);
+			}
+			JSONObject properties = (JSONObject) geometry.get("properties");
+			Object id = properties == null ? null : properties.get("id");
+			Object name = properties == null ? null : properties.get("name");
+			features.add(new Feature(id == null ? null : id.toString(), name == null ? null : name.toString(),
+					polygons));
+		}
+		return features;
+	}
+
+	private static double[] doubles(JSONArray array)
+	{
+		double[] values = new double[array.size()];
+		for (int i = 0; i < values.length; i++)
+		{
+			values[i] = ((Number) array.get(i)).doubleValue();
+		}
+		return values;
+	}
+
+	private static List<double[]> polygon(JSONArray rings, List<double[]> arcs)
+	{
+		List<double[]> polygon = new ArrayList<>();
+		for (Object object : rings)
+		{
+			JSONArray references = (JSONArray) object;
+			List<Double> ring = new ArrayList<>();
+			for (Object reference : references)
+			{
+				int index = ((Number) reference).intValue();
+				double[] arc = arcs.get(index < 0 ? ~index : index);
+				int n = arc.length / 2;
+				//the first point of each arc is the last point of the previous one
+				for (int i = ring.isEmpty() ? 0 : 1; i < n; i++)
+				{
+					int point = index < 0 ? n - 1 - i : i;
+					ring.add(arc[point * 2]);
+					ring.add(arc[point * 2 + 1]);
+				}
+			}
+			double[] coordinates = new double[ring.size()];
+			for (int i = 0; i < coordinates.length; i++)
+			{
+				coordinates[i] = ring.get(i);
+			}
+			polygon.add(coordinates);
+		}
+		return polygon;
+	}
+}
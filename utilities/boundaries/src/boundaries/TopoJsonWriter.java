@@ -0,0 +1,287 @@
+package boundaries;
+
+import harvester.JsonWriter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Writes a topology simplified to a threshold as quantized TopoJSON, with
+ * delta-encoded arcs, as a single GeometryCollection object whose geometries
+ * have the feature's <code>name</code> and <code>id</code> as properties.
+ * <p/>
+ * Rings that simplify to fewer than three points are dropped (with the
+ * polygon if it's an exterior ring), except the exterior ring of each
+ * feature's largest polygon, which keeps its highest weighted points so that
+ * every region still has a shape at the coarsest level.
+ *
+ * @author Michael de Hoog
+ */
+public class TopoJsonWriter
+{
+	/**
+	 * Output for one threshold, with its statistics.
+	 */
+	public static class Result
+	{
+		public final byte[] content;
+		public final int arcs;
+		public final int points;
+		public final int droppedRings;
+
+		private Result(byte[] content, int arcs, int points, int droppedRings)
+		{
+			this.content = content;
+			this.arcs = arcs;
+			this.points = points;
+			this.droppedRings = droppedRings;
+		}
+	}
+
+	public static Result write(Topology topology, List<double[]> weights, double threshold, String objectName)
+			throws IOException
+	{
+		List<boolean[]> kept = new ArrayList<>(weights.size());
+		for (double[] arcWeights : weights)
+		{
+			boolean[] keep = new boolean[arcWeights.length];
+			for (int i = 0; i < keep.length; i++)
+			{
+				keep[i] = arcWeights[i] >= threshold;
+			}
+			kept.add(keep);
+		}
+		for (Topology.Geometry geometry : topology.geometries)
+		{
+			if (geometry.largestPolygon >= 0)
+			{
+				preserve(geometry.polygons.get(geometry.largestPolygon).get(0), weights, kept);
+			}
+		}
+
+		//rings of each polygon of each geometry that are kept
+		List<List<List<int[]>>> geometries = new ArrayList<>();
+		boolean[] used = new boolean[weights.size()];
+		int droppedRings = 0;
+		for (Topology.Geometry geometry : topology.geometries)
+		{
+			List<List<int[]>> polygons = new ArrayList<>();
+			for (List<int[]> polygon : geometry.polygons)
+			{
+				List<int[]> rings = new ArrayList<>();
+				for (int[] ring : polygon)
+				{
+					if (pointCount(ring, kept) >= 3)
+					{
+						rings.add(ring);
+						for (int reference : ring)
+						{
+							used[arcIndex(reference)] = true;
+						}
+					}
+					else if (rings.isEmpty())
+					{
+						droppedRings += polygon.size();
+						break;
+					}
+					else
+					{
+						droppedRings++;
+					}
+				}
+				if (!rings.isEmpty())
+				{
+					polygons.add(rings);
+				}
+			}
+			geometries.add(polygons);
+		}
+
+		//renumber the arcs that are still used
+		int[] newIndices = new int[used.length];
+		int arcCount = 0;
+		for (int arc = 0; arc < used.length; arc++)
+		{
+			newIndices[arc] = used[arc] ? arcCount++ : -1;
+		}
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		int points = 0;
+		try (JsonWriter json = new JsonWriter(new OutputStreamWriter(bytes, StandardCharsets.UTF_8),
+				JsonWriter.NumberFormat.SHORTEST))
+		{
+			json.beginObject();
+			json.name("type").value("Topology");
+			json.name("transform").beginObject();
+			json.name("scale").beginArray().value(topology.scale[0]).value(topology.scale[1]).endArray();
+			json.name("translate").beginArray().value(topology.translate[0]).value(topology.translate[1])
+					.endArray();
+			json.endObject();
+
+			json.name("objects").beginObject();
+			json.name(objectName).beginObject();
+			json.name("type").value("GeometryCollection");
+			json.name("bbox").beginArray();
+			for (double value : topology.bbox)
+			{
+				json.value(value);
+			}
+			json.endArray();
+			json.name("geometries").beginArray();
+			for (int g = 0; g < geometries.size(); g++)
+			{
+				List<List<int[]>> polygons = geometries.get(g);
+				Feature feature = topology.geometries.get(g).feature;
+				json.beginObject();
+				if (polygons.isEmpty())
+				{
+					json.name("type").nullValue();
+				}
+				else if (polygons.size() == 1)
+				{
+					json.name("type").value("Polygon");
+					json.name("arcs");
+					writePolygon(json, polygons.get(0), newIndices);
+				}
+				else
+				{
+					json.name("type").value("MultiPolygon");
+					json.name("arcs").beginArray();
+					for (List<int[]> polygon : polygons)
+					{
+						writePolygon(json, polygon, newIndices);
+					}
+					json.endArray();
+				}
+				json.name("properties").beginObject();
+				json.name("name").value(feature.name);
+				json.name("id").numberOrString(feature.id);
+				json.endObject();
+				json.endObject();
+			}
+			json.endArray();
+			json.endObject();
+			json.endObject();
+
+			json.name("arcs").beginArray();
+			for (int arc = 0; arc < used.length; arc++)
+			{
+				if (used[arc])
+				{
+					points += writeArc(json, topology.arcs.get(arc), kept.get(arc));
+				}
+			}
+			json.endArray();
+			json.endObject();
+		}
+		return new Result(bytes.toByteArray(), arcCount, points, droppedRings);
+	}
+
+	private static int arcIndex(int reference)
+	{
+		return reference < 0 ? ~reference : reference;
+	}
+
+	/**
+	 * @return The number of distinct points of the simplified ring
+	 */
+	private static int pointCount(int[] ring, List<boolean[]> kept)
+	{
+		int count = 0;
+		for (int reference : ring)
+		{
+			for (boolean keep : kept.get(arcIndex(reference)))
+			{
+				if (keep)
+				{
+					count++;
+				}
+			}
+			//the last point of each arc is the first of the next
+			count--;
+		}
+		return count;
+	}
+
+	/**
+	 * Keep the highest weighted points of the ring's longest arc, until the
+	 * ring has at least three points (or the arc has no more points).
+	 */
+	private static void preserve(int[] ring, List<double[]> weights, List<boolean[]> kept)
+	{
+		int missing = 3 - pointCount(ring, kept);
+		if (missing <= 0)
+		{
+			return;
+		}
+		int longest = arcIndex(ring[0]);
+		for (int reference : ring)
+		{
+			if (weights.get(arcIndex(reference)).length > weights.get(longest).length)
+			{
+				longest = arcIndex(reference);
+			}
+		}
+		double[] arcWeights = weights.get(longest);
+		boolean[] keep = kept.get(longest);
+		double[] sorted = arcWeights.clone();
+		Arrays.sort(sorted);
+		for (int i = sorted.length - 1; i >= 0 && missing > 0; i--)
+		{
+			for (int point = 0; point < keep.length && missing > 0; point++)
+			{
+				if (!keep[point] && arcWeights[point] == sorted[i])
+				{
+					keep[point] = true;
+					missing--;
+					break;
+				}
+			}
+		}
+	}
+
+	private static void writePolygon(JsonWriter json, List<int[]> rings, int[] newIndices) throws IOException
+	{
+		json.beginArray();
+		for (int[] ring : rings)
+		{
+			json.beginArray();
+			for (int reference : ring)
+			{
+				int index = newIndices[arcIndex(reference)];
+				json.value(reference < 0 ? ~index : index);
+			}
+			json.endArray();
+		}
+		json.endArray();
+	}
+
+	/**
+	 * Write the kept points of the arc, the first absolute and the rest
+	 * relative to the previous point.
+	 *
+	 * @return The number of points written
+	 */
+	private static int writeArc(JsonWriter json, int[] arc, boolean[] keep) throws IOException
+	{
+		json.beginArray();
+		int x = 0, y = 0, points = 0;
+		for (int i = 0; i < keep.length; i++)
+		{
+			if (keep[i])
+			{
+				json.beginArray().value(arc[i * 2] - x).value(arc[i * 2 + 1] - y).endArray();
+				x = arc[i * 2];
+				y = arc[i * 2 + 1];
+				points++;
+			}
+		}
+		json.endArray();
+		return points;
+	}
+}
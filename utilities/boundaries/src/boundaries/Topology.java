@@ -0,0 +1,336 @@
+package boundaries;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Quantized topology of a set of features, in which each boundary that is
+ * shared by neighbouring regions is stored once, as an arc that is referenced
+ * by the rings of both, like TopoJSON. The coordinates are first quantized to
+ * an integer grid over the bounding box of the features, so shared boundaries
+ * match exactly even if their source coordinates differ in the last digits.
+ * <p/>
+ * Rings are cut into arcs at their junctions: the points where a ring's
+ * neighbouring points differ from those of another ring through the same
+ * point. Rings without junctions are rotated to start at their smallest point,
+ * so the same ring always produces the same arc. Arcs that are another arc
+ * reversed are stored once, and referenced as <code>~index</code>.
+ *
+ * @author Michael de Hoog
+ */
+public class Topology
+{
+	public final double[] bbox;
+	public final double[] scale;
+	public final double[] translate;
+	//arcs of absolute quantized points, interleaved x0, y0, x1, y1, ...
+	public final List<int[]> arcs = new ArrayList<>();
+	public final List<Geometry> geometries = new ArrayList<>();
+	public final int sourcePoints;
+
+	/**
+	 * A feature's polygons, as lists of rings of arc references.
+	 */
+	public static class Geometry
+	{
+		public final Feature feature;
+		public final List<List<int[]>> polygons = new ArrayList<>();
+		//index of the polygon with the largest area, which simplification must keep
+		public int largestPolygon = -1;
+
+		private Geometry(Feature feature)
+		{
+			this.feature = feature;
+		}
+	}
+
+	/**
+	 * @param quantization
+	 *            Number of grid positions along each axis
+	 */
+	public Topology(List<Feature> features, int quantization)
+	{
+		double minX = Double.MAX_VALUE, minY = Double.MAX_VALUE;
+		double maxX = -Double.MAX_VALUE, maxY = -Double.MAX_VALUE;
+		int sourcePoints = 0;
+		for (Feature feature : features)
+		{
+			for (List<double[]> polygon : feature.polygons)
+			{
+				for (double[] ring : polygon)
+				{
+					for (int i = 0; i < ring.length; i += 2)
+					{
+						minX = Math.min(minX, ring[i]);
+						minY = Math.min(minY, ring[i + 1]);
+						maxX = Math.max(maxX, ring[i]);
+						maxY = Math.max(maxY, ring[i + 1]);
+					}
+					sourcePoints += ring.length / 2;
+				}
+			}
+		}
+		this.sourcePoints = sourcePoints;
+		bbox = new double[] { minX, minY, maxX, maxY };
+		translate = new double[] { minX, minY };
+		scale = new double[] { maxX > minX ? (maxX - minX) / (quantization - 1) : 1,
+				maxY > minY ? (maxY - minY) / (quantization - 1) : 1 };
+
+		//quantize, dropping polygons whose exterior ring is degenerate
+		List<List<List<int[]>>> quantized = new ArrayList<>();
+		for (Feature feature : features)
+		{
+			List<List<int[]>> polygons = new ArrayList<>();
+			for (List<double[]> polygon : feature.polygons)
+			{
+				List<int[]> rings = new ArrayList<>();
+				for (double[] ring : polygon)
+				{
+					int[] points = quantize(ring);
+					if (points != null)
+					{
+						rings.add(points);
+					}
+					else if (rings.isEmpty())
+					{
+						break;
+					}
+				}
+				if (!rings.isEmpty())
+				{
+					polygons.add(rings);
+				}
+			}
+			quantized.add(polygons);
+		}
+
+		Set<Long> junctions = junctions(quantized);
+		Map<Key, Integer> arcIndices = new HashMap<>();
+		for (int f = 0; f < features.size(); f++)
+		{
+			Geometry geometry = new Geometry(features.get(f));
+			double largestArea = -1;
+			for (List<int[]> polygon : quantized.get(f))
+			{
+				List<int[]> rings = new ArrayList<>();
+				for (int[] ring : polygon)
+				{
+					rings.add(cut(ring, junctions, arcIndices));
+				}
+				double area = Math.abs(signedArea(polygon.get(0)));
+				if (area > largestArea)
+				{
+					largestArea = area;
+					geometry.largestPolygon = geometry.polygons.size();
+				}
+				geometry.polygons.add(rings);
+			}
+			geometries.add(geometry);
+		}
+	}
+
+	public double x(int quantized)
+	{
+		return translate[0] + quantized * scale[0];
+	}
+
+	public double y(int quantized)
+	{
+		return translate[1] + quantized * scale[1];
+	}
+
+	/**
+	 * @return The total number of points of the arcs
+	 */
+	public int arcPoints()
+	{
+		int points = 0;
+		for (int[] arc : arcs)
+		{
+			points += arc.length / 2;
+		}
+		return points;
+	}
+
+	/**
+	 * @return The closed ring quantized, without consecutive duplicate points,
+	 *         or null if fewer than three distinct points remain
+	 */
+	private int[] quantize(double[] ring)
+	{
+		int[] points = new int[ring.length + 2];
+		int length = 0;
+		for (int i = 0; i < ring.length; i += 2)
+		{
+			int x = (int) Math.round((ring[i] - translate[0]) / scale[0]);
+			int y = (int) Math.round((ring[i + 1] - translate[1]) / scale[1]);
+			if (length == 0 || x != points[length - 2] || y != points[length - 1])
+			{
+				points[length++] = x;
+				points[length++] = y;
+			}
+		}
+		//close the ring, if the source didn't
+		if (points[0] != points[length - 2] || points[1] != points[length - 1])
+		{
+			points[length++] = points[0];
+			points[length++] = points[1];
+		}
+		return length < 8 ? null : Arrays.copyOf(points, length);
+	}
+
+	private static long key(int[] points, int i)
+	{
+		return ((long) points[i * 2] << 32) | (points[i * 2 + 1] & 0xFFFFFFFFL);
+	}
+
+	private static Set<Long> junctions(List<List<List<int[]>>> quantized)
+	{
+		//unordered pair of neighbouring points of each point, as first seen
+		Map<Long, long[]> neighbours = new HashMap<>();
+		Set<Long> junctions = new HashSet<>();
+		for (List<List<int[]>> polygons : quantized)
+		{
+			for (List<int[]> polygon : polygons)
+			{
+				for (int[] ring : polygon)
+				{
+					int n = ring.length / 2 - 1;
+					for (int i = 0; i < n; i++)
+					{
+						long point = key(ring, i);
+						long previous = key(ring, (i + n - 1) % n);
+						long next = key(ring, i + 1);
+						long[] seen = neighbours.get(point);
+						if (seen == null)
+						{
+							neighbours.put(point, new long[] { previous, next });
+						}
+						else if (!(seen[0] == previous && seen[1] == next) && !(seen[0] == next && seen[1] == previous))
+						{
+							junctions.add(point);
+						}
+					}
+				}
+			}
+		}
+		return junctions;
+	}
+
+	/**
+	 * Cut the ring into arcs at its junctions.
+	 *
+	 * @return The references to the ring's arcs
+	 */
+	private int[] cut(int[] ring, Set<Long> junctions, Map<Key, Integer> arcIndices)
+	{
+		int n = ring.length / 2 - 1;
+		int start = -1;
+		for (int i = 0; i < n && start < 0; i++)
+		{
+			if (junctions.contains(key(ring, i)))
+			{
+				start = i;
+			}
+		}
+		if (start < 0)
+		{
+			//no junctions, so start at the smallest point
+			start = 0;
+			for (int i = 1; i < n; i++)
+			{
+				if (ring[i * 2] < ring[start * 2]
+						|| (ring[i * 2] == ring[start * 2] && ring[i * 2 + 1] < ring[start * 2 + 1]))
+				{
+					start = i;
+				}
+			}
+		}
+
+		int[] rotated = new int[ring.length];
+		for (int i = 0; i <= n; i++)
+		{
+			rotated[i * 2] = ring[((start + i) % n) * 2];
+			rotated[i * 2 + 1] = ring[((start + i) % n) * 2 + 1];
+		}
+		List<Integer> references = new ArrayList<>();
+		int from = 0;
+		for (int i = 1; i <= n; i++)
+		{
+			if (i == n || junctions.contains(key(rotated, i)))
+			{
+				references.add(reference(Arrays.copyOfRange(rotated, from * 2, i * 2 + 2), arcIndices));
+				from = i;
+			}
+		}
+		int[] result = new int[references.size()];
+		for (int i = 0; i < result.length; i++)
+		{
+			result[i] = references.get(i);
+		}
+		return result;
+	}
+
+	private int reference(int[] arc, Map<Key, Integer> arcIndices)
+	{
+		Key key = new Key(arc);
+		Integer index = arcIndices.get(key);
+		if (index != null)
+		{
+			return index;
+		}
+		int[] reversed = new int[arc.length];
+		for (int i = 0; i < arc.length; i += 2)
+		{
+			reversed[i] = arc[arc.length - 2 - i];
+			reversed[i + 1] = arc[arc.length - 1 - i];
+		}
+		index = arcIndices.get(new Key(reversed));
+		if (index != null)
+		{
+			return ~index;
+		}
+		arcs.add(arc);
+		arcIndices.put(key, arcs.size() - 1);
+		return arcs.size() - 1;
+	}
+
+	private static double signedArea(int[] ring)
+	{
+		double area = 0;
+		for (int i = 0; i + 3 < ring.length; i += 2)
+		{
+			area += (double) ring[i] * ring[i + 3] - (double) ring[i + 2] * ring[i + 1];
+		}
+		return area;
+	}
+
+	private static class Key
+	{
+		private final int[] points;
+		private final int hash;
+
+		private Key(int[] points)
+		{
+			this.points = points;
+			this.hash = Arrays.hashCode(points);
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object obj)
+		{
+			return obj instanceof Key && Arrays.equals(points, ((Key) obj).points);
+		}
+	}
+}
@@ -0,0 +1,694 @@
+package boundaries;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Triangulates a polygon with holes by ear clipping, after joining the holes
+ * to the exterior ring with bridge edges (the algorithm of earcut and
+ * Eberly's "Triangulation by Ear Clipping"). Large polygons use a uniform grid
+ * of their points to test ears. Simplified boundaries can self-intersect
+ * slightly; when no ear can be found, degenerate points are removed and
+ * otherwise a point is clipped anyway, so triangulation always terminates.
+ * <p/>
+ * Triangles are then subdivided until no edge is longer than a granularity,
+ * like Cesium's <code>PolygonPipeline.computeSubdivision</code>, so that the
+ * triangles follow the curvature of the earth. Rings should be densified to
+ * the same granularity first (see {@link #densify(double[], double)}), so the
+ * edges of the rings aren't split.
+ *
+ * @author Michael de Hoog
+ */
+public class Triangulator
+{
+	//polygons with more points than this use a grid to test ears
+	private final static int GRID_THRESHOLD = 80;
+
+	/**
+	 * A triangulated polygon: the points of its rings, followed by the points
+	 * added by subdivision, and counter-clockwise triangles of indices into the
+	 * points.
+	 */
+	public static class Mesh
+	{
+		//interleaved x0, y0, x1, y1, ...
+		public final double[] points;
+		public final int ringPoints;
+		public final int[] triangles;
+
+		private Mesh(double[] points, int ringPoints, int[] triangles)
+		{
+			this.points = points;
+			this.ringPoints = ringPoints;
+			this.triangles = triangles;
+		}
+	}
+
+	private double[] points;
+	private int pointCount;
+	private int[] vertex;
+	private int[] next;
+	private int[] previous;
+	private boolean[] removed;
+	private int nodeCount;
+	//first node of the polygon after the holes are eliminated, -1 if empty
+	private int start = -1;
+	private int[] triangles = new int[48];
+	private int triangleIndices;
+
+	//grid of the nodes, for testing ears of large polygons
+	private double minX, minY, cellSize;
+	private int columns, rows;
+	private int[] cellStarts;
+	private int[] cellNodes;
+
+	/**
+	 * Triangulate a polygon.
+	 *
+	 * @param rings
+	 *            The exterior ring, counter-clockwise, followed by the holes,
+	 *            clockwise; without closing points
+	 * @param granularity
+	 *            Maximum length of the triangle edges, in degrees
+	 */
+	public static Mesh triangulate(List<double[]> rings, double granularity)
+	{
+		return new Triangulator(rings).triangulate(granularity);
+	}
+
+	/**
+	 * @return The ring without its closing point, and without consecutive
+	 *         duplicate points
+	 */
+	public static double[] open(double[] ring)
+	{
+		double[] open = new double[ring.length];
+		int length = 0;
+		for (int i = 0; i < ring.length; i += 2)
+		{
+			if (length == 0 || ring[i] != open[length - 2] || ring[i + 1] != open[length - 1])
+			{
+				open[length++] = ring[i];
+				open[length++] = ring[i + 1];
+			}
+		}
+		if (length > 2 && open[0] == open[length - 2] && open[1] == open[length - 1])
+		{
+			length -= 2;
+		}
+		return Arrays.copyOf(open, length);
+	}
+
+	/**
+	 * @return The (open) ring in the given orientation
+	 */
+	public static double[] orient(double[] ring, boolean counterClockwise)
+	{
+		double area = Feature.signedArea(ring) + ring[ring.length - 2] * ring[1] - ring[0] * ring[ring.length - 1];
+		if ((area > 0) == counterClockwise)
+		{
+			return ring;
+		}
+		double[] reversed = new double[ring.length];
+		for (int i = 0; i < ring.length; i += 2)
+		{
+			reversed[i] = ring[ring.length - 2 - i];
+			reversed[i + 1] = ring[ring.length - 1 - i];
+		}
+		return reversed;
+	}
+
+	/**
+	 * @return The (open) ring with points inserted so that no edge is longer
+	 *         than the granularity
+	 */
+	public static double[] densify(double[] ring, double granularity)
+	{
+		int n = ring.length / 2;
+		double[] dense = new double[ring.length];
+		int length = 0;
+		for (int i = 0; i < n; i++)
+		{
+			double x0 = ring[i * 2], y0 = ring[i * 2 + 1];
+			double x1 = ring[((i + 1) % n) * 2], y1 = ring[((i + 1) % n) * 2 + 1];
+			int steps = Math.max(1, (int) Math.ceil(Math.hypot(x1 - x0, y1 - y0) / granularity));
+			if (length + steps * 2 > dense.length)
+			{
+				dense = Arrays.copyOf(dense, Math.max(dense.length * 2, length + steps * 2));
+			}
+			for (int step = 0; step < steps; step++)
+			{
+				dense[length++] = x0 + (x1 - x0) * step / steps;
+				dense[length++] = y0 + (y1 - y0) * step / steps;
+			}
+		}
+		return Arrays.copyOf(dense, length);
+	}
+
+	private Triangulator(List<double[]> rings)
+	{
+		int ringPoints = 0;
+		for (double[] ring : rings)
+		{
+			ringPoints += ring.length / 2;
+		}
+		points = new double[ringPoints * 2];
+		int capacity = ringPoints + 2 * rings.size();
+		vertex = new int[capacity];
+		next = new int[capacity];
+		previous = new int[capacity];
+		removed = new boolean[capacity];
+
+		List<Integer> holes = new ArrayList<>();
+		int outer = -1;
+		for (double[] ring : rings)
+		{
+			int first = -1;
+			for (int i = 0; i < ring.length; i += 2)
+			{
+				points[pointCount * 2] = ring[i];
+				points[pointCount * 2 + 1] = ring[i + 1];
+				first = insert(pointCount++, first < 0 ? -1 : previous[first], first);
+			}
+			if (first < 0)
+			{
+				continue;
+			}
+			if (outer < 0)
+			{
+				outer = first;
+			}
+			else
+			{
+				holes.add(leftmost(first));
+			}
+		}
+		if (outer >= 0)
+		{
+			outer = eliminateHoles(outer, holes);
+			start = outer;
+		}
+	}
+
+	private Mesh triangulate(double granularity)
+	{
+		int ringPoints = pointCount;
+		if (start >= 0)
+		{
+			int count = 0;
+			int node = start;
+			do
+			{
+				count++;
+				node = next[node];
+			}
+			while (node != start);
+			if (count > GRID_THRESHOLD)
+			{
+				buildGrid(start, count);
+			}
+			clip(start);
+		}
+		int[] result = Arrays.copyOf(triangles, triangleIndices);
+		if (granularity > 0)
+		{
+			result = subdivide(result, granularity);
+		}
+		return new Mesh(Arrays.copyOf(points, pointCount * 2), ringPoints, result);
+	}
+
+	private double x(int node)
+	{
+		return points[vertex[node] * 2];
+	}
+
+	private double y(int node)
+	{
+		return points[vertex[node] * 2 + 1];
+	}
+
+	/**
+	 * Insert a node for the vertex between two nodes (or as a new list).
+	 *
+	 * @return The first node of the list
+	 */
+	private int insert(int vertexIndex, int after, int first)
+	{
+		int node = nodeCount++;
+		vertex[node] = vertexIndex;
+		if (first < 0)
+		{
+			next[node] = node;
+			previous[node] = node;
+			return node;
+		}
+		next[node] = first;
+		previous[node] = after;
+		next[after] = node;
+		previous[first] = node;
+		return first;
+	}
+
+	private void remove(int node)
+	{
+		next[previous[node]] = next[node];
+		previous[next[node]] = previous[node];
+		removed[node] = true;
+	}
+
+	/**
+	 * @return Twice the area of the triangle; negative if counter-clockwise
+	 *         (as earcut)
+	 */
+	private double area(int p, int q, int r)
+	{
+		return (y(q) - y(p)) * (x(r) - x(q)) - (x(q) - x(p)) * (y(r) - y(q));
+	}
+
+	private boolean equal(int p, int q)
+	{
+		return x(p) == x(q) && y(p) == y(q);
+	}
+
+	private static boolean pointInTriangle(double ax, double ay, double bx, double by, double cx, double cy,
+			double px, double py)
+	{
+		return (cx - px) * (ay - py) >= (ax - px) * (cy - py) && (ax - px) * (by - py) >= (bx - px) * (ay - py)
+				&& (bx - px) * (cy - py) >= (cx - px) * (by - py);
+	}
+
+	private int leftmost(int start)
+	{
+		int leftmost = start;
+		int node = start;
+		do
+		{
+			if (x(node) < x(leftmost) || (x(node) == x(leftmost) && y(node) < y(leftmost)))
+			{
+				leftmost = node;
+			}
+			node = next[node];
+		}
+		while (node != start);
+		return leftmost;
+	}
+
+	private int eliminateHoles(int outer, List<Integer> holes)
+	{
+		Collections.sort(holes, new Comparator<Integer>()
+		{
+			@Override
+			public int compare(Integer a, Integer b)
+			{
+				return Double.compare(x(a), x(b));
+			}
+		});
+		for (int hole : holes)
+		{
+			int bridge = findHoleBridge(hole, outer);
+			if (bridge >= 0)
+			{
+				int bridgeReverse = split(bridge, hole);
+				filterPoints(bridgeReverse, next[bridgeReverse]);
+				outer = filterPoints(bridge, next[bridge]);
+			}
+		}
+		return outer;
+	}
+
+	/**
+	 * @return A node of the outer ring that is visible from the (leftmost)
+	 *         node of the hole, or -1 if there is none
+	 */
+	private int findHoleBridge(int hole, int outer)
+	{
+		double hx = x(hole), hy = y(hole);
+		double qx = Double.NEGATIVE_INFINITY;
+		int m = -1;
+		int p = outer;
+		//find the nearest segment intersected by a ray from the hole to the left
+		do
+		{
+			int n = next[p];
+			if (hy <= y(p) && hy >= y(n) && y(n) != y(p))
+			{
+				double intersection = x(p) + (hy - y(p)) * (x(n) - x(p)) / (y(n) - y(p));
+				if (intersection <= hx && intersection > qx)
+				{
+					qx = intersection;
+					m = x(p) < x(n) ? p : n;
+					if (intersection == hx)
+					{
+						return m;
+					}
+				}
+			}
+			p = n;
+		}
+		while (p != outer);
+		if (m < 0)
+		{
+			return -1;
+		}
+
+		//of the points inside the triangle of the hole, intersection and segment end, use the one with the minimum angle
+		int stop = m;
+		double mx = x(m), my = y(m);
+		double tanMin = Double.POSITIVE_INFINITY;
+		p = m;
+		do
+		{
+			if (hx >= x(p) && x(p) >= mx && hx != x(p)
+					&& pointInTriangle(hy < my ? hx : qx, hy, mx, my, hy < my ? qx : hx, hy, x(p), y(p)))
+			{
+				double tan = Math.abs(hy - y(p)) / (hx - x(p));
+				if (locallyInside(p, hole)
+						&& (tan < tanMin || (tan == tanMin && (x(p) > x(m) || (x(p) == x(m) && sectorContainsSector(
+								m, p))))))
+				{
+					m = p;
+					tanMin = tan;
+				}
+			}
+			p = next[p];
+		}
+		while (p != stop);
+		return m;
+	}
+
+	private boolean sectorContainsSector(int m, int p)
+	{
+		return area(previous[m], m, previous[p]) < 0 && area(next[p], m, next[m]) < 0;
+	}
+
+	private boolean locallyInside(int a, int b)
+	{
+		return area(previous[a], a, next[a]) < 0 ? area(a, b, next[a]) >= 0 && area(a, previous[a], b) >= 0 : area(
+				a, b, previous[a]) < 0 || area(a, next[a], b) < 0;
+	}
+
+	/**
+	 * Connect the two nodes with a bridge, splitting their list in two if
+	 * they're in the same list, or joining their lists otherwise.
+	 *
+	 * @return The copy of b
+	 */
+	private int split(int a, int b)
+	{
+		int a2 = nodeCount++;
+		int b2 = nodeCount++;
+		vertex[a2] = vertex[a];
+		vertex[b2] = vertex[b];
+		int an = next[a];
+		int bp = previous[b];
+		next[a] = b;
+		previous[b] = a;
+		next[a2] = an;
+		previous[an] = a2;
+		next[b2] = a2;
+		previous[a2] = b2;
+		next[bp] = b2;
+		previous[b2] = bp;
+		return b2;
+	}
+
+	/**
+	 * Remove duplicate and collinear points.
+	 *
+	 * @return A node of the remaining list
+	 */
+	private int filterPoints(int start, int end)
+	{
+		int p = start;
+		boolean again;
+		do
+		{
+			again = false;
+			if (equal(p, next[p]) || area(previous[p], p, next[p]) == 0)
+			{
+				remove(p);
+				p = end = previous[p];
+				if (p == next[p])
+				{
+					break;
+				}
+				again = true;
+			}
+			else
+			{
+				p = next[p];
+			}
+		}
+		while (again || p != end);
+		return end;
+	}
+
+	private void clip(int ear)
+	{
+		int stop = ear;
+		boolean filtered = false;
+		while (previous[ear] != next[ear])
+		{
+			int p = previous[ear];
+			int n = next[ear];
+			if (isEar(ear))
+			{
+				addTriangle(vertex[p], vertex[ear], vertex[n]);
+				remove(ear);
+				ear = next[n];
+				stop = next[n];
+				filtered = false;
+				continue;
+			}
+			ear = n;
+			if (ear == stop)
+			{
+				if (!filtered)
+				{
+					//remove degenerate points, which may have blocked ears
+					ear = stop = filterPoints(ear, ear);
+					filtered = true;
+				}
+				else
+				{
+					//self-intersecting: clip anyway
+					addTriangle(vertex[previous[ear]], vertex[ear], vertex[next[ear]]);
+					int after = next[ear];
+					remove(ear);
+					ear = stop = after;
+					filtered = false;
+				}
+			}
+		}
+	}
+
+	private void addTriangle(int a, int b, int c)
+	{
+		if (triangleIndices + 3 > triangles.length)
+		{
+			triangles = Arrays.copyOf(triangles, triangles.length * 2);
+		}
+		triangles[triangleIndices++] = a;
+		triangles[triangleIndices++] = b;
+		triangles[triangleIndices++] = c;
+	}
+
+	private boolean isEar(int ear)
+	{
+		int a = previous[ear], b = ear, c = next[ear];
+		if (area(a, b, c) >= 0)
+		{
+			//reflex
+			return false;
+		}
+		double ax = x(a), ay = y(a), bx = x(b), by = y(b), cx = x(c), cy = y(c);
+		if (cellStarts == null)
+		{
+			for (int p = next[c]; p != a; p = next[p])
+			{
+				if (blocks(p, ax, ay, bx, by, cx, cy))
+				{
+					return false;
+				}
+			}
+			return true;
+		}
+
+		int fromColumn = column(Math.min(ax, Math.min(bx, cx)));
+		int toColumn = column(Math.max(ax, Math.max(bx, cx)));
+		int fromRow = row(Math.min(ay, Math.min(by, cy)));
+		int toRow = row(Math.max(ay, Math.max(by, cy)));
+		for (int row = fromRow; row <= toRow; row++)
+		{
+			for (int column = fromColumn; column <= toColumn; column++)
+			{
+				int cell = row * columns + column;
+				for (int i = cellStarts[cell]; i < cellStarts[cell + 1]; i++)
+				{
+					int p = cellNodes[i];
+					if (p != a && p != b && p != c && !removed[p] && blocks(p, ax, ay, bx, by, cx, cy))
+					{
+						return false;
+					}
+				}
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return Whether the node is a reflex point inside the triangle (other
+	 *         than at its first corner), so the triangle isn't an ear
+	 */
+	private boolean blocks(int p, double ax, double ay, double bx, double by, double cx, double cy)
+	{
+		double px = x(p), py = y(p);
+		return !(px == ax && py == ay) && pointInTriangle(ax, ay, bx, by, cx, cy, px, py)
+				&& area(previous[p], p, next[p]) >= 0;
+	}
+
+	private void buildGrid(int start, int count)
+	{
+		minX = Double.MAX_VALUE;
+		minY = Double.MAX_VALUE;
+		double maxX = -Double.MAX_VALUE, maxY = -Double.MAX_VALUE;
+		int node = start;
+		do
+		{
+			minX = Math.min(minX, x(node));
+			minY = Math.min(minY, y(node));
+			maxX = Math.max(maxX, x(node));
+			maxY = Math.max(maxY, y(node));
+			node = next[node];
+		}
+		while (node != start);
+		cellSize = Math.max(Math.max(maxX - minX, maxY - minY) / Math.sqrt(count), Double.MIN_NORMAL);
+		columns = (int) ((maxX - minX) / cellSize) + 1;
+		rows = (int) ((maxY - minY) / cellSize) + 1;
+
+		int[] cells = new int[nodeCount];
+		cellStarts = new int[columns * rows + 1];
+		node = start;
+		do
+		{
+			cells[node] = row(y(node)) * columns + column(x(node));
+			cellStarts[cells[node] + 1]++;
+			node = next[node];
+		}
+		while (node != start);
+		for (int cell = 0; cell < columns * rows; cell++)
+		{
+			cellStarts[cell + 1] += cellStarts[cell];
+		}
+		int[] positions = Arrays.copyOf(cellStarts, cellStarts.length);
+		cellNodes = new int[count];
+		do
+		{
+			cellNodes[positions[cells[node]]++] = node;
+			node = next[node];
+		}
+		while (node != start);
+	}
+
+	private int column(double x)
+	{
+		return Math.min((int) ((x - minX) / cellSize), columns - 1);
+	}
+
+	private int row(double y)
+	{
+		return Math.min((int) ((y - minY) / cellSize), rows - 1);
+	}
+
+	/**
+	 * Split the edges of the triangles that are longer than the granularity
+	 * at their midpoints, until no edge is. Neighbouring triangles split their
+	 * shared edge at the same point.
+	 */
+	private int[] subdivide(int[] input, double granularity)
+	{
+		//with a little tolerance, so the edges of densified rings aren't split
+		double limit = granularity * granularity * (1 + 1e-9);
+		Map<Long, Integer> midpoints = new HashMap<>();
+		int[] output = new int[input.length];
+		int outputLength = 0;
+		int[] stack = Arrays.copyOf(input, input.length);
+		int stackLength = input.length;
+		while (stackLength > 0)
+		{
+			int c = stack[--stackLength];
+			int b = stack[--stackLength];
+			int a = stack[--stackLength];
+			double ab = lengthSquared(a, b), bc = lengthSquared(b, c), ca = lengthSquared(c, a);
+			double longest = Math.max(ab, Math.max(bc, ca));
+			if (longest <= limit)
+			{
+				if (outputLength + 3 > output.length)
+				{
+					output = Arrays.copyOf(output, output.length * 2);
+				}
+				output[outputLength++] = a;
+				output[outputLength++] = b;
+				output[outputLength++] = c;
+				continue;
+			}
+			//rotate so the longest edge is a-b
+			if (bc == longest)
+			{
+				int t = a;
+				a = b;
+				b = c;
+				c = t;
+			}
+			else if (ca == longest)
+			{
+				int t = c;
+				c = b;
+				b = a;
+				a = t;
+			}
+			int m = midpoint(a, b, midpoints);
+			if (stackLength + 6 > stack.length)
+			{
+				stack = Arrays.copyOf(stack, stack.length * 2);
+			}
+			stack[stackLength++] = a;
+			stack[stackLength++] = m;
+			stack[stackLength++] = c;
+			stack[stackLength++] = m;
+			stack[stackLength++] = b;
+			stack[stackLength++] = c;
+		}
+		return Arrays.copyOf(output, outputLength);
+	}
+
+	private double lengthSquared(int a, int b)
+	{
+		double dx = points[a * 2] - points[b * 2];
+		double dy = points[a * 2 + 1] - points[b * 2 + 1];
+		return dx * dx + dy * dy;
+	}
+
+	private int midpoint(int a, int b, Map<Long, Integer> midpoints)
+	{
+		long key = a < b ? ((long) a << 32) | b : ((long) b << 32) | a;
+		Integer midpoint = midpoints.get(key);
+		if (midpoint == null)
+		{
+			if (pointCount * 2 + 2 > points.length)
+			{
+				points = Arrays.copyOf(points, points.length * 2 + 2);
+			}
+			points[pointCount * 2] = (points[a * 2] + points[b * 2]) / 2;
+			points[pointCount * 2 + 1] = (points[a * 2 + 1] + points[b * 2 + 1]) / 2;
+			midpoint = pointCount++;
+			midpoints.put(key, midpoint);
+		}
+		return midpoint;
+	}
+}
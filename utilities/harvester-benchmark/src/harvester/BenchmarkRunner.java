@@ -0,0 +1,140 @@
+package harvester;
+
+import java.lang.management.ManagementFactory;
+
+/**
+ * Minimal benchmark harness in the style of JMH: each benchmark is run for a
+ * number of warmup iterations, then for a number of timed measurement
+ * iterations, each of which repeats the operation for a fixed period.
+ * Throughput (operations per second) and allocation (bytes per operation) are
+ * reported as the mean over the measurement iterations.
+ * <p/>
+ * Results are consumed by a sink, so that the JIT can't eliminate the work of
+ * an operation whose result would otherwise be unused. Allocation is measured
+ * for the benchmark thread only, so operations must not hand work off to
+ * other threads.
+ *
+ * @author Michael de Hoog
+ */
+public class BenchmarkRunner
+{
+	public static interface Operation
+	{
+		/**
+		 * Perform a single operation.
+		 *
+		 * @return The operation's result, which is consumed by the runner
+		 */
+		Object run() throws Exception;
+	}
+
+	public static class Result
+	{
+		public final String name;
+		public final double opsPerSecond;
+		public final double opsPerSecondError;
+		public final double bytesPerOp;
+
+		public Result(String name, double opsPerSecond, double opsPerSecondError, double bytesPerOp)
+		{
+			this.name = name;
+			this.opsPerSecond = opsPerSecond;
+			this.opsPerSecondError = opsPerSecondError;
+			this.bytesPerOp = bytesPerOp;
+		}
+
+		/**
+		 * @return Allocation rate in bytes per second
+		 */
+		public double bytesPerSecond()
+		{
+			return bytesPerOp * opsPerSecond;
+		}
+
+		@Override
+		public String toString()
+		{
+			return String.format("%-20s %12.3f +- %9.3f ops/s %12.3f ms/op %12.3f MB/op %10.1f MB/s", name,
+					opsPerSecond, opsPerSecondError, 1000 / opsPerSecond, bytesPerOp / 1048576.0,
+					bytesPerSecond() / 1048576.0);
+		}
+	}
+
+	private final int warmupIterations;
+	private final int measurementIterations;
+	private final long iterationNanos;
+	private volatile int sink;
+
+	public BenchmarkRunner(int warmupIterations, int measurementIterations, long iterationMillis)
+	{
+		this.warmupIterations = warmupIterations;
+		this.measurementIterations = measurementIterations;
+		this.iterationNanos = iterationMillis * 1000000;
+	}
+
+	public static String header()
+	{
+		return String.format("%-20s %28s %15s %15s %13s", "Benchmark", "Throughput", "Time", "Allocated",
+				"Alloc rate");
+	}
+
+	public Result run(String name, Operation operation) throws Exception
+	{
+		for (int i = 0; i < warmupIterations; i++)
+		{
+			iteration(operation);
+		}
+		double[] opsPerSecond = new double[measurementIterations];
+		double bytesPerOp = 0;
+		for (int i = 0; i < measurementIterations; i++)
+		{
+			long[] measured = iteration(operation);
+			opsPerSecond[i] = measured[0] / (measured[1] / 1e9);
+			bytesPerOp += measured[2] / (double) measured[0];
+		}
+
+		double mean = 0;
+		for (double value : opsPerSecond)
+		{
+			mean += value;
+		}
+		mean /= opsPerSecond.length;
+		double variance = 0;
+		for (double value : opsPerSecond)
+		{
+			variance += (value - mean) * (value - mean);
+		}
+		double error = opsPerSecond.length > 1 ? Math.sqrt(variance / (opsPerSecond.length - 1)) : 0;
+		return new Result(name, mean, error, bytesPerOp / measurementIterations);
+	}
+
+	/**
+	 * @return Operation count, elapsed nanoseconds and allocated bytes
+	 */
+	private long[] iteration(Operation operation) throws Exception
+	{
+		long operations = 0;
+		long allocated = allocatedBytes();
+		long start = System.nanoTime();
+		long elapsed;
+		do
+		{
+			consume(operation.run());
+			operations++;
+			elapsed = System.nanoTime() - start;
+		}
+		while (elapsed < iterationNanos);
+		return new long[] { operations, elapsed, allocatedBytes() - allocated };
+	}
+
+	private void consume(Object result)
+	{
+		sink += System.identityHashCode(result);
+	}
+
+	private static long allocatedBytes()
+	{
+		return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean()).getThreadAllocatedBytes(Thread
+				.currentThread().getId());
+	}
+}
@@ -0,0 +1,272 @@
+package harvester;
+
+import harvester.Harvester.Code;
+import harvester.Harvester.Concept;
+import harvester.Harvester.Data;
+import harvester.Harvester.DataValues;
+import harvester.Harvester.TimeTable;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Benchmarks each stage of the {@link Harvester}'s processing path against a
+ * {@link SyntheticDataset}, reporting throughput and allocation per stage, so
+ * that changes to the processing code can be checked for regressions as
+ * datasets grow:
+ * <ul>
+ * <li><code>codeLists</code>: parsing the code lists into concepts and codes</li>
+ * <li><code>sharedCodeLists</code>: creating the concepts from code lists that
+ * are already in the {@link CodeListRegistry}, as for every dataset after the
+ * first that shares them</li>
+ * <li><code>parseValues</code>: parsing the series' times and values</li>
+ * <li><code>insertData</code>: building the data tree, including the
+ * per-measure min/max and time counts</li>
+ * <li><code>buildTable</code>: time filtering and building the output table
+ * of each measure</li>
+ * <li><code>serialize</code>: converting the tables to JSON strings</li>
+ * <li><code>convertNumbers</code>: {@link Harvester#tryConvertToNumber} over
+ * the raw time and value strings</li>
+ * <li><code>saveData</code>: writing the whole tree to disk, in the format
+ * selected by <code>harvester.outputFormat</code>; the files are written by
+ * {@link OutputWriter} threads, whose allocation isn't included</li>
+ * </ul>
+ * Each operation processes the whole synthetic dataset. The shape and run
+ * are configured by system properties: <code>benchmark.concepts</code>,
+ * <code>benchmark.codes</code> (per concept), <code>benchmark.regions</code>,
+ * <code>benchmark.times</code>, <code>benchmark.nullDensity</code>,
+ * <code>benchmark.seed</code>, <code>benchmark.warmup</code> and
+ * <code>benchmark.iterations</code> (iteration counts),
+ * <code>benchmark.iterationMillis</code>, and <code>benchmark.stages</code>
+ * (comma separated, default all).
+ * <p/>
+ * Usage:
+ * <code>java -cp harvester/bin:harvester-benchmark/bin:harvester/lib/json-simple-1.1.1.jar -Dbenchmark.regions=2000 harvester.ProcessingBenchmark</code>
+ *
+ * @author Michael de Hoog
+ */
+public class ProcessingBenchmark
+{
+	private final static int CONCEPTS = Integer.getInteger("benchmark.concepts", 2);
+	private final static int CODES = Integer.getInteger("benchmark.codes", 10);
+	private final static int REGIONS = Integer.getInteger("benchmark.regions", 2000);
+	private final static int TIMES = Integer.getInteger("benchmark.times", 10);
+	private final static double NULL_DENSITY = Double.parseDouble(System.getProperty("benchmark.nullDensity",
+			"0.1"));
+	private final static long SEED = Long.getLong("benchmark.seed", 1);
+	private final static int WARMUP_ITERATIONS = Integer.getInteger("benchmark.warmup", 3);
+	private final static int MEASUREMENT_ITERATIONS = Integer.getInteger("benchmark.iterations", 5);
+	private final static long ITERATION_MILLIS = Long.getLong("benchmark.iterationMillis", 1000);
+	private final static List<String> STAGES = Arrays.asList(System.getProperty("benchmark.stages",
+			"codeLists,sharedCodeLists,parseValues,insertData,buildTable,serialize,convertNumbers,saveData").split(","));
+
+	public static void main(String[] args) throws Exception
+	{
+		final SyntheticDataset synthetic = new SyntheticDataset(CONCEPTS, CODES, REGIONS, TIMES, NULL_DENSITY,
+				SEED);
+		System.out.println("Synthetic dataset: " + CONCEPTS + " concept(s) x " + CODES + " code(s), " + REGIONS
+				+ " region(s), " + TIMES + " time(s), " + NULL_DENSITY + " null density: "
+				+ synthetic.series.size() + " series, " + synthetic.observationCount() + " observations");
+
+		//the inputs of each stage are the outputs of the previous stage
+		final TimeTable timeTable = new TimeTable();
+		final List<DataValues> values = parseValues(synthetic, timeTable);
+		final Data rootData = insertData(synthetic, values);
+		final List<Data> measures = new ArrayList<>();
+		findMeasures(rootData, synthetic.regionConcept, measures);
+		final List<MeasureTable> tables = new ArrayList<>();
+		for (Data measure : measures)
+		{
+			tables.add(Harvester.buildTable(measure, timeTable));
+		}
+		final CodeListRegistry registry = new CodeListRegistry();
+		final HarvestReport.DatasetMetrics metrics = new HarvestReport.DatasetMetrics();
+		final OutputWriter outputWriter = new OutputWriter(2, 64, false);
+		final File outputDirectory = File.createTempFile("benchmark", "");
+		outputDirectory.delete();
+
+		BenchmarkRunner runner = new BenchmarkRunner(WARMUP_ITERATIONS, MEASUREMENT_ITERATIONS, ITERATION_MILLIS);
+		List<BenchmarkRunner.Result> results = new ArrayList<>();
+		try
+		{
+			for (String stage : STAGES)
+			{
+				BenchmarkRunner.Operation operation;
+				switch (stage.trim())
+				{
+				case "codeLists":
+					operation = new BenchmarkRunner.Operation()
+					{
+						@Override
+						public Object run()
+						{
+							return synthetic.createDataset(new CodeListRegistry());
+						}
+					};
+					break;
+				case "sharedCodeLists":
+					operation = new BenchmarkRunner.Operation()
+					{
+						@Override
+						public Object run()
+						{
+							return synthetic.createDataset(registry);
+						}
+					};
+					break;
+				case "parseValues":
+					operation = new BenchmarkRunner.Operation()
+					{
+						@Override
+						public Object run()
+						{
+							return parseValues(synthetic, new TimeTable());
+						}
+					};
+					break;
+				case "insertData":
+					operation = new BenchmarkRunner.Operation()
+					{
+						@Override
+						public Object run()
+						{
+							return insertData(synthetic, values);
+						}
+					};
+					break;
+				case "buildTable":
+					operation = new BenchmarkRunner.Operation()
+					{
+						@Override
+						public Object run()
+						{
+							List<MeasureTable> built = new ArrayList<>(measures.size());
+							for (Data measure : measures)
+							{
+								built.add(Harvester.buildTable(measure, timeTable));
+							}
+							return built;
+						}
+					};
+					break;
+				case "serialize":
+					operation = new BenchmarkRunner.Operation()
+					{
+						@Override
+						public Object run() throws Exception
+						{
+							long length = 0;
+							for (MeasureTable table : tables)
+							{
+								length += Harvester.saveData(table).length;
+							}
+							return length;
+						}
+					};
+					break;
+				case "convertNumbers":
+					operation = new BenchmarkRunner.Operation()
+					{
+						@Override
+						public Object run()
+						{
+							int numbers = 0;
+							for (SyntheticDataset.Series series : synthetic.series)
+							{
+								for (int i = 0; i < series.times.size(); i++)
+								{
+									Object time = Harvester.tryConvertToNumber(series.times.get(i));
+									Object value = Harvester.tryConvertToNumber(series.values.get(i));
+									numbers += (time instanceof Number ? 1 : 0) + (value instanceof Number ? 1 : 0);
+								}
+							}
+							return numbers;
+						}
+					};
+					break;
+				case "saveData":
+					operation = new BenchmarkRunner.Operation()
+					{
+						@Override
+						public Object run() throws Exception
+						{
+							OutputWriter.Batch output = outputWriter.batch(metrics);
+							Harvester.saveData(rootData, outputDirectory, synthetic.regionConcept, timeTable,
+									metrics, output);
+							output.await();
+							return outputDirectory;
+						}
+					};
+					break;
+				default:
+					throw new IllegalArgumentException("Unknown stage: " + stage);
+				}
+				results.add(runner.run(stage.trim(), operation));
+			}
+		}
+		finally
+		{
+			outputWriter.close();
+			delete(outputDirectory);
+		}
+
+		System.out.println(BenchmarkRunner.header());
+		for (BenchmarkRunner.Result result : results)
+		{
+			System.out.println(result);
+		}
+	}
+
+	private static List<DataValues> parseValues(SyntheticDataset synthetic, TimeTable timeTable)
+	{
+		List<DataValues> values = new ArrayList<>(synthetic.series.size());
+		for (SyntheticDataset.Series series : synthetic.series)
+		{
+			values.add(DataValues.parse(timeTable, series.times, series.values));
+		}
+		return values;
+	}
+
+	private static Data insertData(SyntheticDataset synthetic, List<DataValues> values)
+	{
+		Data rootData = new Data(null, synthetic.combinationConcepts.get(0));
+		for (int i = 0; i < values.size(); i++)
+		{
+			Harvester.insertData(synthetic.combinationConcepts, 0, synthetic.series.get(i).codes, rootData,
+					values.get(i));
+		}
+		return rootData;
+	}
+
+	/**
+	 * Find the measure nodes of the tree: the nodes whose children are the
+	 * region series.
+	 */
+	private static void findMeasures(Data data, Concept regionConcept, List<Data> measures)
+	{
+		if (data.childConcept == regionConcept)
+		{
+			measures.add(data);
+			return;
+		}
+		for (Code code : data.codes)
+		{
+			findMeasures(data.data.get(code), regionConcept, measures);
+		}
+	}
+
+	private static void delete(File file)
+	{
+		File[] children = file.listFiles();
+		if (children != null)
+		{
+			for (File child : children)
+			{
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+}
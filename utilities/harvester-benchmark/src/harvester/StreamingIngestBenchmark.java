@@ -0,0 +1,174 @@
+package harvester;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+/**
+ * Compares ingesting a large synthetic GetGenericData response through a
+ * json-simple DOM against the streaming {@link SeriesReader}, reporting
+ * throughput and allocation of each:
+ * <ul>
+ * <li><code>dom</code>: parsing the whole response into a DOM, then walking
+ * the series</li>
+ * <li><code>streaming</code>: reading the series one at a time with the
+ * {@link SeriesReader}</li>
+ * </ul>
+ * Both read the same response and are checked to see the same values before
+ * they're measured. The shape and run are configured by system properties:
+ * <code>benchmark.series</code>, <code>benchmark.observations</code> (per
+ * series), <code>benchmark.warmup</code> and <code>benchmark.iterations</code>
+ * (iteration counts) and <code>benchmark.iterationMillis</code>.
+ * <p/>
+ * Usage:
+ * <code>java -cp harvester/bin:harvester-benchmark/bin:harvester/lib/json-simple-1.1.1.jar -Dbenchmark.series=50000 harvester.StreamingIngestBenchmark</code>
+ *
+ * @author Michael de Hoog
+ */
+public class StreamingIngestBenchmark
+{
+	private final static int SERIES = Integer.getInteger("benchmark.series", 50000);
+	private final static int OBSERVATIONS = Integer.getInteger("benchmark.observations", 10);
+	private final static int WARMUP_ITERATIONS = Integer.getInteger("benchmark.warmup", 3);
+	private final static int MEASUREMENT_ITERATIONS = Integer.getInteger("benchmark.iterations", 5);
+	private final static long ITERATION_MILLIS = Long.getLong("benchmark.iterationMillis", 1000);
+
+	public static void main(String[] args) throws Exception
+	{
+		final File file = File.createTempFile("series", ".json");
+		file.deleteOnExit();
+		writeSyntheticSeries(file, SERIES, OBSERVATIONS);
+		System.out.println("Synthetic response: " + SERIES + " series x " + OBSERVATIONS + " observations, "
+				+ (file.length() / 1024) + " KB");
+
+		long domChecksum = ingestDom(file);
+		long streamingChecksum = ingestStreaming(file);
+		if (domChecksum != streamingChecksum)
+		{
+			throw new IllegalStateException("Checksum mismatch: " + domChecksum + " != " + streamingChecksum);
+		}
+
+		BenchmarkRunner runner = new BenchmarkRunner(WARMUP_ITERATIONS, MEASUREMENT_ITERATIONS, ITERATION_MILLIS);
+		BenchmarkRunner.Result dom = runner.run("dom", new BenchmarkRunner.Operation()
+		{
+			@Override
+			public Object run() throws Exception
+			{
+				return ingestDom(file);
+			}
+		});
+		BenchmarkRunner.Result streaming = runner.run("streaming", new BenchmarkRunner.Operation()
+		{
+			@Override
+			public Object run() throws Exception
+			{
+				return ingestStreaming(file);
+			}
+		});
+
+		System.out.println(BenchmarkRunner.header());
+		System.out.println(dom);
+		System.out.println(streaming);
+	}
+
+	/**
+	 * The original ingest path: parse the whole response into a DOM, then walk
+	 * the series.
+	 */
+	private static long ingestDom(File file) throws IOException, ParseException
+	{
+		long checksum = 0;
+		try (Reader reader = reader(file))
+		{
+			JSONObject data = (JSONObject) new JSONParser().parse(reader);
+			JSONArray series = (JSONArray) data.get("series");
+			for (int i = 0; i < series.size(); i++)
+			{
+				JSONObject serie = (JSONObject) series.get(i);
+				JSONArray concepts = (JSONArray) serie.get("concepts");
+				for (int j = 0; j < concepts.size(); j++)
+				{
+					checksum += ((String) ((JSONObject) concepts.get(j)).get("Value")).length();
+				}
+				JSONArray observations = (JSONArray) serie.get("observations");
+				for (int j = 0; j < observations.size(); j++)
+				{
+					checksum += ((String) ((JSONObject) observations.get(j)).get("Value")).length();
+				}
+			}
+		}
+		return checksum;
+	}
+
+	private static long ingestStreaming(File file) throws IOException, ParseException
+	{
+		final long[] checksum = new long[1];
+		try (Reader reader = reader(file))
+		{
+			SeriesReader.read(reader, new SeriesReader.SeriesHandler()
+			{
+				@Override
+				public void series(SeriesReader.Series series)
+				{
+					for (String value : series.conceptValues)
+					{
+						checksum[0] += value.length();
+					}
+					for (String value : series.values)
+					{
+						checksum[0] += value.length();
+					}
+				}
+			});
+		}
+		return checksum[0];
+	}
+
+	private static Reader reader(File file) throws IOException
+	{
+		return new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8));
+	}
+
+	private static void writeSyntheticSeries(File file, int seriesCount, int observationCount) throws IOException
+	{
+		try (Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file),
+				StandardCharsets.UTF_8)))
+		{
+			writer.write("{\"series\":[");
+			for (int i = 0; i < seriesCount; i++)
+			{
+				if (i > 0)
+				{
+					writer.write(',');
+				}
+				writer.write("{\"concepts\":[{\"name\":\"MEASURE\",\"Value\":\"M" + (i % 100)
+						+ "\"},{\"name\":\"REGIONTYPE\",\"Value\":\"SA2\"},{\"name\":\"REGION\",\"Value\":\""
+						+ (100000000 + i / 100) + "\"}],\"observations\":[");
+				for (int j = 0; j < observationCount; j++)
+				{
+					if (j > 0)
+					{
+						writer.write(',');
+					}
+					writer.write("{\"Time\":\"" + (2000 + j) + "\",\"Value\":\"" + ((i * 31 + j) % 1000) / 10.0
+							+ "\"}");
+				}
+				writer.write("]}");
+			}
+			writer.write("]}");
+		}
+	}
+}
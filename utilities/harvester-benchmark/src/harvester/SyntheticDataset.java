@@ -0,0 +1,215 @@
+package harvester;
+
+import harvester.Harvester.Code;
+import harvester.Harvester.Concept;
+import harvester.Harvester.Dataset;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+/**
+ * Generates a synthetic dataset of a configurable shape, in the form the
+ * {@link Harvester} receives it from the ABS: a code list for each concept,
+ * and the observation series of every combination of codes and region.
+ * Generation is deterministic for a given shape and seed.
+ *
+ * @author Michael de Hoog
+ */
+public class SyntheticDataset
+{
+	private final static String REGION_CONCEPT_ID = "REGION";
+	private final static String[] UNITS = { "persons", "$", "%", "ha", "Years", "no." };
+
+	/**
+	 * A single observation series, as read from a GetGenericData response.
+	 */
+	public static class Series
+	{
+		public final Map<Concept, Code> codes;
+		public final List<String> times;
+		public final List<String> values;
+
+		public Series(Map<Concept, Code> codes, List<String> times, List<String> values)
+		{
+			this.codes = codes;
+			this.times = times;
+			this.values = values;
+		}
+	}
+
+	public final int conceptCount;
+	public final int codesPerConcept;
+	public final int regionCount;
+	public final int timeCount;
+	public final double nullDensity;
+	private final long seed;
+
+	public final Dataset dataset;
+	public final List<Concept> combinationConcepts = new ArrayList<>();
+	public final Concept regionConcept;
+	public final List<JSONArray> codeLists = new ArrayList<>();
+	public final List<Series> series = new ArrayList<>();
+
+	/**
+	 * @param conceptCount
+	 *            Number of concepts in the cube, excluding the region
+	 * @param codesPerConcept
+	 *            Number of codes of each (non region) concept
+	 * @param regionCount
+	 *            Number of regions
+	 * @param timeCount
+	 *            Number of observation times per series
+	 * @param nullDensity
+	 *            Fraction of observations that are null
+	 */
+	public SyntheticDataset(int conceptCount, int codesPerConcept, int regionCount, int timeCount,
+			double nullDensity, long seed)
+	{
+		this.conceptCount = conceptCount;
+		this.codesPerConcept = codesPerConcept;
+		this.regionCount = regionCount;
+		this.timeCount = timeCount;
+		this.nullDensity = nullDensity;
+		this.seed = seed;
+
+		for (int i = 0; i < conceptCount; i++)
+		{
+			codeLists.add(codeList(i));
+		}
+		codeLists.add(regionCodeList());
+
+		dataset = createDataset(new CodeListRegistry());
+		for (int i = 0; i < conceptCount; i++)
+		{
+			combinationConcepts.add(dataset.concepts.get(i));
+		}
+		regionConcept = dataset.conceptMap.get(REGION_CONCEPT_ID);
+		combinationConcepts.add(regionConcept);
+
+		generateSeries();
+	}
+
+	/**
+	 * Create the dataset's concepts and codes from the code lists, as the
+	 * harvester does.
+	 *
+	 * @param registry
+	 *            Registry the code lists are parsed with; a new registry parses
+	 *            every code list, a registry that already contains them shares
+	 *            them
+	 */
+	public Dataset createDataset(CodeListRegistry registry)
+	{
+		Dataset dataset = new Dataset("SYNTHETIC", "Synthetic dataset");
+		for (int i = 0; i < codeLists.size(); i++)
+		{
+			String conceptId = i < conceptCount ? "CONCEPT" + i : REGION_CONCEPT_ID;
+			Concept concept = new Concept(dataset, conceptId, Harvester.codeList(registry, dataset, conceptId,
+					codeLists.get(i)));
+			dataset.concepts.add(concept);
+			dataset.conceptMap.put(conceptId, concept);
+		}
+		return dataset;
+	}
+
+	/**
+	 * @return Number of observations over all series
+	 */
+	public long observationCount()
+	{
+		return (long) series.size() * timeCount;
+	}
+
+	@SuppressWarnings("unchecked")
+	private JSONArray codeList(int conceptIndex)
+	{
+		//a total code with the others as children, like most ABS code lists
+		JSONArray codes = new JSONArray();
+		for (int i = 0; i < codesPerConcept; i++)
+		{
+			JSONObject code = new JSONObject();
+			code.put("code", Integer.toString(i));
+			code.put("description", "Concept " + conceptIndex + "  code \\ " + i + " ("
+					+ UNITS[(conceptIndex + i) % UNITS.length] + ")");
+			code.put("parentCode", i == 0 ? "" : "0");
+			codes.add(code);
+		}
+		return codes;
+	}
+
+	@SuppressWarnings("unchecked")
+	private JSONArray regionCodeList()
+	{
+		JSONArray codes = new JSONArray();
+		JSONObject root = new JSONObject();
+		root.put("code", "0");
+		root.put("description", "Australia");
+		root.put("parentCode", "");
+		codes.add(root);
+		for (int i = 0; i < regionCount; i++)
+		{
+			JSONObject code = new JSONObject();
+			code.put("code", Integer.toString(100000000 + i));
+			code.put("description", "Region " + i);
+			code.put("parentCode", "0");
+			codes.add(code);
+		}
+		return codes;
+	}
+
+	private void generateSeries()
+	{
+		Random random = new Random(seed);
+		List<String> times = new ArrayList<>();
+		for (int t = 0; t < timeCount; t++)
+		{
+			times.add(Integer.toString(2000 + t));
+		}
+
+		int combinations = 1;
+		for (int i = 0; i < conceptCount; i++)
+		{
+			combinations *= codesPerConcept;
+		}
+		List<Code> regions = regionConcept.codes.subList(1, regionConcept.codes.size());
+		for (int c = 0; c < combinations; c++)
+		{
+			Map<Concept, Code> codes = new HashMap<>();
+			int remainder = c;
+			for (int i = 0; i < conceptCount; i++)
+			{
+				Concept concept = combinationConcepts.get(i);
+				codes.put(concept, concept.codes.get(remainder % codesPerConcept));
+				remainder /= codesPerConcept;
+			}
+			for (Code region : regions)
+			{
+				Map<Concept, Code> seriesCodes = new HashMap<>(codes);
+				seriesCodes.put(regionConcept, region);
+				List<String> values = new ArrayList<>(timeCount);
+				for (int t = 0; t < timeCount; t++)
+				{
+					if (random.nextDouble() < nullDensity)
+					{
+						values.add(null);
+					}
+					else if (random.nextBoolean())
+					{
+						values.add(Integer.toString(random.nextInt(100000)));
+					}
+					else
+					{
+						values.add(Double.toString(Math.round(random.nextDouble() * 100000) / 10.0));
+					}
+				}
+				series.add(new Series(seriesCodes, times, values));
+			}
+		}
+	}
+}
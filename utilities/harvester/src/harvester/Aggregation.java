@@ -0,0 +1,120 @@
+package harvester;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+import java.util.regex.Pattern;
+
+import harvester.Harvester.Code;
+import harvester.Harvester.Concept;
+import harvester.Harvester.Dataset;
+
+/**
+ * Classifies the measures of a dataset as additive (a parent region's value is
+ * the sum of its children's values, eg counts or areas) or non-additive (eg
+ * rates, percentages, medians). Datasets whose measures are all additive can
+ * have their parent region levels rolled up from SA2 rather than downloaded.
+ * <p/>
+ * Classification comes from an optional properties file, falling back to a
+ * heuristic on each code's units and description. Properties keys are either a
+ * dataset id, to classify a whole dataset, or
+ * <code>datasetId.conceptId.codeId</code> to classify a single code; values
+ * are <code>additive</code> or <code>non-additive</code>:
+ *
+ * <pre>
+ * ABS_NRP9_ASGS=non-additive
+ * ABS_CENSUS2011_B01.MEASURE.3=additive
+ * </pre>
+ *
+ * @author Michael de Hoog
+ */
+public class Aggregation
+{
+	private final static String ADDITIVE = "additive";
+	private final static String NON_ADDITIVE = "non-additive";
+	//descriptions of measures that can't be summed across regions
+	private final static Pattern NON_ADDITIVE_DESCRIPTION = Pattern.compile(
+			"(?i).*\\b(average|mean|median|rate|ratio|index|proportion|percent(age)?|per cent|density|per)\\b.*");
+	//units of measures that can be summed; measures without units are counts (see Harvester.UNITS_TO_IGNORE)
+	private final static Pattern ADDITIVE_UNITS = Pattern.compile("(?i)ha|hectares|km2|sq\\.? ?km|persons|people");
+
+	private final Properties properties;
+
+	public Aggregation(Properties properties)
+	{
+		this.properties = properties;
+	}
+
+	/**
+	 * Load the classification overrides from the given file; if the file
+	 * doesn't exist, only the heuristic is used.
+	 */
+	public static Aggregation load(File file) throws IOException
+	{
+		Properties properties = new Properties();
+		if (file.exists())
+		{
+			try (InputStream input = new FileInputStream(file))
+			{
+				properties.load(input);
+			}
+		}
+		return new Aggregation(properties);
+	}
+
+	/**
+	 * @return True if every code of every one of the given concepts is
+	 *         additive
+	 */
+	public boolean isAdditive(Dataset dataset, Iterable<Concept> concepts)
+	{
+		String datasetValue = properties.getProperty(dataset.id);
+		if (datasetValue != null)
+		{
+			return parse(dataset.id, datasetValue);
+		}
+		for (Concept concept : concepts)
+		{
+			for (Code code : concept.codes)
+			{
+				if (!isAdditive(concept, code))
+				{
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	public boolean isAdditive(Concept concept, Code code)
+	{
+		String key = concept.dataset.id + "." + concept.id + "." + code.id;
+		String value = properties.getProperty(key);
+		if (value != null)
+		{
+			return parse(key, value);
+		}
+		if (code.description != null && NON_ADDITIVE_DESCRIPTION.matcher(code.description).matches())
+		{
+			return false;
+		}
+		return code.units == null || ADDITIVE_UNITS.matcher(code.units).matches();
+	}
+
+	private static boolean parse(String key, String value)
+	{
+		value = value.trim();
+		if (ADDITIVE.equalsIgnoreCase(value))
+		{
+			return true;
+		}
+		if (NON_ADDITIVE.equalsIgnoreCase(value))
+		{
+			return false;
+		}
+		throw new IllegalArgumentException("Invalid aggregation '" + value + "' for '" + key + "', expected '"
+				+ ADDITIVE + "' or '" + NON_ADDITIVE + "'");
+	}
+}
@@ -0,0 +1,45 @@
+package harvester;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+import org.json.simple.JSONAware;
+
+/**
+ * Writes files by writing a temporary file next to them and renaming it over
+ * the target, so a crash never leaves a truncated file behind.
+ *
+ * @author Michael de Hoog
+ */
+public class AtomicFile
+{
+	public static void write(File file, byte[] content) throws IOException
+	{
+		File parent = file.getAbsoluteFile().getParentFile();
+		parent.mkdirs();
+		File tempFile = new File(parent, file.getName() + ".tmp");
+		try
+		{
+			try (OutputStream output = new FileOutputStream(tempFile))
+			{
+				output.write(content);
+			}
+			Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+		}
+		finally
+		{
+			tempFile.delete();
+		}
+	}
+
+	public static void write(File file, JSONAware json) throws IOException
+	{
+		write(file, json.toJSONString().getBytes(StandardCharsets.UTF_8));
+	}
+}
@@ -0,0 +1,167 @@
+package harvester;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writes a {@link MeasureTable} in the compact binary columnar format read by
+ * <code>app/js/Statistics.js</code>. All numbers are little-endian, and every
+ * column starts on a 4 byte boundary so the client can create typed array views
+ * directly on the downloaded buffer.
+ *
+ * <pre>
+ * header:   'SMB1', uint8 version, uint8 value type (0 = float32, 1 = uint16),
+ *           uint16 flags (1 = indexed), string concept, string units,
+ *           float64 min, float64 max
+ * times:    uint32 count, string[count]
+ * regions:  uint32 count, string[count] (region codes); or if indexed by
+ *           the {@link RegionIndex}, uint32 count, uint32 level count,
+ *           string[level count] (the region levels of the rows)
+ * columns:  for each time: null mask (1 bit per region, set = null),
+ *           then one value per region
+ * </pre>
+ *
+ * Strings are a uint16 byte length (0xFFFF for null) followed by UTF-8 bytes.
+ * Sections are padded to 4 bytes. Quantized uint16 values map linearly from
+ * [0, 65534] onto [min, max], and 65535 marks null.
+ *
+ * @author Michael de Hoog
+ */
+public class BinaryStatisticsWriter
+{
+	public final static int VERSION = 1;
+	public final static int TYPE_FLOAT32 = 0;
+	public final static int TYPE_UINT16 = 1;
+	public final static int FLAG_INDEXED = 1;
+	private final static byte[] MAGIC = { 'S', 'M', 'B', '1' };
+	private final static int NULL_STRING = 0xFFFF;
+	private final static int QUANTIZED_MAX = 65534;
+	private final static int QUANTIZED_NULL = 65535;
+
+	public static byte[] toBytes(MeasureTable table, boolean quantize)
+	{
+		int rows = table.codes.size();
+		int times = table.times.size();
+		int maskSize = pad((rows + 7) >> 3);
+		int columnSize = maskSize + pad(rows * (quantize ? 2 : 4));
+
+		int size = 4 + 4 + stringSize(table.concept) + stringSize(table.units);
+		size = pad(size) + 16;
+		size += 4;
+		for (String time : table.times)
+		{
+			size += stringSize(time);
+		}
+		size = pad(size) + 4;
+		if (table.regionLevels != null)
+		{
+			size += 4;
+			for (String level : table.regionLevels)
+			{
+				size += stringSize(level);
+			}
+		}
+		else
+		{
+			for (String code : table.codes)
+			{
+				size += stringSize(code);
+			}
+		}
+		size = pad(size) + columnSize * times;
+
+		ByteBuffer buffer = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+		buffer.put(MAGIC);
+		buffer.put((byte) VERSION);
+		buffer.put((byte) (quantize ? TYPE_UINT16 : TYPE_FLOAT32));
+		buffer.putShort((short) (table.regionLevels != null ? FLAG_INDEXED : 0));
+		putString(buffer, table.concept);
+		putString(buffer, table.units);
+		align(buffer);
+		buffer.putDouble(table.min);
+		buffer.putDouble(table.max);
+
+		buffer.putInt(times);
+		for (String time : table.times)
+		{
+			putString(buffer, time);
+		}
+		align(buffer);
+		buffer.putInt(rows);
+		if (table.regionLevels != null)
+		{
+			buffer.putInt(table.regionLevels.size());
+			for (String level : table.regionLevels)
+			{
+				putString(buffer, level);
+			}
+		}
+		else
+		{
+			for (String code : table.codes)
+			{
+				putString(buffer, code);
+			}
+		}
+		align(buffer);
+
+		double range = table.max - table.min;
+		for (int t = 0; t < times; t++)
+		{
+			int maskStart = buffer.position();
+			for (int row = 0; row < rows; row++)
+			{
+				if (table.isNull(row, t))
+				{
+					int index = maskStart + (row >> 3);
+					buffer.put(index, (byte) (buffer.get(index) | (1 << (row & 7))));
+				}
+			}
+			buffer.position(maskStart + maskSize);
+			for (int row = 0; row < rows; row++)
+			{
+				double value = table.value(row, t);
+				if (quantize)
+				{
+					int q = Double.isNaN(value) ? QUANTIZED_NULL : range > 0 ? (int) Math.round((value - table.min)
+							/ range * QUANTIZED_MAX) : 0;
+					buffer.putShort((short) q);
+				}
+				else
+				{
+					buffer.putFloat(Double.isNaN(value) ? 0 : (float) value);
+				}
+			}
+			align(buffer);
+		}
+		return buffer.array();
+	}
+
+	private static int pad(int size)
+	{
+		return (size + 3) & ~3;
+	}
+
+	private static void align(ByteBuffer buffer)
+	{
+		buffer.position(pad(buffer.position()));
+	}
+
+	private static int stringSize(String s)
+	{
+		return 2 + (s == null ? 0 : s.getBytes(StandardCharsets.UTF_8).length);
+	}
+
+	private static void putString(ByteBuffer buffer, String s)
+	{
+		if (s == null)
+		{
+			buffer.putShort((short) NULL_STRING);
+			return;
+		}
+		byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+		buffer.putShort((short) bytes.length);
+		buffer.put(bytes);
+	}
+}
@@ -0,0 +1,104 @@
+package harvester;
+
+import harvester.Harvester.Code;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The parsed codes of a concept's code list, with each code linked to its
+ * parent and children. Code lists are shared between all the datasets that
+ * have an identical code list (see {@link CodeListRegistry}), so neither the
+ * code list nor its codes may be modified once built. Anything that is
+ * specific to a dataset (such as the codes it uses) belongs in its
+ * {@link Harvester.Concept}.
+ *
+ * @author Michael de Hoog
+ */
+public class CodeList
+{
+	public final List<Code> codes;
+	public final List<Code> rootCodes;
+	public final Map<String, Code> codeMap;
+	//derived lists of the descendants of a code at a given depth, eg the regions at a level of the hierarchy
+	private final Map<String, List<Code>> descendants = new ConcurrentHashMap<>();
+
+	/**
+	 * Link the codes to their parents.
+	 *
+	 * @param context
+	 *            Description of where the code list comes from, for error
+	 *            messages
+	 * @throws IllegalStateException
+	 *             If a code's parent isn't in the list
+	 */
+	public CodeList(List<Code> codes, String context)
+	{
+		List<Code> rootCodes = new ArrayList<>();
+		Map<String, Code> codeMap = new HashMap<>();
+		for (Code code : codes)
+		{
+			codeMap.put(code.id, code);
+		}
+		for (Code code : codes)
+		{
+			if (code.parentId == null || code.parentId.length() == 0)
+			{
+				rootCodes.add(code);
+			}
+			else
+			{
+				Code parent = codeMap.get(code.parentId);
+				if (parent == null)
+				{
+					throw new IllegalStateException("Could not find parent code '" + code.parentId + "' for code '"
+							+ code.id + "' (" + context + ")");
+				}
+				code.parent = parent;
+				parent.childList.add(code);
+			}
+		}
+		this.codes = Collections.unmodifiableList(new ArrayList<>(codes));
+		this.rootCodes = Collections.unmodifiableList(rootCodes);
+		this.codeMap = Collections.unmodifiableMap(codeMap);
+	}
+
+	/**
+	 * @return The descendants of the code at the given depth below it (the
+	 *         code itself for depth 0, its children for depth 1, etc), in
+	 *         code list order; cached, as the same levels of the region
+	 *         hierarchy are requested for every dataset
+	 */
+	public List<Code> descendants(Code code, int depth)
+	{
+		String key = code.id + "/" + depth;
+		List<Code> list = descendants.get(key);
+		if (list == null)
+		{
+			list = new ArrayList<>();
+			addDescendants(code, depth, list);
+			list = Collections.unmodifiableList(list);
+			descendants.put(key, list);
+		}
+		return list;
+	}
+
+	private static void addDescendants(Code code, int depth, List<Code> list)
+	{
+		if (depth == 0)
+		{
+			list.add(code);
+		}
+		else if (depth > 0)
+		{
+			for (Code child : code.children)
+			{
+				addDescendants(child, depth - 1, list);
+			}
+		}
+	}
+}
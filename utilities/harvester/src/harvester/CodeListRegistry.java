@@ -0,0 +1,136 @@
+package harvester;
+
+import harvester.Harvester.Code;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+/**
+ * Canonical store of parsed code lists, keyed by a hash of their content, so
+ * that a code list that is shared by many datasets (such as the several
+ * thousand codes of the ASGS region code list) is only parsed, and held in
+ * memory, once. Thread-safe.
+ *
+ * @author Michael de Hoog
+ */
+public class CodeListRegistry
+{
+	private final static Pattern WHITESPACE_PATTERN = Pattern.compile("\\s+");
+	private final static Pattern UNITS_PATTERN = Pattern.compile(".*?(\\s*\\(([^\\(^\\)]+)\\))[^\\(^\\)]*");
+	private final static Pattern NUMERIC_UNITS_PATTERN = Pattern.compile("\\d.*");
+	@SuppressWarnings("serial")
+	private final static Set<String> UNITS_TO_IGNORE = new HashSet<String>()
+	{
+		{
+			add("no.");
+			add("no");
+			add("number");
+			add("#");
+		}
+	};
+
+	private final Map<String, CodeList> codeLists = new ConcurrentHashMap<>();
+	private final AtomicInteger parsed = new AtomicInteger();
+	private final AtomicInteger shared = new AtomicInteger();
+
+	/**
+	 * Get the code list for a GetCodeListValue response's <code>codes</code>,
+	 * parsing it if there isn't an identical one in the registry already.
+	 *
+	 * @param excludedCode
+	 *            Code to leave out of the list (the ABS returns the dataset
+	 *            description as one of the codes for some datasets)
+	 * @param extractUnits
+	 *            Extract units from the code descriptions, eg
+	 *            "Area (ha)" has units "ha"
+	 * @param context
+	 *            Description of where the code list comes from, for error
+	 *            messages
+	 */
+	public CodeList get(JSONArray codes, String excludedCode, boolean extractUnits, String context)
+	{
+		List<String[]> entries = new ArrayList<>(codes.size());
+		MessageDigest digest = Manifest.digest();
+		digest.update((byte) (extractUnits ? 1 : 0));
+		for (int i = 0; i < codes.size(); i++)
+		{
+			JSONObject codeJson = (JSONObject) codes.get(i);
+			String id = (String) codeJson.get("code");
+			if (id == null || id.equals(excludedCode))
+			{
+				continue;
+			}
+			String[] entry = { id, (String) codeJson.get("parentCode"), (String) codeJson.get("description") };
+			for (String value : entry)
+			{
+				//length prefixed, so that different lists can't produce the same digest input
+				String s = String.valueOf(value);
+				digest.update((s.length() + ":" + s).getBytes(StandardCharsets.UTF_8));
+			}
+			entries.add(entry);
+		}
+		String key = Manifest.toHex(digest.digest());
+
+		CodeList codeList = codeLists.get(key);
+		if (codeList != null)
+		{
+			shared.incrementAndGet();
+			return codeList;
+		}
+		codeList = parse(entries, extractUnits, context);
+		CodeList existing = codeLists.putIfAbsent(key, codeList);
+		return existing != null ? existing : codeList;
+	}
+
+	/**
+	 * @return Human readable count of the distinct code lists parsed, and of
+	 *         the times a code list was shared instead of parsed
+	 */
+	public String stats()
+	{
+		return parsed.get() + " code list(s) parsed, " + shared.get() + " shared";
+	}
+
+	private CodeList parse(List<String[]> entries, boolean extractUnits, String context)
+	{
+		parsed.incrementAndGet();
+		List<Code> codes = new ArrayList<>(entries.size());
+		for (String[] entry : entries)
+		{
+			String codeDescription = entry[2];
+			codeDescription = codeDescription.replace("\\", ""); //remove any escaping backslashes
+			//remove any double spaces
+			codeDescription = WHITESPACE_PATTERN.matcher(codeDescription).replaceAll(" ").trim();
+			String units = null;
+			if (extractUnits)
+			{
+				Matcher matcher = UNITS_PATTERN.matcher(codeDescription);
+				if (matcher.matches())
+				{
+					codeDescription = codeDescription.substring(0, matcher.start(1))
+							+ codeDescription.substring(matcher.end(1));
+					units = matcher.group(2).trim();
+					if (UNITS_TO_IGNORE.contains(units.toLowerCase())
+							|| NUMERIC_UNITS_PATTERN.matcher(units).matches())
+					{
+						units = null;
+					}
+				}
+			}
+			codes.add(new Code(entry[0], codeDescription, units, entry[1]));
+		}
+		return new CodeList(codes, context);
+	}
+}
@@ -0,0 +1,349 @@
+package harvester;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only journal of the units of work (data requests) that have been
+ * ingested for a dataset, with the series each unit contained, so that a
+ * harvest that dies partway through a dataset can rebuild its data tree from
+ * the journal and resume with the first unit that wasn't completed.
+ * <p/>
+ * A unit is only appended once all of its series have been ingested, as a
+ * single length prefixed, checksummed record. A record torn by a crash is
+ * truncated when the journal is reopened. The journal is tied to a
+ * fingerprint of the dataset's metadata and processing options, and is
+ * discarded if that changes.
+ *
+ * <pre>
+ * journal: 'SMJ1', UTF fingerprint, records
+ * record:  int payload length, int CRC-32 of payload, payload
+ * payload: int new string count, UTF[count] strings, UTF unit key, UTF unit
+ *          hash, int series count, series[count]
+ * series:  int code count, int[count] code string ids, int observation count,
+ *          int[count] time string ids, double[count] values, long[] null mask
+ * </pre>
+ *
+ * Strings (codes and times) are interned in a table that grows as records
+ * are appended, each record declaring the strings it adds.
+ *
+ * @author Michael de Hoog
+ */
+public class DatasetJournal implements Closeable
+{
+	private final static byte[] MAGIC = { 'S', 'M', 'J', '1' };
+
+	/**
+	 * A single series in a unit: the codes that identify it (one for each of
+	 * the dataset's combination concepts), and its observations.
+	 */
+	public static class Series
+	{
+		public final String[] codes;
+		public final String[] times;
+		public final double[] values;
+		public final long[] nulls;
+
+		public Series(String[] codes, String[] times, double[] values, long[] nulls)
+		{
+			this.codes = codes;
+			this.times = times;
+			this.values = values;
+			this.nulls = nulls;
+		}
+	}
+
+	public static interface SeriesHandler
+	{
+		void series(Series series);
+	}
+
+	private final File file;
+	private final String fingerprint;
+	private final Map<String, String> units = new LinkedHashMap<>();
+	private final List<String> strings = new ArrayList<>();
+	private final Map<String, Integer> stringIds = new HashMap<>();
+	private DataOutputStream output;
+
+	/**
+	 * Open the journal, validating any existing content.
+	 *
+	 * @param fingerprint
+	 *            Fingerprint of the dataset's metadata and options; an
+	 *            existing journal with a different fingerprint is discarded
+	 */
+	public DatasetJournal(File file, String fingerprint) throws IOException
+	{
+		this.file = file;
+		this.fingerprint = fingerprint;
+		long valid = file.exists() ? scan(null) : -1;
+		if (valid < 0)
+		{
+			reset();
+		}
+		else
+		{
+			try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw"))
+			{
+				if (randomAccessFile.length() > valid)
+				{
+					System.err.println("Truncating incomplete record at " + valid + " in " + file);
+					randomAccessFile.setLength(valid);
+				}
+			}
+			output = new DataOutputStream(new FileOutputStream(file, true));
+		}
+	}
+
+	/**
+	 * @return The completed units, mapped to the hash of their content at the
+	 *         time they were ingested
+	 */
+	public synchronized Map<String, String> units()
+	{
+		return new LinkedHashMap<>(units);
+	}
+
+	/**
+	 * Pass every series of the completed units to the handler.
+	 */
+	public synchronized void replay(SeriesHandler handler) throws IOException
+	{
+		output.flush();
+		scan(handler);
+	}
+
+	/**
+	 * Discard the journal content, eg because a unit's content has changed
+	 * since it was ingested.
+	 */
+	public synchronized void reset() throws IOException
+	{
+		if (output != null)
+		{
+			output.close();
+		}
+		units.clear();
+		strings.clear();
+		stringIds.clear();
+		file.getAbsoluteFile().getParentFile().mkdirs();
+		output = new DataOutputStream(new FileOutputStream(file));
+		output.write(MAGIC);
+		output.writeUTF(fingerprint);
+		output.flush();
+	}
+
+	/**
+	 * Append a completed unit. The record is flushed to the file before
+	 * returning.
+	 */
+	public synchronized void append(String unitKey, String unitHash, List<Series> series) throws IOException
+	{
+		int stringCount = strings.size();
+		try
+		{
+			ByteArrayOutputStream body = new ByteArrayOutputStream();
+			DataOutputStream bodyOutput = new DataOutputStream(body);
+			bodyOutput.writeUTF(unitKey);
+			bodyOutput.writeUTF(unitHash);
+			bodyOutput.writeInt(series.size());
+			for (Series s : series)
+			{
+				bodyOutput.writeInt(s.codes.length);
+				for (String code : s.codes)
+				{
+					bodyOutput.writeInt(stringId(code));
+				}
+				bodyOutput.writeInt(s.times.length);
+				for (String time : s.times)
+				{
+					bodyOutput.writeInt(stringId(time));
+				}
+				for (double value : s.values)
+				{
+					bodyOutput.writeDouble(value);
+				}
+				for (long nulls : s.nulls)
+				{
+					bodyOutput.writeLong(nulls);
+				}
+			}
+			bodyOutput.flush();
+
+			ByteArrayOutputStream payload = new ByteArrayOutputStream(body.size() + 64);
+			DataOutputStream payloadOutput = new DataOutputStream(payload);
+			payloadOutput.writeInt(strings.size() - stringCount);
+			for (int i = stringCount; i < strings.size(); i++)
+			{
+				payloadOutput.writeUTF(strings.get(i));
+			}
+			body.writeTo(payloadOutput);
+			payloadOutput.flush();
+
+			byte[] bytes = payload.toByteArray();
+			CRC32 crc = new CRC32();
+			crc.update(bytes);
+			output.writeInt(bytes.length);
+			output.writeInt((int) crc.getValue());
+			output.write(bytes);
+			output.flush();
+		}
+		catch (IOException | RuntimeException e)
+		{
+			//the strings this record added were never written, so later records mustn't refer to them
+			for (int i = strings.size() - 1; i >= stringCount; i--)
+			{
+				stringIds.remove(strings.remove(i));
+			}
+			throw e;
+		}
+		units.put(unitKey, unitHash);
+	}
+
+	@Override
+	public synchronized void close() throws IOException
+	{
+		output.close();
+	}
+
+	/**
+	 * Close and delete the journal, once the dataset has been completed.
+	 */
+	public synchronized void delete() throws IOException
+	{
+		close();
+		file.delete();
+	}
+
+	private int stringId(String s)
+	{
+		Integer id = stringIds.get(s);
+		if (id == null)
+		{
+			id = strings.size();
+			strings.add(s);
+			stringIds.put(s, id);
+		}
+		return id;
+	}
+
+	/**
+	 * Read the journal, rebuilding the units and the string table, and
+	 * passing each series to the handler if there is one.
+	 *
+	 * @return The length of the valid part of the journal, or -1 if the
+	 *         journal is invalid or for a different fingerprint
+	 */
+	private long scan(SeriesHandler handler) throws IOException
+	{
+		units.clear();
+		strings.clear();
+		stringIds.clear();
+		try (DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(file))))
+		{
+			byte[] magic = new byte[MAGIC.length];
+			String journalFingerprint;
+			try
+			{
+				input.readFully(magic);
+				journalFingerprint = input.readUTF();
+			}
+			catch (EOFException e)
+			{
+				return -1;
+			}
+			if (!Arrays.equals(magic, MAGIC) || !fingerprint.equals(journalFingerprint))
+			{
+				return -1;
+			}
+			long valid = MAGIC.length + 2 + journalFingerprint.getBytes("UTF-8").length;
+			while (true)
+			{
+				byte[] bytes;
+				int crc;
+				try
+				{
+					int length = input.readInt();
+					crc = input.readInt();
+					if (length < 0 || length > file.length() - valid)
+					{
+						break;
+					}
+					bytes = new byte[length];
+					input.readFully(bytes);
+				}
+				catch (EOFException e)
+				{
+					break;
+				}
+				CRC32 actual = new CRC32();
+				actual.update(bytes);
+				if ((int) actual.getValue() != crc)
+				{
+					break;
+				}
+				readRecord(bytes, handler);
+				valid += 8 + bytes.length;
+			}
+			return valid;
+		}
+	}
+
+	private void readRecord(byte[] bytes, SeriesHandler handler) throws IOException
+	{
+		DataInputStream input = new DataInputStream(new ByteArrayInputStream(bytes));
+		int newStrings = input.readInt();
+		for (int i = 0; i < newStrings; i++)
+		{
+			stringId(input.readUTF());
+		}
+		String unitKey = input.readUTF();
+		String unitHash = input.readUTF();
+		if (handler != null)
+		{
+			int seriesCount = input.readInt();
+			for (int i = 0; i < seriesCount; i++)
+			{
+				String[] codes = new String[input.readInt()];
+				for (int j = 0; j < codes.length; j++)
+				{
+					codes[j] = strings.get(input.readInt());
+				}
+				String[] times = new String[input.readInt()];
+				for (int j = 0; j < times.length; j++)
+				{
+					times[j] = strings.get(input.readInt());
+				}
+				double[] values = new double[times.length];
+				for (int j = 0; j < values.length; j++)
+				{
+					values[j] = input.readDouble();
+				}
+				long[] nulls = new long[(times.length + 63) >> 6];
+				for (int j = 0; j < nulls.length; j++)
+				{
+					nulls[j] = input.readLong();
+				}
+				handler.series(new Series(codes, times, values, nulls));
+			}
+		}
+		units.put(unitKey, unitHash);
+	}
+}
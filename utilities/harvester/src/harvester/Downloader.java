@@ -0,0 +1,604 @@
+package harvester;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.json.simple.JSONObject;
+import org.json.simple.parser.ParseException;
+
+/**
+ * Concurrent download engine used by the {@link Harvester}. Requests are
+ * executed by a bounded pool, so at most <code>maxInFlight</code> requests are
+ * active at once, and request starts are spaced per host to respect a
+ * requests-per-second limit. Failed requests are retried with exponential
+ * backoff.
+ * <p/>
+ * Responses are cached in a {@link RawStore}, keyed by URL; if the response is
+ * already stored, and the {@link Manifest} doesn't consider it stale, the
+ * request is served from the store. Stale responses are refreshed with a
+ * conditional request where the server supports it. Each response is passed to
+ * a {@link ResponseHandler}, which can reject it by throwing an
+ * {@link InvalidResponseException}, in which case the stored response is
+ * removed and the request is retried. A stored response is kept if refreshing
+ * it fails, and is used if the retries fail too.
+ *
+ * @author Michael de Hoog
+ */
+public class Downloader implements Closeable
+{
+	private final static int CONNECT_TIMEOUT = 30000;
+	private final static int READ_TIMEOUT = 120000;
+	private final static long MAX_BACKOFF = 120000;
+	private final static long REPORT_INTERVAL = 10000;
+
+	/**
+	 * Handler called with the content of a successful (or cached) response.
+	 */
+	public static interface ResponseHandler<T>
+	{
+		T handle(InputStream input) throws IOException, ParseException;
+	}
+
+	/**
+	 * Thrown by a {@link ResponseHandler} if the response content is not valid
+	 * (eg the ABS returned an error message instead of data). The request is
+	 * retried.
+	 */
+	@SuppressWarnings("serial")
+	public static class InvalidResponseException extends IOException
+	{
+		public InvalidResponseException(String message)
+		{
+			super(message);
+		}
+	}
+
+	/**
+	 * Thrown by a {@link ResponseHandler} if the response could not be used
+	 * and retrying the request will not help (eg the handler has already
+	 * consumed part of the response).
+	 */
+	@SuppressWarnings("serial")
+	public static class FatalResponseException extends IOException
+	{
+		public FatalResponseException(String message, Throwable cause)
+		{
+			super(message, cause);
+		}
+	}
+
+	/**
+	 * Thrown when the server responds with an unsuccessful HTTP status code.
+	 */
+	@SuppressWarnings("serial")
+	public static class HttpStatusException extends IOException
+	{
+		public final int status;
+		public final long retryAfter;
+
+		public HttpStatusException(URL url, int status, long retryAfter)
+		{
+			super("HTTP " + status + " returned from " + url);
+			this.status = status;
+			this.retryAfter = retryAfter;
+		}
+
+		public boolean isRetryable()
+		{
+			return status >= 500 || status == 408 || status == 429;
+		}
+	}
+
+	private final RawStore store;
+	private final Manifest manifest;
+	private final int maxInFlight;
+	private final long hostIntervalNanos;
+	private final int maxAttempts;
+	private final long initialBackoff;
+	private final ExecutorService executor;
+	private final ScheduledExecutorService scheduler;
+	private final Map<String, HostRateLimiter> hostRateLimiters = new HashMap<>();
+	private final Random random = new Random();
+
+	private final AtomicInteger submitted = new AtomicInteger();
+	private final AtomicInteger completed = new AtomicInteger();
+	private final AtomicInteger cached = new AtomicInteger();
+	private final AtomicInteger notModified = new AtomicInteger();
+	private final AtomicInteger failed = new AtomicInteger();
+	private final AtomicInteger retries = new AtomicInteger();
+	private final AtomicInteger inFlight = new AtomicInteger();
+	private final AtomicLong bytes = new AtomicLong();
+	private final AtomicLong fetchNanos = new AtomicLong();
+	private final Histogram latency = new Histogram();
+	private final long startTime = System.nanoTime();
+
+	/**
+	 * @param store
+	 *            Store in which responses are cached
+	 * @param manifest
+	 *            Manifest in which downloaded responses are recorded
+	 * @param maxInFlight
+	 *            Maximum number of concurrent requests
+	 * @param requestsPerSecond
+	 *            Maximum number of requests started per second for each host
+	 *            (<= 0 for no limit)
+	 * @param maxAttempts
+	 *            Number of times a request is attempted before failing
+	 * @param initialBackoff
+	 *            Delay in milliseconds before the first retry; doubled for
+	 *            each subsequent retry
+	 */
+	public Downloader(RawStore store, Manifest manifest, int maxInFlight, double requestsPerSecond,
+			int maxAttempts, long initialBackoff)
+	{
+		this.store = store;
+		this.manifest = manifest;
+		this.maxInFlight = maxInFlight;
+		this.hostIntervalNanos = requestsPerSecond <= 0 ? 0 : (long) (1e9 / requestsPerSecond);
+		this.maxAttempts = maxAttempts;
+		this.initialBackoff = initialBackoff;
+		this.executor = Executors.newFixedThreadPool(maxInFlight, daemonThreadFactory("download"));
+		this.scheduler = Executors.newSingleThreadScheduledExecutor(daemonThreadFactory("download-scheduler"));
+		this.scheduler.scheduleAtFixedRate(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				System.out.println(progress());
+			}
+		}, REPORT_INTERVAL, REPORT_INTERVAL, TimeUnit.MILLISECONDS);
+	}
+
+	public int getMaxInFlight()
+	{
+		return maxInFlight;
+	}
+
+	/**
+	 * Queue a request. The returned future completes with the result of the
+	 * handler, or exceptionally if all attempts failed.
+	 */
+	public <T> Future<T> submit(URL url, ResponseHandler<T> handler)
+	{
+		return submit(new Attempt<>(url, handler, true, true));
+	}
+
+	/**
+	 * Queue a request whose response is passed straight to the handler, and
+	 * isn't stored.
+	 */
+	public <T> Future<T> submitUncached(URL url, ResponseHandler<T> handler)
+	{
+		return submit(new Attempt<>(url, handler, false, true));
+	}
+
+	/**
+	 * Queue a request that only makes sure the response is stored and fresh,
+	 * without handling its content. The returned future completes with the
+	 * response's manifest entry.
+	 */
+	public Future<Manifest.Entry> refresh(URL url)
+	{
+		final String key = url.toString();
+		return submit(new Attempt<>(url, new ResponseHandler<Manifest.Entry>()
+		{
+			@Override
+			public Manifest.Entry handle(InputStream input)
+			{
+				return manifest.get(key);
+			}
+		}, true, false));
+	}
+
+	private <T> Future<T> submit(Attempt<T> attempt)
+	{
+		submitted.incrementAndGet();
+		executor.execute(attempt);
+		return attempt.future;
+	}
+
+	/**
+	 * Build a human readable progress and throughput report.
+	 */
+	public String progress()
+	{
+		double seconds = (System.nanoTime() - startTime) / 1e9;
+		long b = bytes.get();
+		return String.format("Downloads: %d/%d complete (%d cached, %d not modified, %d failed, %d retries, "
+				+ "%d in flight), %.1f MB downloaded at %.1f KB/s, %.1f requests/s", completed.get() + failed.get(),
+				submitted.get(), cached.get(), notModified.get(), failed.get(), retries.get(), inFlight.get(),
+				b / 1048576.0, b / 1024.0 / seconds, completed.get() / seconds);
+	}
+
+	/**
+	 * @return Machine readable download statistics, including a histogram of
+	 *         request latencies (time to complete a request, including reading
+	 *         the response)
+	 */
+	@SuppressWarnings("unchecked")
+	public JSONObject toJson()
+	{
+		JSONObject json = new JSONObject();
+		json.put("submitted", submitted.get());
+		json.put("completed", completed.get());
+		json.put("cached", cached.get());
+		json.put("notModified", notModified.get());
+		json.put("failed", failed.get());
+		json.put("retries", retries.get());
+		json.put("inFlight", inFlight.get());
+		json.put("bytesDownloaded", bytes.get());
+		json.put("requests", latency.count());
+		json.put("requestMillis", fetchNanos.get() / 1000000);
+		json.put("latencyMillis", latency.toJson());
+		return json;
+	}
+
+	@Override
+	public void close()
+	{
+		executor.shutdown();
+		try
+		{
+			executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+		}
+		catch (InterruptedException e)
+		{
+		}
+		scheduler.shutdownNow();
+		System.out.println(progress());
+	}
+
+	private class Attempt<T> implements Runnable
+	{
+		private final URL url;
+		private final ResponseHandler<T> handler;
+		private final boolean cache;
+		private final boolean open;
+		private final CompletableFuture<T> future;
+		private final int attempt;
+
+		/**
+		 * @param cache
+		 *            Store the response, and serve it from the store if fresh
+		 * @param open
+		 *            Pass the response content to the handler; if false the
+		 *            handler is called with null
+		 */
+		public Attempt(URL url, ResponseHandler<T> handler, boolean cache, boolean open)
+		{
+			this(url, handler, cache, open, new CompletableFuture<T>(), 1);
+		}
+
+		private Attempt(URL url, ResponseHandler<T> handler, boolean cache, boolean open,
+				CompletableFuture<T> future, int attempt)
+		{
+			this.url = url;
+			this.handler = handler;
+			this.cache = cache;
+			this.open = open;
+			this.future = future;
+			this.attempt = attempt;
+		}
+
+		@Override
+		public void run()
+		{
+			String key = url.toString();
+			//set once the stored response is read; failures after that mean it is invalid or corrupt
+			boolean reading = false;
+			try
+			{
+				T result;
+				if (cache)
+				{
+					Manifest.Entry entry = store.contains(key) ? manifest.get(key) : null;
+					if (store.contains(key) && entry == null)
+					{
+						//stored before the manifest existed; the modification time is the best guess of its age
+						entry = manifest.record(key, store).touch(store.lastModified(key));
+						manifest.put(key, entry);
+					}
+					if (entry != null && !manifest.isStale(entry))
+					{
+						cached.incrementAndGet();
+					}
+					else
+					{
+						try
+						{
+							fetch(url, entry, null);
+						}
+						catch (IOException e)
+						{
+							//a failed refresh keeps the stored response, which is used once retrying won't help
+							if (entry == null || (isRetryable(e) && attempt < maxAttempts))
+							{
+								throw e;
+							}
+							System.out.println("Downloading from " + url + " failed (" + e.getLocalizedMessage()
+									+ "), using the stored response");
+							cached.incrementAndGet();
+						}
+					}
+					reading = true;
+					if (open)
+					{
+						try (InputStream input = store.open(key))
+						{
+							result = handler.handle(input);
+						}
+					}
+					else
+					{
+						result = handler.handle(null);
+					}
+				}
+				else
+				{
+					result = fetch(url, null, handler);
+				}
+				completed.incrementAndGet();
+				future.complete(result);
+			}
+			catch (IOException | ParseException e)
+			{
+				if (reading)
+				{
+					try
+					{
+						store.remove(key);
+					}
+					catch (IOException re)
+					{
+						System.err.println("Error removing " + key + " from the store: " + re.getLocalizedMessage());
+					}
+					manifest.remove(key);
+				}
+				if (!isRetryable(e) || attempt >= maxAttempts)
+				{
+					failed.incrementAndGet();
+					future.completeExceptionally(e);
+					return;
+				}
+				retries.incrementAndGet();
+				long delay = backoff(attempt, e);
+				System.out.println("Downloading from " + url + " failed (" + e.getLocalizedMessage()
+						+ "), retrying in " + delay + "ms (attempt " + (attempt + 1) + "/" + maxAttempts + ")");
+				scheduler.schedule(new Runnable()
+				{
+					@Override
+					public void run()
+					{
+						executor.execute(new Attempt<>(url, handler, cache, open, future, attempt + 1));
+					}
+				}, delay, TimeUnit.MILLISECONDS);
+			}
+			catch (RuntimeException e)
+			{
+				failed.incrementAndGet();
+				future.completeExceptionally(e);
+			}
+		}
+	}
+
+	private static boolean isRetryable(Exception e)
+	{
+		return !(e instanceof FatalResponseException)
+				&& (!(e instanceof HttpStatusException) || ((HttpStatusException) e).isRetryable());
+	}
+
+	private long backoff(int attempt, Exception e)
+	{
+		long delay = Math.min(MAX_BACKOFF, initialBackoff << Math.min(attempt - 1, 20));
+		double jitter;
+		synchronized (random)
+		{
+			jitter = 0.5 + random.nextDouble() * 0.5;
+		}
+		delay = (long) (delay * jitter);
+		if (e instanceof HttpStatusException)
+		{
+			delay = Math.max(delay, ((HttpStatusException) e).retryAfter);
+		}
+		return delay;
+	}
+
+	/**
+	 * Download the url. If a handler is given, the response content is passed
+	 * to it; otherwise the response is stored and recorded in the manifest.
+	 *
+	 * @param previous
+	 *            Manifest entry of the existing (stale) response, used to make
+	 *            a conditional request; null if there is no existing response
+	 * @return The result of the handler, or null if there is no handler
+	 */
+	private <T> T fetch(URL url, Manifest.Entry previous, ResponseHandler<T> handler) throws IOException,
+			ParseException
+	{
+		hostRateLimiter(url.getHost()).acquire();
+
+		System.out.println("Downloading " + url);
+		inFlight.incrementAndGet();
+		long start = System.nanoTime();
+		try
+		{
+			URLConnection connection = url.openConnection();
+			connection.setConnectTimeout(CONNECT_TIMEOUT);
+			connection.setReadTimeout(READ_TIMEOUT);
+			if (previous != null)
+			{
+				if (previous.etag != null)
+				{
+					connection.setRequestProperty("If-None-Match", previous.etag);
+				}
+				if (previous.lastModified != null)
+				{
+					connection.setRequestProperty("If-Modified-Since", previous.lastModified);
+				}
+			}
+			if (connection instanceof HttpURLConnection)
+			{
+				HttpURLConnection httpConnection = (HttpURLConnection) connection;
+				int status = httpConnection.getResponseCode();
+				if (status == HttpURLConnection.HTTP_NOT_MODIFIED && previous != null)
+				{
+					httpConnection.disconnect();
+					notModified.incrementAndGet();
+					manifest.put(url.toString(), previous.touch(System.currentTimeMillis()));
+					return null;
+				}
+				if (status < 200 || status >= 300)
+				{
+					long retryAfter = httpConnection.getHeaderFieldInt("Retry-After", 0) * 1000L;
+					httpConnection.disconnect();
+					throw new HttpStatusException(url, status, retryAfter);
+				}
+			}
+			MessageDigest digest = Manifest.digest();
+			try (CountingInputStream input = new CountingInputStream(new DigestInputStream(
+					connection.getInputStream(), digest)))
+			{
+				if (handler != null)
+				{
+					return handler.handle(new BufferedInputStream(input));
+				}
+				long time = System.currentTimeMillis();
+				store.put(url.toString(), input, time);
+				manifest.put(url.toString(), new Manifest.Entry(Manifest.toHex(digest.digest()), input.count, time,
+						connection.getHeaderField("ETag"), connection.getHeaderField("Last-Modified")));
+				return null;
+			}
+		}
+		finally
+		{
+			long nanos = System.nanoTime() - start;
+			fetchNanos.addAndGet(nanos);
+			latency.record(nanos / 1000000);
+			inFlight.decrementAndGet();
+		}
+	}
+
+	/**
+	 * Counts the bytes read, adding them to the downloaded byte count.
+	 */
+	private class CountingInputStream extends FilterInputStream
+	{
+		private long count = 0;
+
+		public CountingInputStream(InputStream in)
+		{
+			super(in);
+		}
+
+		@Override
+		public int read() throws IOException
+		{
+			int b = super.read();
+			if (b >= 0)
+			{
+				count(1);
+			}
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException
+		{
+			int read = super.read(b, off, len);
+			if (read > 0)
+			{
+				count(read);
+			}
+			return read;
+		}
+
+		private void count(int read)
+		{
+			count += read;
+			bytes.addAndGet(read);
+		}
+	}
+
+	private HostRateLimiter hostRateLimiter(String host)
+	{
+		synchronized (hostRateLimiters)
+		{
+			HostRateLimiter limiter = hostRateLimiters.get(host);
+			if (limiter == null)
+			{
+				limiter = new HostRateLimiter(hostIntervalNanos);
+				hostRateLimiters.put(host, limiter);
+			}
+			return limiter;
+		}
+	}
+
+	private static class HostRateLimiter
+	{
+		private final long intervalNanos;
+		private long next = System.nanoTime();
+
+		public HostRateLimiter(long intervalNanos)
+		{
+			this.intervalNanos = intervalNanos;
+		}
+
+		public void acquire()
+		{
+			long wait;
+			synchronized (this)
+			{
+				long now = System.nanoTime();
+				long start = Math.max(now, next);
+				next = start + intervalNanos;
+				wait = start - now;
+			}
+			if (wait > 0)
+			{
+				try
+				{
+					TimeUnit.NANOSECONDS.sleep(wait);
+				}
+				catch (InterruptedException e)
+				{
+					Thread.currentThread().interrupt();
+				}
+			}
+		}
+	}
+
+	static ThreadFactory daemonThreadFactory(final String name)
+	{
+		final AtomicInteger count = new AtomicInteger();
+		return new ThreadFactory()
+		{
+			@Override
+			public Thread newThread(Runnable r)
+			{
+				Thread thread = new Thread(r, name + "-" + count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		};
+	}
+}
@@ -0,0 +1,268 @@
+package harvester;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * {@link RawStore} that keeps each response in its own file, using the
+ * harvester's original cache layout:
+ *
+ * <pre>
+ * datasetList.json
+ * concepts/&lt;dataset&gt;.json
+ * codeLists/&lt;dataset&gt;/&lt;concept&gt;.json
+ * data/&lt;dataset&gt;/AUS/0.json
+ * data/&lt;dataset&gt;/&lt;region type&gt;/parent&lt;code&gt;.json
+ * </pre>
+ *
+ * Any other request is stored as <code>other/&lt;hash&gt;.json</code>, with
+ * its URL in a <code>.key</code> file next to it.
+ *
+ * @author Michael de Hoog
+ */
+public class FileRawStore implements RawStore
+{
+	private final static String[] DIRECTORIES = { "concepts", "codeLists", "data", "other" };
+	private final static String DATASET_LIST_PATH = "datasetList.json";
+	private final static String KEY_SUFFIX = ".key";
+
+	private final File rootDir;
+	private final String queryUrl;
+
+	/**
+	 * @param queryUrl
+	 *            Base URL of the ABS.Stat query service, used to map between
+	 *            request URLs and paths
+	 */
+	public FileRawStore(File rootDir, String queryUrl)
+	{
+		this.rootDir = rootDir;
+		this.queryUrl = queryUrl;
+	}
+
+	@Override
+	public boolean contains(String key)
+	{
+		return file(key).isFile();
+	}
+
+	@Override
+	public long lastModified(String key)
+	{
+		File file = file(key);
+		return file.isFile() ? file.lastModified() : -1;
+	}
+
+	@Override
+	public InputStream open(String key) throws IOException
+	{
+		File file = file(key);
+		if (!file.isFile())
+		{
+			throw new FileNotFoundException("No content for " + key);
+		}
+		return new BufferedInputStream(new FileInputStream(file));
+	}
+
+	@Override
+	public void put(String key, InputStream input, long time) throws IOException
+	{
+		String path = path(key);
+		File file = new File(rootDir, path);
+		file.getParentFile().mkdirs();
+		File tempFile = new File(file.getParentFile(), file.getName() + ".part");
+		try
+		{
+			try (OutputStream output = new FileOutputStream(tempFile))
+			{
+				byte[] buffer = new byte[65536];
+				int read;
+				while ((read = input.read(buffer)) >= 0)
+				{
+					output.write(buffer, 0, read);
+				}
+			}
+			tempFile.setLastModified(time);
+			Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+		}
+		finally
+		{
+			tempFile.delete();
+		}
+		if (path.startsWith("other/"))
+		{
+			Files.write(new File(rootDir, path + KEY_SUFFIX).toPath(), key.getBytes(StandardCharsets.UTF_8));
+		}
+	}
+
+	@Override
+	public void remove(String key)
+	{
+		String path = path(key);
+		new File(rootDir, path).delete();
+		new File(rootDir, path + KEY_SUFFIX).delete();
+	}
+
+	@Override
+	public List<String> keys() throws IOException
+	{
+		List<String> keys = new ArrayList<>();
+		if (new File(rootDir, DATASET_LIST_PATH).isFile())
+		{
+			keys.add(key(DATASET_LIST_PATH));
+		}
+		for (String directory : DIRECTORIES)
+		{
+			addKeys(new File(rootDir, directory), directory, keys);
+		}
+		return keys;
+	}
+
+	@Override
+	public void close()
+	{
+	}
+
+	private void addKeys(File directory, String path, List<String> keys) throws IOException
+	{
+		File[] children = directory.listFiles();
+		if (children == null)
+		{
+			return;
+		}
+		for (File child : children)
+		{
+			String childPath = path + "/" + child.getName();
+			if (child.isDirectory())
+			{
+				addKeys(child, childPath, keys);
+			}
+			else if (childPath.endsWith(".json"))
+			{
+				String key = childPath.startsWith("other/") ? new String(Files.readAllBytes(new File(rootDir,
+						childPath + KEY_SUFFIX).toPath()), StandardCharsets.UTF_8) : key(childPath);
+				if (key != null)
+				{
+					keys.add(key);
+				}
+			}
+		}
+	}
+
+	private File file(String key)
+	{
+		return new File(rootDir, path(key));
+	}
+
+	/**
+	 * @return The path of the file the content for the key is stored in,
+	 *         relative to the root directory
+	 */
+	public String path(String key)
+	{
+		String path = layoutPath(key);
+		if (path != null && key.equals(key(path)))
+		{
+			return path;
+		}
+		return "other/" + Manifest.toHex(Manifest.digest().digest(key.getBytes(StandardCharsets.UTF_8))) + ".json";
+	}
+
+	private String layoutPath(String key)
+	{
+		if (!key.startsWith(queryUrl + "?"))
+		{
+			return null;
+		}
+		Map<String, String> params = new LinkedHashMap<>();
+		for (String param : key.substring(queryUrl.length() + 1).split("&"))
+		{
+			int index = param.indexOf('=');
+			if (index < 0 || params.containsKey(param.substring(0, index)))
+			{
+				return null;
+			}
+			params.put(param.substring(0, index), param.substring(index + 1));
+		}
+		String method = params.get("method");
+		String datasetId = params.get("datasetid");
+		if ("GetDatasetList".equals(method))
+		{
+			return DATASET_LIST_PATH;
+		}
+		else if ("GetDatasetConcepts".equals(method))
+		{
+			return "concepts/" + datasetId + ".json";
+		}
+		else if ("GetCodeListValue".equals(method))
+		{
+			return "codeLists/" + datasetId + "/" + params.get("concept") + ".json";
+		}
+		else if ("GetGenericData".equals(method))
+		{
+			String and = params.get("and");
+			String orParent = params.get("orParent");
+			if ("REGION.0".equals(and))
+			{
+				return "data/" + datasetId + "/AUS/0.json";
+			}
+			else if (and != null && and.startsWith("REGIONTYPE.") && orParent != null
+					&& orParent.startsWith("REGION."))
+			{
+				return "data/" + datasetId + "/" + and.substring("REGIONTYPE.".length()) + "/parent"
+						+ orParent.substring("REGION.".length()) + ".json";
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @return The request URL for a path in the cache layout, or null if the
+	 *         path isn't part of the layout
+	 */
+	private String key(String path)
+	{
+		String[] parts = path.substring(0, path.length() - ".json".length()).split("/");
+		String prefix = queryUrl + "?method=";
+		if (parts.length == 1 && path.equals(DATASET_LIST_PATH))
+		{
+			return prefix + "GetDatasetList";
+		}
+		else if (parts.length == 2 && parts[0].equals("concepts"))
+		{
+			return prefix + "GetDatasetConcepts&datasetid=" + parts[1];
+		}
+		else if (parts.length == 3 && parts[0].equals("codeLists"))
+		{
+			return prefix + "GetCodeListValue&datasetid=" + parts[1] + "&concept=" + parts[2] + "&format=json";
+		}
+		else if (parts.length == 4 && parts[0].equals("data"))
+		{
+			String data = prefix + "GetGenericData&datasetid=" + parts[1];
+			if (parts[2].equals("AUS") && parts[3].equals("0"))
+			{
+				return data + "&and=REGION.0";
+			}
+			else if (parts[3].startsWith("parent"))
+			{
+				return data + "&and=REGIONTYPE." + parts[2] + "&orParent=REGION."
+						+ parts[3].substring("parent".length());
+			}
+		}
+		return null;
+	}
+}
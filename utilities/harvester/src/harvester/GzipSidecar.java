@@ -0,0 +1,111 @@
+package harvester;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes a gzip compressed copy next to an output file (<code>file.gz</code>),
+ * compressed once at the best compression level, so a web server can send it
+ * as is to clients that accept gzip instead of compressing every response.
+ * <p/>
+ * Can also be run to add the sidecars of the existing files in the given
+ * directories (or files), eg of processed outputs written before sidecars.
+ *
+ * @author Michael de Hoog
+ */
+public class GzipSidecar
+{
+	public final static String SUFFIX = ".gz";
+
+	public static void main(String[] args) throws IOException
+	{
+		long before = 0, after = 0;
+		for (String arg : args)
+		{
+			long[] sizes = compressTree(new File(arg));
+			before += sizes[0];
+			after += sizes[1];
+		}
+		System.out.println(String.format("Compressed %,d bytes to %,d bytes", before, after));
+	}
+
+	private static long[] compressTree(File file) throws IOException
+	{
+		long[] sizes = new long[2];
+		if (file.isDirectory())
+		{
+			File[] children = file.listFiles();
+			if (children != null)
+			{
+				for (File child : children)
+				{
+					long[] childSizes = compressTree(child);
+					sizes[0] += childSizes[0];
+					sizes[1] += childSizes[1];
+				}
+			}
+		}
+		else if (file.isFile() && !file.getName().endsWith(SUFFIX) && !file.getName().endsWith(".tmp"))
+		{
+			byte[] content = Files.readAllBytes(file.toPath());
+			byte[] compressed = compress(content);
+			AtomicFile.write(file(file), compressed);
+			sizes[0] = content.length;
+			sizes[1] = compressed.length;
+		}
+		return sizes;
+	}
+
+	/**
+	 * @return The sidecar of the file
+	 */
+	public static File file(File file)
+	{
+		return new File(file.getParentFile(), file.getName() + SUFFIX);
+	}
+
+	public static byte[] compress(byte[] content) throws IOException
+	{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(content.length / 4 + 64);
+		try (OutputStream output = new GZIPOutputStream(bytes)
+		{
+			{
+				def.setLevel(Deflater.BEST_COMPRESSION);
+			}
+		})
+		{
+			output.write(content);
+		}
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Write the file with {@link AtomicFile}, and its sidecar if enabled. If
+	 * not, any existing sidecar is deleted, as it would be stale.
+	 *
+	 * @return The number of bytes written
+	 */
+	public static long write(File file, byte[] content, boolean sidecar) throws IOException
+	{
+		//the sidecar is written after the file, so a sidecar older than its file is known to be stale
+		File sidecarFile = file(file);
+		if (!sidecar)
+		{
+			sidecarFile.delete();
+		}
+		AtomicFile.write(file, content);
+		long written = content.length;
+		if (sidecar)
+		{
+			byte[] compressed = compress(content);
+			AtomicFile.write(sidecarFile, compressed);
+			written += compressed.length;
+		}
+		return written;
+	}
+}
@@ -0,0 +1,364 @@
+package harvester;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+/**
+ * Thread-safe sink for errors, per-dataset results and run metrics, shared by
+ * the {@link Harvester} processing workers. Errors are appended to an error
+ * file (one per line) as they occur; dataset results are collected and
+ * summarized when the report is closed.
+ * <p/>
+ * The metrics (time spent in each processing phase, bytes written, peak data
+ * tree size per dataset, and the {@link Downloader}'s statistics) are written
+ * to a machine readable JSON run report, which is rewritten with a progress
+ * snapshot at a regular interval during the run, and finalized when the
+ * report is closed.
+ *
+ * @author Michael de Hoog
+ */
+public class HarvestReport implements Closeable
+{
+	private final static String LINE_SEPARATOR = System.getProperty("line.separator");
+
+	public static enum Status
+	{
+		PROCESSED,
+		SKIPPED,
+		FAILED
+	}
+
+	/**
+	 * Processing phases that are timed per dataset. Parsing and tree building
+	 * happen on the download threads as responses are streamed, so they
+	 * overlap with the time the dataset's worker spends waiting on downloads.
+	 * Likewise writing happens on the {@link OutputWriter}'s threads, while
+	 * the worker serializes the next output.
+	 */
+	public static enum Phase
+	{
+		DOWNLOAD_WAIT("downloadWait"),
+		PARSE("parse"),
+		TREE_BUILD("treeBuild"),
+		ROLLUP("rollup"),
+		TABLE_BUILD("tableBuild"),
+		SERIALIZE("serialize"),
+		WRITE("write");
+
+		public final String key;
+
+		private Phase(String key)
+		{
+			this.key = key;
+		}
+	}
+
+	public static class DatasetResult
+	{
+		public final String datasetId;
+		public final Status status;
+		public final long millis;
+		public final int errors;
+
+		public DatasetResult(String datasetId, Status status, long millis, int errors)
+		{
+			this.datasetId = datasetId;
+			this.status = status;
+			this.millis = millis;
+			this.errors = errors;
+		}
+
+		@Override
+		public String toString()
+		{
+			return datasetId + ": " + status + " in " + millis + "ms (" + errors + " error(s))";
+		}
+	}
+
+	/**
+	 * Metrics gathered while processing a single dataset. Thread-safe.
+	 */
+	public static class DatasetMetrics
+	{
+		private final AtomicLongArray phaseNanos = new AtomicLongArray(Phase.values().length);
+		private final AtomicLong bytesWritten = new AtomicLong();
+		private long peakNodes = 0;
+		private long peakSeries = 0;
+		private long peakObservations = 0;
+
+		public void addTime(Phase phase, long nanos)
+		{
+			phaseNanos.addAndGet(phase.ordinal(), nanos);
+		}
+
+		/**
+		 * Add the time since the given start time (from
+		 * {@link System#nanoTime()}) to the phase.
+		 *
+		 * @return The current time, to use as the start time of the next phase
+		 */
+		public long addTimeSince(Phase phase, long startNanos)
+		{
+			long now = System.nanoTime();
+			addTime(phase, now - startNanos);
+			return now;
+		}
+
+		public void addBytesWritten(long bytes)
+		{
+			bytesWritten.addAndGet(bytes);
+		}
+
+		/**
+		 * Record the current size of the dataset's data tree, keeping the peak.
+		 */
+		public synchronized void treeSize(long nodes, long series, long observations)
+		{
+			peakNodes = Math.max(peakNodes, nodes);
+			peakSeries = Math.max(peakSeries, series);
+			peakObservations = Math.max(peakObservations, observations);
+		}
+
+		@SuppressWarnings("unchecked")
+		public synchronized JSONObject toJson()
+		{
+			JSONObject json = new JSONObject();
+			json.put("phaseMillis", phasesJson(phaseNanos));
+			json.put("bytesWritten", bytesWritten.get());
+			JSONObject treeJson = new JSONObject();
+			treeJson.put("nodes", peakNodes);
+			treeJson.put("series", peakSeries);
+			treeJson.put("observations", peakObservations);
+			json.put("peakTreeSize", treeJson);
+			return json;
+		}
+	}
+
+	private final Writer errorWriter;
+	private final File reportFile;
+	private final Downloader downloader;
+	private final ScheduledExecutorService scheduler;
+	private final long startTime = System.currentTimeMillis();
+	private final List<DatasetResult> results = new ArrayList<>();
+	private final Map<String, DatasetMetrics> metrics = new LinkedHashMap<>();
+	private final List<JSONObject> snapshots = new ArrayList<>();
+	private final Map<String, Integer> datasetErrorCounts = new HashMap<>();
+	private int errorCount = 0;
+
+	/**
+	 * @param reportFile
+	 *            File to write the JSON run report to
+	 * @param downloader
+	 *            Downloader whose statistics are included in the run report
+	 * @param snapshotInterval
+	 *            Interval in milliseconds at which progress snapshots are
+	 *            taken and the run report is rewritten (<= 0 for never)
+	 */
+	public HarvestReport(File errorFile, File reportFile, Downloader downloader, long snapshotInterval)
+			throws IOException
+	{
+		errorWriter = new FileWriter(errorFile);
+		this.reportFile = reportFile;
+		this.downloader = downloader;
+		this.scheduler = Executors.newSingleThreadScheduledExecutor(Downloader.daemonThreadFactory("report"));
+		if (snapshotInterval > 0)
+		{
+			scheduler.scheduleAtFixedRate(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					try
+					{
+						snapshot(false);
+					}
+					catch (IOException e)
+					{
+						System.err.println("Error writing run report: " + e.getLocalizedMessage());
+					}
+				}
+			}, snapshotInterval, snapshotInterval, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Record an error for the given dataset.
+	 */
+	public synchronized void error(String datasetId, String message)
+	{
+		errorCount++;
+		Integer datasetErrorCount = datasetErrorCounts.get(datasetId);
+		datasetErrorCounts.put(datasetId, datasetErrorCount == null ? 1 : datasetErrorCount + 1);
+		try
+		{
+			errorWriter.write(datasetId + ": " + message + LINE_SEPARATOR);
+			errorWriter.flush();
+		}
+		catch (IOException e)
+		{
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * @return Number of errors recorded so far for the given dataset
+	 */
+	public synchronized int errorCount(String datasetId)
+	{
+		Integer datasetErrorCount = datasetErrorCounts.get(datasetId);
+		return datasetErrorCount == null ? 0 : datasetErrorCount;
+	}
+
+	/**
+	 * @return The metrics of the given dataset, created on first use
+	 */
+	public synchronized DatasetMetrics datasetMetrics(String datasetId)
+	{
+		DatasetMetrics datasetMetrics = metrics.get(datasetId);
+		if (datasetMetrics == null)
+		{
+			datasetMetrics = new DatasetMetrics();
+			metrics.put(datasetId, datasetMetrics);
+		}
+		return datasetMetrics;
+	}
+
+	/**
+	 * Record the result of processing a dataset.
+	 */
+	public synchronized void datasetResult(DatasetResult result)
+	{
+		results.add(result);
+		System.out.println("Finished dataset " + result + " [" + results.size() + " dataset(s) done]");
+	}
+
+	public synchronized List<DatasetResult> results()
+	{
+		return new ArrayList<>(results);
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		//cancels the periodic snapshots, but one that is running must finish first, as it writes the same file
+		scheduler.shutdown();
+		try
+		{
+			scheduler.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+		}
+		catch (InterruptedException e)
+		{
+		}
+		synchronized (this)
+		{
+			int[] counts = new int[Status.values().length];
+			for (DatasetResult result : results)
+			{
+				counts[result.status.ordinal()]++;
+			}
+			System.out.println("Datasets: " + counts[Status.PROCESSED.ordinal()] + " processed, "
+					+ counts[Status.SKIPPED.ordinal()] + " skipped, " + counts[Status.FAILED.ordinal()] + " failed; "
+					+ errorCount + " error(s)");
+			errorWriter.close();
+		}
+		snapshot(true);
+	}
+
+	/**
+	 * Take a progress snapshot and rewrite the run report.
+	 */
+	@SuppressWarnings("unchecked")
+	private void snapshot(boolean finished) throws IOException
+	{
+		JSONObject downloads = downloader.toJson();
+		JSONObject json = new JSONObject();
+		synchronized (this)
+		{
+			long elapsed = System.currentTimeMillis() - startTime;
+			AtomicLongArray phaseNanos = new AtomicLongArray(Phase.values().length);
+			long bytesWritten = 0;
+			for (DatasetMetrics datasetMetrics : metrics.values())
+			{
+				for (int i = 0; i < phaseNanos.length(); i++)
+				{
+					phaseNanos.addAndGet(i, datasetMetrics.phaseNanos.get(i));
+				}
+				bytesWritten += datasetMetrics.bytesWritten.get();
+			}
+
+			MemoryUsage heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+			JSONObject snapshot = new JSONObject();
+			snapshot.put("elapsedMillis", elapsed);
+			snapshot.put("datasetsDone", results.size());
+			snapshot.put("errors", errorCount);
+			snapshot.put("downloadsCompleted", downloads.get("completed"));
+			snapshot.put("downloadsSubmitted", downloads.get("submitted"));
+			snapshot.put("bytesDownloaded", downloads.get("bytesDownloaded"));
+			snapshot.put("bytesWritten", bytesWritten);
+			snapshot.put("heapUsed", heap.getUsed());
+			snapshots.add(snapshot);
+
+			JSONObject statusCounts = new JSONObject();
+			for (Status status : Status.values())
+			{
+				statusCounts.put(status.name().toLowerCase(), 0);
+			}
+			JSONArray datasetsJson = new JSONArray();
+			for (DatasetResult result : results)
+			{
+				String status = result.status.name().toLowerCase();
+				statusCounts.put(status, ((Integer) statusCounts.get(status)) + 1);
+				JSONObject datasetJson = metrics.containsKey(result.datasetId) ? metrics.get(result.datasetId)
+						.toJson() : new JSONObject();
+				datasetJson.put("id", result.datasetId);
+				datasetJson.put("status", status);
+				datasetJson.put("millis", result.millis);
+				datasetJson.put("errors", result.errors);
+				datasetsJson.add(datasetJson);
+			}
+
+			json.put("startTime", startTime);
+			json.put("elapsedMillis", elapsed);
+			json.put("finished", finished);
+			json.put("errors", errorCount);
+			json.put("datasetCounts", statusCounts);
+			json.put("phaseMillis", phasesJson(phaseNanos));
+			json.put("bytesWritten", bytesWritten);
+			json.put("downloads", downloads);
+			json.put("datasets", datasetsJson);
+			JSONArray snapshotsJson = new JSONArray();
+			snapshotsJson.addAll(snapshots);
+			json.put("snapshots", snapshotsJson);
+		}
+		AtomicFile.write(reportFile, json);
+	}
+
+	@SuppressWarnings("unchecked")
+	private static JSONObject phasesJson(AtomicLongArray phaseNanos)
+	{
+		JSONObject json = new JSONObject();
+		for (Phase phase : Phase.values())
+		{
+			json.put(phase.key, phaseNanos.get(phase.ordinal()) / 1000000);
+		}
+		return json;
+	}
+}
@@ -1,25 +1,33 @@
 package harvester;
 
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileOutputStream;
-import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.io.Writer;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.net.URL;
-import java.nio.channels.Channels;
-import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
@@ -35,20 +43,74 @@ import org.json.simple.parser.ParseException;
  */
 public class Harvester
 {
-	private final static String LINE_SEPARATOR = System.getProperty("line.separator");
-	private final static boolean OVERWRITE_PROCESSED = false;
+	private final static boolean OVERWRITE_PROCESSED = Boolean.getBoolean("harvester.overwrite");
 	private final static String REGION_CONCEPT_ID = "REGION";
 	private final static String REGION_TYPE_CONCEPT_ID = "REGIONTYPE";
 	private final static String SA2_REGION_TYPE_CODE = "SA2";
-	private final static int PROCESSING_THREAD_COUNT = 1;
-	@SuppressWarnings("serial")
-	private final static Set<String> UNITS_TO_IGNORE = new HashSet<String>()
+	//region type of each level of the region hierarchy, from the root
+	private final static String[] REGION_LEVEL_TYPES = { "AUS", "STE", "SA4", "SA3", "SA2" };
+	private final static int PROCESSING_THREAD_COUNT = Integer.getInteger("harvester.processingThreads", Runtime
+			.getRuntime().availableProcessors());
+	private final static String QUERY_URL = System.getProperty("harvester.queryUrl",
+			"http://stat.abs.gov.au/itt/query.jsp");
+	private final static int DOWNLOAD_THREAD_COUNT = Integer.getInteger("harvester.downloadThreads", 8);
+	private final static double DOWNLOAD_REQUESTS_PER_SECOND = Double.parseDouble(System.getProperty(
+			"harvester.requestsPerSecond", "4"));
+	private final static int DOWNLOAD_ATTEMPTS = Integer.getInteger("harvester.downloadAttempts", 5);
+	private final static long DOWNLOAD_BACKOFF = Long.getLong("harvester.downloadBackoff", 2000);
+	//processed output format: "json", "binary", or "both"
+	private final static String OUTPUT_FORMAT = System.getProperty("harvester.outputFormat", "json");
+	private final static boolean WRITE_JSON = !"binary".equals(OUTPUT_FORMAT);
+	private final static boolean WRITE_BINARY = "binary".equals(OUTPUT_FORMAT) || "both".equals(OUTPUT_FORMAT);
+	private final static boolean QUANTIZE_BINARY = Boolean.getBoolean("harvester.quantize");
+	//write each measure as a shard per region level (eg MEASURE.1.STE.json), instead of a single file
+	private final static boolean SHARD_LEVELS = Boolean.getBoolean("harvester.shardLevels");
+	//number of times per slice when partitioning each measure by time (eg MEASURE.1.T0.json), 0 to not partition
+	private final static int TIME_SLICE = Integer.getInteger("harvester.timeSlice", 0);
+	//write regions.json, a dictionary of the regions of each level, and the values as rows in dictionary order
+	private final static boolean REGION_INDEX = Boolean.getBoolean("harvester.regionIndex");
+	//downloaded files older than this are revalidated with the server (< 0 to never revalidate)
+	private final static long MAX_AGE = (long) (Double.parseDouble(System.getProperty("harvester.maxAgeHours",
+			"12")) * 3600000L);
+	//limits for packing several region parents into a single GetGenericData request
+	private final static int MAX_URL_LENGTH = Integer.getInteger("harvester.maxUrlLength", 2000);
+	private final static long MAX_SERIES_PER_REQUEST = Long.getLong("harvester.maxSeriesPerRequest", 20000);
+	//raw response store: "files" (one file per response) or "pack" (a single compressed pack file)
+	private final static String RAW_STORE = System.getProperty("harvester.rawStore", "files");
+	//roll up the parent region levels of datasets with only additive measures from SA2, instead of downloading them
+	private final static boolean ROLLUP = Boolean.getBoolean("harvester.rollup");
+	//interval at which a progress snapshot is added to the run report
+	private final static long REPORT_INTERVAL = (long) (Double.parseDouble(System.getProperty(
+			"harvester.reportIntervalSeconds", "60")) * 1000);
+	//threads that write the processed output files, and the maximum number of files waiting to be written
+	private final static int WRITER_THREAD_COUNT = Integer.getInteger("harvester.writerThreads", 2);
+	private final static int MAX_QUEUED_WRITES = Integer.getInteger("harvester.maxQueuedWrites", 64);
+	//formatting of non-integral numbers in the JSON output: "java" (as Double.toString) or "shortest" round-trip
+	private final static JsonWriter.NumberFormat NUMBER_FORMAT = JsonWriter.NumberFormat.parse(System.getProperty(
+			"harvester.numberFormat", "java"));
+	private final static String AGGREGATION_FILE = System.getProperty("harvester.aggregation",
+			"aggregation.properties");
+	//write a gzip compressed copy (.gz) next to each output file, for web servers to send to clients as is
+	private final static boolean GZIP_SIDECARS = Boolean.parseBoolean(System.getProperty("harvester.gzip", "true"));
+	//processing options that affect the output; changing these invalidates the processed datasets
+	private final static String PROCESSING_OPTIONS = "format=" + OUTPUT_FORMAT + ";quantize=" + QUANTIZE_BINARY
+			+ ";numberFormat=" + NUMBER_FORMAT.name().toLowerCase() + ";shardLevels=" + SHARD_LEVELS
+			+ ";timeSlice=" + TIME_SLICE + ";gzip=" + GZIP_SIDECARS;
+	private final static CodeListRegistry codeLists = new CodeListRegistry();
+	private static RawStore rawStore;
+	private static Manifest manifest;
+	private static Aggregation aggregation;
+	private static Downloader downloader;
+	private static OutputWriter outputWriter;
+	private static RegionIndex regionIndex;
+
+	private final static Downloader.ResponseHandler<JSONObject> JSON_OBJECT_HANDLER = new Downloader.ResponseHandler<JSONObject>()
 	{
+		@Override
+		public JSONObject handle(InputStream input) throws IOException, ParseException
 		{
-			add("no.");
-			add("no");
-			add("number");
-			add("#");
+			JSONParser parser = new JSONParser();
+			return (JSONObject) parser.parse(new InputStreamReader(input, StandardCharsets.UTF_8));
 		}
 	};
 
@@ -58,6 +120,8 @@ public class Harvester
 		public final String description;
 		public final List<Concept> concepts = new ArrayList<>();
 		public final Map<String, Concept> conceptMap = new HashMap<>();
+		//manifest keys of the metadata the dataset is built from (concepts and code lists)
+		public final List<String> inputKeys = new ArrayList<>();
 
 		public Dataset(String id, String description)
 		{
@@ -76,15 +140,21 @@ public class Harvester
 	{
 		public final Dataset dataset;
 		public final String id;
-		public final List<Code> codes = new ArrayList<>();
-		public final List<Code> rootCodes = new ArrayList<>();
-		public final Map<String, Code> allCodesMap = new HashMap<>();
+		//shared with the other datasets with the same code list; read only
+		public final CodeList codeList;
+		public final List<Code> codes;
+		public final List<Code> rootCodes;
+		public final Map<String, Code> allCodesMap;
 		public final Set<Code> usedCodes = new HashSet<>();
 
-		public Concept(Dataset dataset, String id)
+		public Concept(Dataset dataset, String id, CodeList codeList)
 		{
 			this.dataset = dataset;
 			this.id = id;
+			this.codeList = codeList;
+			this.codes = codeList.codes;
+			this.rootCodes = codeList.rootCodes;
+			this.allCodesMap = codeList.codeMap;
 		}
 
 		@Override
@@ -94,19 +164,23 @@ public class Harvester
 		}
 	}
 
+	/**
+	 * A code of a {@link CodeList}. Codes are shared between datasets, so they
+	 * don't refer to a dataset's concept, and are read only once the code list
+	 * has linked them to their parent.
+	 */
 	public static class Code
 	{
-		public final Concept concept;
 		public final String id;
 		public final String description;
 		public final String units;
 		public final String parentId;
-		public Code parent;
-		public final List<Code> children = new ArrayList<>();
+		Code parent;
+		final List<Code> childList = new ArrayList<>();
+		public final List<Code> children = Collections.unmodifiableList(childList);
 
-		public Code(Concept concept, String id, String description, String units, String parentId)
+		public Code(String id, String description, String units, String parentId)
 		{
-			this.concept = concept;
 			this.id = id;
 			this.description = description;
 			this.units = units;
@@ -124,47 +198,222 @@ public class Harvester
 	{
 		public final Code code;
 		public final Concept childConcept;
-		public final DataValues values;
 		public final List<Code> codes = new ArrayList<>();
 		public final Map<Code, Data> data = new HashMap<>();
+		public final Map<Code, DataValues> values = new HashMap<>();
+		public int count = 0;
+		public int[] timeCounts = new int[0];
 		public double min = Double.MAX_VALUE;
 		public double max = -Double.MAX_VALUE;
 
-		public Data(Code code, Concept childConcept, DataValues values)
+		public Data(Code code, Concept childConcept)
 		{
 			this.code = code;
 			this.childConcept = childConcept;
-			this.values = values;
+		}
+
+		/**
+		 * Add a leaf series, gathering the series count, per-time counts and
+		 * min/max as it is inserted.
+		 */
+		public void addValues(Code code, DataValues values)
+		{
+			codes.add(code);
+			this.values.put(code, values);
+			count++;
+			for (int i = 0; i < values.size(); i++)
+			{
+				int time = values.times[i];
+				if (time >= timeCounts.length)
+				{
+					timeCounts = Arrays.copyOf(timeCounts, Math.max(time + 1, timeCounts.length * 2));
+				}
+				timeCounts[time]++;
+				if (!values.isNull(i))
+				{
+					min = Math.min(min, values.values[i]);
+					max = Math.max(max, values.values[i]);
+				}
+			}
 		}
 	}
 
+	/**
+	 * Observations for a single series. Times are stored as indices into the
+	 * dataset's {@link TimeTable}, and values are parsed once into a
+	 * <code>double[]</code>, with a bitmap marking null (or non-numeric) values.
+	 */
 	public static class DataValues
 	{
-		public final List<String> times = new ArrayList<>();
-		public final Map<String, String> values = new HashMap<>();
+		public final int[] times;
+		public final double[] values;
+		public final long[] nulls;
+
+		public DataValues(int[] times, double[] values, long[] nulls)
+		{
+			this.times = times;
+			this.values = values;
+			this.nulls = nulls;
+		}
+
+		public static DataValues parse(TimeTable timeTable, List<String> times, List<String> values)
+		{
+			int size = times.size();
+			int[] timeIndices = new int[size];
+			double[] doubles = new double[size];
+			long[] nulls = new long[(size + 63) >> 6];
+			BitSet seen = new BitSet();
+			for (int i = 0; i < size; i++)
+			{
+				String time = times.get(i);
+				int index = timeTable.index(time);
+				assertTrue(!seen.get(index), "Value for time '" + time + "' has already been added");
+				seen.set(index);
+				timeIndices[i] = index;
+
+				String value = values.get(i);
+				double d = Double.NaN;
+				if (value != null)
+				{
+					try
+					{
+						d = Double.parseDouble(value);
+					}
+					catch (NumberFormatException e)
+					{
+					}
+				}
+				if (Double.isNaN(d))
+				{
+					nulls[i >> 6] |= 1L << i;
+				}
+				else
+				{
+					doubles[i] = d;
+				}
+			}
+			return new DataValues(timeTable.intern(timeIndices), doubles, nulls);
+		}
+
+		public int size()
+		{
+			return times.length;
+		}
+
+		public boolean isNull(int i)
+		{
+			return (nulls[i >> 6] & (1L << i)) != 0;
+		}
+	}
+
+	/**
+	 * Interns the observation times of a dataset to dense indices. The time
+	 * index arrays of each series are interned too, as most series of a dataset
+	 * share the same times. Thread-safe.
+	 */
+	public static class TimeTable
+	{
+		private final List<String> times = new ArrayList<>();
+		private final Map<String, Integer> indices = new HashMap<>();
+		private final Map<IntArrayKey, int[]> layouts = new HashMap<>();
+
+		public synchronized int index(String time)
+		{
+			Integer index = indices.get(time);
+			if (index == null)
+			{
+				index = times.size();
+				times.add(time);
+				indices.put(time, index);
+			}
+			return index;
+		}
+
+		public synchronized String time(int index)
+		{
+			return times.get(index);
+		}
+
+		public synchronized int size()
+		{
+			return times.size();
+		}
+
+		public synchronized int[] intern(int[] layout)
+		{
+			IntArrayKey key = new IntArrayKey(layout);
+			int[] interned = layouts.get(key);
+			if (interned == null)
+			{
+				layouts.put(key, layout);
+				interned = layout;
+			}
+			return interned;
+		}
+
+		private static class IntArrayKey
+		{
+			private final int[] array;
+			private final int hashCode;
+
+			public IntArrayKey(int[] array)
+			{
+				this.array = array;
+				this.hashCode = Arrays.hashCode(array);
+			}
+
+			@Override
+			public int hashCode()
+			{
+				return hashCode;
+			}
+
+			@Override
+			public boolean equals(Object obj)
+			{
+				return obj instanceof IntArrayKey && Arrays.equals(array, ((IntArrayKey) obj).array);
+			}
+		}
 	}
 
 	public static void main(String[] args) throws IOException, ParseException
 	{
 		File rootDir = new File("downloaded");
 		File processedDirectory = new File(rootDir, "processed");
-		Writer errorWriter = new FileWriter(new File(rootDir, "errors.txt"));
+		rootDir.mkdirs();
+		aggregation = Aggregation.load(new File(AGGREGATION_FILE));
+		manifest = Manifest.load(new File(rootDir, "manifest.json"), MAX_AGE);
+		rawStore = openRawStore(rootDir);
+		downloader = new Downloader(rawStore, manifest, DOWNLOAD_THREAD_COUNT, DOWNLOAD_REQUESTS_PER_SECOND, DOWNLOAD_ATTEMPTS,
+				DOWNLOAD_BACKOFF);
+		outputWriter = new OutputWriter(WRITER_THREAD_COUNT, MAX_QUEUED_WRITES, GZIP_SIDECARS);
+		final HarvestReport report = new HarvestReport(new File(rootDir, "errors.txt"), new File(rootDir,
+				"run-report.json"), downloader, REPORT_INTERVAL);
 
 		System.out.println("Loading datasets");
 
-		File datasetFile = new File(rootDir, "datasetList.json");
-		JSONObject datasetsJson = downloadDatasetList(datasetFile);
+		JSONObject datasetsJson = downloadDatasetList();
 
 		final List<Dataset> datasets = new ArrayList<>();
 		JSONArray datasetsArray = (JSONArray) datasetsJson.get("datasets");
+
+		//queue all concept requests up front so they are downloaded concurrently
+		List<Future<JSONObject>> conceptFutures = new ArrayList<>();
+		for (int i = 0; i < datasetsArray.size(); i++)
+		{
+			JSONObject datasetObject = (JSONObject) datasetsArray.get(i);
+			String datasetId = (String) datasetObject.get("id");
+			conceptFutures.add(downloadDatasetConcepts(datasetId));
+		}
+
 		for (int i = 0; i < datasetsArray.size(); i++)
 		{
 			JSONObject datasetObject = (JSONObject) datasetsArray.get(i);
 			String datasetId = (String) datasetObject.get("id");
 			String datasetDescription = (String) datasetObject.get("description");
 			Dataset dataset = new Dataset(datasetId, datasetDescription);
-			File conceptsFile = conceptsFile(rootDir, datasetId);
-			JSONObject conceptsJson = downloadDatasetConcepts(datasetId, conceptsFile);
+			dataset.inputKeys.add(conceptsUrl(datasetId).toString());
+			JSONObject conceptsJson = await(conceptFutures.get(i));
 			JSONArray concepts = (JSONArray) conceptsJson.get("concepts");
 			if (concepts == null)
 			{
@@ -173,8 +422,7 @@ public class Harvester
 			boolean regionTypeCorrect = false;
 			if (concepts.contains(REGION_TYPE_CONCEPT_ID) && concepts.contains(REGION_CONCEPT_ID))
 			{
-				File codeListFile = codeListFile(rootDir, datasetId, REGION_TYPE_CONCEPT_ID);
-				JSONObject regionTypesJson = downloadCodeListValue(datasetId, REGION_TYPE_CONCEPT_ID, codeListFile);
+				JSONObject regionTypesJson = await(downloadCodeListValue(datasetId, REGION_TYPE_CONCEPT_ID));
 				JSONArray codes = (JSONArray) regionTypesJson.get("codes");
 				for (int j = 0; j < codes.size(); j++)
 				{
@@ -195,153 +443,148 @@ public class Harvester
 
 			datasets.add(dataset);
 
+			List<Future<JSONObject>> codeListFutures = new ArrayList<>();
 			for (int j = 0; j < concepts.size(); j++)
 			{
 				String conceptId = (String) concepts.get(j);
-				Concept concept = new Concept(dataset, conceptId);
+				dataset.inputKeys.add(codeListUrl(datasetId, conceptId).toString());
+				codeListFutures.add(downloadCodeListValue(datasetId, conceptId));
+			}
+
+			for (int j = 0; j < concepts.size(); j++)
+			{
+				String conceptId = (String) concepts.get(j);
+				JSONObject codeListJson = await(codeListFutures.get(j));
+				Concept concept = new Concept(dataset, conceptId, codeList(codeLists, dataset, conceptId,
+						(JSONArray) codeListJson.get("codes")));
 				dataset.concepts.add(concept);
 				dataset.conceptMap.put(conceptId, concept);
-				File codeListFile = codeListFile(rootDir, datasetId, conceptId);
-				JSONObject codeListJson = downloadCodeListValue(datasetId, conceptId, codeListFile);
-				JSONArray codes = (JSONArray) codeListJson.get("codes");
-				for (int k = 0; k < codes.size(); k++)
-				{
-					JSONObject codeJson = (JSONObject) codes.get(k);
-					String codeId = (String) codeJson.get("code");
-					if (dataset.description.equals(codeId))
-					{
-						//for some reason the ABS returns the dataset description for one of the codes?
-						continue;
-					}
-					String parentId = (String) codeJson.get("parentCode");
-					String codeDescription = (String) codeJson.get("description");
-					codeDescription = codeDescription.replace("\\", ""); //remove any escaping backslashes
-					codeDescription = codeDescription.replaceAll("\\s+", " ").trim(); //remove any double spaces
-					String units = null;
-					if (!(REGION_CONCEPT_ID.equals(conceptId) || REGION_TYPE_CONCEPT_ID.equals(conceptId)))
-					{
-						Pattern unitsPattern = Pattern.compile(".*?(\\s*\\(([^\\(^\\)]+)\\))[^\\(^\\)]*");
-						Matcher matcher = unitsPattern.matcher(codeDescription);
-						if (matcher.matches())
-						{
-							codeDescription = codeDescription.substring(0, matcher.start(1))
-									+ codeDescription.substring(matcher.end(1));
-							units = matcher.group(2).trim();
-							if (UNITS_TO_IGNORE.contains(units.toLowerCase()) || units.matches("\\d.*"))
-							{
-								units = null;
-							}
-						}
-					}
-					Code code = new Code(concept, codeId, codeDescription, units, parentId);
-					concept.codes.add(code);
-					concept.allCodesMap.put(codeId, code);
-				}
-
-				for (Code code : concept.codes)
-				{
-					if (code.parentId == null || code.parentId.length() == 0)
-					{
-						concept.rootCodes.add(code);
-					}
-					else
-					{
-						Code parent = concept.allCodesMap.get(code.parentId);
-						assertTrue(parent != null, "Could not find parent code '" + code.parentId + "' for code '"
-								+ code.id + "' (dataset = '" + datasetId + "', concept = '" + conceptId + "')");
-						code.parent = parent;
-						parent.children.add(code);
-					}
-				}
 			}
 		}
 
-		List<Thread> threads = new ArrayList<>();
-		final AtomicInteger datasetIndex = new AtomicInteger(0);
-		for (int t = 0; t < PROCESSING_THREAD_COUNT; t++)
+		//schedule the largest datasets first, so that the long tail of small datasets can fill
+		//the gaps and workers aren't left idle waiting for one big dataset at the end
+		List<Dataset> scheduled = new ArrayList<>(datasets);
+		Collections.sort(scheduled, new Comparator<Dataset>()
+		{
+			@Override
+			public int compare(Dataset o1, Dataset o2)
+			{
+				return Long.compare(estimateSize(o2), estimateSize(o1));
+			}
+		});
+
+		System.out.println("Loaded " + datasets.size() + " dataset(s): " + codeLists.stats());
+		if (REGION_INDEX)
+		{
+			saveRegionIndex(datasets, new File(processedDirectory, "regions.json"));
+		}
+		System.out.println("Processing " + scheduled.size() + " dataset(s) with " + PROCESSING_THREAD_COUNT
+				+ " worker(s)");
+		ExecutorService executor = Executors.newFixedThreadPool(PROCESSING_THREAD_COUNT);
+		for (final Dataset dataset : scheduled)
 		{
-			Thread thread = new Thread(new Runnable()
+			executor.execute(new Runnable()
 			{
 				@Override
 				public void run()
 				{
-					while (true)
+					long start = System.currentTimeMillis();
+					HarvestReport.Status status;
+					try
 					{
-						int index = datasetIndex.getAndIncrement();
-						if (index >= datasets.size())
-						{
-							break;
-						}
-						Dataset dataset = datasets.get(index);
-						try
-						{
-							processDataset(dataset, rootDir, processedDirectory, errorWriter);
-						}
-						catch (Exception e)
-						{
-							try
-							{
-								errorWriter.write("Error processing dataset " + dataset.id + ": "
-										+ e.getLocalizedMessage());
-								errorWriter.flush();
-							}
-							catch (IOException e1)
-							{
-								e1.printStackTrace();
-							}
-						}
+						status = processDataset(dataset, rootDir, processedDirectory, report)
+								? HarvestReport.Status.PROCESSED : HarvestReport.Status.SKIPPED;
+					}
+					catch (Exception e)
+					{
+						status = HarvestReport.Status.FAILED;
+						report.error(dataset.id, "Error processing dataset: " + e.getLocalizedMessage());
+					}
+					try
+					{
+						manifest.save();
+					}
+					catch (IOException e)
+					{
+						report.error(dataset.id, "Error saving manifest: " + e.getLocalizedMessage());
 					}
+					report.datasetResult(new HarvestReport.DatasetResult(dataset.id, status, System
+							.currentTimeMillis() - start, report.errorCount(dataset.id)));
 				}
 			});
-			thread.start();
-			threads.add(thread);
 		}
-
-		for (Thread thread : threads)
+		executor.shutdown();
+		try
+		{
+			executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+		}
+		catch (InterruptedException e)
 		{
-			try
-			{
-				thread.join();
-			}
-			catch (InterruptedException e)
-			{
-			}
 		}
 
-		errorWriter.close();
+		downloader.close();
+		outputWriter.close();
+		report.close();
+		rawStore.close();
+		manifest.save();
 
 		saveDatasetSummary(datasets, new File(processedDirectory, "datasets.json"));
 
 		System.out.println("Done");
 	}
 
-	private static void processDataset(Dataset dataset, File rootDir, File processedDirectory, Writer errorWriter)
-			throws IOException
+	/**
+	 * @return The code list of a dataset's concept, shared with any other
+	 *         dataset that has the same code list
+	 */
+	static CodeList codeList(CodeListRegistry registry, Dataset dataset, String conceptId, JSONArray codes)
 	{
-		File processedDatasetDirectory = new File(processedDirectory, dataset.id);
-		File summaryFile = new File(processedDatasetDirectory, "summary.json");
-
-		if (summaryFile.exists() && !OVERWRITE_PROCESSED)
-		{
-			return;
-		}
+		//for some reason the ABS returns the dataset description for one of the codes, so exclude it
+		boolean extractUnits = !(REGION_CONCEPT_ID.equals(conceptId) || REGION_TYPE_CONCEPT_ID.equals(conceptId));
+		return registry.get(codes, dataset.description, extractUnits, "dataset = '" + dataset.id + "', concept = '"
+				+ conceptId + "'");
+	}
 
-		if (dataset.id.startsWith("ABS_CENSUS2011_B"))
+	/**
+	 * Estimate the amount of work required to process a dataset: the number of
+	 * observation series, ie the product of the code counts of each concept
+	 * that forms part of the data cube.
+	 */
+	private static long estimateSize(Dataset dataset)
+	{
+		long size = 1;
+		for (Concept concept : dataset.concepts)
 		{
-			//only ABS_CENSUS2011_B01, ABS_CENSUS2011_B02, and ABS_CENSUS2011_B03 seem to work
-			if (!(dataset.id.endsWith("01") || dataset.id.endsWith("02")/* || dataset.id.endsWith("03")*/))
+			if (REGION_TYPE_CONCEPT_ID.equals(concept.id) || "STATE".equals(concept.id)
+					|| "FREQUENCY".equals(concept.id))
 			{
-				return;
+				continue;
 			}
+			size *= Math.max(1, concept.codes.size());
 		}
+		return size;
+	}
+
+	/**
+	 * Download and process a single dataset. Safe to call concurrently for
+	 * different datasets.
+	 * 
+	 * @return True if the dataset was processed, false if it was skipped
+	 */
+	private static boolean processDataset(Dataset dataset, File rootDir, File processedDirectory,
+			HarvestReport report) throws IOException
+	{
+		File processedDatasetDirectory = new File(processedDirectory, dataset.id);
+		File summaryFile = new File(processedDatasetDirectory, "summary.json");
+		String outputPrefix = outputKey(rootDir, processedDatasetDirectory) + "/";
+
 		if (dataset.id.equals("ABS_ANNUAL_ERP_ASGS"))
 		{
 			//ABS_ANNUAL_ERP_ASGS doesn't work
-			return;
+			return false;
 		}
 
-		System.out.println("Processing data for dataset '" + dataset.id + "'");
-
 		List<Concept> combinationConcepts = new ArrayList<>();
 		Set<Concept> ignoredConcepts = new HashSet<>();
 		for (Concept concept : dataset.concepts)
@@ -376,9 +619,16 @@ public class Harvester
 			conceptString += ", " + concept.id + "(" + concept.codes.size() + ")";
 		}
 		conceptString = conceptString.length() < 2 ? conceptString : conceptString.substring(2);
-		System.out.println("Found " + sum + " observation(s) per region, with concepts: " + conceptString);
 
-		Data rootData = new Data(null, combinationConcepts.get(0), null);
+		//if all the measures are additive, only download SA2 and roll up the parent levels
+		boolean rollUp = ROLLUP
+				&& aggregation.isAdditive(dataset, combinationConcepts.subList(0, combinationConcepts.size() - 1));
+		String options = PROCESSING_OPTIONS + ";rollup=" + rollUp;
+		if (regionIndex != null)
+		{
+			//the outputs depend on the dictionary
+			options += ";regions=" + regionIndex.fingerprint;
+		}
 
 		//5 levels to download:
 		//AUS: http://stat.abs.gov.au/itt/query.jsp?method=GetGenericData&datasetid=ABS_NRP9_ASGS&and=REGION.0
@@ -387,218 +637,768 @@ public class Harvester
 		//SA3: http://stat.abs.gov.au/itt/query.jsp?method=GetGenericData&datasetid=ABS_NRP9_ASGS&and=REGIONTYPE.SA3&orParent=REGION.101
 		//SA2: http://stat.abs.gov.au/itt/query.jsp?method=GetGenericData&datasetid=ABS_NRP9_ASGS&and=REGIONTYPE.SA2&orParent=REGION.10101
 
-		String[] regionTypes = { "AUS", "STE", "SA4", "SA3", "SA2" };
 		int[] orParentLevels = { -1, 0, 1, 2, 3 };
 		Code parentRegionCode = regionConcept.allCodesMap.get("0");
-		for (int level = 0; level < 5; level++)
+		List<String> levelTypes = new ArrayList<>();
+		List<List<Code>> levelCodes = new ArrayList<>();
+		List<List<URL>> levelUrls = new ArrayList<>();
+		List<String> inputKeys = new ArrayList<>(dataset.inputKeys);
+		for (int level = rollUp ? 4 : 0; level < 5; level++)
 		{
-			String regionType = regionTypes[level];
-			List<Code> codes = new ArrayList<>();
-			if (level == 0)
-			{
-				codes.add(parentRegionCode);
-			}
-			else
-			{
-				addCodeChildrenToListAtLevel0(parentRegionCode, codes, orParentLevels[level]);
-			}
+			String regionType = REGION_LEVEL_TYPES[level];
+			List<Code> codes = level == 0 ? Collections.singletonList(parentRegionCode) : regionConcept.codeList
+					.descendants(parentRegionCode, orParentLevels[level]);
 
+			List<URL> urls = new ArrayList<>();
 			for (Code code : codes)
 			{
-				String url = "http://stat.abs.gov.au/itt/query.jsp?method=GetGenericData&datasetid=" + dataset.id;
+				String url = QUERY_URL + "?method=GetGenericData&datasetid=" + dataset.id;
 				url += level == 0 ? ("&and=REGION.0")
 						: ("&and=REGIONTYPE." + regionType + "&orParent=REGION." + code.id);
-				File file = new File(rootDir, "data/" + dataset.id + "/" + regionType + "/"
-						+ (level == 0 ? "" : "parent") + code.id + ".json");
+				urls.add(new URL(url));
+				inputKeys.add(url);
+			}
+			levelTypes.add(regionType);
+			levelCodes.add(codes);
+			levelUrls.add(urls);
+		}
 
-				JSONObject data = null;
-				JSONArray series = null;
-				int retries = 2;
-				for (int retry = 0; retry < retries; retry++)
+		if (!OVERWRITE_PROCESSED && summaryFile.exists() && manifest.datasetFingerprint(dataset.id) != null)
+		{
+			//revalidate the stale inputs without processing them; if none of them changed since
+			//the dataset was last processed, and its outputs are intact, there's nothing to do
+			List<Future<Manifest.Entry>> refreshes = new ArrayList<>();
+			for (int level = 0; level < levelUrls.size(); level++)
+			{
+				ParentBatch[] batches = submitBatches(dataset, levelTypes.get(level), levelCodes.get(level),
+						levelUrls.get(level), sum, Collections.<String> emptySet());
+				for (int c = 0; c < levelUrls.get(level).size(); c++)
 				{
-					if (retry > 0)
-					{
-						System.out.println("Downloading from " + url + " failed, retrying (attempt " + (retry + 1)
-								+ "/" + retries + ")");
-					}
-					try
-					{
-						data = downloadJSONObject(new URL(url), file);
-						series = (JSONArray) data.get("series");
-						if (series != null)
-						{
-							break;
-						}
-					}
-					catch (Exception e)
+					if (batches[c] != null)
 					{
+						batches[c].await();
 					}
-					file.delete();
+					refreshes.add(downloader.refresh(levelUrls.get(level).get(c)));
 				}
-				if (series == null)
+			}
+			for (Future<Manifest.Entry> refresh : refreshes)
+			{
+				try
 				{
-					String message = "Error downloading from " + url + ", data = " + data;
-					System.err.println(message);
-					errorWriter.write(dataset.id + ": " + message + LINE_SEPARATOR);
-					errorWriter.flush();
-					//try next URL (we can always rerun)
-					continue;
+					await(refresh);
 				}
-				//assertTrue(series != null, "Error downloading from " + url);
-
-				for (int i = 0; i < series.size(); i++)
+				catch (IOException e)
 				{
-					JSONObject serie = (JSONObject) series.get(i);
-					JSONArray conceptsArray = (JSONArray) serie.get("concepts");
-					Map<Concept, Code> codesFromCombinations = new HashMap<>();
-					for (int j = 0; j < conceptsArray.size(); j++)
-					{
-						JSONObject conceptJson = (JSONObject) conceptsArray.get(j);
-						String conceptName = (String) conceptJson.get("name");
-						String conceptValue = (String) conceptJson.get("Value");
-						Concept concept = dataset.conceptMap.get(conceptName);
-						assertTrue(concept != null, "Unknown concept returned in data: " + conceptName);
-						if (ignoredConcepts.contains(concept))
-						{
-							continue;
-						}
-						assertTrue(!codesFromCombinations.containsKey(concept), "A value for concept '" + conceptName
-								+ "' has already been defined for this data");
-						Code conceptCode = concept.allCodesMap.get(conceptValue);
-						assertTrue(code != null, "Unknown concept code returned in data '" + conceptValue
-								+ "' for concept '" + conceptName + "'");
-						concept.usedCodes.add(conceptCode);
-						codesFromCombinations.put(concept, conceptCode);
-					}
+					//reported when the dataset is processed
+				}
+			}
+			if (manifest.datasetFingerprint(dataset.id).equals(manifest.fingerprint(inputKeys, options))
+					&& outputsIntact(rootDir, outputPrefix))
+			{
+				return false;
+			}
+		}
 
-					assertTrue(codesFromCombinations.keySet().containsAll(combinationConcepts),
-							"Not all concepts from the combination were included in the data");
+		System.out.println("Processing data for dataset '" + dataset.id + "'");
+		System.out.println("Found " + sum + " observation(s) per region, with concepts: " + conceptString);
 
-					DataValues values = new DataValues();
-					JSONArray observationsArray = (JSONArray) serie.get("observations");
-					for (int j = 0; j < observationsArray.size(); j++)
-					{
-						JSONObject observationJson = (JSONObject) observationsArray.get(j);
-						String observationTime = (String) observationJson.get("Time");
-						String observationValue = (String) observationJson.get("Value");
+		HarvestReport.DatasetMetrics metrics = report.datasetMetrics(dataset.id);
+		Data rootData = new Data(null, combinationConcepts.get(0));
+		TimeTable timeTable = new TimeTable();
+		String metadataFingerprint = manifest.fingerprint(dataset.inputKeys, options);
+		try (DatasetJournal journal = new DatasetJournal(new File(rootDir, "journal/" + dataset.id + ".journal"),
+				metadataFingerprint == null ? "" : metadataFingerprint))
+		{
+			final SeriesIngester ingester = new SeriesIngester(dataset, combinationConcepts, ignoredConcepts,
+					rootData, timeTable, journal, metrics);
+			Set<String> completed = resume(journal, ingester);
+			ingestLevels(dataset, ingester, completed, levelTypes, levelCodes, levelUrls, sum, report, metrics);
 
-						assertTrue(!values.values.containsKey(observationTime), "Value for time '" + observationTime
-								+ "' has already been added");
+			if (rollUp)
+			{
+				System.out.println("Rolling up parent regions for dataset '" + dataset.id + "'");
+				long start = System.nanoTime();
+				rollUp(rootData, regionConcept, timeTable);
+				metrics.addTimeSince(HarvestReport.Phase.ROLLUP, start);
+			}
+			long[] treeSize = new long[3];
+			measureTree(rootData, treeSize);
+			metrics.treeSize(treeSize[0], treeSize[1], treeSize[2]);
 
-						values.times.add(observationTime);
-						values.values.put(observationTime, observationValue);
-					}
+			System.out.println("Saving processed data for dataset '" + dataset.id + "'");
 
-					insertData(combinationConcepts, 0, codesFromCombinations, rootData, values);
-				}
+			//the data files are written by the writer threads while the next ones are serialized; the
+			//summary is only written once they're all written, as it marks the dataset as complete
+			OutputWriter.Batch output = outputWriter.batch(metrics);
+			try
+			{
+				saveData(rootData, processedDatasetDirectory,
+						combinationConcepts.get(combinationConcepts.size() - 1), timeTable, metrics, output);
+			}
+			finally
+			{
+				output.await();
 			}
+			saveSummary(dataset, summaryFile, combinationConcepts, metrics);
+			journal.delete();
 		}
 
-		System.out.println("Saving processed data for dataset '" + dataset.id + "'");
-
-		saveData(rootData, processedDatasetDirectory, combinationConcepts.get(combinationConcepts.size() - 1));
-		saveSummary(dataset, summaryFile, combinationConcepts);
-	}
-
-	private static void assertTrue(boolean value, String message)
-	{
-		if (!value)
+		for (String key : manifest.keys(outputPrefix))
 		{
-			throw new IllegalStateException(message);
+			manifest.remove(key);
 		}
+		recordOutputs(rootDir, processedDatasetDirectory);
+		//if any input failed to download there is no fingerprint, so the dataset is retried next run
+		String fingerprint = manifest.fingerprint(inputKeys, options);
+		manifest.setDatasetFingerprint(dataset.id, fingerprint);
+		return true;
 	}
 
-	private static void addCodeChildrenToListAtLevel0(Code parentCode, List<Code> list, int level)
+	/**
+	 * Rebuild the data tree from the units recorded in the dataset's journal
+	 * by an earlier, interrupted, run. The journal is discarded if the content
+	 * of any of its units has changed since it was ingested.
+	 *
+	 * @return The keys of the units that don't need to be ingested again
+	 */
+	private static Set<String> resume(DatasetJournal journal, final SeriesIngester ingester) throws IOException
 	{
-		if (level == 0)
+		Map<String, String> units = journal.units();
+		List<Future<Manifest.Entry>> refreshes = new ArrayList<>();
+		for (String key : units.keySet())
 		{
-			list.add(parentCode);
+			refreshes.add(downloader.refresh(new URL(key)));
 		}
-		else if (level > 0)
+		int i = 0;
+		for (Map.Entry<String, String> unit : units.entrySet())
 		{
-			for (Code code : parentCode.children)
+			Manifest.Entry entry;
+			try
+			{
+				//revalidates the unit's response if it has gone stale
+				entry = await(refreshes.get(i++));
+			}
+			catch (IOException e)
+			{
+				entry = null;
+			}
+			if (entry == null || !entry.hash.equals(unit.getValue()))
 			{
-				addCodeChildrenToListAtLevel0(code, list, level - 1);
+				System.out.println("Discarding journal, as the response from " + unit.getKey() + " has changed");
+				journal.reset();
+				return new HashSet<>();
 			}
 		}
+		if (!units.isEmpty())
+		{
+			System.out.println("Resuming from journal with " + units.size() + " completed request(s)");
+			journal.replay(new DatasetJournal.SeriesHandler()
+			{
+				@Override
+				public void series(DatasetJournal.Series series)
+				{
+					ingester.replay(series);
+				}
+			});
+		}
+		return units.keySet();
 	}
 
-	private static File conceptsFile(File rootDir, String datasetId)
+	/**
+	 * Download and ingest the data requests of each region level, skipping
+	 * the completed units.
+	 */
+	private static void ingestLevels(Dataset dataset, SeriesIngester ingester, Set<String> completed,
+			List<String> levelTypes, List<List<Code>> levelCodes, List<List<URL>> levelUrls, long seriesPerRegion,
+			HarvestReport report, HarvestReport.DatasetMetrics metrics) throws IOException
 	{
-		return new File(rootDir, "concepts/" + datasetId + ".json");
-	}
+		for (int level = 0; level < levelUrls.size(); level++)
+		{
+			//queue a window of requests ahead of the one being processed, so that the downloads
+			//for the next parents run concurrently with the processing of the current one
+			List<URL> urls = levelUrls.get(level);
+			ParentBatch[] batches = submitBatches(dataset, levelTypes.get(level), levelCodes.get(level), urls,
+					seriesPerRegion, completed);
+			List<Future<Integer>> futures = new ArrayList<>(Collections.<Future<Integer>> nCopies(urls.size(), null));
+			int window = downloader.getMaxInFlight() * 2;
+			for (int c = 0; c < urls.size(); c++)
+			{
+				for (int f = c; f < Math.min(urls.size(), c + window); f++)
+				{
+					if (futures.get(f) != null)
+					{
+						continue;
+					}
+					if (completed.contains(urls.get(f).toString()))
+					{
+						//already ingested from the journal
+						futures.set(f, CompletableFuture.completedFuture(0));
+						continue;
+					}
+					if (batches[f] != null)
+					{
+						if (f > c && !batches[f].isDone())
+						{
+							//don't request a parent individually while its batch is still downloading
+							break;
+						}
+						long start = System.nanoTime();
+						batches[f].await();
+						metrics.addTimeSince(HarvestReport.Phase.DOWNLOAD_WAIT, start);
+					}
+					futures.set(f, downloader.submit(urls.get(f), ingester.unit(urls.get(f).toString())));
+				}
 
-	private static File codeListFile(File rootDir, String datasetId, String conceptId)
-	{
-		return new File(rootDir, "codeLists/" + datasetId + "/" + conceptId + ".json");
+				long start = System.nanoTime();
+				try
+				{
+					await(futures.get(c));
+				}
+				catch (IOException e)
+				{
+					String message = "Error downloading from " + urls.get(c) + ": " + e.getLocalizedMessage();
+					System.err.println(message);
+					report.error(dataset.id, message);
+					//try next URL (we can always rerun)
+				}
+				metrics.addTimeSince(HarvestReport.Phase.DOWNLOAD_WAIT, start);
+			}
+		}
 	}
 
-	private static JSONObject downloadDatasetList(File path) throws IOException, ParseException
+	/**
+	 * @return The manifest key of a processed output file or directory: its
+	 *         path relative to the root directory
+	 */
+	private static String outputKey(File rootDir, File file)
 	{
-		URL url = new URL("http://stat.abs.gov.au/itt/query.jsp?method=GetDatasetList");
-		return downloadJSONObject(url, path);
+		String key = rootDir.toURI().relativize(file.toURI()).getPath();
+		return key.endsWith("/") ? key.substring(0, key.length() - 1) : key;
 	}
 
-	private static JSONObject downloadDatasetConcepts(String datasetId, File path) throws IOException, ParseException
+	private static void recordOutputs(File rootDir, File file) throws IOException
 	{
-		URL url = new URL("http://stat.abs.gov.au/itt/query.jsp?method=GetDatasetConcepts&datasetid=" + datasetId);
-		return downloadJSONObject(url, path);
+		if (file.isDirectory())
+		{
+			for (File child : file.listFiles())
+			{
+				recordOutputs(rootDir, child);
+			}
+		}
+		else
+		{
+			manifest.record(outputKey(rootDir, file), file);
+		}
 	}
 
-	private static JSONObject downloadCodeListValue(String datasetId, String concept, File path) throws IOException,
-			ParseException
+	/**
+	 * @return True if all the outputs recorded in the manifest under the given
+	 *         prefix still exist with the recorded size
+	 */
+	private static boolean outputsIntact(File rootDir, String outputPrefix)
 	{
-		URL url = new URL("http://stat.abs.gov.au/itt/query.jsp?method=GetCodeListValue&datasetid=" + datasetId
-				+ "&concept=" + concept + "&format=json");
-		return downloadJSONObject(url, path);
+		List<String> keys = manifest.keys(outputPrefix);
+		for (String key : keys)
+		{
+			Manifest.Entry entry = manifest.get(key);
+			File file = new File(rootDir, key);
+			if (entry == null || !file.isFile() || file.length() != entry.size)
+			{
+				return false;
+			}
+		}
+		return !keys.isEmpty();
 	}
 
-	private static JSONObject downloadJSONObject(URL url, File path) throws IOException, ParseException
+	/**
+	 * Request the level's parents that aren't already cached in batches of
+	 * multiple parents per request, splitting each batch response into the
+	 * stored responses of the individual parents. Any parent missing from a batch
+	 * response (or in a failed batch) is left to be requested individually.
+	 *
+	 * @param skip
+	 *            Keys of parents that mustn't be requested, as they've already
+	 *            been ingested
+	 * @return The batch that each parent is part of, or null if it isn't part
+	 *         of a batch
+	 */
+	private static ParentBatch[] submitBatches(Dataset dataset, String regionType, List<Code> parents,
+			List<URL> urls, long seriesPerRegion, Set<String> skip) throws IOException
 	{
-		if (!path.exists())
+		ParentBatch[] batchOf = new ParentBatch[parents.size()];
+		List<Integer> indices = new ArrayList<>();
+		List<String> params = new ArrayList<>();
+		List<Long> series = new ArrayList<>();
+		for (int i = 0; i < parents.size(); i++)
 		{
-			downloadFile(url, path);
+			Code parent = parents.get(i);
+			String key = urls.get(i).toString();
+			if (skip.contains(key) || manifest.isFresh(key, rawStore))
+			{
+				continue;
+			}
+			indices.add(i);
+			params.add("&orParent=REGION." + parent.id);
+			series.add(parent.children.size() * seriesPerRegion);
 		}
-		JSONParser parser = new JSONParser();
-		try (FileReader reader = new FileReader(path))
+
+		String baseUrl = QUERY_URL + "?method=GetGenericData&datasetid=" + dataset.id + "&and=REGIONTYPE."
+				+ regionType;
+		RequestPlanner planner = new RequestPlanner(MAX_URL_LENGTH, MAX_SERIES_PER_REQUEST);
+		for (List<Integer> request : planner.plan(baseUrl, params, series))
 		{
-			return (JSONObject) parser.parse(reader);
+			if (request.size() < 2)
+			{
+				//nothing to gain; this also leaves the single parent AUS and STE levels alone
+				continue;
+			}
+			Map<String, String> regionParents = new HashMap<>();
+			Map<String, String> parentKeys = new HashMap<>();
+			Map<String, Integer> parentIndices = new HashMap<>();
+			for (int r : request)
+			{
+				int i = indices.get(r);
+				Code parent = parents.get(i);
+				for (Code child : parent.children)
+				{
+					regionParents.put(child.id, parent.id);
+				}
+				parentKeys.put(parent.id, urls.get(i).toString());
+				parentIndices.put(parent.id, i);
+			}
+			URL url = new URL(RequestPlanner.url(baseUrl, params, request));
+			//the batch response itself isn't stored, only the per parent responses split from it
+			ParentBatch batch = new ParentBatch(url, parentIndices, urls, downloader.submitUncached(url,
+					new SeriesSplitter(REGION_CONCEPT_ID, regionParents, parentKeys, rawStore)));
+			for (int i : parentIndices.values())
+			{
+				batchOf[i] = batch;
+			}
 		}
+		return batchOf;
 	}
 
-	private static void downloadFile(URL url, File file) throws IOException
+	/**
+	 * A request for the data of multiple region parents, see
+	 * {@link #submitBatches}.
+	 */
+	private static class ParentBatch
 	{
-		if (file.getParentFile() != null)
+		private final URL url;
+		private final Map<String, Integer> parentIndices;
+		private final List<URL> urls;
+		private final Future<Set<String>> future;
+		private boolean finished = false;
+
+		public ParentBatch(URL url, Map<String, Integer> parentIndices, List<URL> urls, Future<Set<String>> future)
 		{
-			file.getParentFile().mkdirs();
+			this.url = url;
+			this.parentIndices = parentIndices;
+			this.urls = urls;
+			this.future = future;
+		}
+
+		public boolean isDone()
+		{
+			return future.isDone();
+		}
+
+		/**
+		 * Wait for the batch to complete, and record the responses split from it
+		 * in the manifest as if they had been downloaded individually.
+		 */
+		public synchronized void await()
+		{
+			if (finished)
+			{
+				return;
+			}
+			finished = true;
+			try
+			{
+				Set<String> written = Harvester.await(future);
+				for (String parent : written)
+				{
+					int i = parentIndices.get(parent);
+					manifest.record(urls.get(i).toString(), rawStore);
+				}
+				if (written.size() < parentIndices.size())
+				{
+					System.out.println("Batched request " + url + " returned no data for "
+							+ (parentIndices.size() - written.size()) + " parent(s), requesting them individually");
+				}
+			}
+			catch (IOException e)
+			{
+				System.out.println("Batched request " + url + " failed (" + e.getLocalizedMessage()
+						+ "), requesting its parents individually");
+			}
+		}
+	}
+
+	/**
+	 * Calculate the values of the parent regions of every measure node in the
+	 * tree by summing the values of the (SA2) regions below them, following
+	 * the region code parent links. A parent's value for a time is null only
+	 * if all of its child values are null or missing.
+	 */
+	private static void rollUp(Data data, Concept regionConcept, TimeTable timeTable)
+	{
+		if (data.childConcept != regionConcept)
+		{
+			for (Data child : data.data.values())
+			{
+				rollUp(child, regionConcept, timeTable);
+			}
+			return;
+		}
+
+		int timeCount = timeTable.size();
+		Map<Code, double[]> sums = new LinkedHashMap<>();
+		Map<Code, BitSet> observed = new HashMap<>();
+		Map<Code, BitSet> nonNull = new HashMap<>();
+		for (Code code : data.codes)
+		{
+			DataValues values = data.values.get(code);
+			for (Code parent = code.parent; parent != null; parent = parent.parent)
+			{
+				double[] sum = sums.get(parent);
+				if (sum == null)
+				{
+					sum = new double[timeCount];
+					sums.put(parent, sum);
+					observed.put(parent, new BitSet(timeCount));
+					nonNull.put(parent, new BitSet(timeCount));
+				}
+				for (int i = 0; i < values.size(); i++)
+				{
+					int time = values.times[i];
+					observed.get(parent).set(time);
+					if (!values.isNull(i))
+					{
+						sum[time] += values.values[i];
+						nonNull.get(parent).set(time);
+					}
+				}
+			}
+		}
+
+		for (Map.Entry<Code, double[]> entry : sums.entrySet())
+		{
+			Code parent = entry.getKey();
+			assertTrue(!data.values.containsKey(parent), "Already a data value for " + parent.id);
+			BitSet times = observed.get(parent);
+			BitSet present = nonNull.get(parent);
+			int size = times.cardinality();
+			int[] timeIndices = new int[size];
+			double[] values = new double[size];
+			long[] nulls = new long[(size + 63) >> 6];
+			int i = 0;
+			for (int time = times.nextSetBit(0); time >= 0; time = times.nextSetBit(time + 1), i++)
+			{
+				timeIndices[i] = time;
+				if (present.get(time))
+				{
+					values[i] = entry.getValue()[time];
+				}
+				else
+				{
+					nulls[i >> 6] |= 1L << i;
+				}
+			}
+			data.addValues(parent, new DataValues(timeTable.intern(timeIndices), values, nulls));
+			regionConcept.usedCodes.add(parent);
+		}
+	}
+
+	/**
+	 * Count the nodes, series and observations in a data tree.
+	 *
+	 * @param size
+	 *            Array the node, series and observation counts are added to
+	 */
+	private static void measureTree(Data data, long[] size)
+	{
+		size[0]++;
+		for (DataValues values : data.values.values())
+		{
+			size[1]++;
+			size[2] += values.size();
+		}
+		for (Data child : data.data.values())
+		{
+			measureTree(child, size);
+		}
+	}
+
+	private static void assertTrue(boolean value, String message)
+	{
+		if (!value)
+		{
+			throw new IllegalStateException(message);
+		}
+	}
+
+	private static RawStore openRawStore(File rootDir) throws IOException
+	{
+		if ("pack".equals(RAW_STORE))
+		{
+			return new PackRawStore(new File(rootDir, "raw.pack"));
+		}
+		assertTrue("files".equals(RAW_STORE), "Unknown raw store '" + RAW_STORE + "'");
+		return new FileRawStore(rootDir, QUERY_URL);
+	}
+
+	private static JSONObject downloadDatasetList() throws IOException
+	{
+		URL url = new URL(QUERY_URL + "?method=GetDatasetList");
+		return await(downloader.submit(url, JSON_OBJECT_HANDLER));
+	}
+
+	private static URL conceptsUrl(String datasetId) throws IOException
+	{
+		return new URL(QUERY_URL + "?method=GetDatasetConcepts&datasetid=" + datasetId);
+	}
+
+	private static URL codeListUrl(String datasetId, String concept) throws IOException
+	{
+		return new URL(QUERY_URL + "?method=GetCodeListValue&datasetid=" + datasetId + "&concept=" + concept
+				+ "&format=json");
+	}
+
+	private static Future<JSONObject> downloadDatasetConcepts(String datasetId) throws IOException
+	{
+		return downloader.submit(conceptsUrl(datasetId), JSON_OBJECT_HANDLER);
+	}
+
+	private static Future<JSONObject> downloadCodeListValue(String datasetId, String concept) throws IOException
+	{
+		return downloader.submit(codeListUrl(datasetId, concept), JSON_OBJECT_HANDLER);
+	}
+
+	/**
+	 * Wait for a download to complete, unwrapping any download failure into an
+	 * {@link IOException}.
+	 */
+	private static <T> T await(Future<T> future) throws IOException
+	{
+		try
+		{
+			return future.get();
+		}
+		catch (InterruptedException e)
+		{
+			throw new IOException(e);
+		}
+		catch (ExecutionException e)
+		{
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException)
+			{
+				throw (IOException) cause;
+			}
+			if (cause instanceof RuntimeException)
+			{
+				throw (RuntimeException) cause;
+			}
+			throw new IOException(cause);
+		}
+	}
+
+	/**
+	 * Response handler that streams the series of a GetGenericData response
+	 * into a dataset's {@link Data} tree. Responses for the same dataset are
+	 * handled concurrently by the download threads, so insertion into the tree
+	 * is synchronized on the root.
+	 */
+	private static class SeriesIngester
+	{
+		private final Dataset dataset;
+		private final List<Concept> combinationConcepts;
+		private final Set<Concept> ignoredConcepts;
+		private final Data rootData;
+		private final TimeTable timeTable;
+		private final DatasetJournal journal;
+		private final HarvestReport.DatasetMetrics metrics;
+
+		public SeriesIngester(Dataset dataset, List<Concept> combinationConcepts, Set<Concept> ignoredConcepts,
+				Data rootData, TimeTable timeTable, DatasetJournal journal, HarvestReport.DatasetMetrics metrics)
+		{
+			this.dataset = dataset;
+			this.combinationConcepts = combinationConcepts;
+			this.ignoredConcepts = ignoredConcepts;
+			this.rootData = rootData;
+			this.timeTable = timeTable;
+			this.journal = journal;
+			this.metrics = metrics;
+		}
+
+		/**
+		 * @return Handler that ingests the response for the given unit (data
+		 *         request URL), and records it in the journal once complete
+		 */
+		public Downloader.ResponseHandler<Integer> unit(final String key)
+		{
+			return new Downloader.ResponseHandler<Integer>()
+			{
+				@Override
+				public Integer handle(InputStream input) throws IOException, ParseException
+				{
+					return ingest(key, input);
+				}
+			};
+		}
+
+		private int ingest(String key, InputStream input) throws IOException, ParseException
+		{
+			final AtomicInteger inserted = new AtomicInteger();
+			final List<DatasetJournal.Series> journalSeries = new ArrayList<>();
+			//time spent inserting into the tree, the rest of the time is spent reading and parsing the response
+			final long[] treeNanos = new long[1];
+			long start = System.nanoTime();
+			int count;
+			try
+			{
+				count = SeriesReader.read(new InputStreamReader(input, StandardCharsets.UTF_8),
+						new SeriesReader.SeriesHandler()
+						{
+							@Override
+							public void series(SeriesReader.Series series)
+							{
+								journalSeries.add(insertSeries(series, treeNanos));
+								inserted.incrementAndGet();
+							}
+						});
+			}
+			catch (IOException | ParseException e)
+			{
+				if (inserted.get() == 0)
+				{
+					throw e;
+				}
+				//can't retry, as some of the series have already been inserted into the tree
+				throw new Downloader.FatalResponseException("Response only partially processed ("
+						+ inserted.get() + " series inserted)", e);
+			}
+			finally
+			{
+				metrics.addTime(HarvestReport.Phase.PARSE, System.nanoTime() - start - treeNanos[0]);
+			}
+			if (count < 0)
+			{
+				throw new Downloader.InvalidResponseException("No series in response");
+			}
+			Manifest.Entry entry = manifest.get(key);
+			journal.append(key, entry == null ? "" : entry.hash, journalSeries);
+			return count;
+		}
+
+		/**
+		 * Insert a series read back from the journal.
+		 */
+		public void replay(DatasetJournal.Series series)
+		{
+			Map<Concept, Code> codes = new HashMap<>();
+			for (int i = 0; i < combinationConcepts.size(); i++)
+			{
+				Concept concept = combinationConcepts.get(i);
+				Code code = concept.allCodesMap.get(series.codes[i]);
+				assertTrue(code != null, "Unknown code '" + series.codes[i] + "' for concept '" + concept.id
+						+ "' in journal");
+				codes.put(concept, code);
+			}
+			int[] times = new int[series.times.length];
+			for (int i = 0; i < times.length; i++)
+			{
+				times[i] = timeTable.index(series.times[i]);
+			}
+			insert(codes, new DataValues(timeTable.intern(times), series.values, series.nulls));
+		}
+
+		/**
+		 * @param treeNanos
+		 *            Time spent inserting into the tree is added to this
+		 * @return The series as it is recorded in the journal
+		 */
+		private DatasetJournal.Series insertSeries(SeriesReader.Series series, long[] treeNanos)
+		{
+			Map<Concept, Code> codesFromCombinations = new HashMap<>();
+			for (int j = 0; j < series.conceptNames.size(); j++)
+			{
+				String conceptName = series.conceptNames.get(j);
+				String conceptValue = series.conceptValues.get(j);
+				Concept concept = dataset.conceptMap.get(conceptName);
+				assertTrue(concept != null, "Unknown concept returned in data: " + conceptName);
+				if (ignoredConcepts.contains(concept))
+				{
+					continue;
+				}
+				assertTrue(!codesFromCombinations.containsKey(concept), "A value for concept '" + conceptName
+						+ "' has already been defined for this data");
+				Code conceptCode = concept.allCodesMap.get(conceptValue);
+				assertTrue(conceptCode != null, "Unknown concept code returned in data '" + conceptValue
+						+ "' for concept '" + conceptName + "'");
+				codesFromCombinations.put(concept, conceptCode);
+			}
+
+			assertTrue(codesFromCombinations.keySet().containsAll(combinationConcepts),
+					"Not all concepts from the combination were included in the data");
+
+			DataValues values = DataValues.parse(timeTable, series.times, series.values);
+			treeNanos[0] += insert(codesFromCombinations, values);
+
+			String[] codes = new String[combinationConcepts.size()];
+			for (int i = 0; i < codes.length; i++)
+			{
+				codes[i] = codesFromCombinations.get(combinationConcepts.get(i)).id;
+			}
+			String[] times = new String[values.size()];
+			for (int i = 0; i < times.length; i++)
+			{
+				times[i] = timeTable.time(values.times[i]);
+			}
+			return new DatasetJournal.Series(codes, times, values.values, values.nulls);
+		}
+
+		/**
+		 * @return Time in nanoseconds spent inserting, which is added to the
+		 *         tree build phase
+		 */
+		private long insert(Map<Concept, Code> codes, DataValues values)
+		{
+			long start = System.nanoTime();
+			synchronized (rootData)
+			{
+				for (Map.Entry<Concept, Code> entry : codes.entrySet())
+				{
+					entry.getKey().usedCodes.add(entry.getValue());
+				}
+				insertData(combinationConcepts, 0, codes, rootData, values);
+			}
+			long nanos = System.nanoTime() - start;
+			metrics.addTime(HarvestReport.Phase.TREE_BUILD, nanos);
+			return nanos;
 		}
-		System.out.println("Downloading " + url);
-		ReadableByteChannel rbc = Channels.newChannel(url.openStream());
-		FileOutputStream fos = new FileOutputStream(file);
-		fos.getChannel().transferFrom(rbc, 0, Long.MAX_VALUE);
-		fos.close();
 	}
 
-	private static void insertData(List<Concept> combinationConcepts, int conceptIndex, Map<Concept, Code> codes,
+	static void insertData(List<Concept> combinationConcepts, int conceptIndex, Map<Concept, Code> codes,
 			Data into, DataValues values)
 	{
 		Concept concept = combinationConcepts.get(conceptIndex);
 		Code code = codes.get(concept);
 
-		Data data = into.data.get(code);
 		if (conceptIndex >= combinationConcepts.size() - 1)
 		{
 			//last one, insert values
-			assertTrue(data == null, "Already a data value for " + code.id);
-			data = new Data(code, null, values);
-			into.codes.add(code);
-			into.data.put(code, data);
+			assertTrue(!into.values.containsKey(code), "Already a data value for " + code.id);
+			into.addValues(code, values);
 		}
 		else
 		{
+			Data data = into.data.get(code);
 			if (data == null)
 			{
-				data = new Data(code, combinationConcepts.get(conceptIndex + 1), null);
+				data = new Data(code, combinationConcepts.get(conceptIndex + 1));
 				into.codes.add(code);
 				into.data.put(code, data);
 			}
@@ -606,16 +1406,38 @@ public class Harvester
 		}
 	}
 
-	private static void saveData(Data data, File file, Concept lastConcept) throws IOException
+	/**
+	 * Build and serialize the output files of the data tree, queueing them to
+	 * be written.
+	 */
+	static void saveData(Data data, File file, Concept lastConcept, TimeTable timeTable,
+			HarvestReport.DatasetMetrics metrics, OutputWriter.Batch output) throws IOException
 	{
 		if (data.childConcept == lastConcept)
 		{
-			File jsonFile = new File(file.getParentFile(), file.getName() + ".json");
-			JSONObject json = saveData(data);
-			jsonFile.getParentFile().mkdirs();
-			try (FileWriter writer = new FileWriter(jsonFile))
+			long time = System.nanoTime();
+			MeasureTable table = buildTable(data, timeTable);
+			file.getParentFile().mkdirs();
+			if (SHARD_LEVELS)
+			{
+				List<MeasureTable> shards = shardLevels(table, lastConcept);
+				for (int level = 0; level < shards.size(); level++)
+				{
+					List<String> levels = Collections.singletonList(REGION_LEVEL_TYPES[level]);
+					shards.set(level, indexRegions(shards.get(level), levels));
+				}
+				metrics.addTimeSince(HarvestReport.Phase.TABLE_BUILD, time);
+				for (int level = 0; level < shards.size(); level++)
+				{
+					File shardFile = new File(file.getParentFile(), file.getName() + "." + REGION_LEVEL_TYPES[level]);
+					saveTable(shards.get(level), shardFile, metrics, output);
+				}
+			}
+			else
 			{
-				json.writeJSONString(writer);
+				table = indexRegions(table, Arrays.asList(REGION_LEVEL_TYPES));
+				metrics.addTimeSince(HarvestReport.Phase.TABLE_BUILD, time);
+				saveTable(table, file, metrics, output);
 			}
 		}
 		else
@@ -624,177 +1446,481 @@ public class Harvester
 			{
 				Data child = data.data.get(code);
 				File childFile = new File(file, data.childConcept.id + "." + code.id);
-				saveData(child, childFile, lastConcept);
+				saveData(child, childFile, lastConcept, timeTable, metrics, output);
 			}
 		}
 	}
 
-	@SuppressWarnings("unchecked")
-	private static JSONObject saveData(Data data)
+	/**
+	 * Serialize a measure table, partitioned by time if configured, queueing
+	 * the files to be written.
+	 * 
+	 * @param file
+	 *            Output file, without extension
+	 */
+	private static void saveTable(MeasureTable table, File file, HarvestReport.DatasetMetrics metrics,
+			OutputWriter.Batch output) throws IOException
 	{
-		Map<String, Integer> timeCounts = new HashMap<>();
-		fillTimeCounts(data, timeCounts);
-		int dataCount = dataCount(data);
-		calculateMinMax(data, data);
+		if (TIME_SLICE <= 0)
+		{
+			saveFormats(table, file, metrics, output);
+			return;
+		}
 
-		List<String> times = new ArrayList<>(timeCounts.keySet());
-		Collections.sort(times);
+		//an index of the times and slices, so a client can load only the slices of the times it shows
+		long time = System.nanoTime();
+		List<MeasureTable> slices = new ArrayList<>();
+		for (int start = 0; start < table.times.size(); start += TIME_SLICE)
+		{
+			slices.add(table.columns(start, Math.min(start + TIME_SLICE, table.times.size())));
+		}
+		time = metrics.addTimeSince(HarvestReport.Phase.TABLE_BUILD, time);
+		byte[] index = saveTimeIndex(table, slices);
+		metrics.addTimeSince(HarvestReport.Phase.SERIALIZE, time);
+		output.write(new File(file.getParentFile(), file.getName() + ".times.json"), index);
+		for (int i = 0; i < slices.size(); i++)
+		{
+			saveFormats(slices.get(i), new File(file.getParentFile(), file.getName() + ".T" + i), metrics, output);
+		}
+	}
 
-		//if a certain time only appears in less than 10% of the records, then ignore it
-		for (int i = 0; i < times.size(); i++)
+	/**
+	 * Serialize a measure table in the output format(s), queueing the files to
+	 * be written.
+	 * 
+	 * @param file
+	 *            Output file, without extension
+	 */
+	private static void saveFormats(MeasureTable table, File file, HarvestReport.DatasetMetrics metrics,
+			OutputWriter.Batch output) throws IOException
+	{
+		long time = System.nanoTime();
+		if (WRITE_JSON)
+		{
+			File jsonFile = new File(file.getParentFile(), file.getName() + ".json");
+			byte[] content = saveData(table);
+			time = metrics.addTimeSince(HarvestReport.Phase.SERIALIZE, time);
+			output.write(jsonFile, content);
+			time = System.nanoTime();
+		}
+		if (WRITE_BINARY)
 		{
-			String time = times.get(i);
-			int timeCount = timeCounts.get(time);
-			if (timeCount / (double) dataCount < 0.1)
+			File binaryFile = new File(file.getParentFile(), file.getName() + ".bin");
+			byte[] content = BinaryStatisticsWriter.toBytes(table, QUANTIZE_BINARY);
+			metrics.addTimeSince(HarvestReport.Phase.SERIALIZE, time);
+			output.write(binaryFile, content);
+		}
+	}
+
+	/**
+	 * @return The table indexed by the region dictionary, if the regions are
+	 *         indexed, otherwise the table itself
+	 */
+	private static MeasureTable indexRegions(MeasureTable table, List<String> levels)
+	{
+		return regionIndex == null ? table : regionIndex.index(table, levels);
+	}
+
+	/**
+	 * Build the dictionary of the regions of all datasets, and save it.
+	 */
+	private static void saveRegionIndex(List<Dataset> datasets, File file) throws IOException
+	{
+		List<Concept> regionConcepts = new ArrayList<>();
+		for (Dataset dataset : datasets)
+		{
+			Concept regionConcept = dataset.conceptMap.get(REGION_CONCEPT_ID);
+			if (regionConcept != null)
 			{
-				times.remove(i--);
-				timeCounts.remove(time);
+				regionConcepts.add(regionConcept);
 			}
 		}
+		regionIndex = new RegionIndex(regionConcepts, REGION_LEVEL_TYPES);
 
-		Map<String, Object> json = new HashMap<>();
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (JsonWriter json = jsonWriter(bytes))
+		{
+			regionIndex.write(json);
+		}
+		file.getParentFile().mkdirs();
+		GzipSidecar.write(file, bytes.toByteArray(), GZIP_SIDECARS);
+	}
 
-		json.put("concept", data.childConcept.id); //should always be "REGION"
-		json.put("units", data.code.units);
-		json.put("min", (Double) data.min);
-		json.put("max", (Double) data.max);
+	/**
+	 * Split a measure table into a table per region level, so that a client
+	 * only has to load the regions of the level it shows.
+	 * 
+	 * @return A table for each of the {@link #REGION_LEVEL_TYPES}, each with
+	 *         the min/max of its own values
+	 */
+	static List<MeasureTable> shardLevels(MeasureTable table, Concept regionConcept)
+	{
+		List<List<Integer>> levelRows = new ArrayList<>();
+		for (int level = 0; level < REGION_LEVEL_TYPES.length; level++)
+		{
+			levelRows.add(new ArrayList<Integer>());
+		}
+		for (int row = 0; row < table.codes.size(); row++)
+		{
+			Code code = regionConcept.allCodesMap.get(table.codes.get(row));
+			int level = 0;
+			for (Code parent = code.parent; parent != null; parent = parent.parent)
+			{
+				level++;
+			}
+			assertTrue(level < REGION_LEVEL_TYPES.length, "Region '" + code.id + "' is below the "
+					+ REGION_LEVEL_TYPES[REGION_LEVEL_TYPES.length - 1] + " level");
+			levelRows.get(level).add(row);
+		}
+		List<MeasureTable> shards = new ArrayList<>();
+		for (List<Integer> rows : levelRows)
+		{
+			shards.add(table.rows(rows));
+		}
+		return shards;
+	}
 
-		JSONArray timeArray = new JSONArray();
-		for (String time : times)
+	/**
+	 * Build the output table for a measure node (a node whose children are the
+	 * leaf region series).
+	 */
+	static MeasureTable buildTable(Data data, final TimeTable timeTable)
+	{
+		//if a certain time only appears in less than 10% of the records, then ignore it
+		List<Integer> times = new ArrayList<>();
+		for (int time = 0; time < data.timeCounts.length; time++)
 		{
-			timeArray.add(tryConvertToNumber(time));
+			if (data.timeCounts[time] > 0 && data.timeCounts[time] / (double) data.count >= 0.1)
+			{
+				times.add(time);
+			}
+		}
+		Collections.sort(times, new Comparator<Integer>()
+		{
+			@Override
+			public int compare(Integer o1, Integer o2)
+			{
+				return timeTable.time(o1).compareTo(timeTable.time(o2));
+			}
+		});
+		List<String> timeStrings = new ArrayList<>();
+		for (int time : times)
+		{
+			timeStrings.add(timeTable.time(time));
 		}
-		json.put("times", timeArray);
 
-		Map<String, Object> dataJson = new HashMap<>();
-		for (Code code : data.codes)
+		//codes are added in the order their series were downloaded; sort them so the output is reproducible
+		List<Code> sortedCodes = new ArrayList<>(data.codes);
+		Collections.sort(sortedCodes, new Comparator<Code>()
 		{
-			Data child = data.data.get(code);
-			DataValues values = child.values;
-			assertTrue(values != null, "DataValues is null");
+			@Override
+			public int compare(Code o1, Code o2)
+			{
+				return o1.id.compareTo(o2.id);
+			}
+		});
 
-			boolean foundNonNull = false;
-			for (String time : times)
+		List<String> codes = new ArrayList<>();
+		double[] values = new double[data.codes.size() * times.size()];
+		int index = 0;
+		//position of each time index in the current series; the time arrays are interned, so the lookup
+		//only needs rebuilding when a series has a different layout to the previous one
+		int[] positions = new int[data.timeCounts.length];
+		int[] layout = null;
+		for (Code code : sortedCodes)
+		{
+			DataValues dataValues = data.values.get(code);
+			assertTrue(dataValues != null, "DataValues is null");
+
+			if (dataValues.times != layout)
 			{
-				String value = values.values.get(time);
-				if (value != null)
+				Arrays.fill(positions, -1);
+				layout = dataValues.times;
+				for (int i = 0; i < layout.length; i++)
 				{
-					foundNonNull = true;
-					break;
+					positions[layout[i]] = i;
 				}
 			}
+
+			boolean foundNonNull = false;
+			for (int i = 0; i < times.size(); i++)
+			{
+				int position = positions[times.get(i)];
+				boolean isNull = position < 0 || dataValues.isNull(position);
+				values[index + i] = isNull ? Double.NaN : dataValues.values[position];
+				foundNonNull |= !isNull;
+			}
 			if (!foundNonNull)
 			{
 				//don't save observations that have no values
 				continue;
 			}
+			codes.add(code.id);
+			index += times.size();
+		}
 
-			JSONArray valueArray = new JSONArray();
-			for (String time : times)
+		return new MeasureTable(data.childConcept.id, data.code.units, data.min, data.max, timeStrings, codes,
+				Arrays.copyOf(values, index));
+	}
+
+	static byte[] saveData(MeasureTable table) throws IOException
+	{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (JsonWriter json = jsonWriter(bytes))
+		{
+			json.beginObject();
+			json.name("concept").value(table.concept); //should always be "REGION"
+			json.name("units").value(table.units);
+			json.name("min").value(table.min);
+			json.name("max").value(table.max);
+
+			json.name("times").beginArray();
+			for (String time : table.times)
+			{
+				json.numberOrString(time);
+			}
+			json.endArray();
+
+			if (table.regionLevels != null)
+			{
+				//rows in region dictionary order, null for the regions without values
+				writeRegionLevels(json, table.regionLevels);
+				json.name("data").beginArray();
+				for (int row = 0; row < table.codes.size(); row++)
+				{
+					if (hasValues(table, row))
+					{
+						writeValues(json, table, row);
+					}
+					else
+					{
+						json.nullValue();
+					}
+				}
+				json.endArray();
+			}
+			else
 			{
-				String value = values.values.get(time);
-				valueArray.add(tryConvertToNumber(value));
+				json.name("data").beginObject();
+				for (int row = 0; row < table.codes.size(); row++)
+				{
+					json.name(table.codes.get(row));
+					writeValues(json, table, row);
+				}
+				json.endObject();
 			}
-			dataJson.put(code.id, valueArray);
+			json.endObject();
 		}
-		json.put("data", new JSONObject(dataJson));
+		return bytes.toByteArray();
+	}
 
-		return new JSONObject(json);
+	private static void writeValues(JsonWriter json, MeasureTable table, int row) throws IOException
+	{
+		json.beginArray();
+		for (int t = 0; t < table.times.size(); t++)
+		{
+			if (table.isNull(row, t))
+			{
+				json.nullValue();
+			}
+			else
+			{
+				json.value(table.value(row, t));
+			}
+		}
+		json.endArray();
 	}
 
-	@SuppressWarnings("unchecked")
-	private static void saveSummary(Dataset dataset, File file, List<Concept> conceptsOrder) throws IOException
+	private static boolean hasValues(MeasureTable table, int row)
 	{
-		Map<String, Object> json = new HashMap<>();
+		for (int t = 0; t < table.times.size(); t++)
+		{
+			if (!table.isNull(row, t))
+			{
+				return true;
+			}
+		}
+		return false;
+	}
 
-		json.put("id", dataset.id);
-		json.put("description", dataset.description);
+	private static void writeRegionLevels(JsonWriter json, List<String> regionLevels) throws IOException
+	{
+		json.name("levels").beginArray();
+		for (String level : regionLevels)
+		{
+			json.value(level);
+		}
+		json.endArray();
+	}
 
-		JSONArray conceptArray = new JSONArray();
-		for (Concept concept : conceptsOrder)
+	/**
+	 * Serialize the index of a measure that is partitioned by time: all its
+	 * times, and the range of times and min/max of each slice.
+	 */
+	static byte[] saveTimeIndex(MeasureTable table, List<MeasureTable> slices) throws IOException
+	{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (JsonWriter json = jsonWriter(bytes))
 		{
-			if ("REGION".equals(concept.id))
+			json.beginObject();
+			json.name("concept").value(table.concept);
+			json.name("units").value(table.units);
+			json.name("min").value(table.min);
+			json.name("max").value(table.max);
+			json.name("format").value(WRITE_BINARY ? "binary" : "json");
+			if (table.regionLevels != null)
 			{
-				//don't write region concept to summary file
-				continue;
+				writeRegionLevels(json, table.regionLevels);
 			}
 
-			Map<String, Object> conceptJson = new HashMap<>();
-			conceptJson.put("name", concept.id);
+			json.name("times").beginArray();
+			for (String time : table.times)
+			{
+				json.numberOrString(time);
+			}
+			json.endArray();
 
-			List<Code> sortedCodes = new ArrayList<>(concept.codes);
-			Collections.sort(sortedCodes, new Comparator<Code>()
+			json.name("slices").beginArray();
+			int start = 0;
+			for (MeasureTable slice : slices)
 			{
-				@Override
-				public int compare(Code o1, Code o2)
+				json.beginObject();
+				json.name("start").value(start);
+				json.name("count").value(slice.times.size());
+				json.name("min").value(slice.min);
+				json.name("max").value(slice.max);
+				json.endObject();
+				start += slice.times.size();
+			}
+			json.endArray();
+			json.endObject();
+		}
+		return bytes.toByteArray();
+	}
+
+	private static void saveSummary(Dataset dataset, File file, List<Concept> conceptsOrder,
+			HarvestReport.DatasetMetrics metrics) throws IOException
+	{
+		long time = System.nanoTime();
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (JsonWriter json = jsonWriter(bytes))
+		{
+			json.beginObject();
+			json.name("id").value(dataset.id);
+			json.name("description").value(dataset.description);
+			json.name("format").value(WRITE_BINARY ? "binary" : "json");
+			if (SHARD_LEVELS)
+			{
+				//index of the region levels the measures are sharded by
+				json.name("levels").beginArray();
+				for (String level : REGION_LEVEL_TYPES)
 				{
-					return o1.description.compareTo(o2.description);
+					json.value(level);
 				}
-			});
+				json.endArray();
+			}
+			if (REGION_INDEX)
+			{
+				//values are rows in the order of the region dictionary in regions.json
+				json.name("regionIndex").value("../regions.json");
+			}
+			if (TIME_SLICE > 0)
+			{
+				//measures are partitioned by time, into slices of this many times
+				json.name("timeSlice").value(TIME_SLICE);
+			}
 
-			JSONArray codesArray = new JSONArray();
-			for (Code code : sortedCodes)
+			json.name("concepts").beginArray();
+			for (Concept concept : conceptsOrder)
 			{
-				if (!concept.usedCodes.contains(code))
+				if ("REGION".equals(concept.id))
 				{
-					//skip unused codes
+					//don't write region concept to summary file
 					continue;
 				}
 
-				Map<String, Object> codeJson = new HashMap<>();
+				json.beginObject();
+				json.name("name").value(concept.id);
 
-				codeJson.put("k", code.id);
-				codeJson.put("v", code.description);
-				codeJson.put("u", code.units);
+				List<Code> sortedCodes = new ArrayList<>(concept.codes);
+				Collections.sort(sortedCodes, new Comparator<Code>()
+				{
+					@Override
+					public int compare(Code o1, Code o2)
+					{
+						int result = o1.description.compareTo(o2.description);
+						return result != 0 ? result : o1.id.compareTo(o2.id);
+					}
+				});
 
-				codesArray.add(new JSONObject(codeJson));
-			}
-			conceptJson.put("codes", codesArray);
+				json.name("codes").beginArray();
+				for (Code code : sortedCodes)
+				{
+					if (!concept.usedCodes.contains(code))
+					{
+						//skip unused codes
+						continue;
+					}
 
-			conceptArray.add(new JSONObject(conceptJson));
-		}
-		json.put("concepts", conceptArray);
+					json.beginObject();
+					json.name("k").value(code.id);
+					json.name("v").value(code.description);
+					json.name("u").value(code.units);
+					json.endObject();
+				}
+				json.endArray();
 
-		JSONObject jsonObject = new JSONObject(json);
-		try (FileWriter writer = new FileWriter(file))
-		{
-			jsonObject.writeJSONString(writer);
+				json.endObject();
+			}
+			json.endArray();
+			json.endObject();
 		}
+
+		byte[] content = bytes.toByteArray();
+		time = metrics.addTimeSince(HarvestReport.Phase.SERIALIZE, time);
+		long written = GzipSidecar.write(file, content, GZIP_SIDECARS);
+		metrics.addTimeSince(HarvestReport.Phase.WRITE, time);
+		metrics.addBytesWritten(written);
 	}
 
-	@SuppressWarnings("unchecked")
 	private static void saveDatasetSummary(List<Dataset> datasets, File file) throws IOException
 	{
-		Map<String, Object> json = new HashMap<>();
-
-		List<Dataset> sortedDatasets = new ArrayList<>();
+		List<Dataset> sortedDatasets = new ArrayList<>(datasets);
 		Collections.sort(sortedDatasets, new Comparator<Dataset>()
 		{
 			@Override
 			public int compare(Dataset o1, Dataset o2)
 			{
-				return o1.description.compareTo(o2.description);
+				int result = o1.description.compareTo(o2.description);
+				return result != 0 ? result : o1.id.compareTo(o2.id);
 			}
 		});
 
-		JSONArray datasetsArray = new JSONArray();
-		for (Dataset dataset : sortedDatasets)
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (JsonWriter json = jsonWriter(bytes))
 		{
-			Map<String, Object> datasetJson = new HashMap<>();
-			datasetJson.put("k", dataset.id);
-			datasetJson.put("v", dataset.description);
-			datasetsArray.add(new JSONObject(datasetJson));
+			json.beginObject();
+			json.name("datasets").beginArray();
+			for (Dataset dataset : sortedDatasets)
+			{
+				json.beginObject();
+				json.name("k").value(dataset.id);
+				json.name("v").value(dataset.description);
+				json.endObject();
+			}
+			json.endArray();
+			json.endObject();
 		}
-		json.put("datasets", datasetsArray);
+		GzipSidecar.write(file, bytes.toByteArray(), GZIP_SIDECARS);
+	}
 
-		JSONObject jsonObject = new JSONObject(json);
-		try (FileWriter writer = new FileWriter(file))
-		{
-			jsonObject.writeJSONString(writer);
-		}
+	private static JsonWriter jsonWriter(OutputStream output)
+	{
+		return new JsonWriter(new BufferedWriter(new OutputStreamWriter(output, StandardCharsets.UTF_8)),
+				NUMBER_FORMAT);
 	}
 
-	private static Object tryConvertToNumber(String s)
+	static Object tryConvertToNumber(String s)
 	{
 		if (s == null)
 		{
@@ -816,62 +1942,4 @@ public class Harvester
 			}
 		}
 	}
-
-	private static void fillTimeCounts(Data data, Map<String, Integer> counts)
-	{
-		if (data.values != null)
-		{
-			for (String time : data.values.times)
-			{
-				Integer count = counts.get(time);
-				count = count == null ? 0 : count;
-				counts.put(time, count + 1);
-			}
-		}
-		for (Data child : data.data.values())
-		{
-			fillTimeCounts(child, counts);
-		}
-	}
-
-	private static void calculateMinMax(Data data, Data store)
-	{
-		if (data.values != null)
-		{
-			for (String value : data.values.values.values())
-			{
-				if (value == null)
-				{
-					continue;
-				}
-				try
-				{
-					double d = Double.parseDouble(value);
-					store.min = Math.min(store.min, d);
-					store.max = Math.max(store.max, d);
-				}
-				catch (NumberFormatException e)
-				{
-				}
-			}
-		}
-		for (Data child : data.data.values())
-		{
-			calculateMinMax(child, store);
-		}
-	}
-
-	private static int dataCount(Data data)
-	{
-		int count = 0;
-		if (data.values != null)
-		{
-			count++;
-		}
-		for (Data child : data.data.values())
-		{
-			count += dataCount(child);
-		}
-		return count;
-	}
 }
@@ -0,0 +1,86 @@
+package harvester;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+/**
+ * Thread-safe histogram of durations in milliseconds, with fixed buckets on a
+ * 1-2-5 scale. Percentiles are estimated as the upper bound of the bucket
+ * they fall in.
+ *
+ * @author Michael de Hoog
+ */
+public class Histogram
+{
+	private final static long[] BOUNDS = { 1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000, 20000,
+			50000, 100000, 200000 };
+
+	private final long[] counts = new long[BOUNDS.length + 1];
+	private long count = 0;
+	private long sum = 0;
+	private long max = 0;
+
+	public synchronized void record(long millis)
+	{
+		int bucket = 0;
+		while (bucket < BOUNDS.length && millis > BOUNDS[bucket])
+		{
+			bucket++;
+		}
+		counts[bucket]++;
+		count++;
+		sum += millis;
+		max = Math.max(max, millis);
+	}
+
+	public synchronized long count()
+	{
+		return count;
+	}
+
+	/**
+	 * @return Estimate of the given percentile (0-100), or 0 if nothing has
+	 *         been recorded
+	 */
+	public synchronized long percentile(double percentile)
+	{
+		long rank = (long) Math.ceil(count * percentile / 100.0);
+		long seen = 0;
+		for (int bucket = 0; bucket < counts.length; bucket++)
+		{
+			seen += counts[bucket];
+			if (seen >= rank && seen > 0)
+			{
+				return bucket < BOUNDS.length ? Math.min(BOUNDS[bucket], max) : max;
+			}
+		}
+		return 0;
+	}
+
+	@SuppressWarnings("unchecked")
+	public synchronized JSONObject toJson()
+	{
+		JSONObject json = new JSONObject();
+		json.put("count", count);
+		json.put("sum", sum);
+		json.put("max", max);
+		json.put("mean", count == 0 ? 0 : sum / (double) count);
+		json.put("p50", percentile(50));
+		json.put("p90", percentile(90));
+		json.put("p99", percentile(99));
+		JSONArray buckets = new JSONArray();
+		for (int bucket = 0; bucket < counts.length; bucket++)
+		{
+			if (counts[bucket] == 0)
+			{
+				continue;
+			}
+			JSONObject bucketJson = new JSONObject();
+			bucketJson.put("le", bucket < BOUNDS.length ? BOUNDS[bucket] : null);
+			bucketJson.put("count", counts[bucket]);
+			buckets.add(bucketJson);
+		}
+		json.put("buckets", buckets);
+		return json;
+	}
+}
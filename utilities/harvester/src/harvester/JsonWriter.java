@@ -0,0 +1,378 @@
+package harvester;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.util.Arrays;
+
+/**
+ * Streaming JSON writer that writes values straight to a (buffered)
+ * {@link Writer}, without building an intermediate object graph or boxing
+ * numbers. Keys are written in the order they are given, so callers control
+ * the key order, and therefore the output is reproducible.
+ * <p/>
+ * Strings are escaped the same way as json-simple escapes them. Integral
+ * numbers (within the exactly representable range) are written without a
+ * fraction. Other numbers are written in one of the {@link NumberFormat}s;
+ * non-finite numbers, which JSON can't represent, are written as null.
+ * <p/>
+ * Not thread-safe.
+ *
+ * @author Michael de Hoog
+ */
+public class JsonWriter implements Closeable
+{
+	private final static long MAX_EXACT_LONG = 1L << 53;
+	private final static int MAX_FAST_SCALE = 9;
+	private final static long[] POWERS_OF_TEN = new long[MAX_FAST_SCALE + 1];
+	static
+	{
+		POWERS_OF_TEN[0] = 1;
+		for (int i = 1; i < POWERS_OF_TEN.length; i++)
+		{
+			POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+		}
+	}
+
+	public static enum NumberFormat
+	{
+		/**
+		 * {@link Double#toString(double)}, as written by json-simple
+		 */
+		JAVA,
+		/**
+		 * The shortest decimal that parses back to exactly the same double
+		 */
+		SHORTEST;
+
+		public static NumberFormat parse(String value)
+		{
+			return valueOf(value.trim().toUpperCase());
+		}
+	}
+
+	private final Writer writer;
+	private final NumberFormat numberFormat;
+	private final char[] digits = new char[32];
+	//for each open object or array, whether it still has no values
+	private boolean[] empty = new boolean[16];
+	private int depth = 0;
+	private boolean afterName = false;
+
+	public JsonWriter(Writer writer, NumberFormat numberFormat)
+	{
+		this.writer = writer;
+		this.numberFormat = numberFormat;
+	}
+
+	public JsonWriter beginObject() throws IOException
+	{
+		beforeValue();
+		writer.write('{');
+		push();
+		return this;
+	}
+
+	public JsonWriter endObject() throws IOException
+	{
+		depth--;
+		writer.write('}');
+		return this;
+	}
+
+	public JsonWriter beginArray() throws IOException
+	{
+		beforeValue();
+		writer.write('[');
+		push();
+		return this;
+	}
+
+	public JsonWriter endArray() throws IOException
+	{
+		depth--;
+		writer.write(']');
+		return this;
+	}
+
+	/**
+	 * Write the name of the next value of an object.
+	 */
+	public JsonWriter name(String name) throws IOException
+	{
+		beforeValue();
+		writeString(name);
+		writer.write(':');
+		afterName = true;
+		return this;
+	}
+
+	public JsonWriter value(String value) throws IOException
+	{
+		if (value == null)
+		{
+			return nullValue();
+		}
+		beforeValue();
+		writeString(value);
+		return this;
+	}
+
+	public JsonWriter value(long value) throws IOException
+	{
+		beforeValue();
+		writeLong(value);
+		return this;
+	}
+
+	public JsonWriter value(double value) throws IOException
+	{
+		if (Double.isNaN(value) || Double.isInfinite(value))
+		{
+			return nullValue();
+		}
+		beforeValue();
+		if (value == Math.rint(value) && Math.abs(value) < MAX_EXACT_LONG)
+		{
+			writeLong((long) value);
+		}
+		else if (numberFormat == NumberFormat.SHORTEST)
+		{
+			writeShortest(value);
+		}
+		else
+		{
+			writer.write(Double.toString(value));
+		}
+		return this;
+	}
+
+	/**
+	 * Write a value that is a number if the string is a valid number, and a
+	 * string otherwise (eg an observation time, which is usually a year).
+	 */
+	public JsonWriter numberOrString(String value) throws IOException
+	{
+		Object number = Harvester.tryConvertToNumber(value);
+		if (number instanceof Long)
+		{
+			return value((Long) number);
+		}
+		if (number instanceof Double)
+		{
+			return value((Double) number);
+		}
+		return value(value);
+	}
+
+	public JsonWriter nullValue() throws IOException
+	{
+		beforeValue();
+		writer.write("null");
+		return this;
+	}
+
+	public void flush() throws IOException
+	{
+		writer.flush();
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		writer.close();
+	}
+
+	private void push()
+	{
+		if (depth == empty.length)
+		{
+			empty = Arrays.copyOf(empty, depth * 2);
+		}
+		empty[depth++] = true;
+	}
+
+	private void beforeValue() throws IOException
+	{
+		if (afterName)
+		{
+			afterName = false;
+			return;
+		}
+		if (depth > 0)
+		{
+			if (!empty[depth - 1])
+			{
+				writer.write(',');
+			}
+			empty[depth - 1] = false;
+		}
+	}
+
+	private void writeString(String s) throws IOException
+	{
+		writer.write('"');
+		int start = 0;
+		for (int i = 0; i < s.length(); i++)
+		{
+			char ch = s.charAt(i);
+			String escaped = escape(ch);
+			if (escaped != null)
+			{
+				writer.write(s, start, i - start);
+				writer.write(escaped);
+				start = i + 1;
+			}
+		}
+		writer.write(s, start, s.length() - start);
+		writer.write('"');
+	}
+
+	/**
+	 * @return The escape sequence for the character, or null if it doesn't
+	 *         need to be escaped
+	 */
+	private static String escape(char ch)
+	{
+		switch (ch)
+		{
+		case '"':
+			return "\\\"";
+		case '\\':
+			return "\\\\";
+		case '\b':
+			return "\\b";
+		case '\f':
+			return "\\f";
+		case '\n':
+			return "\\n";
+		case '\r':
+			return "\\r";
+		case '\t':
+			return "\\t";
+		case '/':
+			return "\\/";
+		default:
+			if (ch <= '\u001F' || (ch >= '\u007F' && ch <= '\u009F') || (ch >= '\u2000' && ch <= '\u20FF'))
+			{
+				String hex = Integer.toHexString(ch).toUpperCase();
+				return "\\u" + "0000".substring(hex.length()) + hex;
+			}
+			return null;
+		}
+	}
+
+	private void writeLong(long value) throws IOException
+	{
+		if (value == Long.MIN_VALUE)
+		{
+			writer.write(Long.toString(value));
+			return;
+		}
+		int position = digits.length;
+		long remaining = Math.abs(value);
+		do
+		{
+			digits[--position] = (char) ('0' + remaining % 10);
+			remaining /= 10;
+		}
+		while (remaining != 0);
+		if (value < 0)
+		{
+			digits[--position] = '-';
+		}
+		writer.write(digits, position, digits.length - position);
+	}
+
+	/**
+	 * Write the shortest decimal representation that parses back to the same
+	 * value. Most values have only a few decimal places, so first try the
+	 * smallest number of decimal places with which the value can be written
+	 * exactly as a scaled long, falling back to a search over the significant
+	 * digits for the rest.
+	 */
+	private void writeShortest(double value) throws IOException
+	{
+		double abs = Math.abs(value);
+		if (abs >= 1e-3 && abs < 1e6)
+		{
+			for (int scale = 1; scale <= MAX_FAST_SCALE; scale++)
+			{
+				long power = POWERS_OF_TEN[scale];
+				long mantissa = Math.round(value * power);
+				//both operands are exact, and division is correctly rounded, so this is the parsed value
+				if (mantissa / (double) power == value)
+				{
+					writeScaled(mantissa, scale);
+					return;
+				}
+			}
+		}
+		for (int precision = 1; precision <= 17; precision++)
+		{
+			BigDecimal decimal = new BigDecimal(value).round(new MathContext(precision));
+			if (decimal.doubleValue() == value)
+			{
+				writeDecimal(decimal.stripTrailingZeros());
+				return;
+			}
+		}
+		writer.write(Double.toString(value));
+	}
+
+	/**
+	 * Write the decimal in plain or scientific notation, whichever is shorter
+	 * (BigDecimal's own toString uses scientific notation for some small
+	 * numbers, and always writes the sign of the exponent).
+	 */
+	private void writeDecimal(BigDecimal decimal) throws IOException
+	{
+		String plain = decimal.toPlainString();
+		String unscaled = decimal.unscaledValue().abs().toString();
+		int exponent = unscaled.length() - 1 - decimal.scale();
+		StringBuilder scientific = new StringBuilder(unscaled.length() + 8);
+		if (decimal.signum() < 0)
+		{
+			scientific.append('-');
+		}
+		scientific.append(unscaled.charAt(0));
+		if (unscaled.length() > 1)
+		{
+			scientific.append('.').append(unscaled, 1, unscaled.length());
+		}
+		scientific.append('E').append(exponent);
+		if (scientific.length() < plain.length())
+		{
+			writer.write(scientific.toString());
+		}
+		else
+		{
+			writer.write(plain);
+		}
+	}
+
+	private void writeScaled(long mantissa, int scale) throws IOException
+	{
+		int position = digits.length;
+		long remaining = Math.abs(mantissa);
+		for (int i = 0; i < scale; i++)
+		{
+			digits[--position] = (char) ('0' + remaining % 10);
+			remaining /= 10;
+		}
+		digits[--position] = '.';
+		do
+		{
+			digits[--position] = (char) ('0' + remaining % 10);
+			remaining /= 10;
+		}
+		while (remaining != 0);
+		if (mantissa < 0)
+		{
+			digits[--position] = '-';
+		}
+		writer.write(digits, position, digits.length - position);
+	}
+}
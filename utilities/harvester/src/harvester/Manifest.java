@@ -0,0 +1,308 @@
+package harvester;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+/**
+ * Records the content hash, size and timestamp of every artifact the
+ * {@link Harvester} downloads or writes, plus a fingerprint of the inputs each
+ * dataset was last processed from. Used to re-download only stale inputs, and
+ * to reprocess only datasets whose inputs have changed. Thread-safe.
+ * <p/>
+ * Downloaded artifacts are keyed by request URL, processed artifacts by their
+ * path relative to the harvest root directory.
+ *
+ * @author Michael de Hoog
+ */
+public class Manifest
+{
+	private final static int VERSION = 1;
+
+	public static class Entry
+	{
+		public final String hash;
+		public final long size;
+		public final long time;
+		public final String etag;
+		public final String lastModified;
+
+		public Entry(String hash, long size, long time, String etag, String lastModified)
+		{
+			this.hash = hash;
+			this.size = size;
+			this.time = time;
+			this.etag = etag;
+			this.lastModified = lastModified;
+		}
+
+		/**
+		 * @return A copy of this entry with the timestamp updated (eg after
+		 *         the server reported the content as not modified)
+		 */
+		public Entry touch(long time)
+		{
+			return new Entry(hash, size, time, etag, lastModified);
+		}
+	}
+
+	private final File file;
+	private final long maxAge;
+	private final Map<String, Entry> artifacts = new HashMap<>();
+	private final Map<String, String> datasets = new HashMap<>();
+	private final Object saveLock = new Object();
+
+	/**
+	 * @param maxAge
+	 *            Age in milliseconds after which a downloaded artifact is
+	 *            considered stale (< 0 for never)
+	 */
+	public Manifest(File file, long maxAge)
+	{
+		this.file = file;
+		this.maxAge = maxAge;
+	}
+
+	public static Manifest load(File file, long maxAge) throws IOException
+	{
+		Manifest manifest = new Manifest(file, maxAge);
+		if (!file.exists())
+		{
+			return manifest;
+		}
+		try (Reader reader = new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))
+		{
+			JSONObject json = (JSONObject) new JSONParser().parse(reader);
+			if (((Number) json.get("version")).intValue() != VERSION)
+			{
+				return manifest;
+			}
+			JSONObject artifacts = (JSONObject) json.get("artifacts");
+			for (Object key : artifacts.keySet())
+			{
+				JSONObject entry = (JSONObject) artifacts.get(key);
+				manifest.artifacts.put((String) key, new Entry((String) entry.get("hash"), ((Number) entry
+						.get("size")).longValue(), ((Number) entry.get("time")).longValue(), (String) entry
+						.get("etag"), (String) entry.get("lastModified")));
+			}
+			JSONObject datasets = (JSONObject) json.get("datasets");
+			for (Object key : datasets.keySet())
+			{
+				manifest.datasets.put((String) key, (String) datasets.get(key));
+			}
+		}
+		catch (ParseException | ClassCastException | NullPointerException e)
+		{
+			System.err.println("Ignoring invalid manifest " + file + ": " + e);
+		}
+		return manifest;
+	}
+
+	public synchronized Entry get(String key)
+	{
+		return artifacts.get(key);
+	}
+
+	public synchronized void put(String key, Entry entry)
+	{
+		artifacts.put(key, entry);
+	}
+
+	public synchronized void remove(String key)
+	{
+		artifacts.remove(key);
+	}
+
+	/**
+	 * Record the current content of a file.
+	 */
+	public Entry record(String key, File file) throws IOException
+	{
+		try (InputStream input = new FileInputStream(file))
+		{
+			return record(key, input);
+		}
+	}
+
+	/**
+	 * Record the current content stored for the key in a raw store.
+	 */
+	public Entry record(String key, RawStore store) throws IOException
+	{
+		try (InputStream input = store.open(key))
+		{
+			return record(key, input);
+		}
+	}
+
+	private Entry record(String key, InputStream input) throws IOException
+	{
+		MessageDigest digest = digest();
+		long size = 0;
+		byte[] buffer = new byte[65536];
+		int read;
+		while ((read = input.read(buffer)) >= 0)
+		{
+			digest.update(buffer, 0, read);
+			size += read;
+		}
+		Entry entry = new Entry(toHex(digest.digest()), size, System.currentTimeMillis(), null, null);
+		put(key, entry);
+		return entry;
+	}
+
+	public boolean isStale(Entry entry)
+	{
+		return maxAge >= 0 && System.currentTimeMillis() - entry.time > maxAge;
+	}
+
+	/**
+	 * @return True if the response for the key is stored and isn't stale, ie
+	 *         a request for it would be served from the store
+	 */
+	public boolean isFresh(String key, RawStore store)
+	{
+		long lastModified = store.lastModified(key);
+		if (lastModified < 0)
+		{
+			return false;
+		}
+		Entry entry = get(key);
+		return entry != null ? !isStale(entry) : maxAge < 0 || System.currentTimeMillis() - lastModified <= maxAge;
+	}
+
+	/**
+	 * @return Keys of all artifacts whose key starts with the given prefix
+	 */
+	public synchronized List<String> keys(String prefix)
+	{
+		List<String> keys = new ArrayList<>();
+		for (String key : artifacts.keySet())
+		{
+			if (key.startsWith(prefix))
+			{
+				keys.add(key);
+			}
+		}
+		return keys;
+	}
+
+	public synchronized String datasetFingerprint(String datasetId)
+	{
+		return datasets.get(datasetId);
+	}
+
+	public synchronized void setDatasetFingerprint(String datasetId, String fingerprint)
+	{
+		datasets.put(datasetId, fingerprint);
+	}
+
+	/**
+	 * Calculate a fingerprint of the current content of the given artifacts.
+	 *
+	 * @param extra
+	 *            Additional string to include in the fingerprint (eg the
+	 *            processing options)
+	 * @return Fingerprint, or null if one of the artifacts is not in the
+	 *         manifest
+	 */
+	public synchronized String fingerprint(List<String> keys, String extra)
+	{
+		List<String> sorted = new ArrayList<>(keys);
+		Collections.sort(sorted);
+		MessageDigest digest = digest();
+		digest.update(extra.getBytes(StandardCharsets.UTF_8));
+		for (String key : sorted)
+		{
+			Entry entry = artifacts.get(key);
+			if (entry == null)
+			{
+				return null;
+			}
+			digest.update(("\n" + key + "=" + entry.hash).getBytes(StandardCharsets.UTF_8));
+		}
+		return toHex(digest.digest());
+	}
+
+	/**
+	 * Write the manifest. The file is replaced atomically, so a crash never
+	 * leaves a truncated manifest. The manifest is only locked while it is
+	 * copied, so it can be used while it is written; saves are serialized, so
+	 * an older copy never replaces a newer one.
+	 */
+	@SuppressWarnings("unchecked")
+	public void save() throws IOException
+	{
+		synchronized (saveLock)
+		{
+			Map<String, Entry> artifactsCopy;
+			Map<String, String> datasetsCopy;
+			synchronized (this)
+			{
+				artifactsCopy = new HashMap<>(artifacts);
+				datasetsCopy = new HashMap<>(datasets);
+			}
+
+			JSONObject artifactsJson = new JSONObject();
+			for (Map.Entry<String, Entry> e : artifactsCopy.entrySet())
+			{
+				Entry entry = e.getValue();
+				JSONObject entryJson = new JSONObject();
+				entryJson.put("hash", entry.hash);
+				entryJson.put("size", entry.size);
+				entryJson.put("time", entry.time);
+				if (entry.etag != null)
+				{
+					entryJson.put("etag", entry.etag);
+				}
+				if (entry.lastModified != null)
+				{
+					entryJson.put("lastModified", entry.lastModified);
+				}
+				artifactsJson.put(e.getKey(), entryJson);
+			}
+			JSONObject json = new JSONObject();
+			json.put("version", VERSION);
+			json.put("artifacts", artifactsJson);
+			json.put("datasets", new JSONObject(datasetsCopy));
+			AtomicFile.write(file, json);
+		}
+	}
+
+	public static MessageDigest digest()
+	{
+		try
+		{
+			return MessageDigest.getInstance("SHA-256");
+		}
+		catch (NoSuchAlgorithmException e)
+		{
+			throw new IllegalStateException(e);
+		}
+	}
+
+	public static String toHex(byte[] bytes)
+	{
+		StringBuilder sb = new StringBuilder(bytes.length * 2);
+		for (byte b : bytes)
+		{
+			sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,113 @@
+package harvester;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The processed statistics for one measure, as written to the output files: a
+ * table of values with one row per region code and one column per time. Null
+ * values are stored as {@link Double#NaN}.
+ *
+ * @author Michael de Hoog
+ */
+public class MeasureTable
+{
+	public final String concept;
+	public final String units;
+	public final double min;
+	public final double max;
+	public final List<String> times;
+	public final List<String> codes;
+	//levels of the rows if they are indexed by a RegionIndex, otherwise null
+	public final List<String> regionLevels;
+	private final double[] values;
+
+	public MeasureTable(String concept, String units, double min, double max, List<String> times,
+			List<String> codes, double[] values)
+	{
+		this(concept, units, min, max, times, codes, values, null);
+	}
+
+	public MeasureTable(String concept, String units, double min, double max, List<String> times,
+			List<String> codes, double[] values, List<String> regionLevels)
+	{
+		if (values.length != times.size() * codes.size())
+		{
+			throw new IllegalArgumentException("Expected " + times.size() * codes.size() + " values, got "
+					+ values.length);
+		}
+		this.concept = concept;
+		this.units = units;
+		this.min = min;
+		this.max = max;
+		this.times = times;
+		this.codes = codes;
+		this.values = values;
+		this.regionLevels = regionLevels;
+	}
+
+	public double value(int row, int time)
+	{
+		return values[row * times.size() + time];
+	}
+
+	public boolean isNull(int row, int time)
+	{
+		return Double.isNaN(value(row, time));
+	}
+
+	/**
+	 * @return A table of the given rows of this table, with the min/max of
+	 *         their (non-null) values; the rows are no longer indexed
+	 */
+	public MeasureTable rows(List<Integer> rows)
+	{
+		List<String> codes = new ArrayList<>(rows.size());
+		double[] values = new double[rows.size() * times.size()];
+		double min = Double.MAX_VALUE;
+		double max = -Double.MAX_VALUE;
+		int index = 0;
+		for (int row : rows)
+		{
+			codes.add(this.codes.get(row));
+			for (int time = 0; time < times.size(); time++)
+			{
+				double value = value(row, time);
+				values[index++] = value;
+				if (!Double.isNaN(value))
+				{
+					min = Math.min(min, value);
+					max = Math.max(max, value);
+				}
+			}
+		}
+		return new MeasureTable(concept, units, min, max, times, codes, values);
+	}
+
+	/**
+	 * @return A table of the given range of times of this table, with the
+	 *         min/max of its (non-null) values
+	 */
+	public MeasureTable columns(int fromTime, int toTime)
+	{
+		List<String> times = new ArrayList<>(this.times.subList(fromTime, toTime));
+		double[] values = new double[codes.size() * times.size()];
+		double min = Double.MAX_VALUE;
+		double max = -Double.MAX_VALUE;
+		int index = 0;
+		for (int row = 0; row < codes.size(); row++)
+		{
+			for (int time = fromTime; time < toTime; time++)
+			{
+				double value = value(row, time);
+				values[index++] = value;
+				if (!Double.isNaN(value))
+				{
+					min = Math.min(min, value);
+					max = Math.max(max, value);
+				}
+			}
+		}
+		return new MeasureTable(concept, units, min, max, times, codes, values, regionLevels);
+	}
+}
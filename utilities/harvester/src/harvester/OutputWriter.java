@@ -0,0 +1,172 @@
+package harvester;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes serialized output files on dedicated writer threads, so that the
+ * processing workers can build and serialize the next output while earlier
+ * ones are written to disk. The number of queued writes is bounded; a worker
+ * that gets too far ahead of the disk blocks until a write completes, which
+ * also bounds the memory held by serialized outputs waiting to be written.
+ * <p/>
+ * Files are written with {@link AtomicFile}, with a {@link GzipSidecar} if
+ * enabled. Writes are grouped in a {@link Batch} (eg all the outputs of a
+ * dataset), which can be awaited.
+ *
+ * @author Michael de Hoog
+ */
+public class OutputWriter implements Closeable
+{
+	private final ExecutorService executor;
+	private final Semaphore queued;
+	private final boolean gzip;
+
+	/**
+	 * A group of writes that can be waited on together.
+	 */
+	public class Batch
+	{
+		private final HarvestReport.DatasetMetrics metrics;
+		private final List<Future<Void>> futures = new ArrayList<>();
+
+		private Batch(HarvestReport.DatasetMetrics metrics)
+		{
+			this.metrics = metrics;
+		}
+
+		/**
+		 * Queue a file to be written, blocking while the queue is full.
+		 */
+		public void write(final File file, final byte[] content) throws IOException
+		{
+			try
+			{
+				queued.acquire();
+			}
+			catch (InterruptedException e)
+			{
+				throw new IOException(e);
+			}
+			try
+			{
+				Future<Void> future = executor.submit(new Callable<Void>()
+				{
+					@Override
+					public Void call() throws IOException
+					{
+						try
+						{
+							long start = System.nanoTime();
+							long written = GzipSidecar.write(file, content, gzip);
+							metrics.addTimeSince(HarvestReport.Phase.WRITE, start);
+							metrics.addBytesWritten(written);
+							return null;
+						}
+						finally
+						{
+							queued.release();
+						}
+					}
+				});
+				synchronized (futures)
+				{
+					futures.add(future);
+				}
+			}
+			catch (RuntimeException e)
+			{
+				queued.release();
+				throw e;
+			}
+		}
+
+		/**
+		 * Wait for all the writes queued so far to complete.
+		 *
+		 * @throws IOException
+		 *             The first error of a failed write, once all writes have
+		 *             completed
+		 */
+		public void await() throws IOException
+		{
+			List<Future<Void>> pending;
+			synchronized (futures)
+			{
+				pending = new ArrayList<>(futures);
+				futures.clear();
+			}
+			IOException error = null;
+			for (Future<Void> future : pending)
+			{
+				try
+				{
+					future.get();
+				}
+				catch (InterruptedException e)
+				{
+					throw new IOException(e);
+				}
+				catch (ExecutionException e)
+				{
+					if (error == null)
+					{
+						Throwable cause = e.getCause();
+						error = cause instanceof IOException ? (IOException) cause : new IOException(cause);
+					}
+				}
+			}
+			if (error != null)
+			{
+				throw error;
+			}
+		}
+	}
+
+	/**
+	 * @param threads
+	 *            Number of writer threads
+	 * @param maxQueued
+	 *            Maximum number of writes queued or in progress
+	 * @param gzip
+	 *            Whether to also write a gzip compressed copy of each file
+	 */
+	public OutputWriter(int threads, int maxQueued, boolean gzip)
+	{
+		this.executor = Executors.newFixedThreadPool(threads, Downloader.daemonThreadFactory("writer"));
+		this.queued = new Semaphore(maxQueued);
+		this.gzip = gzip;
+	}
+
+	/**
+	 * @param metrics
+	 *            Metrics that the time and bytes written are added to
+	 */
+	public Batch batch(HarvestReport.DatasetMetrics metrics)
+	{
+		return new Batch(metrics);
+	}
+
+	@Override
+	public void close()
+	{
+		executor.shutdown();
+		try
+		{
+			executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+		}
+		catch (InterruptedException e)
+		{
+		}
+	}
+}
@@ -0,0 +1,489 @@
+package harvester;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * {@link RawStore} that appends all responses, deflate compressed, to a single
+ * pack file, instead of keeping tens of thousands of small files. An index of
+ * the latest record for each key is kept in memory and written to a
+ * <code>.idx</code> file next to the pack on {@link #close()}; records
+ * appended after the index was last written (eg after a crash) are recovered
+ * by scanning the end of the pack when it is opened, and checked against
+ * their CRC. Content is read through memory mapped segments of the pack; each
+ * segment is mapped when first read, and again once it is full, and records
+ * appended in between are read from the pack directly.
+ * <p/>
+ * Records are never modified: replacing a key appends a new record, and
+ * removing one appends a tombstone. Converting the pack into a new pack with
+ * {@link RawStoreConverter} drops the superseded records.
+ *
+ * <pre>
+ * pack:   'SMRP', int version, records
+ * record: byte type (1 = content, 2 = removed), int key length,
+ *         long time, int raw length, int stored length, int CRC-32 of the raw
+ *         content, key (UTF-8), stored (deflated) content
+ * </pre>
+ *
+ * A record never crosses a {@value #SEGMENT_SIZE} byte segment boundary; the
+ * space before a boundary that a record doesn't fit in is zero filled.
+ *
+ * @author Michael de Hoog
+ */
+public class PackRawStore implements RawStore
+{
+	private final static byte[] MAGIC = { 'S', 'M', 'R', 'P' };
+	private final static byte[] INDEX_MAGIC = { 'S', 'M', 'R', 'I' };
+	private final static int VERSION = 1;
+	private final static int HEADER_SIZE = 8;
+	private final static int RECORD_HEADER_SIZE = 25;
+	private final static byte CONTENT = 1;
+	private final static byte REMOVED = 2;
+	private final static long SEGMENT_SIZE = 1 << 30;
+
+	private static class Location
+	{
+		public final long offset;
+		public final long time;
+		public final int rawLength;
+		public final int storedLength;
+		public final int crc;
+
+		public Location(long offset, long time, int rawLength, int storedLength, int crc)
+		{
+			this.offset = offset;
+			this.time = time;
+			this.rawLength = rawLength;
+			this.storedLength = storedLength;
+			this.crc = crc;
+		}
+	}
+
+	private final File file;
+	private final File indexFile;
+	private final RandomAccessFile randomAccessFile;
+	private final FileChannel channel;
+	private final Map<String, Location> index = new HashMap<>();
+	private final List<MappedByteBuffer> segments = new ArrayList<>();
+	private long length;
+
+	public PackRawStore(File file) throws IOException
+	{
+		this.file = file;
+		this.indexFile = new File(file.getPath() + ".idx");
+		file.getAbsoluteFile().getParentFile().mkdirs();
+		randomAccessFile = new RandomAccessFile(file, "rw");
+		channel = randomAccessFile.getChannel();
+		if (channel.size() == 0)
+		{
+			indexFile.delete();
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+			header.put(MAGIC).putInt(VERSION).flip();
+			write(header, 0);
+		}
+		ByteBuffer header = read(0, HEADER_SIZE);
+		byte[] magic = new byte[MAGIC.length];
+		header.get(magic);
+		if (!Arrays.equals(magic, MAGIC) || header.getInt() != VERSION)
+		{
+			channel.close();
+			throw new IOException("Not a raw pack file: " + file);
+		}
+		scan(readIndex());
+	}
+
+	@Override
+	public synchronized boolean contains(String key)
+	{
+		return index.containsKey(key);
+	}
+
+	@Override
+	public synchronized long lastModified(String key)
+	{
+		Location location = index.get(key);
+		return location == null ? -1 : location.time;
+	}
+
+	@Override
+	public InputStream open(String key) throws IOException
+	{
+		Location location;
+		ByteBuffer stored;
+		synchronized (this)
+		{
+			location = index.get(key);
+			if (location == null)
+			{
+				throw new FileNotFoundException("No content for " + key);
+			}
+			stored = slice(location.offset, location.storedLength);
+		}
+
+		return new ByteArrayInputStream(inflate(key, stored, location.rawLength, location.crc));
+	}
+
+	/**
+	 * @return The raw content of a record, checked against its CRC
+	 */
+	private static byte[] inflate(String key, ByteBuffer stored, int rawLength, int crc) throws IOException
+	{
+		byte[] raw = new byte[rawLength];
+		Inflater inflater = new Inflater();
+		try
+		{
+			byte[] input = new byte[Math.min(65536, Math.max(1, stored.remaining()))];
+			int offset = 0;
+			while (offset < raw.length && !inflater.finished())
+			{
+				if (inflater.needsInput())
+				{
+					int count = Math.min(input.length, stored.remaining());
+					if (count == 0)
+					{
+						throw new IOException("Truncated record for " + key);
+					}
+					stored.get(input, 0, count);
+					inflater.setInput(input, 0, count);
+				}
+				offset += inflater.inflate(raw, offset, raw.length - offset);
+			}
+			if (offset != raw.length)
+			{
+				throw new IOException("Corrupt record for " + key);
+			}
+		}
+		catch (DataFormatException e)
+		{
+			throw new IOException("Corrupt record for " + key, e);
+		}
+		finally
+		{
+			inflater.end();
+		}
+		CRC32 checksum = new CRC32();
+		checksum.update(raw);
+		if ((int) checksum.getValue() != crc)
+		{
+			throw new IOException("Checksum mismatch for " + key);
+		}
+		return raw;
+	}
+
+	@Override
+	public void put(String key, InputStream input, long time) throws IOException
+	{
+		ByteArrayOutputStream rawOutput = new ByteArrayOutputStream();
+		byte[] buffer = new byte[65536];
+		int read;
+		while ((read = input.read(buffer)) >= 0)
+		{
+			rawOutput.write(buffer, 0, read);
+		}
+		byte[] raw = rawOutput.toByteArray();
+		CRC32 crc = new CRC32();
+		crc.update(raw);
+
+		ByteArrayOutputStream storedOutput = new ByteArrayOutputStream(raw.length / 4 + 64);
+		Deflater deflater = new Deflater();
+		try
+		{
+			deflater.setInput(raw);
+			deflater.finish();
+			while (!deflater.finished())
+			{
+				int count = deflater.deflate(buffer);
+				storedOutput.write(buffer, 0, count);
+			}
+		}
+		finally
+		{
+			deflater.end();
+		}
+		append(CONTENT, key, time, raw.length, storedOutput.toByteArray(), (int) crc.getValue());
+	}
+
+	@Override
+	public synchronized void remove(String key) throws IOException
+	{
+		if (index.containsKey(key))
+		{
+			append(REMOVED, key, System.currentTimeMillis(), 0, new byte[0], 0);
+		}
+	}
+
+	@Override
+	public synchronized List<String> keys()
+	{
+		return new ArrayList<>(index.keySet());
+	}
+
+	/**
+	 * Write the index and close the pack.
+	 */
+	@Override
+	public synchronized void close() throws IOException
+	{
+		if (!channel.isOpen())
+		{
+			return;
+		}
+		File tempFile = new File(indexFile.getPath() + ".tmp");
+		try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile))))
+		{
+			output.write(INDEX_MAGIC);
+			output.writeInt(VERSION);
+			output.writeLong(length);
+			output.writeInt(index.size());
+			for (Map.Entry<String, Location> entry : index.entrySet())
+			{
+				Location location = entry.getValue();
+				output.writeUTF(entry.getKey());
+				output.writeLong(location.offset);
+				output.writeLong(location.time);
+				output.writeInt(location.rawLength);
+				output.writeInt(location.storedLength);
+				output.writeInt(location.crc);
+			}
+		}
+		Files.move(tempFile.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+		segments.clear();
+		channel.close();
+		randomAccessFile.close();
+	}
+
+	private synchronized void append(byte type, String key, long time, int rawLength, byte[] stored, int crc)
+			throws IOException
+	{
+		byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+		long size = RECORD_HEADER_SIZE + keyBytes.length + stored.length;
+		if (size > SEGMENT_SIZE)
+		{
+			throw new IOException("Content for " + key + " is too large for a pack (" + size + " bytes)");
+		}
+		long position = length;
+		if (position / SEGMENT_SIZE != (position + size - 1) / SEGMENT_SIZE)
+		{
+			//zero fill to the next segment
+			long next = (position / SEGMENT_SIZE + 1) * SEGMENT_SIZE;
+			write(ByteBuffer.allocate((int) (next - position)), position);
+			position = next;
+		}
+
+		ByteBuffer record = ByteBuffer.allocate((int) size);
+		record.put(type).putInt(keyBytes.length).putLong(time).putInt(rawLength).putInt(stored.length).putInt(crc);
+		record.put(keyBytes).put(stored).flip();
+		write(record, position);
+		length = position + size;
+
+		if (type == CONTENT)
+		{
+			index.put(key, new Location(position + RECORD_HEADER_SIZE + keyBytes.length, time, rawLength,
+					stored.length, crc));
+		}
+		else
+		{
+			index.remove(key);
+		}
+	}
+
+	/**
+	 * Load the index file, if it is valid for this pack.
+	 *
+	 * @return The pack length covered by the index
+	 */
+	private long readIndex()
+	{
+		if (!indexFile.exists())
+		{
+			return HEADER_SIZE;
+		}
+		try (DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile))))
+		{
+			byte[] magic = new byte[INDEX_MAGIC.length];
+			input.readFully(magic);
+			if (!Arrays.equals(magic, INDEX_MAGIC) || input.readInt() != VERSION)
+			{
+				return HEADER_SIZE;
+			}
+			long covered = input.readLong();
+			if (covered > channel.size())
+			{
+				//index is newer than the pack; don't trust it
+				return HEADER_SIZE;
+			}
+			int count = input.readInt();
+			for (int i = 0; i < count; i++)
+			{
+				String key = input.readUTF();
+				index.put(key, new Location(input.readLong(), input.readLong(), input.readInt(), input.readInt(),
+						input.readInt()));
+			}
+			return covered;
+		}
+		catch (IOException e)
+		{
+			System.err.println("Ignoring invalid pack index " + indexFile + ": " + e);
+			index.clear();
+			return HEADER_SIZE;
+		}
+	}
+
+	/**
+	 * Read the records from the given position to the end of the pack into the
+	 * index. An incomplete record at the end of the pack (from an interrupted
+	 * write) is truncated.
+	 */
+	private void scan(long position) throws IOException
+	{
+		long size = channel.size();
+		while (position < size)
+		{
+			long nextSegment = (position / SEGMENT_SIZE + 1) * SEGMENT_SIZE;
+			if (position + RECORD_HEADER_SIZE > nextSegment || size >= position + RECORD_HEADER_SIZE
+					&& read(position, 1).get() == 0)
+			{
+				//zero fill before the next segment
+				if (nextSegment > size)
+				{
+					break;
+				}
+				position = nextSegment;
+				continue;
+			}
+			if (position + RECORD_HEADER_SIZE > size)
+			{
+				break;
+			}
+			ByteBuffer header = read(position, RECORD_HEADER_SIZE);
+			byte type = header.get();
+			int keyLength = header.getInt();
+			long time = header.getLong();
+			int rawLength = header.getInt();
+			int storedLength = header.getInt();
+			int crc = header.getInt();
+			long end = position + RECORD_HEADER_SIZE + keyLength + storedLength;
+			if ((type != CONTENT && type != REMOVED) || keyLength < 0 || storedLength < 0 || end > size)
+			{
+				break;
+			}
+			String key = new String(read(position + RECORD_HEADER_SIZE, keyLength).array(), StandardCharsets.UTF_8);
+			long offset = position + RECORD_HEADER_SIZE + keyLength;
+			if (type == CONTENT && valid(key, offset, rawLength, storedLength, crc))
+			{
+				index.put(key, new Location(offset, time, rawLength, storedLength, crc));
+			}
+			else
+			{
+				index.remove(key);
+			}
+			position = end;
+		}
+		if (position < size)
+		{
+			System.err.println("Truncating incomplete record at " + position + " in " + file);
+			channel.truncate(position);
+		}
+		length = Math.max(position, HEADER_SIZE);
+	}
+
+	/**
+	 * Check the content of a record found by {@link #scan(long)}, which
+	 * wasn't covered by the index, so it may have been written partially
+	 * before a crash.
+	 */
+	private boolean valid(String key, long offset, int rawLength, int storedLength, int crc)
+	{
+		try
+		{
+			inflate(key, read(offset, storedLength), rawLength, crc);
+			return true;
+		}
+		catch (IOException e)
+		{
+			System.err.println("Dropping record at " + offset + " in " + file + ": " + e.getLocalizedMessage());
+			return false;
+		}
+	}
+
+	/**
+	 * @return A buffer with the given range of the pack, from the memory
+	 *         mapped segment that contains it, or read from the pack if it was
+	 *         appended after the segment was mapped
+	 */
+	private ByteBuffer slice(long offset, int size) throws IOException
+	{
+		int segment = (int) (offset / SEGMENT_SIZE);
+		long segmentStart = segment * SEGMENT_SIZE;
+		int start = (int) (offset - segmentStart);
+		while (segments.size() <= segment)
+		{
+			segments.add(null);
+		}
+		MappedByteBuffer mapped = segments.get(segment);
+		if (mapped == null || mapped.capacity() < start + size)
+		{
+			long segmentLength = Math.min(SEGMENT_SIZE, length - segmentStart);
+			if (mapped != null && segmentLength < SEGMENT_SIZE)
+			{
+				//a mapping stays alive until it is garbage collected, so a growing segment is only remapped
+				//once it is full, and records appended before that are read from the pack
+				return read(offset, size);
+			}
+			mapped = channel.map(FileChannel.MapMode.READ_ONLY, segmentStart, segmentLength);
+			segments.set(segment, mapped);
+		}
+		ByteBuffer slice = mapped.duplicate();
+		slice.position(start).limit(start + size);
+		return slice.slice();
+	}
+
+	private ByteBuffer read(long position, int size) throws IOException
+	{
+		ByteBuffer buffer = ByteBuffer.allocate(size);
+		while (buffer.hasRemaining())
+		{
+			if (channel.read(buffer, position + buffer.position()) < 0)
+			{
+				throw new IOException("Unexpected end of " + file);
+			}
+		}
+		buffer.flip();
+		return buffer;
+	}
+
+	private void write(ByteBuffer buffer, long position) throws IOException
+	{
+		while (buffer.hasRemaining())
+		{
+			channel.write(buffer, position + buffer.position());
+		}
+	}
+}
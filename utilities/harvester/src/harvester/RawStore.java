@@ -0,0 +1,45 @@
+package harvester;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+
+/**
+ * Cache of the raw responses downloaded by the {@link Downloader}, keyed by
+ * request URL. Implementations must be thread-safe.
+ *
+ * @author Michael de Hoog
+ * @see FileRawStore
+ * @see PackRawStore
+ */
+public interface RawStore extends Closeable
+{
+	boolean contains(String key);
+
+	/**
+	 * @return Time at which the content for the key was stored, or -1 if it
+	 *         isn't stored
+	 */
+	long lastModified(String key);
+
+	/**
+	 * @throws java.io.FileNotFoundException
+	 *             If there is no content for the key
+	 */
+	InputStream open(String key) throws IOException;
+
+	/**
+	 * Store the content read from the input stream, replacing any existing
+	 * content for the key. If reading the input fails, the existing content is
+	 * left untouched.
+	 *
+	 * @param time
+	 *            Time to record as the content's modification time
+	 */
+	void put(String key, InputStream input, long time) throws IOException;
+
+	void remove(String key) throws IOException;
+
+	List<String> keys() throws IOException;
+}
@@ -0,0 +1,72 @@
+package harvester;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+
+/**
+ * Copies every response from one {@link RawStore} to another, eg to convert
+ * an existing harvest's cache directory to a pack file or back. A store is
+ * either a pack file (a path ending with <code>.pack</code>) or a directory in
+ * the {@link FileRawStore} layout. Converting a pack into a new pack compacts
+ * it, dropping superseded and removed records.
+ * <p/>
+ * Usage: <code>RawStoreConverter &lt;source&gt; &lt;target&gt;</code>
+ * <p/>
+ * The <code>harvester.queryUrl</code> system property must match the one the
+ * responses were harvested with, as it is used to map between request URLs and
+ * paths in a directory.
+ *
+ * @author Michael de Hoog
+ */
+public class RawStoreConverter
+{
+	private final static String QUERY_URL = System.getProperty("harvester.queryUrl",
+			"http://stat.abs.gov.au/itt/query.jsp");
+
+	public static void main(String[] args) throws IOException
+	{
+		if (args.length != 2)
+		{
+			System.err.println("Usage: RawStoreConverter <source> <target>");
+			System.exit(1);
+		}
+		File source = new File(args[0]);
+		File target = new File(args[1]);
+		if (source.getAbsoluteFile().equals(target.getAbsoluteFile()))
+		{
+			System.err.println("Source and target must be different");
+			System.exit(1);
+		}
+
+		long start = System.currentTimeMillis();
+		try (RawStore from = open(source); RawStore to = open(target))
+		{
+			List<String> keys = from.keys();
+			int count = 0;
+			for (String key : keys)
+			{
+				try (InputStream input = from.open(key))
+				{
+					to.put(key, input, from.lastModified(key));
+				}
+				if (++count % 1000 == 0)
+				{
+					System.out.println("Copied " + count + "/" + keys.size() + " responses");
+				}
+			}
+			System.out.println("Copied " + count + " responses from " + source + " to " + target + " in "
+					+ (System.currentTimeMillis() - start) + "ms");
+		}
+	}
+
+	private static RawStore open(File file) throws IOException
+	{
+		if (file.getName().endsWith(".pack"))
+		{
+			return new PackRawStore(file);
+		}
+		return new FileRawStore(file, QUERY_URL);
+	}
+}
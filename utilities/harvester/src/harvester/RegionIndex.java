@@ -0,0 +1,168 @@
+package harvester;
+
+import harvester.Harvester.Code;
+import harvester.Harvester.Concept;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * Canonical dictionary of the regions, which assigns each region a dense
+ * index within its level of the region hierarchy (regions sorted by code).
+ * Statistics that are indexed by the dictionary are written as rows in
+ * dictionary order instead of being keyed by region code, so a client that
+ * has looked up the dictionary index of each boundary once can join the
+ * statistics to the boundaries by array index.
+ * <p/>
+ * Written to <code>regions.json</code> as
+ * <code>{"levels":[{"level":"STE","codes":["1","2",...]},...]}</code>.
+ *
+ * @author Michael de Hoog
+ */
+public class RegionIndex
+{
+	private final List<String> levelTypes;
+	private final List<List<String>> levelCodes = new ArrayList<>();
+	private final Map<String, Integer> levels = new HashMap<>();
+	public final String fingerprint;
+
+	/**
+	 * Build the dictionary of the regions of all the given region concepts.
+	 * Regions below the last of the level types aren't indexed.
+	 *
+	 * @param levelTypes
+	 *            Region type of each level of the region hierarchy, from the
+	 *            root
+	 */
+	public RegionIndex(List<Concept> regionConcepts, String[] levelTypes)
+	{
+		this.levelTypes = Collections.unmodifiableList(Arrays.asList(levelTypes));
+		List<TreeSet<String>> sortedCodes = new ArrayList<>();
+		for (int level = 0; level < levelTypes.length; level++)
+		{
+			sortedCodes.add(new TreeSet<String>());
+		}
+		for (Concept concept : regionConcepts)
+		{
+			for (Code code : concept.codes)
+			{
+				int level = 0;
+				for (Code parent = code.parent; parent != null; parent = parent.parent)
+				{
+					level++;
+				}
+				if (level < levelTypes.length && !levels.containsKey(code.id))
+				{
+					levels.put(code.id, level);
+					sortedCodes.get(level).add(code.id);
+				}
+			}
+		}
+
+		MessageDigest digest = Manifest.digest();
+		for (int level = 0; level < levelTypes.length; level++)
+		{
+			List<String> codes = new ArrayList<>(sortedCodes.get(level));
+			levelCodes.add(Collections.unmodifiableList(codes));
+			digest.update((levelTypes[level] + ":" + codes.size() + ":").getBytes(StandardCharsets.UTF_8));
+			for (String code : codes)
+			{
+				digest.update((code + ",").getBytes(StandardCharsets.UTF_8));
+			}
+		}
+		fingerprint = Manifest.toHex(digest.digest());
+	}
+
+	/**
+	 * @return The codes of the level's regions, in dictionary order
+	 */
+	public List<String> codes(String levelType)
+	{
+		int level = levelTypes.indexOf(levelType);
+		if (level < 0)
+		{
+			throw new IllegalArgumentException("Unknown region level '" + levelType + "'");
+		}
+		return levelCodes.get(level);
+	}
+
+	/**
+	 * Index the rows of a measure table by the dictionary: the result has a
+	 * row for every region of the given levels, in dictionary order, with
+	 * null values for the regions the table has no values for.
+	 *
+	 * @throws IllegalStateException
+	 *             If the table has a region that isn't in one of the levels
+	 */
+	public MeasureTable index(MeasureTable table, List<String> levelTypes)
+	{
+		Map<String, Integer> tableRows = new HashMap<>();
+		for (int row = 0; row < table.codes.size(); row++)
+		{
+			tableRows.put(table.codes.get(row), row);
+		}
+		int rowCount = 0;
+		for (String levelType : levelTypes)
+		{
+			rowCount += codes(levelType).size();
+		}
+
+		int timeCount = table.times.size();
+		List<String> codes = new ArrayList<>(rowCount);
+		double[] values = new double[rowCount * timeCount];
+		Arrays.fill(values, Double.NaN);
+		for (String levelType : levelTypes)
+		{
+			for (String code : codes(levelType))
+			{
+				Integer row = tableRows.remove(code);
+				if (row != null)
+				{
+					for (int time = 0; time < timeCount; time++)
+					{
+						values[codes.size() * timeCount + time] = table.value(row, time);
+					}
+				}
+				codes.add(code);
+			}
+		}
+		if (!tableRows.isEmpty())
+		{
+			throw new IllegalStateException("Region(s) " + tableRows.keySet() + " not in the region index levels "
+					+ levelTypes);
+		}
+		return new MeasureTable(table.concept, table.units, table.min, table.max, table.times, codes, values,
+				levelTypes);
+	}
+
+	/**
+	 * Serialize the dictionary as written to <code>regions.json</code>.
+	 */
+	public void write(JsonWriter json) throws IOException
+	{
+		json.beginObject();
+		json.name("levels").beginArray();
+		for (int level = 0; level < levelTypes.size(); level++)
+		{
+			json.beginObject();
+			json.name("level").value(levelTypes.get(level));
+			json.name("codes").beginArray();
+			for (String code : levelCodes.get(level))
+			{
+				json.value(code);
+			}
+			json.endArray();
+			json.endObject();
+		}
+		json.endArray();
+		json.endObject();
+	}
+}
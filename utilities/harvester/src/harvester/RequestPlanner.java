@@ -0,0 +1,80 @@
+package harvester;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Packs the per parent query parameters of a level's GetGenericData requests
+ * (<code>&orParent=REGION.&lt;code&gt;</code>) into as few requests as
+ * possible, limited by the length of the request URL and by the estimated
+ * number of series in each response.
+ *
+ * @author Michael de Hoog
+ */
+public class RequestPlanner
+{
+	private final int maxUrlLength;
+	private final long maxSeries;
+
+	/**
+	 * @param maxUrlLength
+	 *            Maximum length of a request URL
+	 * @param maxSeries
+	 *            Maximum estimated number of series in a single response
+	 */
+	public RequestPlanner(int maxUrlLength, long maxSeries)
+	{
+		this.maxUrlLength = maxUrlLength;
+		this.maxSeries = maxSeries;
+	}
+
+	/**
+	 * Group the parameters into requests, keeping their order. A parameter
+	 * that exceeds the limits on its own gets a request of its own.
+	 *
+	 * @param baseUrl
+	 *            Request URL without any of the parameters
+	 * @param params
+	 *            Query parameter for each parent
+	 * @param series
+	 *            Estimated number of series in the response for each parent
+	 * @return Indices of the parameters in each request
+	 */
+	public List<List<Integer>> plan(String baseUrl, List<String> params, List<Long> series)
+	{
+		List<List<Integer>> requests = new ArrayList<>();
+		List<Integer> current = new ArrayList<>();
+		int length = baseUrl.length();
+		long count = 0;
+		for (int i = 0; i < params.size(); i++)
+		{
+			String param = params.get(i);
+			if (!current.isEmpty()
+					&& (length + param.length() > maxUrlLength || count + series.get(i) > maxSeries))
+			{
+				requests.add(current);
+				current = new ArrayList<>();
+				length = baseUrl.length();
+				count = 0;
+			}
+			current.add(i);
+			length += param.length();
+			count += series.get(i);
+		}
+		if (!current.isEmpty())
+		{
+			requests.add(current);
+		}
+		return requests;
+	}
+
+	public static String url(String baseUrl, List<String> params, List<Integer> request)
+	{
+		StringBuilder sb = new StringBuilder(baseUrl);
+		for (int i : request)
+		{
+			sb.append(params.get(i));
+		}
+		return sb.toString();
+	}
+}
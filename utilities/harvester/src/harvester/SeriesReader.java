@@ -0,0 +1,209 @@
+package harvester;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.json.simple.parser.ContentHandler;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+/**
+ * Streaming reader for ABS.Stat GetGenericData responses. Rather than parsing
+ * the whole response into a json-simple DOM, the response is tokenized and
+ * each entry of the <code>series</code> array is passed to a
+ * {@link SeriesHandler} as soon as it has been read. The same {@link Series}
+ * instance is reused for every series, so handlers must copy anything they
+ * want to keep.
+ * <p/>
+ * Expected format:
+ *
+ * <pre>
+ * {"series":[{"concepts":[{"name":"MEASURE","Value":"POP1"},...],
+ *             "observations":[{"Time":"2011","Value":"2.6"},...]},...]}
+ * </pre>
+ *
+ * @author Michael de Hoog
+ */
+public class SeriesReader
+{
+	/**
+	 * A single series: the concept/code pairs that identify it, and its
+	 * observations.
+	 */
+	public static class Series
+	{
+		public final List<String> conceptNames = new ArrayList<>();
+		public final List<String> conceptValues = new ArrayList<>();
+		public final List<String> times = new ArrayList<>();
+		public final List<String> values = new ArrayList<>();
+
+		private void clear()
+		{
+			conceptNames.clear();
+			conceptValues.clear();
+			times.clear();
+			values.clear();
+		}
+	}
+
+	public static interface SeriesHandler
+	{
+		void series(Series series);
+	}
+
+	/**
+	 * Read all series from the reader.
+	 *
+	 * @return The number of series read, or -1 if the document did not
+	 *         contain a <code>series</code> array (eg an error response)
+	 */
+	public static int read(Reader reader, SeriesHandler handler) throws IOException, ParseException
+	{
+		Parser parser = new Parser(handler);
+		new JSONParser().parse(reader, parser);
+		return parser.foundSeries ? parser.count : -1;
+	}
+
+	private static class Parser implements ContentHandler
+	{
+		//nesting depths of the containers we're interested in:
+		//{ "series" : [ { "concepts" : [ { "name" : ...
+		//1            2 3              4 5
+		private final static int SERIES_ARRAY_DEPTH = 2;
+		private final static int SERIES_DEPTH = 3;
+		private final static int LIST_DEPTH = 4;
+		private final static int ITEM_DEPTH = 5;
+
+		private final SeriesHandler handler;
+		private final Series series = new Series();
+		private int depth = 0;
+		private boolean foundSeries = false;
+		private boolean inSeriesArray = false;
+		private boolean inConcepts = false;
+		private boolean inObservations = false;
+		private String key;
+		private String first;
+		private String second;
+		private int count = 0;
+
+		public Parser(SeriesHandler handler)
+		{
+			this.handler = handler;
+		}
+
+		@Override
+		public void startJSON()
+		{
+		}
+
+		@Override
+		public void endJSON()
+		{
+		}
+
+		@Override
+		public boolean startObject()
+		{
+			depth++;
+			if (inSeriesArray && depth == SERIES_DEPTH)
+			{
+				series.clear();
+			}
+			else if ((inConcepts || inObservations) && depth == ITEM_DEPTH)
+			{
+				first = null;
+				second = null;
+			}
+			return true;
+		}
+
+		@Override
+		public boolean endObject()
+		{
+			if (inSeriesArray && depth == SERIES_DEPTH)
+			{
+				handler.series(series);
+				count++;
+			}
+			else if (inConcepts && depth == ITEM_DEPTH)
+			{
+				series.conceptNames.add(first);
+				series.conceptValues.add(second);
+			}
+			else if (inObservations && depth == ITEM_DEPTH)
+			{
+				series.times.add(first);
+				series.values.add(second);
+			}
+			depth--;
+			return true;
+		}
+
+		@Override
+		public boolean startObjectEntry(String key)
+		{
+			this.key = key;
+			return true;
+		}
+
+		@Override
+		public boolean endObjectEntry()
+		{
+			key = null;
+			return true;
+		}
+
+		@Override
+		public boolean startArray()
+		{
+			depth++;
+			if (depth == SERIES_ARRAY_DEPTH && "series".equals(key))
+			{
+				foundSeries = true;
+				inSeriesArray = true;
+			}
+			else if (inSeriesArray && depth == LIST_DEPTH)
+			{
+				inConcepts = "concepts".equals(key);
+				inObservations = "observations".equals(key);
+			}
+			return true;
+		}
+
+		@Override
+		public boolean endArray()
+		{
+			if (depth == SERIES_ARRAY_DEPTH)
+			{
+				inSeriesArray = false;
+			}
+			else if (depth == LIST_DEPTH)
+			{
+				inConcepts = false;
+				inObservations = false;
+			}
+			depth--;
+			return true;
+		}
+
+		@Override
+		public boolean primitive(Object value)
+		{
+			if (depth == ITEM_DEPTH && (inConcepts || inObservations))
+			{
+				String s = value == null ? null : value.toString();
+				if (inConcepts ? "name".equals(key) : "Time".equals(key))
+				{
+					first = s;
+				}
+				else if ("Value".equals(key))
+				{
+					second = s;
+				}
+			}
+			return true;
+		}
+	}
+}
@@ -0,0 +1,161 @@
+package harvester;
+
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.json.simple.JSONValue;
+import org.json.simple.parser.ParseException;
+
+/**
+ * Splits a GetGenericData response for several region parents (a request with
+ * multiple <code>orParent</code> parameters) into one response per parent, in
+ * the same format as the response to a single parent request, and stores them
+ * in a {@link RawStore}. The per parent responses are only stored once the
+ * whole response has been read successfully.
+ *
+ * @author Michael de Hoog
+ */
+public class SeriesSplitter implements Downloader.ResponseHandler<Set<String>>
+{
+	private final String regionConceptId;
+	private final Map<String, String> regionParents;
+	private final Map<String, String> parentKeys;
+	private final RawStore store;
+
+	/**
+	 * @param regionConceptId
+	 *            Name of the concept that identifies a series' region
+	 * @param regionParents
+	 *            Map of region code to the parent code it was requested for
+	 * @param parentKeys
+	 *            Map of parent code to the key its series are stored under
+	 */
+	public SeriesSplitter(String regionConceptId, Map<String, String> regionParents,
+			Map<String, String> parentKeys, RawStore store)
+	{
+		this.regionConceptId = regionConceptId;
+		this.regionParents = regionParents;
+		this.parentKeys = parentKeys;
+		this.store = store;
+	}
+
+	/**
+	 * @return The parent codes for which a response was stored; parents
+	 *         without any series in the response aren't stored
+	 */
+	@Override
+	public Set<String> handle(InputStream input) throws IOException, ParseException
+	{
+		final Map<String, ByteArrayOutputStream> outputs = new HashMap<>();
+		final Map<String, Writer> writers = new HashMap<>();
+		int count;
+		try
+		{
+			count = SeriesReader.read(new InputStreamReader(input, StandardCharsets.UTF_8),
+					new SeriesReader.SeriesHandler()
+					{
+						@Override
+						public void series(SeriesReader.Series series)
+						{
+							try
+							{
+								write(series, outputs, writers);
+							}
+							catch (IOException e)
+							{
+								throw new UncheckedIOException(e);
+							}
+						}
+					});
+		}
+		catch (UncheckedIOException e)
+		{
+			throw e.getCause();
+		}
+		if (count < 0)
+		{
+			throw new Downloader.InvalidResponseException("No series in response");
+		}
+
+		long time = System.currentTimeMillis();
+		for (Map.Entry<String, Writer> entry : writers.entrySet())
+		{
+			Writer writer = entry.getValue();
+			writer.write("]}");
+			writer.close();
+			byte[] content = outputs.get(entry.getKey()).toByteArray();
+			store.put(parentKeys.get(entry.getKey()), new ByteArrayInputStream(content), time);
+		}
+		return new HashSet<>(writers.keySet());
+	}
+
+	private void write(SeriesReader.Series series, Map<String, ByteArrayOutputStream> outputs,
+			Map<String, Writer> writers) throws IOException
+	{
+		String parent = null;
+		for (int i = 0; i < series.conceptNames.size(); i++)
+		{
+			if (regionConceptId.equals(series.conceptNames.get(i)))
+			{
+				parent = regionParents.get(series.conceptValues.get(i));
+				break;
+			}
+		}
+		if (parent == null)
+		{
+			throw new Downloader.InvalidResponseException("Series for a region that wasn't requested: "
+					+ series.conceptValues);
+		}
+
+		Writer writer = writers.get(parent);
+		if (writer == null)
+		{
+			ByteArrayOutputStream output = new ByteArrayOutputStream();
+			writer = new BufferedWriter(new OutputStreamWriter(output, StandardCharsets.UTF_8));
+			writer.write("{\"series\":[");
+			outputs.put(parent, output);
+			writers.put(parent, writer);
+		}
+		else
+		{
+			writer.write(',');
+		}
+
+		writer.write("{\"concepts\":[");
+		for (int i = 0; i < series.conceptNames.size(); i++)
+		{
+			writer.write(i == 0 ? "{" : ",{");
+			writePair(writer, "name", series.conceptNames.get(i), "Value", series.conceptValues.get(i));
+		}
+		writer.write("],\"observations\":[");
+		for (int i = 0; i < series.times.size(); i++)
+		{
+			writer.write(i == 0 ? "{" : ",{");
+			writePair(writer, "Time", series.times.get(i), "Value", series.values.get(i));
+		}
+		writer.write("]}");
+	}
+
+	private static void writePair(Writer writer, String key1, String value1, String key2, String value2)
+			throws IOException
+	{
+		writer.write('"' + key1 + "\":" + quote(value1) + ",\"" + key2 + "\":" + quote(value2) + "}");
+	}
+
+	private static String quote(String value)
+	{
+		return value == null ? "null" : '"' + JSONValue.escape(value) + '"';
+	}
+}